@@ -51,6 +51,7 @@ import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.UpgradeAnswer;
 import com.cloud.agent.api.UpgradeCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.resource.ServerResource;
@@ -117,6 +118,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     StartupTask                 _startup              = null;
     boolean                     _reconnectAllowed     = true;
+    volatile Version            _wireVersion          = Version.v1;    // what the management server can parse
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor     _ugentTaskPool;
 
@@ -240,6 +242,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     Request req = new Request((_id != null ? _id : -1), -1, cmd, false);
+                    req.setVersion(_wireVersion);
                     _link.send(req.toBytes());
                 }
             } catch (final ClosedChannelException e) {
@@ -568,6 +571,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.setVersion(_wireVersion);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -679,6 +683,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
+                request.setVersion(_wireVersion);
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
@@ -806,12 +811,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         public void doTask(final Task task) {
             if (task.getType() == Task.Type.CONNECT) {
                 _shell.getBackoffAlgorithm().reset();
+                _wireVersion = Version.v1;
                 setLink(task.getLink());
                 sendStartup(task.getLink());
             } else if (task.getType() == Task.Type.DATA) {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    _wireVersion = request.getPeerVersion();
                     if (request instanceof Response) {
                         processResponse((Response) request, task.getLink());
                     } else {
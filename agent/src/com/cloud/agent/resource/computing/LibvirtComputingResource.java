@@ -130,6 +130,7 @@ import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.StopAnswer;
 import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.UpgradeSnapshotCommand;
+import com.cloud.agent.api.VmStatsChangeFilter;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
@@ -245,6 +246,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private long _hvVersion;
     private KVMHAMonitor _monitor;
+    private final VmStatsChangeFilter _vmStatsFilter = new VmStatsChangeFilter();
     private final String _SSHKEYSPATH = "/root/.ssh";
     private final String _SSHPRVKEYPATH = _SSHKEYSPATH + File.separator + "id_rsa.cloud";
     private final String _SSHPUBKEYPATH = _SSHKEYSPATH + File.separator + "id_rsa.pub.cloud";
@@ -309,6 +311,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	protected String _localStorageUUID;
 	private Pair<String, String> _pifs;
 	private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+	private final ProcStatsSampler _procStats = new ProcStatsSampler();
+	private long _statsCacheMs = 1000;
 	
 	
 	protected boolean _disconnected = true;
@@ -620,6 +624,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         
         value = (String)params.get("cmds.timeout");
         _cmdsTimeout = NumbersUtil.parseInt(value, 7200) * 1000;
+
+        value = (String)params.get("stats.cache.ms");
+        _statsCacheMs = NumbersUtil.parseLong(value, 1000);
         
         value = (String)params.get("host.reserved.mem.mb");
         _dom0MinMem = NumbersUtil.parseInt(value, 0)*1024*1024;
@@ -1898,44 +1905,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	}
 	
 	private Answer execute(GetHostStatsCommand cmd) {
-		final Script cpuScript = new Script("/bin/bash", s_logger);
-		cpuScript.add("-c");
-		cpuScript.add("idle=$(top -b -n 1|grep Cpu\\(s\\):|cut -d% -f4|cut -d, -f2);echo $idle");
-		
-		final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-		String result = cpuScript.execute(parser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host CPU state: " + result);
-			return new Answer(cmd, false, result);
-		}
-		double cpuUtil = (100.0D - Double.parseDouble(parser.getLine()));
-		
-		long freeMem = 0;
-		final Script memScript = new Script("/bin/bash", s_logger);
-		memScript.add("-c");
-		memScript.add("freeMem=$(free|grep cache:|awk '{print $4}');echo $freeMem");
-		final OutputInterpreter.OneLineParser Memparser = new OutputInterpreter.OneLineParser();
-		result = memScript.execute(Memparser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host Mem state: " + result);
-			return new Answer(cmd, false, result);
-		}
-		freeMem = Long.parseLong(Memparser.getLine());
-		
-		Script totalMem = new Script("/bin/bash", s_logger);
-		totalMem.add("-c");
-		totalMem.add("free|grep Mem:|awk '{print $2}'");
-		final OutputInterpreter.OneLineParser totMemparser = new OutputInterpreter.OneLineParser();
-		result = totalMem.execute(totMemparser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host Mem state: " + result);
-			return new Answer(cmd, false, result);
+		ProcStatsSampler.Sample sample;
+		try {
+			sample = _procStats.sample(_statsCacheMs);
+		} catch (IOException e) {
+			s_logger.debug("Unable to get the host stats: " + e.toString());
+			return new Answer(cmd, false, e.toString());
 		}
-		long totMem = Long.parseLong(totMemparser.getLine());
-		
-		Pair<Double, Double> nicStats = getNicStats(_publicBridgeName);
+
+		long[] nicStats = sample.getNicBytes(_publicBridgeName);
+		double rx = nicStats == null ? 0 : nicStats[0];
+		double tx = nicStats == null ? 0 : nicStats[1];
 		
-		HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), cpuUtil, nicStats.first()/1000, nicStats.second()/1000, "host", totMem, freeMem, 0, 0);
+		HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), sample.getCpuUtilization(), rx/1000, tx/1000, "host", sample.getTotalMemKBs(), sample.getFreeMemKBs(), 0, 0);
 		return new GetHostStatsAnswer(cmd, hostStats);
 	}
 	
@@ -2045,15 +2027,23 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		try {
 			HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
 			Connect conn = LibvirtConnection.getConnection();
+			NodeInfo node = conn.nodeInfo();
+			// one read of /proc/net/dev covers the vifs of all the vms
+			ProcStatsSampler.Sample host = null;
+			try {
+				host = _procStats.sample(_statsCacheMs);
+			} catch (IOException e) {
+				s_logger.debug("Unable to read host network stats, asking libvirt for each vif: " + e.toString());
+			}
 			for (String vmName : vmNames) {
-				VmStatsEntry statEntry = getVmStat(conn, vmName);
+				VmStatsEntry statEntry = getVmStat(conn, node, host, vmName);
 				if( statEntry == null ) {
                     continue;
                 }
 
 				vmStatsNameMap.put(vmName, statEntry);
 			}
-			return new GetVmStatsAnswer(cmd, vmStatsNameMap);
+			return new GetVmStatsAnswer(cmd, _vmStatsFilter.filter(cmd, vmStatsNameMap));
 		}catch (LibvirtException e) {
 			s_logger.debug("Can't get vm stats: " + e.toString());
 			return new GetVmStatsAnswer(cmd, null);
@@ -3352,45 +3342,64 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	long _tx;
     	long _rx;
     	Calendar _timestamp;
+    	int _domainId;
+    	List<String> _vifs;
+    	VmStatsEntry _entry;
     }
     
-    private VmStatsEntry getVmStat(Connect conn, String vmName) throws LibvirtException{
+    private VmStatsEntry getVmStat(Connect conn, NodeInfo node, ProcStatsSampler.Sample host, String vmName) throws LibvirtException{
+    	Calendar now = Calendar.getInstance();
+    	vmStats oldStats = _vmStats.get(vmName);
+    	if (oldStats != null && now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis() < _statsCacheMs) {
+    		// asked again straight away, e.g. by another management server; a delta over a few ms would only be noise
+    		return oldStats._entry;
+    	}
+
     	Domain dm = null;
     	try {
     		dm = getDomain(conn, vmName);
     		DomainInfo info = dm.getInfo();
+    		int domainId = dm.getID();
 
     		VmStatsEntry stats = new VmStatsEntry();
     		stats.setNumCPUs(info.nrVirtCpu);
     		stats.setEntityType("vm");
     		
     		/*get cpu utilization*/
-    		vmStats oldStats = null;
-
-    		Calendar now = Calendar.getInstance();
-    		
-    		oldStats = _vmStats.get(vmName);
-  
-
     		long elapsedTime = 0;
     		if (oldStats != null) {
     			elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
     			double utilization = (info.cpuTime - oldStats._usedTime)/((double)elapsedTime*1000000);
 
-    			NodeInfo node = conn.nodeInfo();
     			utilization = utilization/node.cpus;
     			stats.setCPUUtilization(utilization*100);
     		}
 			
     		/*get network stats*/
 
-    		List<InterfaceDef> vifs = getInterfaces(conn, vmName);
+    		// the vifs only change when the domain is started again, which gives it a new id
+    		List<String> vifs;
+    		if (oldStats != null && oldStats._domainId == domainId) {
+    			vifs = oldStats._vifs;
+    		} else {
+    			vifs = new ArrayList<String>();
+    			for (InterfaceDef vif : getInterfaces(conn, vmName)) {
+    				vifs.add(vif.getDevName());
+    			}
+    		}
     		long rx = 0;
     		long tx = 0;
-    		for (InterfaceDef vif : vifs) {
-    			DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-    			rx += ifStats.rx_bytes;
-    			tx += ifStats.tx_bytes;
+    		for (String vif : vifs) {
+    			long[] hostBytes = host == null || vif == null ? null : host.getNicBytes(vif);
+    			if (hostBytes != null) {
+    				// what the host receives on the tap device is what the guest sent, as libvirt reports it
+    				rx += hostBytes[1];
+    				tx += hostBytes[0];
+    			} else {
+    				DomainInterfaceStats ifStats = dm.interfaceStats(vif);
+    				rx += ifStats.rx_bytes;
+    				tx += ifStats.tx_bytes;
+    			}
     		}
     		
     		if (oldStats != null) {
@@ -3403,6 +3412,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     		newStat._rx = rx;
     		newStat._tx = tx;
     		newStat._timestamp = now;
+    		newStat._domainId = domainId;
+    		newStat._vifs = vifs;
+    		newStat._entry = stats;
     		_vmStats.put(vmName, newStat);
     		return stats;
     	} finally {
@@ -3620,24 +3632,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	}
     }
     
-    private Pair<Double, Double> getNicStats(String nicName) {
-    	double rx = 0.0;
-		OutputInterpreter.OneLineParser rxParser = new  OutputInterpreter.OneLineParser();
-		String result = executeBashScript("cat /sys/class/net/" + nicName + "/statistics/rx_bytes", rxParser);
-		if (result == null && rxParser.getLine() != null) {
-			rx = Double.parseDouble(rxParser.getLine());
-		}
-		
-		double tx = 0.0;
-		OutputInterpreter.OneLineParser txParser = new  OutputInterpreter.OneLineParser();
-		result = executeBashScript("cat /sys/class/net/" + nicName + "/statistics/tx_bytes", txParser);
-		if (result == null && txParser.getLine() != null) {
-			tx = Double.parseDouble(txParser.getLine());
-		}
-		
-		return new Pair<Double, Double>(rx, tx);
-    }
-    
     private void createControlNetwork(Connect conn) throws LibvirtException {
         _virtRouterResource.createControlNetwork(_linkLocalBridgeName);
     }
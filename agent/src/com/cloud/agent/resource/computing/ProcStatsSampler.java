@@ -0,0 +1,256 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.resource.computing;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ProcStatsSampler reads host cpu, memory and network counters straight
+ * out of /proc instead of forking top and free.  The files are read into
+ * one buffer that is kept between samples and parsed in place.  Cpu
+ * utilization is worked out from the change in /proc/stat since the
+ * previous sample, and the last sample is handed out again to anyone
+ * asking within the cache period.
+ */
+public class ProcStatsSampler {
+    private final String _procPath;
+    private byte[] _buffer = new byte[16 * 1024];
+    private int _length;
+
+    private long _lastCpuTotal;
+    private long _lastCpuIdle;
+    private Sample _last;
+
+    /**
+     * One reading of the host's counters.  Samples are never changed once made.
+     */
+    public static class Sample {
+        final long _timestamp;
+        final double _cpuUtilization;
+        final long _totalMemKBs;
+        final long _freeMemKBs;
+        final Map<String, long[]> _nics;
+
+        Sample(long timestamp, double cpuUtilization, long totalMemKBs, long freeMemKBs, Map<String, long[]> nics) {
+            _timestamp = timestamp;
+            _cpuUtilization = cpuUtilization;
+            _totalMemKBs = totalMemKBs;
+            _freeMemKBs = freeMemKBs;
+            _nics = Collections.unmodifiableMap(nics);
+        }
+
+        public long getTimestamp() {
+            return _timestamp;
+        }
+
+        /**
+         * @return percentage of cpu time spent busy since the previous sample, or since boot for the first one.
+         */
+        public double getCpuUtilization() {
+            return _cpuUtilization;
+        }
+
+        public long getTotalMemKBs() {
+            return _totalMemKBs;
+        }
+
+        /**
+         * @return free memory counting buffers and page cache as free, like the "-/+ buffers/cache" line of free.
+         */
+        public long getFreeMemKBs() {
+            return _freeMemKBs;
+        }
+
+        /**
+         * @return received and transmitted bytes of the device as seen by the host, or null if there is no such device.
+         */
+        public long[] getNicBytes(String device) {
+            return _nics.get(device);
+        }
+    }
+
+    public ProcStatsSampler() {
+        this("/proc");
+    }
+
+    public ProcStatsSampler(String procPath) {
+        _procPath = procPath;
+    }
+
+    /**
+     * @param maxAge milliseconds a previous sample may be handed out for.
+     */
+    public synchronized Sample sample(long maxAge) throws IOException {
+        long now = System.currentTimeMillis();
+        if (_last != null && now - _last._timestamp < maxAge) {
+            return _last;
+        }
+
+        read("stat");
+        int pos = find("cpu ");
+        if (pos < 0) {
+            throw new IOException("No cpu line in " + _procPath + "/stat");
+        }
+        // user nice system idle iowait irq softirq steal; guest time is already part of user
+        long total = 0;
+        long idle = 0;
+        pos += 4;
+        for (int field = 0; field < 8; field++) {
+            pos = skipSpaces(pos);
+            if (pos >= _length || _buffer[pos] == '\n') {
+                break;
+            }
+            long value = parseLong(pos);
+            pos = skipNumber(pos);
+            total += value;
+            if (field == 3 || field == 4) {
+                idle += value;
+            }
+        }
+        long totalDelta = total - _lastCpuTotal;
+        double cpuUtilization = totalDelta > 0 ? 100.0D * (totalDelta - (idle - _lastCpuIdle)) / totalDelta : 0;
+        _lastCpuTotal = total;
+        _lastCpuIdle = idle;
+
+        read("meminfo");
+        long totalMem = value("MemTotal:");
+        long freeMem = value("MemFree:") + value("Buffers:") + value("Cached:");
+
+        read("net/dev");
+        Map<String, long[]> nics = new HashMap<String, long[]>();
+        pos = 0;
+        while (pos < _length) {
+            int end = lineEnd(pos);
+            int colon = indexOf(pos, end, (byte)':');
+            if (colon > 0) {
+                int nameStart = skipSpaces(pos);
+                String name = new String(_buffer, nameStart, colon - nameStart, "US-ASCII");
+                // receive bytes come first, transmit bytes are the ninth counter
+                int field = colon + 1;
+                long rx = 0;
+                long tx = 0;
+                for (int i = 0; i < 9 && field < end; i++) {
+                    field = skipSpaces(field);
+                    if (i == 0) {
+                        rx = parseLong(field);
+                    } else if (i == 8) {
+                        tx = parseLong(field);
+                    }
+                    field = skipNumber(field);
+                }
+                nics.put(name, new long[] { rx, tx });
+            }
+            pos = end + 1;
+        }
+
+        _last = new Sample(now, cpuUtilization, totalMem, freeMem, nics);
+        return _last;
+    }
+
+    protected void read(String file) throws IOException {
+        FileInputStream in = new FileInputStream(_procPath + "/" + file);
+        try {
+            _length = 0;
+            int read;
+            while ((read = in.read(_buffer, _length, _buffer.length - _length)) > 0) {
+                _length += read;
+                if (_length == _buffer.length) {
+                    byte[] bigger = new byte[_buffer.length * 2];
+                    System.arraycopy(_buffer, 0, bigger, 0, _length);
+                    _buffer = bigger;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number after key at the start of a line, 0 if there is no such line.
+     */
+    protected long value(String key) {
+        int pos = find(key);
+        return pos < 0 ? 0 : parseLong(skipSpaces(pos + key.length()));
+    }
+
+    /**
+     * @return where the line starting with key starts, -1 if there is none.
+     */
+    protected int find(String key) {
+        int pos = 0;
+        while (pos < _length) {
+            if (startsWith(pos, key)) {
+                return pos;
+            }
+            pos = lineEnd(pos) + 1;
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int pos, String key) {
+        if (pos + key.length() > _length) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (_buffer[pos + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lineEnd(int pos) {
+        int end = indexOf(pos, _length, (byte)'\n');
+        return end < 0 ? _length : end;
+    }
+
+    private int indexOf(int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (_buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipSpaces(int pos) {
+        while (pos < _length && (_buffer[pos] == ' ' || _buffer[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipNumber(int pos) {
+        while (pos < _length && _buffer[pos] >= '0' && _buffer[pos] <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private long parseLong(int pos) {
+        long value = 0;
+        while (pos < _length && _buffer[pos] >= '0' && _buffer[pos] <= '9') {
+            value = value * 10 + (_buffer[pos++] - '0');
+        }
+        return value;
+    }
+}
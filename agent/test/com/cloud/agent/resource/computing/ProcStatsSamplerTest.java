@@ -0,0 +1,106 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+
+public class ProcStatsSamplerTest extends TestCase {
+    private File _proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        _proc = File.createTempFile("proc", "");
+        _proc.delete();
+        new File(_proc, "net").mkdirs();
+        write("meminfo", "MemTotal:       16331092 kB\nMemFree:         1234567 kB\nBuffers:          200000 kB\nCached:          3000000 kB\nSwapCached:            0 kB\n");
+        write("net/dev", "Inter-|   Receive                                                |  Transmit\n"
+                + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n"
+                + "    lo:  123456     100    0    0    0     0          0         0   123456     100    0    0    0     0       0          0\n"
+                + "cloudbr0:987654321 5000    0    0    0     0          0         0 12345678    4000    0    0    0     0       0          0\n"
+                + " vnet0: 1000 10 0 0 0 0 0 0 2000 20 0 0 0 0 0 0\n");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (String file : new String[] { "stat", "meminfo", "net/dev", "net" }) {
+            new File(_proc, file).delete();
+        }
+        _proc.delete();
+    }
+
+    private void write(String file, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(_proc, file));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void stat(long user, long system, long idle, long iowait) throws IOException {
+        write("stat", "cpu  " + user + " 0 " + system + " " + idle + " " + iowait + " 0 0 0 0 0\ncpu0 1 2 3 4 5 6 7 8 9 10\nintr 12345\n");
+    }
+
+    public void testSample() throws Exception {
+        ProcStatsSampler sampler = new ProcStatsSampler(_proc.getAbsolutePath());
+
+        stat(100, 100, 700, 100);
+        ProcStatsSampler.Sample first = sampler.sample(0);
+        assertEquals(20.0, first.getCpuUtilization(), 0.001);
+        assertEquals(16331092, first.getTotalMemKBs());
+        assertEquals(1234567 + 200000 + 3000000, first.getFreeMemKBs());
+        assertEquals(987654321, first.getNicBytes("cloudbr0")[0]);
+        assertEquals(12345678, first.getNicBytes("cloudbr0")[1]);
+        assertEquals(1000, first.getNicBytes("vnet0")[0]);
+        assertEquals(2000, first.getNicBytes("vnet0")[1]);
+        assertNull(first.getNicBytes("eth9"));
+
+        // 150 busy out of 200 since the first sample
+        stat(200, 150, 740, 110);
+        assertSame(first, sampler.sample(60000));
+        ProcStatsSampler.Sample second = sampler.sample(0);
+        assertEquals(75.0, second.getCpuUtilization(), 0.001);
+    }
+
+    public void testSameTotalAsFree() throws Exception {
+        File proc = new File("/proc/stat");
+        if (!proc.exists()) {
+            return;
+        }
+        ProcStatsSampler.Sample sample = new ProcStatsSampler().sample(0);
+        assertTrue(sample.getFreeMemKBs() <= sample.getTotalMemKBs());
+        assertTrue(sample.getCpuUtilization() >= 0 && sample.getCpuUtilization() <= 100);
+
+        // the total the forked free used to report
+        Script script = new Script("/bin/bash");
+        script.add("-c");
+        script.add("free|grep Mem:|awk '{print $2}'");
+        OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
+        if (script.execute(parser) == null && parser.getLine() != null) {
+            assertEquals(Long.parseLong(parser.getLine().trim()), sample.getTotalMemKBs());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.api;
+
+/**
+ * Tells peer management servers which cached entities have changed.  The
+ * commands a management server sends are numbered so that a peer can tell
+ * when it has missed one.
+ */
+public class EntityCacheInvalidateCommand extends Command {
+    long msid;
+    long runId;
+    long sequence;
+    String[] tables;
+    long[][] ids;
+    
+    protected EntityCacheInvalidateCommand() {
+    }
+    
+    /**
+     * @param msid management server sending the command.
+     * @param runId run id of the sending management server.
+     * @param sequence number of the command among those sent in the run, starting at 1.
+     * @param tables tables whose rows changed.
+     * @param ids ids of the changed rows for each of the tables, null for a table if all of its rows should be dropped.
+     */
+    public EntityCacheInvalidateCommand(long msid, long runId, long sequence, String[] tables, long[][] ids) {
+        this.msid = msid;
+        this.runId = runId;
+        this.sequence = sequence;
+        this.tables = tables;
+        this.ids = ids;
+    }
+    
+    public long getMsid() {
+        return msid;
+    }
+    
+    public long getRunId() {
+        return runId;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public String[] getTables() {
+        return tables;
+    }
+    
+    public long[][] getIds() {
+        return ids;
+    }
+    
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
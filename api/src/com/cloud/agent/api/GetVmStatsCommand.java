@@ -26,6 +26,8 @@ public class GetVmStatsCommand extends Command {
     List<String> vmNames;
     String hostGuid;
     String hostName;
+    boolean changedOnly;
+    long requester;
 
     protected GetVmStatsCommand() {
     }
@@ -36,6 +38,16 @@ public class GetVmStatsCommand extends Command {
         this.hostName = hostName;
     }
 
+    /**
+     * @param changedOnly leave out the vms whose stats did not change since they were last sent to the requester.
+     * @param requester id of the management server asking, each one is sent its own changes.
+     */
+    public GetVmStatsCommand(List<String> vmNames, String hostGuid, String hostName, boolean changedOnly, long requester) {
+        this(vmNames, hostGuid, hostName);
+        this.changedOnly = changedOnly;
+        this.requester = requester;
+    }
+
     public List<String> getVmNames() {
         return vmNames;
     }
@@ -48,6 +60,14 @@ public class GetVmStatsCommand extends Command {
         return this.hostName;
     }
 
+    public boolean isChangedOnly() {
+        return changedOnly;
+    }
+
+    public long getRequester() {
+        return requester;
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
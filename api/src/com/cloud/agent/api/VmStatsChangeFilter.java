@@ -0,0 +1,63 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * VmStatsChangeFilter is used by the resources to answer a
+ * GetVmStatsCommand that asks for changed stats only.  It remembers what was
+ * last sent to each management server and leaves out the vms whose cpu
+ * utilization moved less than CPU_TOLERANCE percent, whose number of cpus is
+ * the same and that saw no network traffic.  The network counters are
+ * added up by the management server, so an entry left out is the same as
+ * one reporting no traffic.
+ */
+public class VmStatsChangeFilter {
+    protected static final double CPU_TOLERANCE = 0.5;
+
+    private final Map<Long, Map<String, VmStatsEntry>> _lastSent = new HashMap<Long, Map<String, VmStatsEntry>>();
+
+    public synchronized HashMap<String, VmStatsEntry> filter(GetVmStatsCommand cmd, HashMap<String, VmStatsEntry> stats) {
+        if (stats == null) {
+            return null;
+        }
+
+        Map<String, VmStatsEntry> lastSent = _lastSent.get(cmd.getRequester());
+        Map<String, VmStatsEntry> sent = new HashMap<String, VmStatsEntry>(stats.size());
+        HashMap<String, VmStatsEntry> changed = new HashMap<String, VmStatsEntry>();
+        for (Map.Entry<String, VmStatsEntry> entry : stats.entrySet()) {
+            VmStatsEntry last = lastSent == null ? null : lastSent.get(entry.getKey());
+            if (cmd.isChangedOnly() && last != null && isUnchanged(last, entry.getValue())) {
+                sent.put(entry.getKey(), last);
+            } else {
+                sent.put(entry.getKey(), entry.getValue());
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        _lastSent.put(cmd.getRequester(), sent);
+
+        return changed;
+    }
+
+    protected static boolean isUnchanged(VmStatsEntry last, VmStatsEntry current) {
+        return current.getNumCPUs() == last.getNumCPUs() && Math.abs(current.getCPUUtilization() - last.getCPUUtilization()) < CPU_TOLERANCE
+                && current.getNetworkReadKBs() == 0 && current.getNetworkWriteKBs() == 0;
+    }
+}
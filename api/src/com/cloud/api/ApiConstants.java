@@ -126,6 +126,7 @@ public class ApiConstants {
     public static final String NEW_PASSWORD = "new_password";
     public static final String PASSWORD_ENABLED = "passwordenabled";
     public static final String PATH = "path";
+    public static final String PLACEMENT = "placement";
     public static final String POD_ID = "podid";
     public static final String POLICY_ID = "policyid";
     public static final String PORTAL = "portal";
@@ -200,6 +201,7 @@ public class ApiConstants {
     public static final String NETWORK_TYPE = "networktype";
     public static final String PAGE = "page";
     public static final String PAGE_SIZE = "pagesize";
+    public static final String START_ID = "startid";
     public static final String COUNT = "count";
     public static final String TRAFFIC_TYPE = "traffictype";
     public static final String MAX_CONNECTIONS = "maxconnections";
@@ -39,6 +39,9 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.START_ID, type = CommandType.LONG, description = "List the page after this id, the largest id of the previous page, rather than by page number. The results are in order of id; pagesize still applies and page is ignored.")
+    private Long startId;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
@@ -75,6 +78,10 @@ public abstract class BaseListCmd extends BaseCmd {
         return 0;
     }
 
+    public Long getStartId() {
+        return startId;
+    }
+
     public Long getPageSizeVal() {
         Long defaultPageSize = MAX_PAGESIZE;
         Integer pageSizeInt = getPageSize();
@@ -146,6 +146,8 @@ public interface ResponseGenerator {
 
     IPAddressResponse createIPAddressResponse(IpAddress ipAddress);
 
+    List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses);
+
     LoadBalancerResponse createLoadBalancerResponse(LoadBalancer loadBalancer);
 
     PodResponse createPodResponse(Pod pod, Boolean showCapacities);
@@ -154,6 +156,8 @@ public interface ResponseGenerator {
 
     VolumeResponse createVolumeResponse(Volume volume);
 
+    List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes);
+
     InstanceGroupResponse createInstanceGroupResponse(InstanceGroup group);
 
     StoragePoolResponse createStoragePoolResponse(StoragePool pool);
@@ -201,6 +205,8 @@ public interface ResponseGenerator {
 
     EventResponse createEventResponse(Event event);
 
+    List<EventResponse> createEventResponses(List<? extends Event> events);
+
     TemplateResponse createIsoResponse(VirtualMachineTemplate result);
 
     List<CapacityResponse> createCapacityResponse(List<? extends Capacity> result, DecimalFormat format);
@@ -17,7 +17,6 @@
  */
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -129,10 +128,7 @@ public class ListEventsCmd extends BaseListCmd {
     public void execute(){
         List<? extends Event> result = _mgr.searchForEvents(this);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
-        List<EventResponse> eventResponses = new ArrayList<EventResponse>();
-        for (Event event : result) {
-            eventResponses.add(_responseGenerator.createEventResponse(event));
-        }
+        List<EventResponse> eventResponses = _responseGenerator.createEventResponses(result);
 
         response.setResponses(eventResponses);
         response.setResponseName(getCommandName());
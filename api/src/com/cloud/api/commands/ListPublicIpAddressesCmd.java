@@ -18,7 +18,6 @@
 
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -124,11 +123,9 @@ public class ListPublicIpAddressesCmd extends BaseListCmd {
     public void execute(){
         List<? extends IpAddress> result = _mgr.searchForIPAddresses(this);
         ListResponse<IPAddressResponse> response = new ListResponse<IPAddressResponse>();
-        List<IPAddressResponse> ipAddrResponses = new ArrayList<IPAddressResponse>();
-        for (IpAddress ipAddress : result) {
-            IPAddressResponse ipResponse = _responseGenerator.createIPAddressResponse(ipAddress);
+        List<IPAddressResponse> ipAddrResponses = _responseGenerator.createIPAddressResponses(result);
+        for (IPAddressResponse ipResponse : ipAddrResponses) {
             ipResponse.setObjectName("publicipaddress");
-            ipAddrResponses.add(ipResponse);
         }
 
         response.setResponses(ipAddrResponses);
@@ -17,7 +17,6 @@
  */
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -141,11 +140,9 @@ public class ListVolumesCmd extends BaseListCmd {
         List<? extends Volume> volumes = _mgr.searchForVolumes(this);
 
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
-        List<VolumeResponse> volResponses = new ArrayList<VolumeResponse>();
-        for (Volume volume : volumes) {
-            VolumeResponse volResponse = _responseGenerator.createVolumeResponse(volume);
+        List<VolumeResponse> volResponses = _responseGenerator.createVolumeResponses(volumes);
+        for (VolumeResponse volResponse : volResponses) {
             volResponse.setObjectName("volume");
-            volResponses.add(volResponse);
         }
 
         response.setResponses(volResponses);
@@ -0,0 +1,92 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.api.commands;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.BaseCmd;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.ServerApiException;
+import com.cloud.api.response.ListResponse;
+import com.cloud.api.response.UserVmResponse;
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.user.Account;
+import com.cloud.uservm.UserVm;
+
+@Implementation(responseObject=UserVmResponse.class, description="Places a group of stopped virtual machines of the same template and service offering in one planner pass and reserves host capacity for all of them. Each virtual machine is started later on the host reserved for it.")
+public class ReserveVMsCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(ReserveVMsCmd.class.getName());
+
+    private static final String s_name = "reservevirtualmachinesresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name=ApiConstants.IDS, type=CommandType.LIST, collectionType=CommandType.LONG, required=true, description="the IDs of the stopped virtual machines to place (i.e. ids=1,2,3)")
+    private List<Long> ids;
+
+    @Parameter(name=ApiConstants.PLACEMENT, type=CommandType.STRING, description="spread to balance the virtual machines over the emptiest hosts, pack to fill each host before using the next. Defaults to spread")
+    private String placement;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public String getPlacement() {
+        return placement;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        return Account.ACCOUNT_ID_SYSTEM;
+    }
+
+    @Override
+    public void execute() {
+        try {
+            List<? extends UserVm> result = _userVmService.reserveVirtualMachines(this);
+            ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+            List<UserVmResponse> vmResponses = _responseGenerator.createUserVmResponse("virtualmachine", result.toArray(new UserVm[result.size()]));
+            response.setResponses(vmResponses);
+            response.setResponseName(getCommandName());
+            this.setResponseObject(response);
+        } catch (InsufficientCapacityException ex) {
+            s_logger.info(ex);
+            s_logger.trace(ex);
+            throw new ServerApiException(BaseCmd.INSUFFICIENT_CAPACITY_ERROR, ex.getMessage());
+        }
+    }
+}
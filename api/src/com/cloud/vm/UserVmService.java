@@ -33,6 +33,7 @@ import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
 import com.cloud.api.commands.RebootVMCmd;
 import com.cloud.api.commands.RecoverVMCmd;
+import com.cloud.api.commands.ReserveVMsCmd;
 import com.cloud.api.commands.ResetVMPasswordCmd;
 import com.cloud.api.commands.RestoreVMCmd;
 import com.cloud.api.commands.StartVMCmd;
@@ -350,6 +351,18 @@ public interface UserVmService {
      */
     List<? extends UserVm> searchForUserVMs(ListVMsCmd cmd);
 
+    /**
+     * Places a group of stopped virtual machines of the same template and service offering in one planner pass and
+     * reserves host capacity for all of them. Each virtual machine later starts on the host reserved for it.
+     * 
+     * @param cmd
+     *            the API command that wraps the virtual machine ids and the placement policy
+     * @return the virtual machines with their reserved host recorded as the last host
+     * @throws InsufficientCapacityException
+     *             if the group cannot be placed or its capacity cannot be reserved.
+     */
+    List<? extends UserVm> reserveVirtualMachines(ReserveVMsCmd cmd) throws InsufficientCapacityException;
+
     HypervisorType getHypervisorTypeOfUserVM(long vmid);
 
     UserVm createVirtualMachine(DeployVMCmd cmd) throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException, StorageUnavailableException,
@@ -0,0 +1,925 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+/**
+ * BinaryCodec is the compact alternative to the Gson encoding of the
+ * commands and answers carried in a Request.  It walks the same fields Gson
+ * does (everything that is not static, transient or synthetic) but writes
+ * tagged, varint encoded values instead of text.
+ *
+ * Each message carries its own class table: the first time a class is seen
+ * its name and field names are written, afterwards it is referred to by
+ * index.  The reader matches fields by name, so a peer with a slightly
+ * different version of a command still decodes whatever fields it knows.
+ *
+ * Reflection is done once per class; ClassInfo keeps the accessible fields,
+ * their primitive kinds and how to instantiate the class.
+ *
+ * Fields whose declared type involves one of the types GsonHelper has its
+ * own adapter for are written as the adapter's json, so they decode to
+ * exactly what the json encoding gives.  Like Gson, a null field is left at
+ * whatever the default constructor set.
+ *
+ * Every count read from the wire is checked against the bytes left in the
+ * message before anything is allocated for it.
+ */
+public class BinaryCodec {
+    protected static final Gson s_gson = GsonHelper.getGson();
+    protected static final Charset s_utf8 = Charset.forName("UTF-8");
+
+    protected static final byte T_NULL = 0;
+    protected static final byte T_TRUE = 1;
+    protected static final byte T_FALSE = 2;
+    protected static final byte T_BYTE = 3;
+    protected static final byte T_SHORT = 4;
+    protected static final byte T_CHAR = 5;
+    protected static final byte T_INT = 6;
+    protected static final byte T_LONG = 7;
+    protected static final byte T_FLOAT = 8;
+    protected static final byte T_DOUBLE = 9;
+    protected static final byte T_STRING = 10;
+    protected static final byte T_ENUM = 11;
+    protected static final byte T_DATE = 12;
+    protected static final byte T_BYTES = 13;
+    protected static final byte T_ARRAY = 14;
+    protected static final byte T_COLLECTION = 15;
+    protected static final byte T_MAP = 16;
+    protected static final byte T_OBJECT = 17;
+    protected static final byte T_JSON = 18;
+    protected static final byte T_ADAPTED = 19;
+
+    protected static final int K_OBJECT = 0;
+    protected static final int K_BOOLEAN = 1;
+    protected static final int K_BYTE = 2;
+    protected static final int K_SHORT = 3;
+    protected static final int K_CHAR = 4;
+    protected static final int K_INT = 5;
+    protected static final int K_LONG = 6;
+    protected static final int K_FLOAT = 7;
+    protected static final int K_DOUBLE = 8;
+    protected static final int K_ADAPTED = 9;
+
+    private static final ConcurrentHashMap<Class<?>, ClassInfo> s_infos = new ConcurrentHashMap<Class<?>, ClassInfo>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+    private static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+    private static final String[] s_allowedPackages = new String[] { "com.cloud.", "java.lang.", "java.util.", "java.net.", "java.math.", "java.sql." };
+    private static final Type[] s_adaptedTypes = GsonHelper.getAdaptedTypes();
+    private static final Object s_unsafe;
+    private static final Method s_allocateInstance;
+
+    static {
+        for (Class<?> clazz : new Class<?>[] { boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class }) {
+            s_primitives.put(clazz.getName(), clazz);
+        }
+
+        Object unsafe = null;
+        Method allocate = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            allocate = unsafeClass.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            // Classes without a default constructor can not be decoded.
+        }
+        s_unsafe = unsafe;
+        s_allocateInstance = allocate;
+    }
+
+    /**
+     * Encodes the commands or answers into the binary format.
+     */
+    public static byte[] encode(Object[] values) {
+        Writer writer = new Writer();
+        writer.writeVarInt(values.length);
+        for (Object value : values) {
+            writer.writeValue(value);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes what encode() produced.
+     *
+     * @param type component type of the resulting array.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T[] decode(byte[] bytes, int offset, int length, Class<T> type) {
+        Reader reader = new Reader(bytes, offset, length);
+        int count = reader.readCount(1);
+        T[] values = (T[])Array.newInstance(type, count);
+        for (int i = 0; i < count; i++) {
+            Object value = reader.readValue(null);
+            if (value != null && !type.isInstance(value)) {
+                throw new CloudRuntimeException("Expected " + type.getName() + " but got " + value.getClass().getName());
+            }
+            values[i] = (T)value;
+        }
+        return values;
+    }
+
+    protected static ClassInfo getInfo(Class<?> clazz) {
+        ClassInfo info = s_infos.get(clazz);
+        if (info == null) {
+            info = new ClassInfo(clazz);
+            ClassInfo existing = s_infos.putIfAbsent(clazz, info);
+            if (existing != null) {
+                info = existing;
+            }
+        }
+        return info;
+    }
+
+    protected static Class<?> lookupClass(String name) {
+        Class<?> clazz = s_classes.get(name);
+        if (clazz == null) {
+            clazz = s_primitives.get(name);
+            if (clazz == null) {
+                if (!isAllowed(name)) {
+                    throw new CloudRuntimeException("Refusing to decode " + name);
+                }
+                try {
+                    clazz = Class.forName(name);
+                } catch (ClassNotFoundException e) {
+                    throw new CloudRuntimeException("can't find " + name);
+                }
+            }
+            s_classes.put(name, clazz);
+        }
+        return clazz;
+    }
+
+    /**
+     * Only our own classes and plain JDK value types may be named on the
+     * wire; the names come from the peer.
+     */
+    protected static boolean isAllowed(String name) {
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '[') {
+            start++;
+        }
+        if (start > 0) {
+            if (name.charAt(start) != 'L') {
+                return true;    // array of primitives
+            }
+            name = name.substring(start + 1);
+        }
+        for (String prefix : s_allowedPackages) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static boolean isJdkClass(Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+    }
+
+    protected static int kindOf(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return K_OBJECT;
+        } else if (type == boolean.class) {
+            return K_BOOLEAN;
+        } else if (type == byte.class) {
+            return K_BYTE;
+        } else if (type == short.class) {
+            return K_SHORT;
+        } else if (type == char.class) {
+            return K_CHAR;
+        } else if (type == int.class) {
+            return K_INT;
+        } else if (type == long.class) {
+            return K_LONG;
+        } else if (type == float.class) {
+            return K_FLOAT;
+        } else {
+            return K_DOUBLE;
+        }
+    }
+
+    /**
+     * @return true if the type is, or is built from, a type with a Gson adapter.
+     */
+    protected static boolean isAdapted(Type type) {
+        for (Type adapted : s_adaptedTypes) {
+            if (sameType(type, adapted)) {
+                return true;
+            }
+        }
+        if (type instanceof ParameterizedType) {
+            for (Type arg : ((ParameterizedType)type).getActualTypeArguments()) {
+                if (isAdapted(arg)) {
+                    return true;
+                }
+            }
+        } else if (type instanceof GenericArrayType) {
+            return isAdapted(((GenericArrayType)type).getGenericComponentType());
+        }
+        return false;
+    }
+
+    protected static boolean sameType(Type t1, Type t2) {
+        if (t1 instanceof Class || t2 instanceof Class) {
+            return t1.equals(t2);
+        }
+        if (!(t1 instanceof ParameterizedType) || !(t2 instanceof ParameterizedType)) {
+            return false;
+        }
+        ParameterizedType p1 = (ParameterizedType)t1;
+        ParameterizedType p2 = (ParameterizedType)t2;
+        Type[] args1 = p1.getActualTypeArguments();
+        Type[] args2 = p2.getActualTypeArguments();
+        if (!sameType(p1.getRawType(), p2.getRawType()) || args1.length != args2.length) {
+            return false;
+        }
+        for (int i = 0; i < args1.length; i++) {
+            if (!sameType(args1[i], args2[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reflection data for one class, computed once.
+     */
+    protected static class ClassInfo {
+        final Class<?> _clazz;
+        final Field[] _fields;
+        final int[] _kinds;
+        final Type[] _types;
+        final String[] _names;
+        final boolean _bean;
+        final boolean _skipped;
+        Constructor<?> _constructor;
+
+        ClassInfo(Class<?> clazz) {
+            _clazz = clazz;
+            _skipped = clazz.isAnonymousClass() || clazz.isLocalClass();
+            _bean = !clazz.isPrimitive() && !clazz.isArray() && !clazz.isEnum() && !clazz.isInterface() && !isJdkClass(clazz);
+
+            List<Field> fields = new ArrayList<Field>();
+            if (_bean) {
+                for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+                try {
+                    _constructor = clazz.getDeclaredConstructor();
+                    _constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    _constructor = null;
+                }
+            } else if ((Collection.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz)) && Modifier.isPublic(clazz.getModifiers()) && !Modifier.isAbstract(clazz.getModifiers())) {
+                try {
+                    _constructor = clazz.getConstructor();
+                } catch (NoSuchMethodException e) {
+                    _constructor = null;
+                }
+            }
+
+            _fields = fields.toArray(new Field[fields.size()]);
+            _kinds = new int[_fields.length];
+            _types = new Type[_fields.length];
+            _names = new String[_fields.length];
+            Set<String> seen = new HashSet<String>();
+            for (int i = 0; i < _fields.length; i++) {
+                _types[i] = _fields[i].getGenericType();
+                _kinds[i] = kindOf(_fields[i].getType());
+                if (_kinds[i] == K_OBJECT && isAdapted(_types[i])) {
+                    _kinds[i] = K_ADAPTED;
+                }
+                String name = _fields[i].getName();
+                if (!seen.add(name)) {
+                    // Shadowed field in a subclass.
+                    name = _fields[i].getDeclaringClass().getSimpleName() + "." + name;
+                    seen.add(name);
+                }
+                _names[i] = name;
+            }
+        }
+
+        Object newInstance() {
+            try {
+                if (_constructor != null) {
+                    return _constructor.newInstance();
+                }
+                if (s_allocateInstance != null) {
+                    return s_allocateInstance.invoke(s_unsafe, _clazz);
+                }
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + _clazz.getName(), e);
+            }
+            throw new CloudRuntimeException("Unable to create " + _clazz.getName() + " without a default constructor");
+        }
+
+        /**
+         * Maps the field names sent by the peer onto the local fields.
+         */
+        int[] mapFields(String[] remote) {
+            int[] map = new int[remote.length];
+            if (Arrays.equals(remote, _names)) {
+                for (int i = 0; i < map.length; i++) {
+                    map[i] = i;
+                }
+                return map;
+            }
+            for (int i = 0; i < remote.length; i++) {
+                map[i] = -1;
+                for (int j = 0; j < _names.length; j++) {
+                    if (_names[j].equals(remote[i])) {
+                        map[i] = j;
+                        break;
+                    }
+                }
+            }
+            return map;
+        }
+    }
+
+    protected static class Writer {
+        byte[] _buf = new byte[1024];
+        int _pos = 0;
+        final IdentityHashMap<Class<?>, Integer> _classes = new IdentityHashMap<Class<?>, Integer>();
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(_buf, _pos);
+        }
+
+        void ensure(int len) {
+            if (_pos + len > _buf.length) {
+                _buf = Arrays.copyOf(_buf, Math.max(_buf.length * 2, _pos + len));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            _buf[_pos++] = (byte)b;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                _buf[_pos++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buf[_pos++] = (byte)value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixedLong(long value) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                _buf[_pos++] = (byte)(value >>> i);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+            _pos += bytes.length;
+        }
+
+        void writeString(String str) {
+            int len = str.length();
+            boolean ascii = true;
+            for (int i = 0; i < len; i++) {
+                if (str.charAt(i) >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if (!ascii) {
+                writeBytes(str.getBytes(s_utf8));
+                return;
+            }
+            writeVarInt(len);
+            ensure(len);
+            for (int i = 0; i < len; i++) {
+                _buf[_pos++] = (byte)str.charAt(i);
+            }
+        }
+
+        void writeClass(Class<?> clazz) {
+            Integer index = _classes.get(clazz);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            _classes.put(clazz, _classes.size());
+            writeVarInt(0);
+            writeString(clazz.getName());
+            ClassInfo info = getInfo(clazz);
+            writeVarInt(info._names.length);
+            for (String name : info._names) {
+                writeString(name);
+            }
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeByte(T_NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                writeByte(T_STRING);
+                writeString((String)value);
+            } else if (clazz == Long.class) {
+                writeByte(T_LONG);
+                writeZigZag((Long)value);
+            } else if (clazz == Integer.class) {
+                writeByte(T_INT);
+                writeZigZag((Integer)value);
+            } else if (clazz == Boolean.class) {
+                writeByte((Boolean)value ? T_TRUE : T_FALSE);
+            } else if (clazz == Double.class) {
+                writeByte(T_DOUBLE);
+                writeFixedLong(Double.doubleToLongBits((Double)value));
+            } else if (clazz == Float.class) {
+                writeByte(T_FLOAT);
+                writeVarInt(Float.floatToIntBits((Float)value));
+            } else if (clazz == Short.class) {
+                writeByte(T_SHORT);
+                writeZigZag((Short)value);
+            } else if (clazz == Byte.class) {
+                writeByte(T_BYTE);
+                writeByte((Byte)value);
+            } else if (clazz == Character.class) {
+                writeByte(T_CHAR);
+                writeVarInt((Character)value);
+            } else if (value instanceof Enum) {
+                Enum<?> e = (Enum<?>)value;
+                writeByte(T_ENUM);
+                writeClass(e.getDeclaringClass());
+                writeString(e.name());
+            } else if (value instanceof Date) {
+                writeByte(T_DATE);
+                writeClass(clazz);
+                writeZigZag(((Date)value).getTime());
+            } else if (clazz == byte[].class) {
+                writeByte(T_BYTES);
+                writeBytes((byte[])value);
+            } else if (clazz.isArray()) {
+                int len = Array.getLength(value);
+                writeByte(T_ARRAY);
+                writeClass(clazz.getComponentType());
+                writeVarInt(len);
+                for (int i = 0; i < len; i++) {
+                    writeValue(Array.get(value, i));
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> c = (Collection<?>)value;
+                writeByte(T_COLLECTION);
+                writeClass(clazz);
+                writeVarInt(c.size());
+                for (Object o : c) {
+                    writeValue(o);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> m = (Map<?, ?>)value;
+                writeByte(T_MAP);
+                writeClass(clazz);
+                writeVarInt(m.size());
+                for (Map.Entry<?, ?> entry : m.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (isJdkClass(clazz)) {
+                // Leave the odd JDK type (URI, BigDecimal...) to Gson.
+                writeByte(T_JSON);
+                writeClass(clazz);
+                writeString(s_gson.toJson(value, clazz));
+            } else {
+                ClassInfo info = getInfo(clazz);
+                if (info._skipped) {
+                    writeByte(T_NULL);
+                    return;
+                }
+                writeByte(T_OBJECT);
+                writeClass(clazz);
+                writeFields(value, info);
+            }
+        }
+
+        void writeFields(Object value, ClassInfo info) {
+            Field[] fields = info._fields;
+            int[] kinds = info._kinds;
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Field field = fields[i];
+                    switch (kinds[i]) {
+                    case K_INT:
+                        writeByte(T_INT);
+                        writeZigZag(field.getInt(value));
+                        break;
+                    case K_LONG:
+                        writeByte(T_LONG);
+                        writeZigZag(field.getLong(value));
+                        break;
+                    case K_BOOLEAN:
+                        writeByte(field.getBoolean(value) ? T_TRUE : T_FALSE);
+                        break;
+                    case K_OBJECT:
+                        writeValue(field.get(value));
+                        break;
+                    case K_ADAPTED:
+                        writeAdapted(field.get(value), info._types[i]);
+                        break;
+                    default:
+                        writeValue(field.get(value));
+                        break;
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to encode " + info._clazz.getName(), e);
+            }
+        }
+
+        void writeAdapted(Object value, Type type) {
+            JsonElement json = value != null ? s_gson.toJsonTree(value, type) : null;
+            if (json == null || json.isJsonNull()) {
+                // Gson drops the field, so the reader leaves it alone.
+                writeByte(T_NULL);
+                return;
+            }
+            writeByte(T_ADAPTED);
+            writeString(s_gson.toJson(json));
+        }
+    }
+
+    protected static class Reader {
+        final byte[] _buf;
+        int _pos;
+        final int _end;
+        final List<Class<?>> _classes = new ArrayList<Class<?>>();
+        final List<int[]> _fieldMaps = new ArrayList<int[]>();
+
+        Reader(byte[] buf, int offset, int length) {
+            _buf = buf;
+            _pos = offset;
+            _end = offset + length;
+        }
+
+        byte readByte() {
+            if (_pos >= _end) {
+                throw new CloudRuntimeException("Unexpected end of binary content");
+            }
+            return _buf[_pos++];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int readVarInt() {
+            return (int)readVarLong();
+        }
+
+        /**
+         * Reads a count of items that take at least minBytes each, and
+         * refuses it if the rest of the message can't hold that many.
+         */
+        int readCount(int minBytes) {
+            int count = readVarInt();
+            if (count < 0 || (long)count * minBytes > _end - _pos) {
+                throw new CloudRuntimeException("Bad count " + count + " in binary content, only " + (_end - _pos) + " bytes left");
+            }
+            return count;
+        }
+
+        long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes() {
+            int len = readVarInt();
+            if (len < 0 || _pos + len > _end) {
+                throw new CloudRuntimeException("Bad length " + len + " in binary content");
+            }
+            byte[] bytes = Arrays.copyOfRange(_buf, _pos, _pos + len);
+            _pos += len;
+            return bytes;
+        }
+
+        String readString() {
+            int len = readVarInt();
+            if (len < 0 || _pos + len > _end) {
+                throw new CloudRuntimeException("Bad length " + len + " in binary content");
+            }
+            String str = new String(_buf, _pos, len, s_utf8);
+            _pos += len;
+            return str;
+        }
+
+        int readClass() {
+            int index = readVarInt();
+            if (index > 0) {
+                return index - 1;
+            }
+            Class<?> clazz = lookupClass(readString());
+            int count = readCount(1);
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = readString();
+            }
+            _classes.add(clazz);
+            _fieldMaps.add(getInfo(clazz).mapFields(names));
+            return _classes.size() - 1;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readValue(Class<?> declared) {
+            byte tag = readByte();
+            switch (tag) {
+            case T_NULL:
+                return null;
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_BYTE:
+                return readByte();
+            case T_SHORT:
+                return (short)readZigZag();
+            case T_CHAR:
+                return (char)readVarInt();
+            case T_INT:
+                return (int)readZigZag();
+            case T_LONG:
+                return readZigZag();
+            case T_FLOAT:
+                return Float.intBitsToFloat(readVarInt());
+            case T_DOUBLE:
+                return Double.longBitsToDouble(readFixedLong());
+            case T_STRING:
+                return readString();
+            case T_ENUM: {
+                Class<?> clazz = _classes.get(readClass());
+                return Enum.valueOf((Class<Enum>)clazz, readString());
+            }
+            case T_DATE: {
+                Class<?> clazz = _classes.get(readClass());
+                long time = readZigZag();
+                if (clazz == Date.class) {
+                    return new Date(time);
+                }
+                Date date = (Date)getInfo(clazz).newInstance();
+                date.setTime(time);
+                return date;
+            }
+            case T_BYTES:
+                return readBytes();
+            case T_ARRAY: {
+                Class<?> component = _classes.get(readClass());
+                int len = readCount(1);
+                Object array = Array.newInstance(component, len);
+                for (int i = 0; i < len; i++) {
+                    Array.set(array, i, readValue(component));
+                }
+                return array;
+            }
+            case T_COLLECTION: {
+                Class<?> clazz = _classes.get(readClass());
+                int len = readCount(1);
+                Collection c = newCollection(clazz, declared, len);
+                for (int i = 0; i < len; i++) {
+                    c.add(readValue(null));
+                }
+                return c;
+            }
+            case T_MAP: {
+                Class<?> clazz = _classes.get(readClass());
+                int len = readCount(2);
+                Map m = newMap(clazz, declared, len);
+                for (int i = 0; i < len; i++) {
+                    Object key = readValue(null);
+                    m.put(key, readValue(null));
+                }
+                return m;
+            }
+            case T_JSON: {
+                Class<?> clazz = _classes.get(readClass());
+                return s_gson.fromJson(readString(), clazz);
+            }
+            case T_ADAPTED:
+                readString();   // field we don't know about, the type is in the field
+                return null;
+            case T_OBJECT: {
+                int index = readClass();
+                ClassInfo info = getInfo(_classes.get(index));
+                Object obj = info.newInstance();
+                readFields(obj, info, _fieldMaps.get(index));
+                return obj;
+            }
+            default:
+                throw new CloudRuntimeException("Unknown tag " + tag + " in binary content");
+            }
+        }
+
+        void readFields(Object obj, ClassInfo info, int[] map) {
+            Field[] fields = info._fields;
+            int[] kinds = info._kinds;
+            try {
+                for (int i = 0; i < map.length; i++) {
+                    int index = map[i];
+                    if (index < 0) {
+                        readValue(null);  // field we don't know about
+                        continue;
+                    }
+                    Field field = fields[index];
+                    int kind = kinds[index];
+                    if (kind == K_INT && _pos < _end && _buf[_pos] == T_INT) {
+                        _pos++;
+                        field.setInt(obj, (int)readZigZag());
+                        continue;
+                    } else if (kind == K_LONG && _pos < _end && _buf[_pos] == T_LONG) {
+                        _pos++;
+                        field.setLong(obj, readZigZag());
+                        continue;
+                    } else if (kind == K_ADAPTED && _pos < _end && _buf[_pos] == T_ADAPTED) {
+                        _pos++;
+                        field.set(obj, s_gson.fromJson(readString(), info._types[index]));
+                        continue;
+                    }
+
+                    Object value = readValue(field.getType());
+                    if (kind != K_OBJECT && kind != K_ADAPTED) {
+                        setPrimitive(obj, field, kind, value);
+                    } else if (value == null) {
+                        continue;   // Gson leaves the default in place too.
+                    } else if (field.getType().isInstance(value)) {
+                        field.set(obj, value);
+                    } else {
+                        throw new CloudRuntimeException("Can't set " + value.getClass().getName() + " to " + field);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to decode " + info._clazz.getName(), e);
+            }
+        }
+
+        void setPrimitive(Object obj, Field field, int kind, Object value) throws IllegalAccessException {
+            if (value == null) {
+                return;     // Gson leaves the default in place too.
+            }
+            if (kind == K_BOOLEAN) {
+                field.setBoolean(obj, (Boolean)value);
+            } else if (kind == K_CHAR) {
+                field.setChar(obj, (Character)value);
+            } else {
+                Number n = (Number)value;
+                switch (kind) {
+                case K_BYTE:
+                    field.setByte(obj, n.byteValue());
+                    break;
+                case K_SHORT:
+                    field.setShort(obj, n.shortValue());
+                    break;
+                case K_INT:
+                    field.setInt(obj, n.intValue());
+                    break;
+                case K_LONG:
+                    field.setLong(obj, n.longValue());
+                    break;
+                case K_FLOAT:
+                    field.setFloat(obj, n.floatValue());
+                    break;
+                default:
+                    field.setDouble(obj, n.doubleValue());
+                    break;
+                }
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        Collection newCollection(Class<?> clazz, Class<?> declared, int size) {
+            Object c = instantiate(clazz, declared);
+            if (c instanceof Collection) {
+                return (Collection)c;
+            }
+            if (declared != null && SortedSet.class.isAssignableFrom(declared)) {
+                return new TreeSet();
+            } else if (declared != null && Queue.class.isAssignableFrom(declared)) {
+                return new LinkedList();
+            } else if (Set.class.isAssignableFrom(clazz) || (declared != null && Set.class.isAssignableFrom(declared))) {
+                return new HashSet(size * 2);
+            }
+            return new ArrayList(size);
+        }
+
+        @SuppressWarnings("rawtypes")
+        Map newMap(Class<?> clazz, Class<?> declared, int size) {
+            Object m = instantiate(clazz, declared);
+            if (m instanceof Map) {
+                return (Map)m;
+            }
+            if (SortedMap.class.isAssignableFrom(clazz) || (declared != null && SortedMap.class.isAssignableFrom(declared))) {
+                return new TreeMap();
+            }
+            return new HashMap(size * 2);
+        }
+
+        /**
+         * Creates the same container class the peer had, if it is a public
+         * class with a public default constructor that fits the field.
+         */
+        Object instantiate(Class<?> clazz, Class<?> declared) {
+            if (declared != null && !declared.isAssignableFrom(clazz)) {
+                return null;
+            }
+            Constructor<?> constructor = getInfo(clazz)._constructor;
+            if (constructor == null) {
+                return null;
+            }
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.nio.Link;
+
+/**
+ * FrameCompressor compresses the data package of v4 requests with zlib and a
+ * preset dictionary made of the names that show up in nearly every command
+ * and answer.  Unlike the gzip path in Request it keeps its Deflater and
+ * Inflater around (one per thread) so the native zlib state is not set up
+ * and torn down for every frame.
+ *
+ * Frames below the threshold are sent as is.  If the frames that were
+ * compressed recently did not shrink by much, compression is switched off
+ * for a while and then retried.
+ */
+public class FrameCompressor {
+    private static final Logger s_logger = Logger.getLogger(FrameCompressor.class);
+
+    /**
+     * Never change this: both ends must have the exact same dictionary.  The
+     * receiver checks the adler32 of the dictionary the sender used and
+     * refuses the frame if it doesn't match.  Most frequent names go last
+     * because zlib finds closer matches cheaper.
+     */
+    protected static final byte[] s_dictionary = (
+            "com.cloud.agent.api.storage.com.cloud.agent.api.to.com.cloud.vm.VirtualMachine$State" +
+            "com.cloud.hypervisor.Hypervisor$HypervisorTypecom.cloud.host.Host$Type" +
+            "java.util.HashMapjava.util.ArrayListjava.lang.String" +
+            "StartupRoutingCommandStartupStorageCommandPingRoutingWithNwGroupsCommandPingRoutingCommand" +
+            "GetVmStatsAnswerGetHostStatsAnswerClusterSyncAnswerStopAnswerStartAnswerVmStatsEntryHostStatsEntry" +
+            "dataCenterpodclusterguidnameversioniqnpublicIpAddresspublicNetmaskpublicMacAddress" +
+            "privateIpAddressprivateMacAddressprivateNetmaskstorageIpAddressstorageNetmaskstorageMacAddress" +
+            "agentTagresourceNamegatewayIpAddresscpusspeedmemorydom0MinMemorypoolSyncvmscapspool" +
+            "hypervisorTypehostDetailshypervisorVersionnewStatesnewGroupStateshostIdhostType" +
+            "cpuUtilizationnetworkReadKBsnetworkWriteKBsnumCPUstotalMemoryKBsfreeMemoryKBsentityType" +
+            "vmStatsMapvmNamevmNameshostGuidhostNamestateRunningStoppedStartingStoppingMigratingUserVm" +
+            "\"contextMap\":{},\"wait\":0}\"result\":true,\"details\":\"contextMapwaitresultdetails").getBytes();
+
+    protected static final int WINDOW = 32;           // frames looked at before deciding
+    protected static final int BACKOFF = 512;         // frames skipped once it is not worth it
+    protected static final int MAX_INFLATE_RATIO = 1032;  // the most zlib can expand a compressed byte to
+
+    private static int s_threshold = 1024;
+    private static double s_maxRatio = 0.9;
+
+    private static final AtomicLong s_bytesIn = new AtomicLong();
+    private static final AtomicLong s_bytesOut = new AtomicLong();
+    private static final AtomicLong s_windowIn = new AtomicLong();
+    private static final AtomicLong s_windowOut = new AtomicLong();
+    private static final AtomicInteger s_windowFrames = new AtomicInteger();
+    private static final AtomicInteger s_skip = new AtomicInteger();
+
+    private static final ThreadLocal<Deflater> s_deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * @param threshold frames smaller than this many bytes are not compressed.
+     */
+    public static void setThreshold(int threshold) {
+        s_threshold = threshold;
+    }
+
+    /**
+     * @param maxRatio compression is backed off when compressed frames are
+     *        on average bigger than this fraction of the original.
+     */
+    public static void setMaxRatio(double maxRatio) {
+        s_maxRatio = maxRatio;
+    }
+
+    public static long getBytesIn() {
+        return s_bytesIn.get();
+    }
+
+    public static long getBytesOut() {
+        return s_bytesOut.get();
+    }
+
+    /**
+     * Compresses the data if it is worth it.
+     *
+     * @return compressed data or null if the data should be sent as is.
+     */
+    public static ByteBuffer compress(byte[] data, int offset, int length) {
+        if (length < s_threshold) {
+            return null;
+        }
+        if (s_skip.get() > 0 && s_skip.decrementAndGet() >= 0) {
+            return null;
+        }
+
+        Deflater deflater = s_deflater.get();
+        byte[] out = new byte[length + length / 1000 + 64];
+        int len;
+        try {
+            deflater.setDictionary(s_dictionary);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            len = deflater.deflate(out);
+            if (!deflater.finished()) {
+                // Not compressible; it would have been bigger than what we started with.
+                len = out.length;
+            }
+        } finally {
+            deflater.reset();
+        }
+
+        record(length, len);
+        if (len >= length) {
+            return null;
+        }
+        return ByteBuffer.wrap(out, 0, len);
+    }
+
+    protected static void record(int in, int out) {
+        s_bytesIn.addAndGet(in);
+        s_bytesOut.addAndGet(Math.min(in, out));
+        long windowIn = s_windowIn.addAndGet(in);
+        long windowOut = s_windowOut.addAndGet(out);
+        if (s_windowFrames.incrementAndGet() >= WINDOW) {
+            s_windowFrames.set(0);
+            s_windowIn.set(0);
+            s_windowOut.set(0);
+            if (windowOut > windowIn * s_maxRatio) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Compression only got " + windowOut + " out of " + windowIn + " bytes, skipping the next " + BACKOFF + " frames");
+                }
+                s_skip.set(BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Decompresses what compress() produced.
+     *
+     * @param length the uncompressed length, which is carried in the request header.
+     */
+    public static ByteBuffer decompress(ByteBuffer buffer, int length) {
+        byte[] in;
+        int offset;
+        int inLength = buffer.remaining();
+        // the length comes from the peer, check it before allocating for it
+        if (length < 0 || length > Link.MAX_MESSAGE_SIZE || length > (long)inLength * MAX_INFLATE_RATIO) {
+            throw new CloudRuntimeException("Bad uncompressed length " + length + " for a frame of " + inLength + " bytes");
+        }
+        if (buffer.hasArray()) {
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            in = new byte[inLength];
+            buffer.get(in);
+            offset = 0;
+        }
+
+        Inflater inflater = s_inflater.get();
+        byte[] out = new byte[length];
+        try {
+            inflater.setInput(in, offset, inLength);
+            int len = inflater.inflate(out);
+            if (len == 0 && inflater.needsDictionary()) {
+                if (inflater.getAdler() != dictionaryAdler()) {
+                    throw new CloudRuntimeException("Frame was compressed with a different dictionary");
+                }
+                inflater.setDictionary(s_dictionary);
+                len = inflater.inflate(out);
+            }
+            if (!inflater.finished() || len != length) {
+                throw new CloudRuntimeException("Expected " + length + " bytes but decompressed " + len);
+            }
+        } catch (DataFormatException e) {
+            throw new CloudRuntimeException("Unable to decompress the frame", e);
+        } finally {
+            inflater.reset();
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    private static long s_adler = -1;
+
+    protected static synchronized long dictionaryAdler() {
+        if (s_adler == -1) {
+            Adler32 adler = new Adler32();
+            adler.update(s_dictionary);
+            s_adler = adler.getValue();
+        }
+        return s_adler;
+    }
+}
@@ -58,7 +58,9 @@ import com.google.gson.JsonSerializer;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
+ * 2. Flags - 3 bytes;  The first byte is the highest version the sender
+ *    can parse, which is how peers find out they may use v4.  Older
+ *    senders always put 0 in there.
  * 3. Sequence - 8 bytes;
  * 4. Length - 4 bytes;
  * 5. ManagementServerId - 8 bytes;
@@ -76,7 +78,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Same header as v1 but the data package uses BinaryCodec instead of gson.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -95,6 +98,7 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_DICT_COMPRESSED = 0x100;
 
 
     protected Version   _ver;
@@ -106,6 +110,9 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected byte[]    _binary;
+    protected Version   _peerVer;
+    protected Version   _advertisedVer = Version.v4;
     
     protected Request() {
     }
@@ -130,6 +137,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final byte[] binary) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binary = binary;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
@@ -157,7 +169,8 @@ public class Request {
     }
 
     protected Request(final Request that, final Command[] cmds) {
-        this._ver = that._ver;
+        // Answer in the best encoding the sender of the request understands.
+        this._ver = that._peerVer != null ? that._peerVer : that._ver;
         this._seq = that._seq;
         setInSequence(that.executeInSequence());
         setStopOnError(that.stopOnError());
@@ -200,6 +213,41 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Changes the encoding used when this request is put on the wire.  Only
+     * use v4 with peers that advertised it.
+     * @see #getPeerVersion()
+     */
+    public void setVersion(Version ver) {
+        if (ver == _ver) {
+            return;
+        }
+        if (_cmds == null) {
+            _cmds = decodeContent(this instanceof Response ? Answer.class : Command.class);
+        }
+        _content = null;
+        _binary = null;
+        _ver = ver;
+    }
+
+    /**
+     * Changes the version this request claims the sender can parse.  Requests
+     * going to another management server are relayed to the agent as they
+     * are and the answer comes back through that server, so they must not
+     * advertise more than v1 unless every management server can parse v4.
+     */
+    public void setAdvertisedVersion(Version ver) {
+        _advertisedVer = ver;
+    }
+
+    /**
+     * @return the version to use when talking back to the sender of this
+     *         request or null if the request was not received from a peer.
+     */
+    public Version getPeerVersion() {
+        return _peerVer;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -228,15 +276,22 @@ public class Request {
     public Command[] getCommands() {
         if (_cmds == null) {
             try {
-                _cmds = s_gson.fromJson(_content, Command[].class);
+                _cmds = decodeContent(Command.class);
             } catch (RuntimeException e) {
-                s_logger.error("Caught problem with " + _content, e);
+                s_logger.error("Caught problem with " + (_content != null ? _content : "binary content of " + _binary.length + " bytes"), e);
                 throw e;
             }
         }
         return _cmds;
     }
 
+    protected Command[] decodeContent(Class<? extends Command> type) {
+        if (_binary != null) {
+            return BinaryCodec.decode(_binary, 0, _binary.length, type);
+        }
+        return type == Answer.class ? s_gson.fromJson(_content, Answer[].class) : s_gson.fromJson(_content, Command[].class);
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -244,7 +299,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put((byte) _advertisedVer.ordinal());
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -313,13 +368,27 @@ public class Request {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            if (_binary == null) {
+                _binary = BinaryCodec.encode(_cmds);
+            }
+            tmp = ByteBuffer.wrap(_binary);
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
+        _flags &= ~(FLAG_COMPRESSED | FLAG_DICT_COMPRESSED);
         /* Check if we need to compress the data */
-        if (capacity >= 8192) {
+        if (_ver == Version.v4) {
+            ByteBuffer compressed = FrameCompressor.compress(tmp.array(), 0, capacity);
+            if (compressed != null) {
+                tmp = compressed;
+                _flags |= FLAG_DICT_COMPRESSED;
+            }
+        } else if (capacity >= 8192) {
             tmp = doCompress(tmp, capacity);
             _flags |= FLAG_COMPRESSED;
         }
@@ -384,7 +453,7 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = decodeContent(this instanceof Response ? Answer.class : Command.class);
                 } catch (RuntimeException e) {
                     s_logger.error("Unable to convert to json: " + _content);
                     throw e;
@@ -406,7 +475,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = decodeContent(this instanceof Response ? Answer.class : Command.class);
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -445,10 +514,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte peerVer = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -459,13 +528,15 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
-        if ((flags & FLAG_COMPRESSED) != 0) {
+        if ((flags & FLAG_DICT_COMPRESSED) != 0) {
+            buff = FrameCompressor.decompress(buff, size);
+        } else if ((flags & FLAG_COMPRESSED) != 0) {
             buff = doDecompress(buff, size);
         }
         
@@ -480,13 +551,33 @@ public class Request {
             offset = 0;
         }
 
-        final String content = new String(command, offset, command.length - offset);
-
-        if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+        Request req;
+        if (version == Version.v4) {
+            byte[] binary;
+            if (offset == 0 && buff.remaining() == command.length) {
+                binary = command;
+            } else {
+                binary = new byte[buff.remaining()];
+                System.arraycopy(command, offset, binary, 0, binary.length);
+            }
+            req = isRequest ? new Request(version, seq, agentId, mgmtId, via, flags, binary) : new Response(version, seq, agentId, mgmtId, via, flags, binary);
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            final String content = new String(command, offset, command.length - offset);
+            req = isRequest ? new Request(version, seq, agentId, mgmtId, via, flags, content) : new Response(version, seq, agentId, mgmtId, via, flags, content);
         }
+        req._peerVer = getPeerVersion(peerVer);
+        return req;
+    }
+
+    protected static Version getPeerVersion(byte peerVer) {
+        return peerVer >= Version.v4.ordinal() ? Version.v4 : Version.v1;
+    }
+
+    /**
+     * @return the version to use when talking back to the sender of these bytes.
+     */
+    public static Version getPeerVersion(final byte[] bytes) {
+        return getPeerVersion(bytes[1]);
     }
 
     public long getAgentId() {
@@ -30,7 +30,6 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -45,14 +44,9 @@ import java.util.UUID;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -130,6 +124,7 @@ import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.StoragePoolInfo;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.UpgradeSnapshotCommand;
+import com.cloud.agent.api.VmStatsChangeFilter;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
@@ -170,6 +165,8 @@ import com.cloud.agent.api.to.VolumeTO;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.host.Host.Type;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.xen.resource.RrdUpdatesParser.Column;
+import com.cloud.hypervisor.xen.resource.RrdUpdatesParser.RrdUpdates;
 import com.cloud.network.HAProxyConfigurator;
 import com.cloud.network.LoadBalancerConfigurator;
 import com.cloud.network.Networks;
@@ -265,6 +262,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected int _wait;
     protected int _migratewait;
     protected String _instance; //instance name (default is usually "VM")
+    protected final VmStatsChangeFilter _vmStatsFilter = new VmStatsChangeFilter();
     static final Random _rand = new Random(System.currentTimeMillis());
 
     protected IAgentControl _agentControl;
@@ -276,6 +274,9 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     // Guest and Host Performance Statistics
     protected String _consolidationFunction = "AVERAGE";
     protected int _pollingIntervalInSeconds = 60;
+    // end of the last rrd updates fetched, by the host's clock, so the next fetch only returns the rows after them
+    protected volatile long _lastHostStatsEnd = 0;
+    protected volatile long _lastVmStatsEnd = 0;
 
     protected boolean _canBridgeFirewall = false;
     protected boolean _isOvs = false;
@@ -1739,68 +1740,41 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
+        RrdUpdates rrdData = getRRDData(conn, 1, null); // call rrd method with 1 for host
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
+        for (Column column : rrdData.getColumns()) {
+            String param = column.getParam();
 
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
+            if (param.contains("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(column.getAverage());
             }
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(column.getAverage());
             }
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(column.getAverage());
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(column.getAverage());
+            }
 
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("cpu")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + column.getAverage());
+            }
 
 /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-*/
+            if (param.contains("loadavg")) {
+                hostStats.setAverageLoad((hostStats.getAverageLoad() + column.getAverage()));
             }
+*/
         }
 
         // add the host cpu utilization
@@ -1825,10 +1799,15 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
             // Determine the UUIDs of the requested VMs
             List<String> vmUUIDs = new ArrayList<String>();
+            XenServerEventMirror mirror = _connPool.getEventMirror(_host.pool);
+            Map<String, String> mirrored = mirror.isSynced() ? mirror.getVmUuids(new HashSet<String>(vmNames)) : null;
 
             for (String vmName : vmNames) {
-                VM vm = getVM(conn, vmName);
-                vmUUIDs.add(vm.getUuid(conn));
+                String vmUUID = mirrored == null ? null : mirrored.get(vmName);
+                if (vmUUID == null) {
+                    vmUUID = getVM(conn, vmName).getUuid(conn);
+                }
+                vmUUIDs.add(vmUUID);
             }
 
             HashMap<String, VmStatsEntry> vmStatsUUIDMap = getVmStats(conn, cmd, vmUUIDs, cmd.getHostGuid());
@@ -1840,7 +1819,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
                 vmStatsNameMap.put(vmNames.get(vmUUIDs.indexOf(vmUUID)), vmStatsUUIDMap.get(vmUUID));
             }
 
-            return new GetVmStatsAnswer(cmd, vmStatsNameMap);
+            return new GetVmStatsAnswer(cmd, _vmStatsFilter.filter(cmd, vmStatsNameMap));
         } catch (XenAPIException e) {
             String msg = "Unable to get VM stats" + e.toString();
             s_logger.warn(msg, e);
@@ -1859,55 +1838,26 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
+        RrdUpdates rrdData = getRRDData(conn, 2, vmResponseMap.keySet()); // call rrddata with 2 for vm
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
+        for (Column column : rrdData.getColumns()) {
+            VmStatsEntry vmStatsAnswer = vmResponseMap.get(column.getUuid());
+            String param = column.getParam();
 
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
+            vmStatsAnswer.setEntityType("vm");
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + column.getAverage())));
+            } else if (param.matches("vif_\\d_rx")) {
+                vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (column.getAverage()/(8*2)));
+            } else if (param.matches("vif_\\d_tx")) {
+                vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (column.getAverage()/(8*2)));
             }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
-
-                vmStatsAnswer.setEntityType("vm");
-
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.matches("vif_\\d_rx")) {
-                	vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                } else if (param.matches("vif_\\d_tx")) {
-                	vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                }
-            }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -1926,7 +1876,35 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return vmResponseMap;
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    /**
+     * Fetches the rrd updates written since the last fetch of the same kind
+     * and parses the columns of the given objects out of them.
+     * 
+     * @param flag 1 for the host stats, 2 for the stats of the vms on the host.
+     * @param uuids the vms to keep the columns of, null for all.
+     */
+    protected RrdUpdates getRRDData(Connection conn, int flag, Set<String> uuids) {
+        long lastEnd = flag == 1 ? _lastHostStatsEnd : _lastVmStatsEnd;
+
+        // the start has to be in the host's time, so only the end the host reported
+        // last is passed; 0 leaves the plugin to go back its own window
+        RrdUpdates updates = getRRDData(conn, flag, uuids, lastEnd);
+        if (updates != null && updates.getRows() == 0 && lastEnd != 0) {
+            // asked again before a new row was written, so go back the whole window
+            updates = getRRDData(conn, flag, uuids, 0);
+        }
+
+        if (updates != null && updates.getEnd() > lastEnd) {
+            if (flag == 1) {
+                _lastHostStatsEnd = updates.getEnd();
+            } else {
+                _lastVmStatsEnd = updates.getEnd();
+            }
+        }
+        return updates;
+    }
+
+    protected RrdUpdates getRRDData(Connection conn, int flag, Set<String> uuids, long startTime) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
@@ -1935,121 +1913,37 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
         try {
             if (flag == 1) {
-                stats = getHostStatsRawXML(conn);
+                stats = getHostStatsRawXML(conn, startTime);
             }
             if (flag == 2) {
-                stats = getVmStatsRawXML(conn);
+                stats = getVmStatsRawXML(conn, startTime);
             }
         } catch (Exception e1) {
             s_logger.warn("Error whilst collecting raw stats from plugin: ", e1);
             return null;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
         if(stats == null) {
             return null;
         }
-        
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
 
-        Document doc = null;
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            return RrdUpdatesParser.parse(new StringReader(stats), flag == 1 ? "host" : "vm", uuids);
         } catch (Exception e) {
-        	s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-        	return null;
-        }
-
-        if(doc==null){
-        	s_logger.warn("Null document found after tryinh to parse the stats source");
-        	return null;
-        }
-        
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
+            s_logger.warn("Exception caught whilst parsing the stats:", e);
+            return null;
         }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
     }
 
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-        	if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-        	{
-        		return value;
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-        		return dummy;
-        	}
-        }
-        else
-        {
-        	if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-        	{
-        		return (value/numRowsUsed);
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-        		return dummy;
-        	}
-        }
-        
-    }
-
-    protected String getHostStatsRawXML(Connection conn) {
-        Date currentDate = new Date();
-        String startTime = String.valueOf(currentDate.getTime() / 1000 - 1000);
-
+    protected String getHostStatsRawXML(Connection conn, long startTime) {
         return callHostPlugin(conn, "vmops", "gethostvmstats", "collectHostStats", String.valueOf("true"), "consolidationFunction", _consolidationFunction, "interval", String
-                .valueOf(_pollingIntervalInSeconds), "startTime", startTime);
+                .valueOf(_pollingIntervalInSeconds), "startTime", String.valueOf(startTime));
     }
 
-    protected String getVmStatsRawXML(Connection conn) {
-        Date currentDate = new Date();
-        String startTime = String.valueOf(currentDate.getTime() / 1000 - 1000);
-
+    protected String getVmStatsRawXML(Connection conn, long startTime) {
         return callHostPlugin(conn, "vmops", "gethostvmstats", "collectHostStats", String.valueOf("false"), "consolidationFunction", _consolidationFunction, "interval", String
-                .valueOf(_pollingIntervalInSeconds), "startTime", startTime);
+                .valueOf(_pollingIntervalInSeconds), "startTime", String.valueOf(startTime));
     }
 
     protected State convertToState(Types.VmPowerState ps) {
@@ -2057,7 +1951,32 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return state == null ? State.Unknown : state;
     }
 
+    /**
+     * @return the states of the vms resident on a host of the pool, taken
+     *         from the pool's event mirror, or null if the mirror is not in
+     *         sync and XenAPI has to be asked instead.
+     */
+    protected HashMap<String, Pair<String, State>> getMirroredVms() {
+        XenServerEventMirror mirror = _connPool.getEventMirror(_host.pool);
+        if (!mirror.isSynced()) {
+            return null;
+        }
+        HashMap<String, Pair<String, VmPowerState>> powerStates = mirror.getVmStates();
+        final HashMap<String, Pair<String, State>> vmStates = new HashMap<String, Pair<String, State>>(powerStates.size());
+        for (Map.Entry<String, Pair<String, VmPowerState>> entry : powerStates.entrySet()) {
+            String host_uuid = entry.getValue().first();
+            if (host_uuid != null) {
+                vmStates.put(entry.getKey(), new Pair<String, State>(host_uuid, convertToState(entry.getValue().second())));
+            }
+        }
+        return vmStates;
+    }
+
     protected HashMap<String, Pair<String, State>> getAllVms(Connection conn) {
+        HashMap<String, Pair<String, State>> mirrored = getMirroredVms();
+        if (mirrored != null) {
+            return mirrored;
+        }
         final HashMap<String, Pair<String, State>> vmStates = new HashMap<String, Pair<String, State>>();
         Map<VM, VM.Record>  vm_map = null;
         for (int i = 0; i < 2; i++) {
@@ -6496,19 +6415,23 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected Answer execute(final ClusterSyncCommand cmd) {
         Connection conn = getConnection();
         //check if this is master
-        Pool pool;
-        try {
-            pool = Pool.getByUuid(conn, _host.pool);
-            Pool.Record poolr = pool.getRecord(conn);
+        XenServerEventMirror mirror = _connPool.getEventMirror(_host.pool);
+        String masterUuid = mirror.isSynced() ? mirror.getMasterUuid() : null;
+        if (masterUuid == null) {
+            try {
+                Pool pool = Pool.getByUuid(conn, _host.pool);
+                Pool.Record poolr = pool.getRecord(conn);
 
-            Host.Record hostr = poolr.master.getRecord(conn);
-            if (!_host.uuid.equals(hostr.uuid)) {
+                Host.Record hostr = poolr.master.getRecord(conn);
+                masterUuid = hostr.uuid;
+            } catch (Exception e) {
+                s_logger.warn("Check for master failed, failing the Cluster sync command");
                 return new ClusterSyncAnswer(cmd.getClusterId());
             }
-        } catch (Exception e) {
-            s_logger.warn("Check for master failed, failing the Cluster sync command");
+        }
+        if (!_host.uuid.equals(masterUuid)) {
             return new ClusterSyncAnswer(cmd.getClusterId());
-        } 
+        }
         HashMap<String, Pair<String, State>> newStates;
         int sync_type=-1;
         if (cmd.isRightStep()){
@@ -6531,6 +6454,13 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     protected HashMap<String, Pair<String, State>> fullClusterSync(Connection conn) {
         s_vms.clear(_cluster);
+        HashMap<String, Pair<String, State>> mirrored = getMirroredVms();
+        if (mirrored != null) {
+            for (Map.Entry<String, Pair<String, State>> entry : mirrored.entrySet()) {
+                s_vms.put(_cluster, entry.getValue().first(), entry.getKey(), entry.getValue().second());
+            }
+            return s_vms.getClusterVmState(_cluster);
+        }
         try {
             Host lhost = Host.getByUuid(conn, _host.uuid);
             Map<VM, VM.Record>  vm_map = VM.getAllRecords(conn);  //USE THIS TO GET ALL VMS FROM  A CLUSTER
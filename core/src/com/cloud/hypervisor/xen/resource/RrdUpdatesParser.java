@@ -0,0 +1,174 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * RrdUpdatesParser reads the xml returned by rrd_updates in one pass and
+ * only keeps the average of the columns the caller asked for.  The stats of
+ * a host with many vms are large and are fetched every stats interval, so
+ * building a DOM of it just to read a few columns out is avoided.
+ * 
+ * The format is
+ * <xport><meta><start/><step/><end/><rows/><columns/>
+ *   <legend><entry>AVERAGE:vm:uuid:cpu0</entry>...</legend></meta>
+ *   <data><row><t/><v/>...</row>...</data></xport>
+ * with one v per legend entry in every row.
+ */
+public class RrdUpdatesParser {
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+
+    public static class Column {
+        final String _type;
+        final String _uuid;
+        final String _param;
+        double _sum = 0;
+        int _count = 0;
+
+        public Column(String type, String uuid, String param) {
+            _type = type;
+            _uuid = uuid;
+            _param = param;
+        }
+
+        public String getType() {
+            return _type;
+        }
+
+        public String getUuid() {
+            return _uuid;
+        }
+
+        public String getParam() {
+            return _param;
+        }
+
+        void add(String text) {
+            double value;
+            try {
+                value = Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (!Double.isNaN(value)) {
+                _sum += value;
+                _count++;
+            }
+        }
+
+        /**
+         * @return the average of the values that are numbers, 0 if there are
+         *         none or they do not add up to a finite number.
+         */
+        public double getAverage() {
+            if (_count == 0) {
+                return 0;
+            }
+            double average = _sum / _count;
+            return Double.isInfinite(average) || Double.isNaN(average) ? 0 : average;
+        }
+    }
+
+    public static class RrdUpdates {
+        long _end = 0;
+        int _rows = 0;
+        final List<Column> _columns = new ArrayList<Column>();
+
+        /**
+         * @return the time of the newest row in seconds, the start to ask
+         *         for to only get rows after these.
+         */
+        public long getEnd() {
+            return _end;
+        }
+
+        public int getRows() {
+            return _rows;
+        }
+
+        public List<Column> getColumns() {
+            return _columns;
+        }
+    }
+
+    /**
+     * @param type keep the columns of this kind of object, "host" or "vm".
+     * @param uuids keep the columns of these objects only, null for all.
+     */
+    public static RrdUpdates parse(Reader in, String type, Set<String> uuids) throws XMLStreamException {
+        RrdUpdates updates = new RrdUpdates();
+        List<Column> legend = new ArrayList<Column>();
+        Column[] columns = null;
+        int col = 0;
+
+        XMLStreamReader reader = s_factory.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (name.equals("v")) {
+                    Column column = columns != null && col < columns.length ? columns[col] : null;
+                    col++;
+                    if (column != null) {
+                        column.add(reader.getElementText());
+                    }
+                } else if (name.equals("row")) {
+                    updates._rows++;
+                    col = 0;
+                } else if (name.equals("entry")) {
+                    legend.add(select(reader.getElementText(), type, uuids));
+                } else if (name.equals("end")) {
+                    updates._end = Long.parseLong(reader.getElementText().trim());
+                } else if (name.equals("data")) {
+                    columns = legend.toArray(new Column[legend.size()]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        for (Column column : legend) {
+            if (column != null) {
+                updates._columns.add(column);
+            }
+        }
+        return updates;
+    }
+
+    protected static Column select(String entry, String type, Set<String> uuids) {
+        String[] fields = entry.split(":");
+        if (fields.length != 4 || !fields[1].equalsIgnoreCase(type)) {
+            return null;
+        }
+        if (uuids != null && !uuids.contains(fields[2])) {
+            return null;
+        }
+        return new Column(fields[1], fields[2], fields[3]);
+    }
+}
@@ -53,6 +53,7 @@ import com.xensource.xenapi.Types.XenAPIException;
 public class XenServerConnectionPool {
     private static final Logger s_logger = Logger.getLogger(XenServerConnectionPool.class);
     protected HashMap<String /* poolUuid */, XenServerConnection> _conns = new HashMap<String, XenServerConnection>();
+    protected HashMap<String /* poolUuid */, XenServerEventMirror> _mirrors = new HashMap<String, XenServerEventMirror>();
     protected int _retries;
     protected int _interval;
     protected static boolean s_managePool = true;
@@ -124,7 +125,7 @@ public class XenServerConnectionPool {
         }
     }
     
-    private void removeConnect(String poolUuid) {
+    protected void removeConnect(String poolUuid) {
         if( poolUuid == null ) {
             return;
         }
@@ -138,6 +139,14 @@ public class XenServerConnectionPool {
             }
             
         }
+        // the event mirror goes with the connection, the next caller starts a new one against the new master
+        XenServerEventMirror mirror = null;
+        synchronized (_mirrors) {
+            mirror = _mirrors.remove(poolUuid);
+        }
+        if (mirror != null) {
+            mirror.stop();
+        }
     }
     
     static void forceSleep(long sec) {
@@ -838,6 +847,34 @@ public class XenServerConnectionPool {
         }
     }
 
+    /**
+     * Returns the event mirror of the pool, starting it on first use.  The
+     * mirror logs in to whichever host the master connection of the pool
+     * currently points at, so it follows master switches on reconnect.
+     */
+    public XenServerEventMirror getEventMirror(final String poolUuid) {
+        synchronized (_mirrors) {
+            XenServerEventMirror mirror = _mirrors.get(poolUuid);
+            if (mirror == null) {
+                mirror = new XenServerEventMirror(poolUuid) {
+                    @Override
+                    protected Connection connect() throws Exception {
+                        XenServerConnection mConn = getConnect(poolUuid);
+                        if (mConn == null) {
+                            throw new CloudRuntimeException("There is no master connection for pool " + poolUuid);
+                        }
+                        Connection conn = new Connection(getURL(mConn.getIp()), _wait);
+                        loginWithPassword(conn, mConn.getUsername(), mConn.getPassword(), APIVersion.latest().toString());
+                        return conn;
+                    }
+                };
+                mirror.start();
+                _mirrors.put(poolUuid, mirror);
+            }
+            return mirror;
+        }
+    }
+
     static public Pool.Record getPoolRecord(Connection conn)
             throws XmlRpcException, XenAPIException {
         Map<Pool, Pool.Record> pools = Pool.getAllRecords(conn);
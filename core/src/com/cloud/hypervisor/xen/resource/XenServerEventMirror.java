@@ -0,0 +1,303 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.cloud.utils.Pair;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Event;
+import com.xensource.xenapi.Host;
+import com.xensource.xenapi.Pool;
+import com.xensource.xenapi.Session;
+import com.xensource.xenapi.Types;
+import com.xensource.xenapi.Types.EventOperation;
+import com.xensource.xenapi.Types.VmPowerState;
+import com.xensource.xenapi.Types.XenAPIException;
+import com.xensource.xenapi.VM;
+
+/**
+ * XenServerEventMirror keeps a local copy of the vm power states, hosts and
+ * master of one pool.  It loads the records once and then follows the XenAPI
+ * event stream on its own session, so sync commands can be answered without
+ * dumping every VM record from the master each time.
+ * 
+ * Callers must check isSynced() and go to XenAPI themselves while the mirror
+ * is still loading or has lost the event stream.
+ */
+public abstract class XenServerEventMirror implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(XenServerEventMirror.class);
+    protected static final Set<String> s_classes = new HashSet<String>(Arrays.asList("vm", "host", "pool"));
+    protected static final String NULL_REF = "OpaqueRef:NULL";
+
+    protected final String _poolUuid;
+    protected final Map<String /* vm ref */, VmEntry> _vms = new HashMap<String, VmEntry>();
+    protected final Map<String /* host ref */, String> _hosts = new HashMap<String, String>();
+    protected String _masterRef;
+
+    protected int _wait = 60; // in seconds, how long one event.next may block
+    protected long _resyncInterval = 10 * 60 * 1000; // in ms
+    protected long _retryInterval = 10 * 1000; // in ms
+
+    protected volatile boolean _synced = false;
+    protected volatile boolean _stopped = false;
+    protected Thread _thread;
+
+    protected final AtomicLong _events = new AtomicLong();
+    protected final AtomicLong _loads = new AtomicLong();
+
+    public XenServerEventMirror(String poolUuid) {
+        _poolUuid = poolUuid;
+    }
+
+    /**
+     * Opens a new session to the pool master for the event stream.  The
+     * session must not be shared because event.next blocks it.
+     */
+    protected abstract Connection connect() throws Exception;
+
+    protected void disconnect(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            Session.logout(conn);
+        } catch (Exception e) {
+            s_logger.debug("Unable to logout of the event session for pool " + _poolUuid + " due to " + e.toString());
+        } finally {
+            conn.dispose();
+        }
+    }
+
+    public synchronized void start() {
+        if (_thread != null) {
+            return;
+        }
+        _thread = new Thread(this, "XenEvents-" + _poolUuid);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void stop() {
+        _stopped = true;
+        Thread thread = _thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!_stopped) {
+            Connection conn = null;
+            try {
+                conn = connect();
+                // register before loading so nothing that happens during the load is missed
+                Event.register(conn, s_classes);
+                load(conn);
+                long loaded = System.currentTimeMillis();
+                while (!_stopped) {
+                    Set<Event.Record> events = null;
+                    try {
+                        events = Event.next(conn);
+                    } catch (XmlRpcException e) {
+                        if (!isTimeout(e)) {
+                            throw e;
+                        }
+                        // a quiet pool looks the same as a dead master, so make sure it still answers
+                        Event.getCurrentId(conn);
+                    }
+                    if (events != null) {
+                        apply(conn, events);
+                    }
+                    if (System.currentTimeMillis() - loaded > _resyncInterval) {
+                        load(conn);
+                        loaded = System.currentTimeMillis();
+                    }
+                }
+            } catch (Types.EventsLost e) {
+                s_logger.info("Events were lost for pool " + _poolUuid + ", reloading");
+            } catch (Exception e) {
+                if (!_stopped) {
+                    s_logger.warn("Lost the event stream for pool " + _poolUuid + " due to " + e.toString());
+                    try {
+                        Thread.sleep(_retryInterval);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            } finally {
+                _synced = false;
+                disconnect(conn);
+            }
+        }
+        s_logger.debug("Stopped following events for pool " + _poolUuid);
+    }
+
+    protected static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void load(Connection conn) throws XenAPIException, XmlRpcException {
+        Map<Host, Host.Record> hosts = Host.getAllRecords(conn);
+        Map<VM, VM.Record> vms = VM.getAllRecords(conn);
+        Map<Pool, Pool.Record> pools = Pool.getAllRecords(conn);
+        synchronized (this) {
+            _hosts.clear();
+            for (Map.Entry<Host, Host.Record> entry : hosts.entrySet()) {
+                _hosts.put(entry.getKey().toWireString(), entry.getValue().uuid);
+            }
+            _vms.clear();
+            for (Map.Entry<VM, VM.Record> entry : vms.entrySet()) {
+                updateVm(entry.getKey().toWireString(), entry.getValue());
+            }
+            for (Pool.Record record : pools.values()) {
+                _masterRef = record.master == null ? null : record.master.toWireString();
+            }
+            _synced = true;
+        }
+        long loads = _loads.incrementAndGet();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded " + vms.size() + " vms and " + hosts.size() + " hosts for pool " + _poolUuid + ", load " + loads);
+        }
+    }
+
+    protected void apply(Connection conn, Set<Event.Record> events) throws XenAPIException, XmlRpcException {
+        for (Event.Record event : events) {
+            _events.incrementAndGet();
+            String clazz = event.clazz;
+            if ("vm".equalsIgnoreCase(clazz)) {
+                VM.Record record = null;
+                if (event.operation != EventOperation.DEL) {
+                    if (event.snapshot instanceof VM.Record) {
+                        record = (VM.Record) event.snapshot;
+                    } else {
+                        try {
+                            record = Types.toVM(event.ref).getRecord(conn);
+                        } catch (Types.HandleInvalid e) {
+                            // deleted since the event was queued, a DEL follows
+                        }
+                    }
+                }
+                synchronized (this) {
+                    if (record == null) {
+                        _vms.remove(event.ref);
+                    } else {
+                        updateVm(event.ref, record);
+                    }
+                }
+            } else if ("host".equalsIgnoreCase(clazz)) {
+                synchronized (this) {
+                    if (event.operation == EventOperation.DEL) {
+                        _hosts.remove(event.ref);
+                    } else {
+                        _hosts.put(event.ref, event.objUuid);
+                    }
+                }
+            } else if ("pool".equalsIgnoreCase(clazz) && event.operation != EventOperation.DEL) {
+                Host master = null;
+                if (event.snapshot instanceof Pool.Record) {
+                    master = ((Pool.Record) event.snapshot).master;
+                } else {
+                    master = Types.toPool(event.ref).getMaster(conn);
+                }
+                synchronized (this) {
+                    _masterRef = master == null ? null : master.toWireString();
+                }
+            }
+        }
+    }
+
+    protected void updateVm(String ref, VM.Record record) {
+        if (Boolean.TRUE.equals(record.isControlDomain) || Boolean.TRUE.equals(record.isASnapshot) || Boolean.TRUE.equals(record.isATemplate)) {
+            _vms.remove(ref);
+            return;
+        }
+        String hostRef = record.residentOn == null ? null : record.residentOn.toWireString();
+        if (NULL_REF.equals(hostRef)) {
+            hostRef = null;
+        }
+        _vms.put(ref, new VmEntry(record.nameLabel, record.uuid, record.powerState, hostRef));
+    }
+
+    public boolean isSynced() {
+        return _synced;
+    }
+
+    /**
+     * @return vm name to the uuid of the host it is resident on (null if it
+     *         is not resident anywhere) and its power state.
+     */
+    public synchronized HashMap<String, Pair<String, VmPowerState>> getVmStates() {
+        HashMap<String, Pair<String, VmPowerState>> states = new HashMap<String, Pair<String, VmPowerState>>(_vms.size());
+        for (VmEntry entry : _vms.values()) {
+            String hostUuid = entry.hostRef == null ? null : _hosts.get(entry.hostRef);
+            states.put(entry.name, new Pair<String, VmPowerState>(hostUuid, entry.powerState));
+        }
+        return states;
+    }
+
+    public synchronized Map<String, String> getVmUuids(Set<String> vmNames) {
+        Map<String, String> uuids = new HashMap<String, String>(vmNames.size());
+        for (VmEntry entry : _vms.values()) {
+            if (vmNames.contains(entry.name)) {
+                uuids.put(entry.name, entry.uuid);
+            }
+        }
+        return uuids;
+    }
+
+    public synchronized String getMasterUuid() {
+        return _masterRef == null ? null : _hosts.get(_masterRef);
+    }
+
+    public long getEventCount() {
+        return _events.get();
+    }
+
+    public long getLoadCount() {
+        return _loads.get();
+    }
+
+    protected static class VmEntry {
+        final String name;
+        final String uuid;
+        final VmPowerState powerState;
+        final String hostRef;
+
+        public VmEntry(String name, String uuid, VmPowerState powerState, String hostRef) {
+            this.name = name;
+            this.uuid = uuid;
+            this.powerState = powerState;
+            this.hostRef = hostRef;
+        }
+    }
+}
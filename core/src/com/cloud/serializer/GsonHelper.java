@@ -20,6 +20,7 @@ package com.cloud.serializer;
 
 
 
+import java.lang.reflect.Type;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -42,6 +43,11 @@ public class GsonHelper {
     protected static final Gson s_gson;
     protected static final Gson s_gogger;
 
+    protected static final Type s_portConfigListType = new TypeToken<List<PortConfig>>() {
+    }.getType();
+    protected static final Type s_nwGroupsType = new TypeToken<Pair<Long, Long>>() {
+    }.getType();
+
     static {
         GsonBuilder gsonBuilder = new GsonBuilder();
         s_gson = setDefaultGsonConfig(gsonBuilder);
@@ -58,16 +64,21 @@ public class GsonHelper {
         builder.registerTypeAdapter(Command[].class, cmdAdaptor);
         ArrayTypeAdaptor<Answer> ansAdaptor = new ArrayTypeAdaptor<Answer>();
         builder.registerTypeAdapter(Answer[].class, ansAdaptor);
-        builder.registerTypeAdapter(new TypeToken<List<PortConfig>>() {
-        }.getType(), new PortConfigListTypeAdaptor());
-        builder.registerTypeAdapter(new TypeToken<Pair<Long, Long>>() {
-        }.getType(), new NwGroupsCommandTypeAdaptor());
+        builder.registerTypeAdapter(s_portConfigListType, new PortConfigListTypeAdaptor());
+        builder.registerTypeAdapter(s_nwGroupsType, new NwGroupsCommandTypeAdaptor());
         Gson gson = builder.create();
         cmdAdaptor.initGson(gson);
         ansAdaptor.initGson(gson);
         return gson;
     }
 
+    /**
+     * @return the generic types registered with their own type adapter.
+     */
+    public final static Type[] getAdaptedTypes() {
+        return new Type[] { s_portConfigListType, s_nwGroupsType };
+    }
+
     public final static Gson getGson() {
         return s_gson;
     }
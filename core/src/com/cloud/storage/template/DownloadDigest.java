@@ -0,0 +1,136 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * DownloadDigest works out the digest of a file while it is being written,
+ * in any order, by a number of range downloads.  Data that is written
+ * right where the digest is at goes through the digest from memory; data
+ * further on is remembered and read back from the file once the gap in
+ * front of it has been filled in.
+ */
+public class DownloadDigest {
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private final MessageDigest _digest;
+    private final FileChannel _channel;
+    private final TreeMap<Long, Long> _pending = new TreeMap<Long, Long>();
+    private ByteBuffer _buffer;
+    private long _position;
+    private String _hex;
+
+    /**
+     * @param algorithm digest algorithm, MD5 for templates.
+     * @param channel the file being written.
+     * @param existing bytes already in the file, for a download that is resumed.
+     */
+    public DownloadDigest(String algorithm, FileChannel channel, long existing) throws NoSuchAlgorithmException, IOException {
+        _digest = MessageDigest.getInstance(algorithm);
+        _channel = channel;
+        if (existing > 0) {
+            _pending.put(0L, existing);
+            catchUp();
+        }
+    }
+
+    /**
+     * Tells the digest that len bytes from buf have been written to the file at offset.
+     */
+    public synchronized void written(long offset, byte[] buf, int off, int len) throws IOException {
+        if (offset == _position) {
+            _digest.update(buf, off, len);
+            _position += len;
+            catchUp();
+        } else if (offset > _position) {
+            Map.Entry<Long, Long> before = _pending.floorEntry(offset);
+            if (before != null && before.getKey() + before.getValue() == offset) {
+                _pending.put(before.getKey(), before.getValue() + len);
+            } else {
+                _pending.put(offset, (long)len);
+            }
+        } else {
+            throw new IOException("Bytes at " + offset + " have been written twice");
+        }
+    }
+
+    protected void catchUp() throws IOException {
+        Map.Entry<Long, Long> next;
+        while ((next = _pending.firstEntry()) != null && next.getKey() == _position) {
+            _pending.remove(next.getKey());
+            long end = next.getKey() + next.getValue();
+            if (_buffer == null) {
+                _buffer = ByteBuffer.allocate(READ_SIZE);
+            }
+            while (_position < end) {
+                _buffer.clear();
+                _buffer.limit((int)Math.min(_buffer.capacity(), end - _position));
+                int read = _channel.read(_buffer, _position);
+                if (read < 0) {
+                    throw new EOFException("File ends at " + _position + " before " + end);
+                }
+                _digest.update(_buffer.array(), 0, read);
+                _position += read;
+            }
+        }
+    }
+
+    /**
+     * @return bytes from the start of the file that have been digested; the
+     *         file can be resumed from here.
+     */
+    public synchronized long getPosition() {
+        return _position;
+    }
+
+    /**
+     * @return bytes written that are waiting for a gap before them to be filled in.
+     */
+    public synchronized long getPending() {
+        long pending = 0;
+        for (Long len : _pending.values()) {
+            pending += len;
+        }
+        return pending;
+    }
+
+    /**
+     * Finishes the digest.  Only call this once everything has been written.
+     * 
+     * @return the digest in lower case hex.
+     */
+    public synchronized String getHexDigest() {
+        if (_hex == null) {
+            assert _pending.isEmpty() : "There are still gaps before " + _pending.firstKey();
+            StringBuilder hex = new StringBuilder();
+            for (byte b : _digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            _hex = hex.toString();
+        }
+        return _hex;
+    }
+}
@@ -208,6 +208,7 @@ public class DownloadManagerImpl implements DownloadManager {
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
     private String listTmpltScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadStreams = 4;
     private boolean _sslCopy;
 
     /**
@@ -274,6 +275,17 @@ public class DownloadManagerImpl implements DownloadManager {
         String templatePath = null;
         templatePath = dnld.getInstallPathPrefix() + dnld.getAccountId() + File.separator + dnld.getId() + File.separator;// dnld.getTmpltName();
 
+        // the downloader may have worked out the md5 as the file came in, which saves reading it all again
+        String expectedChecksum = dnld.getChecksum();
+        String downloadedChecksum = td.getDownloadChecksum();
+        boolean checksumVerified = false;
+        if (expectedChecksum != null && expectedChecksum.length() > 1 && downloadedChecksum != null) {
+            if (!expectedChecksum.trim().equalsIgnoreCase(downloadedChecksum)) {
+                return "Checksum of the downloaded file " + downloadedChecksum + " does not match " + expectedChecksum;
+            }
+            checksumVerified = true;
+        }
+
         _storage.mkdirs(templatePath);
 
         // once template path is set, remove the parent dir so that the template is installed with a relative path
@@ -311,6 +323,9 @@ public class DownloadManagerImpl implements DownloadManager {
         scr.add("-f", td.getDownloadLocalPath());
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
             scr.add("-c", dnld.getChecksum());
+            if (checksumVerified) {
+                scr.add("-k"); // already verified, only record it
+            }
         }
         scr.add("-u"); // cleanup
         String result;
@@ -408,7 +423,9 @@ public class DownloadManagerImpl implements DownloadManager {
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
+                    HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
+                    httpDownloader.setStreams(downloadStreams);
+                    td = httpDownloader;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -438,7 +455,15 @@ public class DownloadManagerImpl implements DownloadManager {
     public String getDownloadError(String jobId) {
         DownloadJob dj = jobs.get(jobId);
         if (dj != null) {
-            return dj.getTemplateDownloader().getDownloadError();
+            TemplateDownloader td = dj.getTemplateDownloader();
+            String error = td.getDownloadError();
+            long bytes = td.getDownloadedBytes();
+            long time = td.getDownloadTime();
+            if (td.getStatus() == Status.IN_PROGRESS && bytes > 0 && time > 0) {
+                String rate = "Downloading at " + NumbersUtil.toReadableSize(bytes * 1000 / time) + "/s";
+                return (error == null || error.trim().length() == 0) ? rate : error + ", " + rate;
+            }
+            return error;
         }
         return null;
     }
@@ -766,6 +791,9 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        value = (String) params.get("template.download.streams");
+        downloadStreams = NumbersUtil.parseInt(value, 4);
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
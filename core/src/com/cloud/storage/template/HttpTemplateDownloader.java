@@ -28,7 +28,18 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.httpclient.Credentials;
@@ -38,6 +49,7 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
@@ -48,6 +60,7 @@ import org.apache.log4j.Logger;
 import com.cloud.storage.StorageLayer;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
  * Download a template file using HTTP
@@ -58,6 +71,8 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private static final long RANGE_SIZE = 32L*1024*1024; //32M per parallel range
+	private static final long SYNC_INTERVAL = 64L*1024*1024; //fsync every 64M
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
@@ -67,6 +82,11 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public long totalBytes;
 	private final HttpClient client;
 	private GetMethod request;
+	private final List<GetMethod> requests = new ArrayList<GetMethod>();
+	private int streams = 1;
+	private DownloadDigest digest;
+	private volatile long started;
+	private long unsynced;
 	private boolean resume = false;
 	private DownloadCompleteCallback completionCallback;
 	StorageLayer _storage;
@@ -197,8 +217,16 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		default:
 
 		}
-        int bytes=0;
+		// the ranges share the client, so each download gets a pool of connections that goes away with it
+		MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+		connections.getParams().setDefaultMaxConnectionsPerHost(streams);
+		connections.getParams().setMaxTotalConnections(Math.max(streams, 20));
+		client.setHttpConnectionManager(connections);
+
 		File file = new File(toFile);
+		FileChannel out = null;
+		ExecutorService rangeExecutor = null;
+		List<Future<Object>> ranges = new ArrayList<Future<Object>>();
 		try {
 			
 			long localFileSize = 0;
@@ -207,38 +235,60 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 				s_logger.info("Resuming download to file (current size)=" + localFileSize);
 			}
 			
-            Date start = new Date();
+			started = System.currentTimeMillis();
+			out = new RandomAccessFile(file, "rw").getChannel();
+			digest = new DownloadDigest("MD5", out, localFileSize);
+			synchronized (this) {
+				totalBytes = localFileSize;
+				unsynced = 0;
+			}
 
-			int responseCode=0;
+			if (streams > 1) {
+				// ask for the first range only; if the server hands it out, the rest is fetched in parallel
+				request.setRequestHeader("Range", "bytes=" + localFileSize + "-" + (localFileSize + RANGE_SIZE - 1));
+			} else if (localFileSize > 0) {
+				request.setRequestHeader("Range", "bytes=" + localFileSize + "-");
+			}
+			int responseCode = client.executeMethod(request);
+
+			long rangeTotal = 0;
+			if (streams > 1 && responseCode == HttpStatus.SC_PARTIAL_CONTENT) {
+				rangeTotal = getRangeTotal(request);
+				if (rangeTotal <= 0) {
+					s_logger.info("Unable to tell the size of " + downloadUrl + " from its ranges, downloading it in one stream");
+					request.releaseConnection();
+					request.setRequestHeader("Range", "bytes=" + localFileSize + "-");
+					responseCode = client.executeMethod(request);
+				}
+			}
 			
-			if (localFileSize > 0 ) {
+			if (localFileSize > 0 && responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
 				// require partial content support for resume
-				request.addRequestHeader("Range", "bytes=" + localFileSize + "-");
-				if (client.executeMethod(request) != HttpStatus.SC_PARTIAL_CONTENT) {
-					errorString = "HTTP Server does not support partial get";
-					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-					return 0;
-				}
-			} else if ((responseCode = client.executeMethod(request)) != HttpStatus.SC_OK) {
+				errorString = "HTTP Server does not support partial get";
+				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+				return 0;
+			} else if (responseCode != HttpStatus.SC_OK && responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
 				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
 				errorString = " HTTP Server returned " + responseCode + " (expected 200 OK) ";
                 return 0; //FIXME: retry?
             }
 			
-            Header contentLengthHeader = request.getResponseHeader("Content-Length");
             boolean chunked = false;
-            long remoteSize2 = 0;
-            if (contentLengthHeader == null) {
-            	Header chunkedHeader = request.getResponseHeader("Transfer-Encoding");
-            	if (chunkedHeader == null || !"chunked".equalsIgnoreCase(chunkedHeader.getValue())) {
-            		status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-            		errorString=" Failed to receive length of download ";
-            		return 0; //FIXME: what status do we put here? Do we retry?
-            	} else if ("chunked".equalsIgnoreCase(chunkedHeader.getValue())){
-            		chunked = true;
-            	}
-            } else {
-            	remoteSize2 = Long.parseLong(contentLengthHeader.getValue());
+            long remoteSize2 = rangeTotal;
+            if (remoteSize2 <= 0) {
+	            Header contentLengthHeader = request.getResponseHeader("Content-Length");
+	            if (contentLengthHeader == null) {
+	            	Header chunkedHeader = request.getResponseHeader("Transfer-Encoding");
+	            	if (chunkedHeader == null || !"chunked".equalsIgnoreCase(chunkedHeader.getValue())) {
+	            		status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+	            		errorString=" Failed to receive length of download ";
+	            		return 0; //FIXME: what status do we put here? Do we retry?
+	            	} else if ("chunked".equalsIgnoreCase(chunkedHeader.getValue())){
+	            		chunked = true;
+	            	}
+	            } else {
+	            	remoteSize2 = localFileSize + Long.parseLong(contentLengthHeader.getValue());
+	            }
             }
 
             if (remoteSize == 0) {
@@ -259,34 +309,45 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
             						: new ChunkedInputStream(request.getResponseBodyAsStream());
             
-            RandomAccessFile out = new RandomAccessFile(file, "rwd");
-            out.seek(localFileSize);
-
-            s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+            s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES + ", streams=" + (rangeTotal > 0 ? streams : 1));
             
-            byte[] block = new byte[CHUNK_SIZE];
-            long offset=0;
-            boolean done=false;
             status = TemplateDownloader.Status.IN_PROGRESS;
-            while (!done && status != Status.ABORTED && offset <= remoteSize) {
-            	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-            		out.write(block, 0, bytes);
-            		offset +=bytes;
-            		out.seek(offset);
-            		totalBytes += bytes;
-            	} else {
-            		done = true;
+            if (rangeTotal > 0) {
+            	AtomicLong next = new AtomicLong(localFileSize + RANGE_SIZE);
+            	rangeExecutor = Executors.newFixedThreadPool(streams - 1, new NamedThreadFactory("Download-Range"));
+            	for (int i = 1; i < streams; i++) {
+            		ranges.add(rangeExecutor.submit(new RangeTask(out, next)));
             	}
+            	copy(in, out, localFileSize);
+            	new RangeTask(out, next).call();
+            	for (Future<Object> range : ranges) {
+            		try {
+            			range.get();
+            		} catch (ExecutionException e) {
+            			if (e.getCause() instanceof IOException) {
+            				throw (IOException)e.getCause();
+            			}
+            			throw new CloudRuntimeException("Unable to download range", e.getCause());
+            		}
+            	}
+            } else {
+            	copy(in, out, localFileSize);
             }
-            Date finish = new Date();
+            out.force(false);
+
             String downloaded = "(incomplete download)";
             if (totalBytes >= remoteSize) {
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
+            } else {
+            	// keep only what can be resumed: everything up to the first range that did not make it
+            	long resumable = digest.getPosition();
+            	out.truncate(resumable);
+            	synchronized (this) {
+            		totalBytes = resumable;
+            	}
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
-            downloadTime += finish.getTime() - start.getTime();
-            out.close();
             
             return totalBytes;
 		}catch (HttpException hte) {
@@ -295,11 +356,37 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		} catch (IOException ioe) {
 			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
 			errorString = ioe.getMessage();
+		} catch (InterruptedException e) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			errorString = "Interrupted while waiting for download ranges";
+		} catch (NoSuchAlgorithmException e) {
+			throw new CloudRuntimeException("Unable to digest download", e);
 		} finally {
+			if (rangeExecutor != null) {
+				abortRequests();
+				rangeExecutor.shutdown();
+				try {
+					rangeExecutor.awaitTermination(60, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					s_logger.warn("Interrupted while waiting for download ranges to stop");
+				}
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					s_logger.warn("Unable to close " + toFile, e);
+				}
+			}
+			if (started != 0) {
+				downloadTime += System.currentTimeMillis() - started;
+				started = 0;
+			}
 			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
 				file.delete();
 			}
 			request.releaseConnection();
+			connections.shutdown();
             if (callback != null) {
             	callback.downloadComplete(status);
             }
@@ -307,6 +394,105 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return 0;
 	}
 
+	/**
+	 * Fetches RANGE_SIZE pieces of the file, taking the next one from a shared
+	 * offset, until the whole file has been handed out.
+	 */
+	protected class RangeTask implements Callable<Object> {
+		private final FileChannel out;
+		private final AtomicLong next;
+
+		public RangeTask(FileChannel out, AtomicLong next) {
+			this.out = out;
+			this.next = next;
+		}
+
+		@Override
+		public Object call() throws IOException {
+			long from;
+			while (status == Status.IN_PROGRESS && (from = next.getAndAdd(RANGE_SIZE)) < remoteSize) {
+				long to = Math.min(from + RANGE_SIZE, remoteSize) - 1;
+				GetMethod range = new GetMethod(downloadUrl);
+				range.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+				range.setRequestHeader("Range", "bytes=" + from + "-" + to);
+				synchronized (requests) {
+					requests.add(range);
+				}
+				try {
+					int responseCode = client.executeMethod(range);
+					if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+						throw new IOException("HTTP Server returned " + responseCode + " for bytes " + from + "-" + to + " (expected 206 Partial Content)");
+					}
+					copy(new BufferedInputStream(range.getResponseBodyAsStream()), out, from);
+				} catch (IOException e) {
+					// no point fetching the rest when this range is missing
+					abortRequests();
+					throw e;
+				} finally {
+					synchronized (requests) {
+						requests.remove(range);
+					}
+					range.releaseConnection();
+				}
+			}
+			return null;
+		}
+	}
+
+	private void copy(InputStream in, FileChannel out, long position) throws IOException {
+		byte[] block = new byte[CHUNK_SIZE];
+		int bytes;
+		while (status != Status.ABORTED && position <= remoteSize && (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
+			ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+			long offset = position;
+			while (buffer.hasRemaining()) {
+				offset += out.write(buffer, offset);
+			}
+			digest.written(position, block, 0, bytes);
+			position += bytes;
+
+			boolean sync;
+			synchronized (this) {
+				totalBytes += bytes;
+				unsynced += bytes;
+				sync = unsynced >= SYNC_INTERVAL;
+				if (sync) {
+					unsynced = 0;
+				}
+			}
+			if (sync) {
+				// bounds how much a crash can lose without syncing every write
+				out.force(false);
+			}
+		}
+	}
+
+	private static long getRangeTotal(HttpMethod method) {
+		Header contentRange = method.getResponseHeader("Content-Range");
+		if (contentRange == null) {
+			return 0;
+		}
+		String value = contentRange.getValue();
+		int slash = value.lastIndexOf('/');
+		if (slash < 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			// "*" when the server does not know the size
+			return 0;
+		}
+	}
+
+	private void abortRequests() {
+		synchronized (requests) {
+			for (GetMethod range : requests) {
+				range.abort();
+			}
+		}
+	}
+
 	public String getDownloadUrl() {
 		return downloadUrl;
 	}
@@ -323,23 +509,40 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 
 
 	public long getDownloadTime() {
-		return downloadTime;
+		long since = started;
+		return since == 0 ? downloadTime : downloadTime + System.currentTimeMillis() - since;
 	}
 	
 	
-	public long getDownloadedBytes() {
+	public synchronized long getDownloadedBytes() {
 		return totalBytes;
 	}
 
+	@Override
+	public String getDownloadChecksum() {
+		if (status != Status.DOWNLOAD_FINISHED || digest == null) {
+			return null;
+		}
+		return digest.getHexDigest();
+	}
+
+	/**
+	 * @param streams number of ranges to fetch at the same time when the server supports partial gets
+	 */
+	public void setStreams(int streams) {
+		this.streams = Math.max(1, streams);
+	}
+
 	@Override
 	@SuppressWarnings("fallthrough")
 	public boolean stopDownload() {
 		switch (getStatus()) {
 		case IN_PROGRESS:
+			status = TemplateDownloader.Status.ABORTED;
 			if (request != null) {
 				request.abort();
 			}
-			status = TemplateDownloader.Status.ABORTED;
+			abortRequests();
 			return true;
 		case UNKNOWN:
 		case NOT_STARTED:
@@ -365,7 +568,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			return 0;
 		}
 		
-		return (int)(100.0*totalBytes/remoteSize);
+		return (int)(100.0*getDownloadedBytes()/remoteSize);
 	}
 
 	@Override
@@ -87,6 +87,12 @@ public interface TemplateDownloader extends Runnable{
 	 */
 	public String getDownloadLocalPath();
 
+	/**
+	 * @return md5 of the downloaded file worked out while it was written, or null if
+	 *         the downloader does not work it out
+	 */
+	public String getDownloadChecksum();
+
 	public void setStatus(TemplateDownloader.Status status);
 
 	public void setDownloadError(String string);
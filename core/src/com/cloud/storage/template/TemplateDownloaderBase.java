@@ -62,6 +62,11 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
         return file.getAbsolutePath();
     }
     
+    @Override
+    public String getDownloadChecksum() {
+        return null;
+    }
+    
     @Override
     public int getDownloadPercent() {
         if (_remoteSize == 0) {
@@ -235,6 +235,10 @@ public class VMInstanceVO implements VirtualMachine, FiniteStateObject<State, Vi
 		return updateTime;
 	}
 	
+	public void setUpdateTime(Date updateTime) {
+		this.updateTime = updateTime;
+	}
+	
 	@Override
     public long getDataCenterIdToDeployIn() {
 	    return dataCenterIdToDeployIn;
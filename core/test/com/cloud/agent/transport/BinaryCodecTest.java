@@ -0,0 +1,351 @@
+package com.cloud.agent.transport;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.SecStorageFirewallCfgCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.agent.api.StartupRoutingCommand.VmState;
+import com.cloud.host.Host;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine.State;
+import com.google.gson.Gson;
+
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+public class BinaryCodecTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(BinaryCodecTest.class);
+    private static final Gson s_gson = GsonHelper.getGson();
+
+    /**
+     * Fills every command and answer in com.cloud.agent.api with sample
+     * values, pushes it through the binary codec and checks that gson sees
+     * the same object on both sides.
+     */
+    public void testRoundTripAllCommands() throws Exception {
+        List<String> failures = new ArrayList<String>();
+        int tested = 0;
+        for (Class<?> clazz : findClasses("com.cloud.agent.api")) {
+            if (!Command.class.isAssignableFrom(clazz) || Modifier.isAbstract(clazz.getModifiers()) || clazz.isAnonymousClass() || clazz.isLocalClass()) {
+                continue;
+            }
+
+            Command cmd = (Command)populate(clazz, 0);
+            String expected;
+            try {
+                expected = s_gson.toJson(cmd);
+            } catch (RuntimeException e) {
+                s_logger.info("Gson can't serialize " + clazz.getName() + " either, skipping: " + e.getMessage());
+                continue;
+            }
+
+            try {
+                byte[] bytes = BinaryCodec.encode(new Command[] { cmd });
+                Command[] decoded = BinaryCodec.decode(bytes, 0, bytes.length, Command.class);
+                assertEquals(clazz, decoded[0].getClass());
+                if (!expected.equals(s_gson.toJson(decoded[0]))) {
+                    failures.add(clazz.getName() + ": " + expected + " != " + s_gson.toJson(decoded[0]));
+                }
+            } catch (RuntimeException e) {
+                failures.add(clazz.getName() + ": " + e);
+            }
+            tested++;
+        }
+
+        s_logger.info("Round tripped " + tested + " commands and answers");
+        assertTrue("No commands found", tested > 100);
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    public void testRequestVersions() throws Exception {
+        StartupRoutingCommand cmd = createStartup(10);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, false);
+        sreq.setSequence(10);
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assertEquals(Request.Version.v4.ordinal(), bytes[0]);
+        assertEquals(Request.Version.v4, Request.getPeerVersion(bytes));
+        assertEquals(3, Request.getManagementServerId(bytes));
+        assertEquals(2, Request.getViaAgentId(bytes));
+
+        Request creq = Request.parse(bytes);
+        assertEquals(Request.Version.v4, creq.getVersion());
+        assertEquals(s_gson.toJson(cmd), s_gson.toJson(creq.getCommand()));
+
+        // Answers go back in the version the requester advertised.
+        Response resp = new Response(creq, new Answer(cmd, true, "ok"));
+        assertEquals(Request.Version.v4, resp.getVersion());
+        Response cresp = Response.parse(resp.getBytes());
+        assertEquals("ok", cresp.getAnswer().getDetails());
+
+        // Falling back to json for an old peer.
+        creq.setVersion(Request.Version.v1);
+        bytes = creq.getBytes();
+        assertEquals(Request.Version.v1.ordinal(), bytes[0]);
+        assertEquals(s_gson.toJson(cmd), s_gson.toJson(Request.parse(bytes).getCommand()));
+
+        // A peer that leaves the reserved byte at 0 gets json back.
+        bytes[1] = 0;
+        assertEquals(Request.Version.v1, Request.getPeerVersion(bytes));
+        assertEquals(Request.Version.v1, new Response(Request.parse(bytes), new Answer(cmd)).getVersion());
+    }
+
+    /**
+     * Fields of a type with its own Gson adapter have to come out of the
+     * binary codec the way they come out of json.
+     */
+    public void testAdaptedFieldsMatchGson() {
+        SecStorageFirewallCfgCommand empty = new SecStorageFirewallCfgCommand();
+        SecStorageFirewallCfgCommand ports = new SecStorageFirewallCfgCommand();
+        ports.addPortConfig("10.1.1.1", "80", true, "eth1");
+        ports.addPortConfig("10.1.1.2", "443", false, "eth2");
+        for (SecStorageFirewallCfgCommand cmd : new SecStorageFirewallCfgCommand[] { empty, ports }) {
+            SecStorageFirewallCfgCommand json = (SecStorageFirewallCfgCommand)viaGson(cmd);
+            SecStorageFirewallCfgCommand binary = (SecStorageFirewallCfgCommand)viaBinary(cmd);
+            if (json.getPortConfigs() == null) {
+                assertNull(binary.getPortConfigs());
+            } else {
+                assertEquals(json.getPortConfigs().size(), binary.getPortConfigs().size());
+                assertEquals(s_gson.toJson(json.getPortConfigs()), s_gson.toJson(binary.getPortConfigs()));
+            }
+        }
+        assertEquals(2, ((SecStorageFirewallCfgCommand)viaBinary(ports)).getPortConfigs().size());
+
+        HashMap<String, Pair<Long, Long>> groups = new HashMap<String, Pair<Long, Long>>();
+        groups.put("i-2-3-VM", new Pair<Long, Long>(5L, 6L));
+        groups.put("i-2-4-VM", new Pair<Long, Long>(7L, null));
+        PingRoutingWithNwGroupsCommand ping = new PingRoutingWithNwGroupsCommand(Host.Type.Routing, 1, new HashMap<String, State>(), groups);
+        PingRoutingWithNwGroupsCommand json = (PingRoutingWithNwGroupsCommand)viaGson(ping);
+        PingRoutingWithNwGroupsCommand binary = (PingRoutingWithNwGroupsCommand)viaBinary(ping);
+        assertEquals(json.getNewGroupStates(), binary.getNewGroupStates());
+        assertEquals(new Pair<Long, Long>(7L, null), binary.getNewGroupStates().get("i-2-4-VM"));
+    }
+
+    public void testBadCountsAreRefused() {
+        BinaryCodec.Writer writer = new BinaryCodec.Writer();
+        writer.writeVarInt(Integer.MAX_VALUE);
+        assertRefused(writer.toByteArray());
+
+        writer = new BinaryCodec.Writer();
+        writer.writeVarInt(1);
+        writer.writeByte(BinaryCodec.T_ARRAY);
+        writer.writeClass(String.class);
+        writer.writeVarInt(Integer.MAX_VALUE);
+        assertRefused(writer.toByteArray());
+
+        writer = new BinaryCodec.Writer();
+        writer.writeVarInt(1);
+        writer.writeByte(BinaryCodec.T_COLLECTION);
+        writer.writeClass(ArrayList.class);
+        writer.writeVarInt(1000);
+        writer.writeByte(BinaryCodec.T_NULL);
+        assertRefused(writer.toByteArray());
+
+        writer = new BinaryCodec.Writer();
+        writer.writeVarInt(1);
+        writer.writeByte(BinaryCodec.T_MAP);
+        writer.writeClass(HashMap.class);
+        writer.writeVarInt(1);
+        writer.writeByte(BinaryCodec.T_NULL);
+        assertRefused(writer.toByteArray());
+    }
+
+    protected void assertRefused(byte[] bytes) {
+        try {
+            BinaryCodec.decode(bytes, 0, bytes.length, Object.class);
+            fail("Decoded a count bigger than the message");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+    }
+
+    protected Command viaGson(Command cmd) {
+        return s_gson.fromJson(s_gson.toJson(new Command[] { cmd }, Command[].class), Command[].class)[0];
+    }
+
+    protected Command viaBinary(Command cmd) {
+        byte[] bytes = BinaryCodec.encode(new Command[] { cmd });
+        return BinaryCodec.decode(bytes, 0, bytes.length, Command.class)[0];
+    }
+
+    protected StartupRoutingCommand createStartup(int count) {
+        Map<String, VmState> vms = new HashMap<String, VmState>();
+        for (int i = 0; i < count; i++) {
+            vms.put("i-2-" + i + "-VM", new VmState(State.Running, "host-" + (i % 64)));
+        }
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("product_version", "5.6.100");
+        return new StartupRoutingCommand(4, 2400, 16L * 1024 * 1024 * 1024, 512L * 1024 * 1024, "xen-3.0-x86_64", HypervisorType.XenServer, details, vms);
+    }
+
+    protected Object populate(Class<?> clazz, int depth) throws Exception {
+        Object obj = BinaryCodec.getInfo(clazz).newInstance();
+        int n = 0;
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = sample(field.getType(), field.getGenericType(), field.getName(), n++, depth);
+                if (value != null || !field.getType().isPrimitive()) {
+                    field.set(obj, value);
+                }
+            }
+        }
+        return obj;
+    }
+
+    protected Object sample(Class<?> type, Type generic, String name, int n, int depth) throws Exception {
+        if (type == String.class) {
+            return name + n;
+        } else if (type == long.class || type == Long.class) {
+            return 1000000000000L + n;
+        } else if (type == int.class || type == Integer.class) {
+            return -n - 1;
+        } else if (type == boolean.class || type == Boolean.class) {
+            return n % 2 == 0;
+        } else if (type == short.class || type == Short.class) {
+            return (short)n;
+        } else if (type == double.class || type == Double.class) {
+            return n + 0.25;
+        } else if (type == float.class || type == Float.class) {
+            return n + 0.5f;
+        } else if (type == byte[].class) {
+            return new byte[] { 1, 2, (byte)n };
+        } else if (type == Date.class) {
+            return new Date(1300000000000L + n * 1000);
+        } else if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            return constants.length > 0 ? constants[n % constants.length] : null;
+        } else if (type.isArray() && depth < 2) {
+            Object array = java.lang.reflect.Array.newInstance(type.getComponentType(), 2);
+            for (int i = 0; i < 2; i++) {
+                Object element = sample(type.getComponentType(), type.getComponentType(), name, n + i, depth + 1);
+                if (element != null) {
+                    java.lang.reflect.Array.set(array, i, element);
+                }
+            }
+            return array;
+        } else if (Collection.class.isAssignableFrom(type) && depth < 2) {
+            Type element = argument(generic, 0);
+            Collection<Object> c = Set.class.isAssignableFrom(type) ? new HashSet<Object>() : new ArrayList<Object>();
+            if (type.isAssignableFrom(c.getClass()) && element instanceof Class) {
+                c.add(sample((Class<?>)element, element, name, n, depth + 1));
+                return c;
+            }
+            return null;
+        } else if (Map.class.isAssignableFrom(type) && depth < 2) {
+            Type key = argument(generic, 0);
+            Type value = argument(generic, 1);
+            Map<Object, Object> m = new HashMap<Object, Object>();
+            if (type.isAssignableFrom(HashMap.class) && key instanceof Class && value instanceof Class) {
+                m.put(sample((Class<?>)key, key, name, n, depth + 1), sample((Class<?>)value, value, name, n + 1, depth + 1));
+                return m;
+            }
+            return null;
+        } else if (type.getName().startsWith("com.cloud.") && !type.isInterface() && !Modifier.isAbstract(type.getModifiers()) && depth < 2) {
+            return populate(type, depth + 1);
+        }
+        return null;
+    }
+
+    protected Type argument(Type generic, int index) {
+        if (generic instanceof ParameterizedType) {
+            return ((ParameterizedType)generic).getActualTypeArguments()[index];
+        }
+        return null;
+    }
+
+    protected Set<Class<?>> findClasses(String pkg) throws Exception {
+        Set<Class<?>> classes = new TreeSet<Class<?>>(new java.util.Comparator<Class<?>>() {
+            @Override
+            public int compare(Class<?> o1, Class<?> o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        String path = pkg.replace('.', '/');
+        Enumeration<URL> urls = getClass().getClassLoader().getResources(path);
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            List<String> names = new ArrayList<String>();
+            if ("jar".equals(url.getProtocol())) {
+                JarFile jar = ((JarURLConnection)url.openConnection()).getJarFile();
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    String entry = entries.nextElement().getName();
+                    if (entry.startsWith(path) && entry.endsWith(".class")) {
+                        names.add(entry);
+                    }
+                }
+            } else {
+                listClassFiles(new File(URLDecoder.decode(url.getFile(), "UTF-8")), path, names);
+            }
+            for (String entry : names) {
+                String className = entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
+                classes.add(Class.forName(className));
+            }
+        }
+        return classes;
+    }
+
+    protected void listClassFiles(File dir, String path, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listClassFiles(file, path + "/" + file.getName(), names);
+            } else if (file.getName().endsWith(".class")) {
+                names.add(path + "/" + file.getName());
+            }
+        }
+    }
+}
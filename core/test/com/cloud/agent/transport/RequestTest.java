@@ -15,6 +15,7 @@ import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.UnsupportedVersionException;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
@@ -22,6 +23,7 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
@@ -137,6 +139,22 @@ public class RequestTest extends TestCase {
 
     }
 
+    public void testAdvertisedVersion() throws Exception {
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request req = new Request(1, 1, cmd, true);
+        assertEquals(Version.v4, Request.getPeerVersion(req.getBytes()));
+
+        // forwarded through another management server
+        req.setAdvertisedVersion(Version.v1);
+        byte[] bytes = req.getBytes();
+        assertEquals(0, bytes[1]);
+        Request parsed = Request.parse(bytes);
+        assertEquals(Version.v1, parsed.getPeerVersion());
+
+        Response resp = new Response(parsed, new Answer(cmd, true, null));
+        assertEquals(Version.v1, Request.getVersion(resp.getBytes()));
+    }
+
     public void testCompress() {
         s_logger.info("testCompress");
         int len = 800000;
@@ -157,6 +175,77 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testFrameCompress() {
+        s_logger.info("testFrameCompress");
+        int len = 100000;
+        byte[] input = new byte[len];
+        for (int i = 0; i < len; i ++) {
+            input[i] = (byte)(i % 17);
+        }
+        ByteBuffer compressed = FrameCompressor.compress(input, 0, len);
+        assertNotNull(compressed);
+        s_logger.info("compressed length: " + compressed.remaining());
+        ByteBuffer decompressed = FrameCompressor.decompress(compressed, len);
+        Assert.assertArrayEquals(input, decompressed.array());
+
+        assertNull("Small frames should go out as is", FrameCompressor.compress(input, 0, 100));
+
+        java.util.Random random = new java.util.Random(1);
+        random.nextBytes(input);
+        for (int i = 0; i < FrameCompressor.WINDOW; i++) {
+            assertNull("Random data should not compress", FrameCompressor.compress(input, 0, len));
+        }
+        for (int i = 0; i < len; i ++) {
+            input[i] = 1;
+        }
+        assertNull("Compression should be backed off", FrameCompressor.compress(input, 0, len));
+        for (int i = 0; i < FrameCompressor.BACKOFF; i++) {
+            FrameCompressor.compress(input, 0, len);
+        }
+        assertNotNull("Compression should be tried again", FrameCompressor.compress(input, 0, len));
+
+        DownloadCommand cmd = new DownloadCommand("secondary", new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true, HypervisorType.KVM), 30000000l);
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            description.append("template description ").append(i);
+        }
+        cmd.setDescription(description.toString());
+        Request sreq = new Request(2, 3, cmd, true);
+        sreq.setVersion(Request.Version.v4);
+        ByteBuffer[] buffers = sreq.toBytes();
+        assertTrue("Request should be compressed", (sreq.getFlags() & Request.FLAG_DICT_COMPRESSED) != 0);
+        assertTrue(buffers[1].remaining() < buffers[0].getInt(12));
+
+        byte[] bytes = sreq.getBytes();
+        try {
+            Request creq = Request.parse(bytes);
+            assertEquals(description.toString(), ((DownloadCommand)creq.getCommand()).getDescription());
+        } catch (ClassNotFoundException e) {
+            Assert.fail(e.getMessage());
+        } catch (UnsupportedVersionException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    public void testFrameDecompressRefusesBadLength() {
+        int len = 100000;
+        byte[] input = new byte[len];
+        for (int i = 0; i < len; i ++) {
+            input[i] = (byte)(i % 17);
+        }
+        ByteBuffer compressed = FrameCompressor.compress(input, 0, len);
+        assertNotNull(compressed);
+        for (int length : new int[] { -1, Integer.MAX_VALUE, compressed.remaining() * 2000 }) {
+            try {
+                FrameCompressor.decompress(compressed.duplicate(), length);
+                Assert.fail("Allocated " + length + " bytes for a frame of " + compressed.remaining());
+            } catch (CloudRuntimeException e) {
+                // expected
+            }
+        }
+        assertEquals(len, FrameCompressor.decompress(compressed, len).remaining());
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -0,0 +1,304 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+/**
+ * FakeVimService simulates the property collector of a vCenter server, it
+ * keeps an inventory in memory and answers CreateFilter, WaitForUpdates,
+ * CancelWaitForUpdates and DestroyPropertyFilter with version based
+ * updates the way the SOAP service does.  RetrieveProperties round trips
+ * are only counted.
+ */
+public class FakeVimService implements InvocationHandler {
+	private final Map<String, ManagedObjectReference> _mors = new LinkedHashMap<String, ManagedObjectReference>();
+	private final Map<String, Map<String, Object>> _objects = new HashMap<String, Map<String, Object>>();
+
+	// filter key -> key of the task it follows, or null for the inventory filter
+	private final Map<String, String> _filters = new HashMap<String, String>();
+	private final Map<String, List<ObjectUpdate>> _pending = new HashMap<String, List<ObjectUpdate>>();
+
+	private int _seq = 0;
+	private int _version = 0;
+	private boolean _cancelled = false;
+
+	private int _waitForUpdatesCount = 0;
+	private int _retrievePropertiesCount = 0;
+	private int _createFilterCount = 0;
+
+	public VimPortType getService() {
+		return (VimPortType)Proxy.newProxyInstance(VimPortType.class.getClassLoader(), new Class<?>[] { VimPortType.class }, this);
+	}
+
+	public static ManagedObjectReference createMor(String type, String value) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.set_value(value);
+		return mor;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if(name.equals("createFilter"))
+			return createFilter((PropertyFilterSpec)args[1]);
+		if(name.equals("waitForUpdates"))
+			return waitForUpdates((String)args[1]);
+		if(name.equals("cancelWaitForUpdates")) {
+			cancelWaitForUpdates();
+			return null;
+		}
+		if(name.equals("destroyPropertyFilter")) {
+			destroyPropertyFilter((ManagedObjectReference)args[0]);
+			return null;
+		}
+		if(name.equals("retrieveProperties")) {
+			synchronized(this) {
+				_retrievePropertiesCount++;
+			}
+			return null;
+		}
+		if(name.equals("toString"))
+			return "FakeVimService";
+		if(name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if(name.equals("equals"))
+			return proxy == args[0];
+
+		throw new UnsupportedOperationException(name);
+	}
+
+	public synchronized ManagedObjectReference addHost(String name, ManagedObjectReference morCluster) {
+		ManagedObjectReference mor = createMor("HostSystem", "host-" + (++_seq));
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put("name", name);
+		props.put("parent", morCluster);
+		props.put("vm", toArray(new ArrayList<ManagedObjectReference>()));
+		props.put("datastore", toArray(new ArrayList<ManagedObjectReference>()));
+		add(mor, props);
+		return mor;
+	}
+
+	public synchronized ManagedObjectReference addVm(ManagedObjectReference morHost, String name, VirtualMachinePowerState state) {
+		ManagedObjectReference mor = createMor("VirtualMachine", "vm-" + (++_seq));
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put("name", name);
+		props.put("runtime.powerState", state);
+		props.put("config.template", Boolean.FALSE);
+		add(mor, props);
+
+		List<ManagedObjectReference> vms = toList(_objects.get(key(morHost)).get("vm"));
+		vms.add(mor);
+		set(morHost, "vm", toArray(vms));
+		return mor;
+	}
+
+	public synchronized void removeVm(ManagedObjectReference morHost, ManagedObjectReference morVm) {
+		List<ManagedObjectReference> vms = toList(_objects.get(key(morHost)).get("vm"));
+		for(int i = 0; i < vms.size(); i++) {
+			if(key(vms.get(i)).equals(key(morVm)))
+				vms.remove(i--);
+		}
+		set(morHost, "vm", toArray(vms));
+
+		_mors.remove(key(morVm));
+		_objects.remove(key(morVm));
+		for(Map.Entry<String, String> entry : _filters.entrySet()) {
+			if(entry.getValue() == null)
+				queue(entry.getKey(), createUpdate(morVm, ObjectUpdateKind.leave, null));
+		}
+		notifyAll();
+	}
+
+	public synchronized ManagedObjectReference createTask() {
+		ManagedObjectReference mor = createMor("Task", "task-" + (++_seq));
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put("info.state", TaskInfoState.running);
+		add(mor, props);
+		return mor;
+	}
+
+	public synchronized void finishTask(ManagedObjectReference morTask, String error) {
+		if(error != null) {
+			LocalizedMethodFault fault = new LocalizedMethodFault();
+			fault.setLocalizedMessage(error);
+			set(morTask, "info.error", fault);
+			set(morTask, "info.state", TaskInfoState.error);
+		} else {
+			set(morTask, "info.state", TaskInfoState.success);
+		}
+	}
+
+	public synchronized void set(ManagedObjectReference mor, String path, Object val) {
+		_objects.get(key(mor)).put(path, val);
+
+		PropertyChange change = new PropertyChange();
+		change.setName(path);
+		change.setOp(PropertyChangeOp.assign);
+		change.setVal(val);
+		for(Map.Entry<String, String> entry : _filters.entrySet()) {
+			if(matches(entry.getValue(), mor))
+				queue(entry.getKey(), createUpdate(mor, ObjectUpdateKind.modify, new PropertyChange[] { change }));
+		}
+		notifyAll();
+	}
+
+	private void add(ManagedObjectReference mor, Map<String, Object> props) {
+		_mors.put(key(mor), mor);
+		_objects.put(key(mor), props);
+		for(Map.Entry<String, String> entry : _filters.entrySet()) {
+			if(matches(entry.getValue(), mor))
+				queue(entry.getKey(), createEnterUpdate(mor));
+		}
+		notifyAll();
+	}
+
+	private synchronized ManagedObjectReference createFilter(PropertyFilterSpec spec) {
+		_createFilterCount++;
+
+		ManagedObjectReference morFilter = createMor("PropertyFilter", "filter-" + (++_seq));
+		ManagedObjectReference morTarget = spec.getObjectSet()[0].getObj();
+		String taskKey = morTarget.getType().equals("Task") ? key(morTarget) : null;
+		_filters.put(morFilter.get_value(), taskKey);
+
+		for(ManagedObjectReference mor : _mors.values()) {
+			if(matches(taskKey, mor))
+				queue(morFilter.get_value(), createEnterUpdate(mor));
+		}
+		notifyAll();
+		return morFilter;
+	}
+
+	private synchronized void destroyPropertyFilter(ManagedObjectReference morFilter) {
+		_filters.remove(morFilter.get_value());
+		_pending.remove(morFilter.get_value());
+	}
+
+	private synchronized void cancelWaitForUpdates() {
+		_cancelled = true;
+		notifyAll();
+	}
+
+	private synchronized UpdateSet waitForUpdates(String version) throws InterruptedException {
+		_waitForUpdatesCount++;
+		if(version != null && version.length() > 0 && Integer.parseInt(version) != _version)
+			throw new IllegalStateException("InvalidCollectorVersion");
+
+		while(_pending.isEmpty() && !_cancelled)
+			wait();
+
+		if(_cancelled) {
+			_cancelled = false;
+			throw new IllegalStateException("RequestCanceled");
+		}
+
+		List<PropertyFilterUpdate> filterUpdates = new ArrayList<PropertyFilterUpdate>();
+		for(Map.Entry<String, List<ObjectUpdate>> entry : _pending.entrySet()) {
+			PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+			filterUpdate.setFilter(createMor("PropertyFilter", entry.getKey()));
+			filterUpdate.setObjectSet(entry.getValue().toArray(new ObjectUpdate[entry.getValue().size()]));
+			filterUpdates.add(filterUpdate);
+		}
+		_pending.clear();
+
+		UpdateSet updateSet = new UpdateSet();
+		updateSet.setVersion(String.valueOf(++_version));
+		updateSet.setFilterSet(filterUpdates.toArray(new PropertyFilterUpdate[filterUpdates.size()]));
+		return updateSet;
+	}
+
+	private void queue(String filter, ObjectUpdate update) {
+		List<ObjectUpdate> updates = _pending.get(filter);
+		if(updates == null) {
+			updates = new ArrayList<ObjectUpdate>();
+			_pending.put(filter, updates);
+		}
+		updates.add(update);
+	}
+
+	private ObjectUpdate createEnterUpdate(ManagedObjectReference mor) {
+		List<PropertyChange> changes = new ArrayList<PropertyChange>();
+		for(Map.Entry<String, Object> entry : _objects.get(key(mor)).entrySet()) {
+			PropertyChange change = new PropertyChange();
+			change.setName(entry.getKey());
+			change.setOp(PropertyChangeOp.assign);
+			change.setVal(entry.getValue());
+			changes.add(change);
+		}
+		return createUpdate(mor, ObjectUpdateKind.enter, changes.toArray(new PropertyChange[changes.size()]));
+	}
+
+	private static ObjectUpdate createUpdate(ManagedObjectReference mor, ObjectUpdateKind kind, PropertyChange[] changes) {
+		ObjectUpdate update = new ObjectUpdate();
+		update.setObj(mor);
+		update.setKind(kind);
+		update.setChangeSet(changes);
+		return update;
+	}
+
+	private static boolean matches(String taskKey, ManagedObjectReference mor) {
+		if(taskKey == null)
+			return !mor.getType().equals("Task");
+		return taskKey.equals(key(mor));
+	}
+
+	private static String key(ManagedObjectReference mor) {
+		return mor.getType() + ":" + mor.get_value();
+	}
+
+	private static ArrayOfManagedObjectReference toArray(List<ManagedObjectReference> mors) {
+		ArrayOfManagedObjectReference array = new ArrayOfManagedObjectReference();
+		array.setManagedObjectReference(mors.toArray(new ManagedObjectReference[mors.size()]));
+		return array;
+	}
+
+	private static List<ManagedObjectReference> toList(Object val) {
+		List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+		ManagedObjectReference[] array = ((ArrayOfManagedObjectReference)val).getManagedObjectReference();
+		if(array != null) {
+			for(ManagedObjectReference mor : array)
+				mors.add(mor);
+		}
+		return mors;
+	}
+
+	public synchronized int getWaitForUpdatesCount() {
+		return _waitForUpdatesCount;
+	}
+
+	public synchronized int getRetrievePropertiesCount() {
+		return _retrievePropertiesCount;
+	}
+
+	public synchronized int getCreateFilterCount() {
+		return _createFilterCount;
+	}
+
+	public synchronized int getFilterCount() {
+		return _filters.size();
+	}
+}
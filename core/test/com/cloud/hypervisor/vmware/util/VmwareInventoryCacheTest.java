@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.util;
+
+import junit.framework.TestCase;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+public class VmwareInventoryCacheTest extends TestCase {
+	FakeVimService _vCenter;
+	VmwareInventoryCache _cache;
+	ManagedObjectReference _morCluster;
+	ManagedObjectReference _morHost1;
+	ManagedObjectReference _morHost2;
+
+	@Override
+	protected void setUp() {
+		_vCenter = new FakeVimService();
+		_morCluster = FakeVimService.createMor("ClusterComputeResource", "domain-c7");
+		_morHost1 = _vCenter.addHost("esx-1", _morCluster);
+		_morHost2 = _vCenter.addHost("esx-2", _morCluster);
+		for(int i = 0; i < 20; i++) {
+			_vCenter.addVm(_morHost1, "i-2-" + i + "-VM", VirtualMachinePowerState.poweredOn);
+			_vCenter.addVm(_morHost2, "i-3-" + i + "-VM", VirtualMachinePowerState.poweredOff);
+		}
+
+		_cache = new VmwareInventoryCache(_vCenter.getService(), FakeVimService.createMor("PropertyCollector", "propertyCollector"),
+			FakeVimService.createMor("Folder", "group-d1"));
+		_cache.setRetryInterval(100);
+		_cache.start("test");
+	}
+
+	@Override
+	protected void tearDown() {
+		_cache.stop();
+	}
+
+	public void testTaskIsSignaled() throws Exception {
+		final ManagedObjectReference morTask = _vCenter.createTask();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch(InterruptedException e) {
+				}
+				_vCenter.finishTask(morTask, null);
+			}
+		}).start();
+
+		assertEquals("sucess", _cache.waitForTask(morTask));
+		assertTrue(_cache.isTaskFinished(morTask));
+		assertEquals(1, _cache.getSignaledTaskCount());
+		assertEquals(0, _vCenter.getFilterCount());
+
+		ManagedObjectReference morFailedTask = _vCenter.createTask();
+		_vCenter.finishTask(morFailedTask, "Insufficient disk space on datastore");
+		assertEquals("Insufficient disk space on datastore", _cache.waitForTask(morFailedTask));
+		assertEquals(0, _cache.getPolledTaskCount());
+	}
+
+	public void testVmPropertiesFollowUpdates() throws Exception {
+		String[] paths = new String[] { "name", "runtime.powerState" };
+		assertNull("the first lookup loads the inventory", _cache.getVmProperties(_morHost1, paths));
+		waitForSync();
+
+		ObjectContent[] ocs = _cache.getVmProperties(_morHost1, paths);
+		assertEquals(20, ocs.length);
+		assertEquals("name", ocs[0].getPropSet()[0].getName());
+		assertEquals(40, _cache.getVmProperties(_morCluster, paths).length);
+
+		ManagedObjectReference morVm = _vCenter.addVm(_morHost1, "i-2-100-VM", VirtualMachinePowerState.poweredOn);
+		_vCenter.set(morVm, "runtime.powerState", VirtualMachinePowerState.poweredOff);
+		ManagedObjectReference morTask = _vCenter.createTask();
+		_vCenter.finishTask(morTask, null);
+		assertEquals("sucess", _cache.waitForTask(morTask));
+
+		// changes made before a task finished are applied by the time its waiter wakes up
+		ocs = _cache.getVmProperties(_morHost1, paths);
+		assertEquals(21, ocs.length);
+		assertEquals(VirtualMachinePowerState.poweredOff, findPowerState(ocs, "i-2-100-VM"));
+
+		_vCenter.removeVm(_morHost1, morVm);
+		morTask = _vCenter.createTask();
+		_vCenter.finishTask(morTask, null);
+		_cache.waitForTask(morTask);
+		assertEquals(20, _cache.getVmProperties(_morHost1, paths).length);
+		assertNull(findPowerState(_cache.getVmProperties(_morHost1, paths), "i-2-100-VM"));
+	}
+
+	public void testUntrackedPropertiesMiss() throws Exception {
+		_cache.getVmProperties(_morHost1, new String[] { "name" });
+		waitForSync();
+
+		long misses = _cache.getMissCount();
+		assertNull(_cache.getVmProperties(_morHost1, new String[] { "name", "summary.quickStats.overallCpuUsage" }));
+		assertNull(_cache.getVmProperties(FakeVimService.createMor("HostSystem", "host-unknown"), new String[] { "name" }));
+		assertEquals(misses + 2, _cache.getMissCount());
+	}
+
+	public void testStoppedCacheFallsBackToPolling() throws Exception {
+		_cache.stop();
+		assertNull(_cache.waitForTask(_vCenter.createTask()));
+		assertEquals(1, _cache.getPolledTaskCount());
+	}
+
+	public void testClusterSyncWithoutRoundTrips() throws Exception {
+		String[] paths = new String[] { "name", "runtime.powerState", "config.template" };
+		_cache.getVmProperties(_morCluster, paths);
+		waitForSync();
+
+		int waits = _vCenter.getWaitForUpdatesCount();
+		for(int i = 0; i < 100; i++)
+			assertEquals(40, _cache.getVmProperties(_morCluster, paths).length);
+
+		assertEquals(0, _vCenter.getRetrievePropertiesCount());
+		assertEquals(waits, _vCenter.getWaitForUpdatesCount());
+		assertEquals(100, _cache.getHitCount());
+		assertEquals(1, _vCenter.getCreateFilterCount());
+	}
+
+	private void waitForSync() throws InterruptedException {
+		for(int i = 0; i < 100 && !_cache.isSynced(); i++)
+			Thread.sleep(50);
+		assertTrue(_cache.isSynced());
+	}
+
+	private static Object findPowerState(ObjectContent[] ocs, String vmName) {
+		for(ObjectContent oc : ocs) {
+			if(oc.getPropSet()[0].getVal().equals(vmName))
+				return oc.getPropSet()[1].getVal();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Types;
+import com.xensource.xenapi.Types.XenAPIException;
+
+/**
+ * FakeXapiConnection answers the handful of XenAPI calls the resource makes
+ * for state tracking from in memory records, so code that talks to a pool can
+ * be tested without one.  Records are kept in the wire format, which is what
+ * the bindings unmarshall.  It counts the calls it serves and the records it
+ * returns to show how much a real master would have had to send.
+ */
+public class FakeXapiConnection extends Connection {
+    public static final String NULL_REF = "OpaqueRef:NULL";
+
+    protected final Map<String, Map<String, Object>> _vms = new HashMap<String, Map<String, Object>>();
+    protected final Map<String, Map<String, Object>> _hosts = new HashMap<String, Map<String, Object>>();
+    protected final Map<String, Map<String, Object>> _pools = new HashMap<String, Map<String, Object>>();
+    protected final LinkedBlockingQueue<Object> _events = new LinkedBlockingQueue<Object>();
+    protected final Map<String, AtomicInteger> _calls = new HashMap<String, AtomicInteger>();
+    protected final AtomicInteger _records = new AtomicInteger();
+    protected long _eventId = 0;
+    protected long _eventWait = 100; // in ms, before event.next times out like a quiet pool
+
+    public FakeXapiConnection() throws MalformedURLException {
+        super(new URL("http://localhost"), 1);
+    }
+
+    public synchronized String addHost(String uuid) {
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("uuid", uuid);
+        record.put("name_label", uuid);
+        String ref = "OpaqueRef:host-" + uuid;
+        _hosts.put(ref, record);
+        if (_pools.isEmpty()) {
+            Map<String, Object> pool = new HashMap<String, Object>();
+            pool.put("uuid", "pool-" + uuid);
+            pool.put("master", ref);
+            _pools.put("OpaqueRef:pool", pool);
+        }
+        return ref;
+    }
+
+    public synchronized String addVm(String name, String powerState, String hostRef) {
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("uuid", "uuid-" + name);
+        record.put("name_label", name);
+        record.put("power_state", powerState);
+        record.put("resident_on", hostRef == null ? NULL_REF : hostRef);
+        record.put("is_control_domain", false);
+        record.put("is_a_template", false);
+        record.put("is_a_snapshot", false);
+        String ref = "OpaqueRef:vm-" + name;
+        _vms.put(ref, record);
+        return ref;
+    }
+
+    public synchronized Map<String, Object> getVm(String ref) {
+        return _vms.get(ref);
+    }
+
+    /**
+     * Changes a vm and queues the event a master would send for it.
+     */
+    public synchronized void updateVm(String ref, String powerState, String hostRef, boolean withSnapshot) {
+        Map<String, Object> record = _vms.get(ref);
+        record.put("power_state", powerState);
+        record.put("resident_on", hostRef == null ? NULL_REF : hostRef);
+        queueEvent("vm", "mod", ref, withSnapshot ? record : null);
+    }
+
+    public synchronized void createVm(String name, String powerState, String hostRef) {
+        String ref = addVm(name, powerState, hostRef);
+        queueEvent("vm", "add", ref, _vms.get(ref));
+    }
+
+    public synchronized void destroyVm(String ref) {
+        Map<String, Object> record = _vms.remove(ref);
+        queueEvent("vm", "del", ref, record);
+    }
+
+    public synchronized void switchMaster(String hostRef) {
+        Map.Entry<String, Map<String, Object>> pool = _pools.entrySet().iterator().next();
+        pool.getValue().put("master", hostRef);
+        queueEvent("pool", "mod", pool.getKey(), pool.getValue());
+    }
+
+    public void loseEvents() {
+        _events.add(new Types.EventsLost());
+    }
+
+    protected void queueEvent(String clazz, String operation, String ref, Map<String, Object> record) {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("id", Long.toString(++_eventId));
+        event.put("class", clazz);
+        event.put("operation", operation);
+        event.put("ref", ref);
+        if (record != null) {
+            event.put("obj_uuid", record.get("uuid"));
+            event.put("snapshot", new HashMap<String, Object>(record));
+        }
+        _events.add(event);
+    }
+
+    public int getCalls(String method) {
+        synchronized (_calls) {
+            AtomicInteger calls = _calls.get(method);
+            return calls == null ? 0 : calls.get();
+        }
+    }
+
+    public int getTotalCalls() {
+        int total = 0;
+        synchronized (_calls) {
+            for (AtomicInteger calls : _calls.values()) {
+                total += calls.get();
+            }
+        }
+        return total;
+    }
+
+    public int getRecordsSent() {
+        return _records.get();
+    }
+
+    protected Map<String, Object> success(Object value) {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("Status", "Success");
+        response.put("Value", value);
+        return response;
+    }
+
+    protected synchronized Map<String, Object> copy(Map<String, Map<String, Object>> records) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Map<String, Object>> entry : records.entrySet()) {
+            result.put(entry.getKey(), new HashMap<String, Object>(entry.getValue()));
+        }
+        _records.addAndGet(result.size());
+        return result;
+    }
+
+    @Override
+    protected Map dispatch(String method_call, Object[] method_params) throws XmlRpcException, XenAPIException {
+        synchronized (_calls) {
+            AtomicInteger calls = _calls.get(method_call);
+            if (calls == null) {
+                calls = new AtomicInteger();
+                _calls.put(method_call, calls);
+            }
+            calls.incrementAndGet();
+        }
+
+        if (method_call.equals("VM.get_all_records")) {
+            return success(copy(_vms));
+        } else if (method_call.equals("host.get_all_records")) {
+            return success(copy(_hosts));
+        } else if (method_call.equals("pool.get_all_records")) {
+            return success(copy(_pools));
+        } else if (method_call.equals("VM.get_record")) {
+            synchronized (this) {
+                Map<String, Object> record = _vms.get(method_params[1]);
+                if (record == null) {
+                    throw new Types.HandleInvalid("VM", (String) method_params[1]);
+                }
+                _records.incrementAndGet();
+                return success(new HashMap<String, Object>(record));
+            }
+        } else if (method_call.equals("host.get_uuid")) {
+            synchronized (this) {
+                return success(_hosts.get(method_params[1]).get("uuid"));
+            }
+        } else if (method_call.equals("event.next")) {
+            List<Object> events = new ArrayList<Object>();
+            try {
+                Object event = _events.poll(_eventWait, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    throw new XmlRpcException("Failed to read server's response", new SocketTimeoutException("Read timed out"));
+                }
+                if (event instanceof XenAPIException) {
+                    throw (XenAPIException) event;
+                }
+                events.add(event);
+                while ((event = _events.peek()) instanceof Map) {
+                    events.add(_events.poll());
+                }
+            } catch (InterruptedException e) {
+                throw new XmlRpcException("Interrupted", e);
+            }
+            _records.addAndGet(events.size());
+            return success(events.toArray());
+        } else if (method_call.equals("event.get_current_id")) {
+            synchronized (this) {
+                return success(Long.toString(_eventId));
+            }
+        } else if (method_call.equals("event.register") || method_call.equals("session.logout")) {
+            return success("");
+        }
+        throw new XmlRpcException("Unsupported call " + method_call);
+    }
+}
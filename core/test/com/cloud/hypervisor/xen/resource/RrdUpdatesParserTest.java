@@ -0,0 +1,225 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.hypervisor.xen.resource.RrdUpdatesParser.Column;
+import com.cloud.hypervisor.xen.resource.RrdUpdatesParser.RrdUpdates;
+import com.xensource.xenapi.Connection;
+
+public class RrdUpdatesParserTest extends TestCase {
+    private static final String[] VM_PARAMS = { "cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read", "vbd_xvda_write", "memory" };
+    private static final String[] HOST_PARAMS = { "cpu0", "cpu1", "cpu2", "cpu3", "pif_eth0_rx", "pif_eth0_tx", "pif_eth1_rx", "pif_eth1_tx", "memory_total_kib", "memory_free_kib", "loadavg" };
+
+    /**
+     * Builds rrd_updates output the way xapi lays it out: newest row first,
+     * one v per legend entry, NaN where a data source has no value yet.
+     */
+    static String buildRrdUpdates(String hostUuid, List<String> vmUuids, int rows, long end, long seed) {
+        Random random = new Random(seed);
+        List<String> legend = new ArrayList<String>();
+        for (String param : HOST_PARAMS) {
+            legend.add("AVERAGE:host:" + hostUuid + ":" + param);
+        }
+        for (String uuid : vmUuids) {
+            for (String param : VM_PARAMS) {
+                legend.add("AVERAGE:vm:" + uuid + ":" + param);
+            }
+        }
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<xport><meta><start>").append(end - rows * 60).append("</start><step>60</step><end>").append(end).append("</end>");
+        xml.append("<rows>").append(rows).append("</rows><columns>").append(legend.size()).append("</columns><legend>");
+        for (String entry : legend) {
+            xml.append("<entry>").append(entry).append("</entry>");
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(end - row * 60).append("</t>");
+            for (int col = 0; col < legend.size(); col++) {
+                xml.append("<v>");
+                if (random.nextInt(50) == 0) {
+                    xml.append("NaN");
+                } else {
+                    xml.append(String.format("%.4E", random.nextDouble() * 1000));
+                }
+                xml.append("</v>");
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    static List<String> uuids(int count) {
+        List<String> uuids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            uuids.add(String.format("0b1c2d3e-0000-0000-0000-%012d", i));
+        }
+        return uuids;
+    }
+
+    /**
+     * The averages the DOM walk in CitrixResourceBase used to compute, keyed
+     * by uuid:param, for the columns of the given type and uuids.
+     */
+    static Map<String, Double> domAverages(String xml, String type, Set<String> uuids) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        NodeList secondLevelChildren = doc.getChildNodes().item(0).getChildNodes();
+        Node metaNode = secondLevelChildren.item(0);
+        Node dataNode = secondLevelChildren.item(1);
+        int numRows = 0;
+        int numColumns = 0;
+        Node legend = null;
+        NodeList metaNodeChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
+            Node n = metaNodeChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.valueOf(n.getFirstChild().getNodeValue());
+            } else if (n.getNodeName().equals("columns")) {
+                numColumns = Integer.valueOf(n.getFirstChild().getNodeValue());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+
+        Map<String, Double> averages = new HashMap<String, Double>();
+        NodeList legendChildren = legend.getChildNodes();
+        for (int col = 0; col < numColumns; col++) {
+            String[] fields = legendChildren.item(col).getFirstChild().getNodeValue().split(":");
+            if (!fields[1].equals(type) || (uuids != null && !uuids.contains(fields[2]))) {
+                continue;
+            }
+            double value = 0;
+            int numRowsUsed = 0;
+            for (int row = 0; row < numRows; row++) {
+                Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+                Double current = Double.valueOf(data.getFirstChild().getNodeValue());
+                if (!current.equals(Double.NaN)) {
+                    numRowsUsed += 1;
+                    value += current;
+                }
+            }
+            averages.put(fields[2] + ":" + fields[3], numRowsUsed == 0 ? value : value / numRowsUsed);
+        }
+        return averages;
+    }
+
+    static Map<String, Double> streamAverages(String xml, String type, Set<String> uuids) throws Exception {
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (Column column : RrdUpdatesParser.parse(new StringReader(xml), type, uuids).getColumns()) {
+            averages.put(column.getUuid() + ":" + column.getParam(), column.getAverage());
+        }
+        return averages;
+    }
+
+    public void testSameAveragesAsDom() throws Exception {
+        List<String> vms = uuids(40);
+        String xml = buildRrdUpdates("host-uuid", vms, 5, 1300000000, 1);
+
+        Set<String> requested = new HashSet<String>(vms.subList(10, 20));
+        requested.add("not-on-this-host");
+        Map<String, Double> dom = domAverages(xml, "vm", requested);
+        Map<String, Double> stream = streamAverages(xml, "vm", requested);
+        assertEquals(10 * VM_PARAMS.length, dom.size());
+        assertEquals(dom.keySet(), stream.keySet());
+        for (Map.Entry<String, Double> entry : dom.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), stream.get(entry.getKey()), 1e-9);
+        }
+
+        dom = domAverages(xml, "host", null);
+        stream = streamAverages(xml, "host", null);
+        assertEquals(HOST_PARAMS.length, stream.size());
+        for (Map.Entry<String, Double> entry : dom.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), stream.get(entry.getKey()), 1e-9);
+        }
+
+        RrdUpdates updates = RrdUpdatesParser.parse(new StringReader(xml), "vm", requested);
+        assertEquals(1300000000, updates.getEnd());
+        assertEquals(5, updates.getRows());
+    }
+
+    public void testNoNumbers() throws Exception {
+        String xml = "<xport><meta><start>0</start><step>60</step><end>120</end><rows>2</rows><columns>2</columns><legend>"
+            + "<entry>AVERAGE:vm:a:cpu0</entry><entry>AVERAGE:vm:a:vif_0_rx</entry></legend></meta>"
+            + "<data><row><t>120</t><v>NaN</v><v>Infinity</v></row><row><t>60</t><v>NaN</v><v>1.0</v></row></data></xport>";
+        RrdUpdates updates = RrdUpdatesParser.parse(new StringReader(xml), "vm", null);
+        assertEquals(2, updates.getColumns().size());
+        assertEquals(0.0, updates.getColumns().get(0).getAverage());
+        assertEquals(0.0, updates.getColumns().get(1).getAverage());
+    }
+
+    public void testFetchesOnlyNewRows() throws Exception {
+        final List<String> vms = uuids(4);
+        final long now = System.currentTimeMillis() / 1000;
+        final List<Long> starts = new ArrayList<Long>();
+        final int[] rows = { 2, 1, 0, 2 };
+
+        CitrixResourceBase resource = new CitrixResourceBase() {
+            @Override
+            protected String getVmStatsRawXML(Connection conn, long startTime) {
+                int fetch = starts.size();
+                starts.add(startTime);
+                return buildRrdUpdates("host-uuid", vms, rows[fetch], now - 10 + fetch, fetch);
+            }
+
+            @Override
+            protected String getHostStatsRawXML(Connection conn, long startTime) {
+                return buildRrdUpdates("host-uuid", vms, 1, now, 7);
+            }
+        };
+
+        HashMap<String, VmStatsEntry> stats = resource.getVmStats(null, null, vms.subList(0, 2), null);
+        assertEquals(2, stats.size());
+        assertTrue(stats.get(vms.get(0)).getNumCPUs() == 2);
+        assertEquals("the first fetch goes back the whole window", 0, (long) starts.get(0));
+
+        resource.getVmStats(null, null, vms.subList(0, 2), null);
+        assertEquals("only the rows after the last fetch are asked for", now - 10, (long) starts.get(1));
+
+        // nothing new yet, so the whole window is fetched again
+        stats = resource.getVmStats(null, null, vms.subList(0, 2), null);
+        assertEquals(4, starts.size());
+        assertEquals(now - 9, (long) starts.get(2));
+        assertEquals(0, (long) starts.get(3));
+        assertTrue(stats.get(vms.get(1)).getCPUUtilization() > 0);
+
+        HostStatsEntry host = resource.getHostStats(null, null, null, 1);
+        assertTrue(host.getTotalMemoryKBs() > 0);
+        assertTrue(host.getCpuUtilization() > 0);
+    }
+}
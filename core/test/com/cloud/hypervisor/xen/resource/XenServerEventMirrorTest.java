@@ -0,0 +1,186 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.Pair;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Host;
+import com.xensource.xenapi.Types.VmPowerState;
+import com.xensource.xenapi.VM;
+
+public class XenServerEventMirrorTest extends TestCase {
+    private FakeXapiConnection _xapi;
+    private XenServerEventMirror _mirror;
+    private String[] _hostRefs;
+
+    private FakeXapiConnection createPool() throws Exception {
+        FakeXapiConnection xapi = new FakeXapiConnection();
+        _hostRefs = new String[4];
+        for (int i = 0; i < _hostRefs.length; i++) {
+            _hostRefs[i] = xapi.addHost("host-" + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            xapi.addVm("i-2-" + i + "-VM", "Running", _hostRefs[i % _hostRefs.length]);
+        }
+        xapi.addVm("halted", "Halted", null);
+        String dom0 = xapi.addVm("Control domain on host: host-0", "Running", _hostRefs[0]);
+        xapi.getVm(dom0).put("is_control_domain", true);
+        String template = xapi.addVm("CentOS 5.3", "Halted", null);
+        xapi.getVm(template).put("is_a_template", true);
+        return xapi;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        _xapi = createPool();
+        _mirror = new XenServerEventMirror("pool-host-0") {
+            @Override
+            protected Connection connect() {
+                return _xapi;
+            }
+        };
+        _mirror._retryInterval = 100;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _mirror.stop();
+    }
+
+    private void waitFor(long events, long loads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (_mirror.isSynced() && _mirror.getEventCount() >= events && _mirror.getLoadCount() >= loads) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Mirror did not catch up: synced=" + _mirror.isSynced() + " events=" + _mirror.getEventCount() + " loads=" + _mirror.getLoadCount());
+    }
+
+    public void testLoadAndFollowEvents() throws Exception {
+        _mirror.start();
+        waitFor(0, 1);
+
+        Map<String, Pair<String, VmPowerState>> states = _mirror.getVmStates();
+        assertEquals("dom0 and templates are not vms", 201, states.size());
+        assertEquals("host-1", states.get("i-2-1-VM").first());
+        assertEquals(VmPowerState.RUNNING, states.get("i-2-1-VM").second());
+        assertNull(states.get("halted").first());
+        assertEquals("host-0", _mirror.getMasterUuid());
+
+        _xapi.updateVm("OpaqueRef:vm-i-2-1-VM", "Halted", null, true);
+        _xapi.updateVm("OpaqueRef:vm-i-2-2-VM", "Running", _hostRefs[3], false);
+        _xapi.createVm("i-2-500-VM", "Running", _hostRefs[0]);
+        _xapi.destroyVm("OpaqueRef:vm-i-2-3-VM");
+        _xapi.switchMaster(_hostRefs[2]);
+        waitFor(5, 1);
+
+        states = _mirror.getVmStates();
+        assertEquals(201, states.size());
+        assertEquals(VmPowerState.HALTED, states.get("i-2-1-VM").second());
+        assertNull(states.get("i-2-1-VM").first());
+        assertEquals("an event without a snapshot is looked up", "host-3", states.get("i-2-2-VM").first());
+        assertEquals("host-0", states.get("i-2-500-VM").first());
+        assertFalse(states.containsKey("i-2-3-VM"));
+        assertEquals("host-2", _mirror.getMasterUuid());
+        assertEquals(1, _xapi.getCalls("VM.get_record"));
+        assertEquals(1, _xapi.getCalls("VM.get_all_records"));
+
+        Map<String, String> uuids = _mirror.getVmUuids(new HashSet<String>(Arrays.asList("i-2-5-VM", "i-2-3-VM")));
+        assertEquals(1, uuids.size());
+        assertEquals("uuid-i-2-5-VM", uuids.get("i-2-5-VM"));
+    }
+
+    public void testReloadWhenEventsAreLost() throws Exception {
+        _mirror.start();
+        waitFor(0, 1);
+
+        // a change the mirror never hears about, then the queue overflows
+        _xapi.getVm("OpaqueRef:vm-i-2-7-VM").put("power_state", "Paused");
+        _xapi.loseEvents();
+        waitFor(0, 2);
+
+        assertEquals(VmPowerState.PAUSED, _mirror.getVmStates().get("i-2-7-VM").second());
+        assertEquals(2, _xapi.getCalls("event.register"));
+    }
+
+    public void testQuietPoolKeepsMirror() throws Exception {
+        _mirror.start();
+        waitFor(0, 1);
+        Thread.sleep(350);
+        assertTrue(_mirror.isSynced());
+        assertEquals(1, _mirror.getLoadCount());
+        assertTrue("quiet polls are checked with event.get_current_id", _xapi.getCalls("event.get_current_id") >= 2);
+    }
+
+    public void testFewerCallsThanPolling() throws Exception {
+        int syncs = 100;
+        FakeXapiConnection polled = createPool();
+
+        // what getAllVms does for every delta sync
+        for (int i = 0; i < syncs; i++) {
+            HashMap<String, Pair<String, VmPowerState>> states = new HashMap<String, Pair<String, VmPowerState>>();
+            for (VM.Record record : VM.getAllRecords(polled).values()) {
+                if (record.isControlDomain || record.isASnapshot || record.isATemplate) {
+                    continue;
+                }
+                Host host = record.residentOn;
+                String hostUuid = host.toWireString().equals(FakeXapiConnection.NULL_REF) ? null : host.getUuid(polled);
+                states.put(record.nameLabel, new Pair<String, VmPowerState>(hostUuid, record.powerState));
+            }
+            polled.updateVm("OpaqueRef:vm-i-2-" + i + "-VM", "Halted", null, true);
+        }
+        int pollingCalls = polled.getTotalCalls();
+        int pollingRecords = polled.getRecordsSent();
+
+        _mirror.start();
+        waitFor(0, 1);
+        for (int i = 0; i < syncs; i++) {
+            _mirror.getVmStates();
+            _xapi.updateVm("OpaqueRef:vm-i-2-" + i + "-VM", "Halted", null, true);
+        }
+        waitFor(syncs, 1);
+        int mirrorCalls = _xapi.getTotalCalls();
+        int mirrorRecords = _xapi.getRecordsSent();
+
+        assertEquals(VmPowerState.HALTED, _mirror.getVmStates().get("i-2-99-VM").second());
+        assertTrue(mirrorCalls * 10 < pollingCalls);
+        assertTrue(mirrorRecords * 10 < pollingRecords);
+    }
+
+    public void testMirrorStopsWithPoolConnection() throws Exception {
+        XenServerConnectionPool pool = new XenServerConnectionPool();
+        _mirror.start();
+        waitFor(0, 1);
+        pool._mirrors.put("pool-host-0", _mirror);
+
+        pool.removeConnect("pool-host-0");
+        _mirror._thread.join(5000);
+        assertFalse("the mirror thread is gone", _mirror._thread.isAlive());
+        assertTrue(pool._mirrors.isEmpty());
+        assertFalse(_mirror.isSynced());
+    }
+}
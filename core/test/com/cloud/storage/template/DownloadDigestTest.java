@@ -0,0 +1,141 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class DownloadDigestTest extends TestCase {
+    private static final int PIECE = 256 * 1024;
+
+    private File _file;
+    private byte[] _data;
+
+    @Override
+    protected void setUp() throws Exception {
+        _file = File.createTempFile("dnld", "tmp_");
+        _data = new byte[64 * PIECE + 1234];
+        new Random(7).nextBytes(_data);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _file.delete();
+    }
+
+    private static String md5(byte[] data, int len) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(data, 0, len);
+        return String.format("%032x", new BigInteger(1, md5.digest()));
+    }
+
+    private void write(FileChannel channel, DownloadDigest digest, int offset) throws IOException {
+        int len = Math.min(PIECE, _data.length - offset);
+        ByteBuffer buffer = ByteBuffer.wrap(_data, offset, len);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        digest.written(offset, _data, offset, len);
+    }
+
+    public void testOutOfOrderRanges() throws Exception {
+        final FileChannel channel = new RandomAccessFile(_file, "rw").getChannel();
+        try {
+            final DownloadDigest digest = new DownloadDigest("MD5", channel, 0);
+            List<Integer> offsets = new ArrayList<Integer>();
+            for (int offset = 0; offset < _data.length; offset += PIECE) {
+                offsets.add(offset);
+            }
+            Collections.shuffle(offsets, new Random(11));
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Integer offset : offsets) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            write(channel, digest, offset);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(_data.length, digest.getPosition());
+            assertEquals(0, digest.getPending());
+            assertEquals(md5(_data, _data.length), digest.getHexDigest());
+        } finally {
+            channel.close();
+        }
+    }
+
+    public void testGapHoldsPosition() throws Exception {
+        FileChannel channel = new RandomAccessFile(_file, "rw").getChannel();
+        try {
+            DownloadDigest digest = new DownloadDigest("MD5", channel, 0);
+            write(channel, digest, 0);
+            write(channel, digest, 2 * PIECE);
+            write(channel, digest, 3 * PIECE);
+            assertEquals(PIECE, digest.getPosition());
+            assertEquals(2 * PIECE, digest.getPending());
+
+            write(channel, digest, PIECE);
+            assertEquals(4 * PIECE, digest.getPosition());
+            assertEquals(0, digest.getPending());
+        } finally {
+            channel.close();
+        }
+    }
+
+    public void testResume() throws Exception {
+        int existing = 10 * PIECE;
+        FileChannel channel = new RandomAccessFile(_file, "rw").getChannel();
+        try {
+            channel.write(ByteBuffer.wrap(_data, 0, existing), 0);
+            DownloadDigest digest = new DownloadDigest("MD5", channel, existing);
+            assertEquals(existing, digest.getPosition());
+            for (int offset = existing; offset < _data.length; offset += PIECE) {
+                write(channel, digest, offset);
+            }
+            assertEquals(md5(_data, _data.length), digest.getHexDigest());
+        } finally {
+            channel.close();
+        }
+    }
+}
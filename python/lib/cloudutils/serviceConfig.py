@@ -646,11 +646,11 @@ class sudoersConfig(serviceCfgBase):
 class firewallConfigServer(firewallConfigBase):
     def __init__(self, syscfg):
         super(firewallConfigServer, self).__init__(syscfg)
-        #9090 is used for cluster management server
+        #9090 is used for cluster management server, 9091 for its rpc channel (cluster.rpc.enabled)
         if self.syscfg.env.svrMode == "myCloud":
-            self.ports = "443 8080 8096 8250 8443 9090".split()
+            self.ports = "443 8080 8096 8250 8443 9090 9091".split()
         else:
-            self.ports = "8080 8096 8250 9090".split()
+            self.ports = "8080 8096 8250 9090 9091".split()
 
 class ubuntuFirewallConfigServer(firewallConfigServer):
     def allowPort(self, port):
@@ -24,7 +24,7 @@
 # createtmplt.sh -- install a template
 
 usage() {
-  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -s <size in Gigabytes> -c <md5 cksum> -d <descr> -h  [-u]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -s <size in Gigabytes> -c <md5 cksum> [-k] -d <descr> -h  [-u]\n" $(basename $0) >&2
 }
 
 
@@ -128,7 +128,7 @@ cleanup=false
 dflag=
 cflag=
 
-while getopts 'uht:n:f:s:c:d:' OPTION
+while getopts 'uht:n:f:s:c:d:k' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -154,6 +154,8 @@ do
 		;;
   u)	cleanup="true"
 		;;
+  k)	cksumverified="true"
+		;;
   ?)	usage
 		exit 2
 		;;
@@ -166,7 +168,7 @@ then
  exit 2
 fi
 
-if [ -n "$cksum" ]
+if [ -n "$cksum" ] && [ -z "$cksumverified" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
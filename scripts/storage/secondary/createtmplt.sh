@@ -24,7 +24,7 @@
 # createtmplt.sh -- install a template
 
 usage() {
-  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> [-k] -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
 }
 
 
@@ -133,7 +133,7 @@ cleanup=false
 dflag=
 cflag=
 
-while getopts 'vuht:n:f:s:c:d:S:' OPTION
+while getopts 'vuht:n:f:s:c:d:S:k' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -163,6 +163,8 @@ do
 		;;
   u)	cleanup="true"
 		;;
+  k)	cksumverified="true"
+		;;
   v)	verbose="true"
 		;;
   ?)	usage
@@ -185,7 +187,7 @@ then
   exit 3
 fi
 
-if [ -n "$cksum" ]
+if [ -n "$cksum" ] && [ -z "$cksumverified" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
@@ -10,6 +10,12 @@ logging.basicConfig(filename='/tmp/xapilog',level=logging.DEBUG)
                       
 def get_stats(session, collect_host_stats, consolidation_function, interval, start_time):
   try:
+    # the resource asks for the rows after its last fetch, but never for more than the last 100s.
+    # a start_time ahead of this host's clock cannot be one it reported, so it is ignored
+    now = int(time.time())
+    start = now-100
+    if start_time and int(start_time) <= now:
+      start = max(start, int(start_time))
     
     if collect_host_stats == "true" :
     	url = "http://localhost/rrd_updates?"
@@ -17,14 +23,14 @@ def get_stats(session, collect_host_stats, consolidation_function, interval, sta
    	url += "&host=" + collect_host_stats
     	url += "&cf=" + consolidation_function
     	url += "&interval=" + str(interval)
-    	url += "&start=" + str(int(time.time())-100)
+    	url += "&start=" + str(start)
     else :
     	url = "http://localhost/rrd_updates?"
    	url += "session_id=" + session._session
    	url += "&host=" + collect_host_stats
     	url += "&cf=" + consolidation_function
     	url += "&interval=" + str(interval)
-    	url += "&start=" + str(int(time.time())-100)
+    	url += "&start=" + str(start)
 
     logging.debug("Calling URL: %s",url)
     sock = urllib.URLopener().open(url)
@@ -19,18 +19,19 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
@@ -49,6 +50,7 @@ import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.storage.CreateCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
@@ -80,29 +82,22 @@ public abstract class AgentAttache {
         }
     };
 
-    protected static final Comparator<Object> s_seqComparator =
-        new Comparator<Object>() {
-        @Override
-        public int compare(Object o1, Object o2) {
-            long seq1 = ((Request) o1).getSequence();
-            long seq2 = (Long) o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    /**
+     * In-sequence requests waiting for the current one to be answered, keyed
+     * and ordered by sequence number.
+     */
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    /**
+     * Sequence of the in-sequence request that is outstanding on the agent;
+     * null if there's none.  Whoever manages to set it gets to send.
+     */
+    protected final AtomicReference<Long> _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
-    protected long                                    _nextSequence;
+    protected final AtomicLong _nextSequence;
+    protected volatile Version _wireVersion = Version.v1;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -119,15 +114,15 @@ public abstract class AgentAttache {
     protected AgentAttache(AgentManagerImpl agentMgr, final long id, boolean maintenance) {
         _id = id;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
-        _currentSequence = null;
+        _currentSequence = new AtomicReference<Long>();
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
-        _nextSequence = s_rand.nextInt(Short.MAX_VALUE) << 48;
+        _nextSequence = new AtomicLong(s_rand.nextInt(Short.MAX_VALUE) << 48);
     }
 
-    public synchronized long getNextSequence() {
-        return ++_nextSequence;
+    public long getNextSequence() {
+        return _nextSequence.incrementAndGet();
     }
 
     public synchronized void setMaintenanceMode(final boolean value) {
@@ -172,10 +167,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(Request req) {
+        Request old = _requests.put(req.getSequence(), req);
+        assert (old == null) : "How can we get the same sequence again? " + req.toString();
     }
 
 
@@ -184,7 +178,7 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
@@ -192,18 +186,18 @@ public abstract class AgentAttache {
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
+        _requests.remove(seq);
     }
 
-    protected synchronized int findRequest(Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
+    protected Request findRequest(long seq) {
+        return _requests.get(seq);
     }
 
-    protected synchronized int findRequest(long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    /**
+     * @return sequence of the in-sequence request outstanding on the agent or null if none.
+     */
+    public Long getCurrentSequence() {
+        return _currentSequence.get();
     }
 
 
@@ -261,7 +255,18 @@ public abstract class AgentAttache {
         return nonRecurringListenersList.size();
     }
 
+    /**
+     * Records which encoding the agent is able to parse.  Requests to the
+     * agent are sent in this version from then on.
+     */
+    public void setWireVersion(Version ver) {
+        if (ver != null) {
+            _wireVersion = ver;
+        }
+    }
+
     public boolean processAnswers(final long seq, final Response resp) {
+        setWireVersion(resp.getPeerVersion());
         resp.logD("Processing: ", true);
 
         final Answer[] answers = resp.getAnswers();
@@ -342,39 +347,29 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
 
-        synchronized(this) {
-            try {
-                if (isClosed()) {
-                    throw new AgentUnavailableException("The link to the agent has been closed", _id);
-                }
-
-                if (req.executeInSequence() && _currentSequence != null) {
-                    req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
-                    addRequest(req);
-                    return;
-                }
-
-                // If we got to here either we're not suppose to set
-                // the _currentSequence or it is null already.
-
-                req.logD("Sending ", true);
-                send(req);
+        try {
+            if (isClosed()) {
+                throw new AgentUnavailableException("The link to the agent has been closed", _id);
+            }
 
-                if (req.executeInSequence() && _currentSequence == null) {
-                    _currentSequence = seq;
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace(log(seq, " is current sequence"));
-                    }
+            if (req.executeInSequence()) {
+                addRequest(req);
+                if (!sendQueued(seq)) {
+                    req.logD("Waiting for Seq " + _currentSequence.get() + " Scheduling: ", true);
                 }
-            } catch (AgentUnavailableException e) {
-                s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
-                cancel(seq);
-                throw e;
-            } catch (Exception e) {
-                s_logger.warn(log(seq, "Unable to send due to "), e);
-                cancel(seq);
-                throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+                return;
             }
+
+            req.logD("Sending ", true);
+            send(req);
+        } catch (AgentUnavailableException e) {
+            s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
+            cancel(seq);
+            throw e;
+        } catch (Exception e) {
+            s_logger.warn(log(seq, "Unable to send due to "), e);
+            cancel(seq);
+            throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
         }
     }
 
@@ -409,7 +404,7 @@ public abstract class AgentAttache {
                     return answers;
                 }
 
-                final Long current = _currentSequence;
+                final Long current = _currentSequence.get();
                 if (current != null && seq != current) {
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug(log(seq, "Waited too long."));
@@ -427,7 +422,7 @@ public abstract class AgentAttache {
         } catch (OperationTimedoutException e) {
             s_logger.warn(log(seq, "Timed out on " + req.toString()));
             cancel(seq);
-            final Long current = _currentSequence;
+            final Long current = _currentSequence.get();
             if (req.executeInSequence() && (current != null && current == seq)) {
                 sendNext(seq);
             }
@@ -435,7 +430,7 @@ public abstract class AgentAttache {
         } catch (Exception e) {
             s_logger.warn(log(seq, "Exception while waiting for answer"), e);
             cancel(seq);
-            final Long current = _currentSequence;
+            final Long current = _currentSequence.get();
             if (req.executeInSequence() && (current != null && current == seq)) {
                 sendNext(seq);
             }
@@ -445,28 +440,69 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void sendNext(final long seq) {
-        _currentSequence = null;
-        if (_requests.isEmpty()) {
-            if (s_logger.isDebugEnabled()) {
+    protected void sendNext(final long seq) {
+        _currentSequence.set(null);
+        try {
+            if (!sendQueued(-1) && _requests.isEmpty() && s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
-            return;
+        } catch (AgentUnavailableException e) {
+            // Only thrown for the sequence passed in.
         }
+    }
+
+    /**
+     * Sends the first queued in-sequence request if no other in-sequence
+     * request is outstanding.  Callers first queue their request and then
+     * call this, and sendNext() clears the current sequence before calling
+     * this, so a request can never be left in the queue with nobody to send it.
+     *
+     * @param seq sequence of the caller's own request.
+     * @return true if seq was sent.
+     * @throws AgentUnavailableException if seq was picked up but could not be sent.
+     */
+    protected boolean sendQueued(final long seq) throws AgentUnavailableException {
+        AgentUnavailableException failure = null;
+        boolean sent = false;
+        while (_currentSequence.get() == null) {
+            Map.Entry<Long, Request> first = _requests.firstEntry();
+            if (first == null) {
+                break;
+            }
+            Long next = first.getKey();
+            if (!_currentSequence.compareAndSet(null, next)) {
+                break;
+            }
+            Request req = _requests.remove(next);
+            if (req == null) {
+                // Cancelled in the meantime.
+                _currentSequence.compareAndSet(next, null);
+                continue;
+            }
 
-        Request req = _requests.pop();
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
-        }
-        try {
-            send(req);
-        } catch (AgentUnavailableException e) {
             if (s_logger.isDebugEnabled()) {
-                s_logger.debug(log(req.getSequence(), "Unable to send the next sequence"));
+                s_logger.debug(log(next, "Sending now.  is current sequence."));
+            }
+            try {
+                send(req);
+                sent |= (next == seq);
+            } catch (Exception e) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(log(next, "Unable to send the next sequence"));
+                }
+                _currentSequence.compareAndSet(next, null);
+                if (next == seq) {
+                    failure = e instanceof AgentUnavailableException ? (AgentUnavailableException)e : new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+                } else {
+                    cancel(next);
+                }
             }
-            cancel(req.getSequence());
         }
-        _currentSequence = req.getSequence();
+
+        if (failure != null) {
+            throw failure;
+        }
+        return sent;
     }
 
     public void process(Answer[] answers) {
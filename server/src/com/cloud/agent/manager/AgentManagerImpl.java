@@ -221,6 +221,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     protected AgentMonitor _monitor = null;
 
     protected ExecutorService _executor;
+    protected DirectAgentScheduler _directAgentScheduler;
     
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
     
@@ -261,6 +262,11 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         value = configs.get(Config.DirectAgentLoadSize.key());
         int threads = NumbersUtil.parseInt(value, 16);
 
+        int directAgentPoolSize = NumbersUtil.parseInt(configs.get(Config.DirectAgentPoolSize.key()), 100);
+        int directAgentPerHostLimit = NumbersUtil.parseInt(configs.get(Config.DirectAgentPerHostLimit.key()), 8);
+        int directAgentPingPoolSize = NumbersUtil.parseInt(configs.get(Config.DirectAgentPingPoolSize.key()), 20);
+        _directAgentScheduler = new DirectAgentScheduler(directAgentPoolSize, directAgentPerHostLimit, directAgentPingPoolSize);
+
         _instance = configs.get("instance.name");
         if (_instance == null) {
             _instance = "DEFAULT";
@@ -453,6 +459,10 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         return _pingInterval;
     }
 
+    public DirectAgentScheduler getDirectAgentScheduler() {
+        return _directAgentScheduler;
+    }
+
     @Override
     public Answer send(Long hostId, Command cmd) throws AgentUnavailableException, OperationTimedoutException {
         Commands cmds = new Commands(OnError.Stop);
@@ -806,6 +816,9 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                 }
             }
         }
+        if (_directAgentScheduler != null) {
+            _directAgentScheduler.shutdown();
+        }
         return true;
     }
 
@@ -925,12 +938,13 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         }
         
         handleDisconnectWithoutInvestigation(attache, event);
-        /*TODO: call HA manager in monitors
-         *         host = _hostDao.findById(host.getId());
-        if (!event.equals(Event.PrepareUnmanaged) && !event.equals(Event.HypervisorVersionChanged) && (host.getStatus() == Status.Alert || host.getStatus() == Status.Down)) {
-            _haMgr.scheduleRestartForVmsOnHost(host, investigate);
+        if (event == Status.Event.HostDown) {
+            // only once, when the host is found to be down, not on every ping missed afterwards
+            host = _hostDao.findById(hostId);
+            if (host != null && (host.getStatus() == Status.Alert || host.getStatus() == Status.Down)) {
+                _haMgr.scheduleRestartForVmsOnHost(host, true);
+            }
         }
-         * */
         return true;
     }
 
@@ -1212,6 +1226,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                     return;
                 }
             }
+            attache.setWireVersion(request.getPeerVersion());
 
             final long hostId = attache.getId();
 
@@ -22,6 +22,7 @@ import com.cloud.agent.AgentManager;
 import com.cloud.agent.Listener;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
@@ -132,6 +133,11 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
         
         long seq = req.getSequence();
 
+        // The peer relays the bytes to the agent and the answer back to us as
+        // they are, and it may not be able to parse v4.
+        req.setVersion(Version.v1);
+        req.setAdvertisedVersion(Version.v1);
+
         if (listener != null) {
             registerListener(req.getSequence(), listener);
         }
@@ -389,6 +389,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         CancelCommand cancel = new CancelCommand(sequence, reason);
         Request req = new Request(hostId, _nodeId, cancel, true);
         req.setControl(true);
+        req.setAdvertisedVersion(Version.v1);
         routeToPeer(peerName, req.getBytes());
     }
 
@@ -536,7 +537,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -35,7 +35,7 @@ import com.cloud.utils.nio.Link;
 public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
-    protected Link _link;
+    protected volatile Link _link;
 
     public ConnectedAgentAttache(AgentManagerImpl agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
@@ -43,16 +43,21 @@ public class ConnectedAgentAttache extends AgentAttache {
     }
 
     @Override
-    public synchronized void send(Request req) throws AgentUnavailableException {
+    public void send(Request req) throws AgentUnavailableException {
+        Link link = _link;
+        if (link == null) {
+            throw new AgentUnavailableException("The link to the agent has been closed", _id);
+        }
         try {
-            _link.send(req.toBytes());
+            req.setVersion(_wireVersion);
+            link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
     }
 
     @Override
-    public synchronized boolean isClosed() {
+    public boolean isClosed() {
         return _link == null;
     }
 
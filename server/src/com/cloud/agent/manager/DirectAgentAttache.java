@@ -19,10 +19,7 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -32,27 +29,29 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.StartupAnswer;
+import com.cloud.agent.manager.DirectAgentScheduler.HostQueue;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.host.Status.Event;
 import com.cloud.resource.ServerResource;
-import com.cloud.utils.concurrency.NamedThreadFactory;
 
 public class DirectAgentAttache extends AgentAttache {
     private final static Logger s_logger = Logger.getLogger(DirectAgentAttache.class);
 
     ServerResource _resource;
-    static ScheduledExecutorService s_executor = new ScheduledThreadPoolExecutor(500, new NamedThreadFactory("DirectAgent"));
     List<ScheduledFuture<?>> _futures = new ArrayList<ScheduledFuture<?>>();
     AgentManagerImpl _mgr;
+    // bound once so that work sent after a disconnect cannot bring the host's queue back
+    final HostQueue _queue;
     long _seq = 0;
 
     public DirectAgentAttache(AgentManagerImpl agentMgr, long id, ServerResource resource, boolean maintenance, AgentManagerImpl mgr) {
         super(agentMgr, id, maintenance);
         _resource = resource;
         _mgr = mgr;
+        _queue = mgr.getDirectAgentScheduler().getQueue(id);
     }
 
     @Override
@@ -64,6 +63,7 @@ public class DirectAgentAttache extends AgentAttache {
         for (ScheduledFuture<?> future : _futures) {
             future.cancel(false);
         }
+        _mgr.getDirectAgentScheduler().forget(_queue);
 
         synchronized(this) {
             if( _resource != null ) {
@@ -95,15 +95,15 @@ public class DirectAgentAttache extends AgentAttache {
             if (answers != null && answers[0] instanceof StartupAnswer) {
                 StartupAnswer startup = (StartupAnswer)answers[0];
                 int interval = startup.getPingInterval();
-                _futures.add(s_executor.scheduleAtFixedRate(new PingTask(), interval, interval, TimeUnit.SECONDS));
+                _futures.add(_mgr.getDirectAgentScheduler().schedulePing(_queue, new PingTask(), interval));
             }
         } else {
             Command[] cmds = req.getCommands();
             if (cmds.length > 0 && !(cmds[0] instanceof CronCommand)) {
-                s_executor.execute(new Task(req));
+                _queue.add(new Task(req));
             } else {
                 CronCommand cmd = (CronCommand)cmds[0];
-                _futures.add(s_executor.scheduleAtFixedRate(new Task(req), cmd.getInterval(), cmd.getInterval(), TimeUnit.SECONDS));
+                _futures.add(_mgr.getDirectAgentScheduler().scheduleAtFixedRate(_queue, new Task(req), cmd.getInterval()));
             }
         }
     }
@@ -114,7 +114,7 @@ public class DirectAgentAttache extends AgentAttache {
             StartupAnswer startup = (StartupAnswer)answers[0];
             int interval = startup.getPingInterval();
             s_logger.info("StartupAnswer received " + startup.getHostId() + " Interval = " + interval );
-            _futures.add(s_executor.scheduleAtFixedRate(new PingTask(), interval, interval, TimeUnit.SECONDS));
+            _futures.add(_mgr.getDirectAgentScheduler().schedulePing(_queue, new PingTask(), interval));
         }
     }
 
@@ -0,0 +1,68 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.manager;
+
+import javax.management.StandardMBean;
+
+import com.cloud.agent.manager.DirectAgentScheduler.HostQueue;
+
+public class DirectAgentMBeanImpl extends StandardMBean implements DirectAgentMBean {
+	private HostQueue _queue;
+
+	public DirectAgentMBeanImpl(HostQueue queue) {
+		super(DirectAgentMBean.class, false);
+
+		_queue = queue;
+	}
+
+	public long getHostId() {
+		return _queue.getHostId();
+	}
+
+	public int getQueueDepth() {
+		return _queue.getQueueDepth();
+	}
+
+	public int getRunningCount() {
+		return _queue.getRunningCount();
+	}
+
+	public long getCompletedCount() {
+		return _queue.getCompletedCount();
+	}
+
+	public long getAverageWaitMillis() {
+		return _queue.getAverageWaitMillis();
+	}
+
+	public long getMaxWaitMillis() {
+		return _queue.getMaxWaitMillis();
+	}
+
+	public long getLastWaitMillis() {
+		return _queue.getLastWaitMillis();
+	}
+
+	public long getSkippedPingCount() {
+		return _queue.getSkippedPingCount();
+	}
+
+	public boolean isPinging() {
+		return _queue.isPinging();
+	}
+}
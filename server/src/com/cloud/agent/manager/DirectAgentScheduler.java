@@ -0,0 +1,328 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.manager;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * DirectAgentScheduler runs the work for direct-connected hosts, which is
+ * mostly blocking calls into XenAPI or vSphere.
+ *
+ *   - Each host has its own queue and can have at most perHostLimit commands
+ *     running at once, so a slow host only backs up its own queue.
+ *   - Hosts take turns on the shared worker threads: after a command
+ *     finishes, its host goes to the back of the line.  The number of worker
+ *     threads is the global cap and idle workers go away.
+ *   - Pings run on their own threads and at most one ping per host is
+ *     outstanding, so long commands can't delay pings and a stuck host can't
+ *     pile them up.
+ *   - A command queued for a host from one of that host's own commands runs
+ *     right away on the same thread.  Queuing it could leave every running
+ *     command of the host waiting on one that can never start.
+ */
+public class DirectAgentScheduler {
+    private static final Logger s_logger = Logger.getLogger(DirectAgentScheduler.class);
+
+    protected final int _perHostLimit;
+    protected final ThreadPoolExecutor _workers;
+    protected final ThreadPoolExecutor _pingers;
+    protected final ScheduledExecutorService _timer;
+    protected final ConcurrentHashMap<Long, HostQueue> _hosts = new ConcurrentHashMap<Long, HostQueue>();
+    // the host queue whose command the current worker thread is running
+    protected static final ThreadLocal<HostQueue> s_current = new ThreadLocal<HostQueue>();
+    protected boolean _jmx = true;
+
+    /**
+     * @param poolSize maximum number of threads running commands for all hosts.
+     * @param perHostLimit maximum number of commands running for one host.
+     * @param pingPoolSize maximum number of threads running pings.
+     */
+    public DirectAgentScheduler(int poolSize, int perHostLimit, int pingPoolSize) {
+        _perHostLimit = perHostLimit;
+        _workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("DirectAgent"));
+        _workers.allowCoreThreadTimeOut(true);
+        _pingers = new ThreadPoolExecutor(pingPoolSize, pingPoolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("DirectAgentPing"));
+        _pingers.allowCoreThreadTimeOut(true);
+        _timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("DirectAgentTimer"));
+    }
+
+    public void setJmxEnabled(boolean enabled) {
+        _jmx = enabled;
+    }
+
+    /**
+     * Queues a command for the host.
+     */
+    public void execute(long hostId, Runnable task) {
+        getQueue(hostId).add(task);
+    }
+
+    /**
+     * Queues the command on the host queue every interval seconds, until the
+     * queue is forgotten.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(final HostQueue queue, final Runnable task, long interval) {
+        return _timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (!queue.isForgotten()) {
+                    queue.add(task);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs the ping for the host queue every interval seconds, until the
+     * queue is forgotten.  A ping is skipped if the previous one for the same
+     * host hasn't finished yet.
+     */
+    public ScheduledFuture<?> schedulePing(final HostQueue queue, final Runnable ping, long interval) {
+        return _timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (!queue.isForgotten()) {
+                    queue.ping(ping);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Drops the bookkeeping for the host queue.  Work already queued, or
+     * added later through the same queue, still runs, but getQueue() hands
+     * out a new queue for the host.
+     */
+    public void forget(HostQueue queue) {
+        queue._forgotten = true;
+        long hostId = queue.getHostId();
+        if (_hosts.remove(hostId, queue) && _jmx) {
+            try {
+                JmxUtil.unregisterMBean("DirectAgent", "Host " + hostId);
+            } catch (Exception e) {
+                s_logger.debug("Unable to unregister the MBean for host " + hostId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public HostQueue getQueue(long hostId) {
+        HostQueue queue = _hosts.get(hostId);
+        if (queue == null) {
+            queue = new HostQueue(hostId);
+            HostQueue old = _hosts.putIfAbsent(hostId, queue);
+            if (old != null) {
+                return old;
+            }
+            if (_jmx) {
+                try {
+                    JmxUtil.registerMBean("DirectAgent", "Host " + hostId, new DirectAgentMBeanImpl(queue));
+                } catch (Exception e) {
+                    s_logger.warn("Unable to register the MBean for host " + hostId, e);
+                }
+            }
+        }
+        return queue;
+    }
+
+    public int getActiveCount() {
+        return _workers.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return _workers.getPoolSize();
+    }
+
+    public void shutdown() {
+        _timer.shutdownNow();
+        _pingers.shutdownNow();
+        _workers.shutdownNow();
+    }
+
+    protected static class Work {
+        final Runnable _task;
+        final long _queued;
+
+        public Work(Runnable task) {
+            _task = task;
+            _queued = System.currentTimeMillis();
+        }
+    }
+
+    public class HostQueue {
+        final long _hostId;
+        final LinkedList<Work> _pending = new LinkedList<Work>();
+        int _running = 0;
+        final AtomicBoolean _pinging = new AtomicBoolean(false);
+
+        final AtomicLong _completed = new AtomicLong();
+        final AtomicLong _totalWait = new AtomicLong();
+        volatile long _maxWait = 0;
+        volatile long _lastWait = 0;
+        final AtomicLong _skippedPings = new AtomicLong();
+        volatile boolean _forgotten = false;
+
+        public HostQueue(long hostId) {
+            _hostId = hostId;
+        }
+
+        public void add(Runnable task) {
+            if (s_current.get() == this) {
+                // sent from one of this host's own commands; it may be waiting
+                // for the answer while holding one of the host's slots
+                task.run();
+                return;
+            }
+
+            boolean dispatch = false;
+            synchronized (this) {
+                _pending.add(new Work(task));
+                if (_running < _perHostLimit) {
+                    _running++;
+                    dispatch = true;
+                }
+            }
+            if (dispatch) {
+                _workers.execute(new Turn());
+            }
+        }
+
+        public void ping(final Runnable ping) {
+            if (!_pinging.compareAndSet(false, true)) {
+                _skippedPings.incrementAndGet();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Skipping ping for " + _hostId + " because the last one is still running");
+                }
+                return;
+            }
+            try {
+                _pingers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ping.run();
+                        } finally {
+                            _pinging.set(false);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                _pinging.set(false);
+                throw e;
+            }
+        }
+
+        /**
+         * One turn of this host on a worker thread: runs one command and then
+         * gets back in line if there's more.
+         */
+        protected class Turn implements Runnable {
+            @Override
+            public void run() {
+                Work work;
+                synchronized (HostQueue.this) {
+                    work = _pending.poll();
+                    if (work == null) {
+                        _running--;
+                        return;
+                    }
+                }
+
+                long wait = System.currentTimeMillis() - work._queued;
+                _lastWait = wait;
+                if (wait > _maxWait) {
+                    _maxWait = wait;
+                }
+                _totalWait.addAndGet(wait);
+                s_current.set(HostQueue.this);
+                try {
+                    work._task.run();
+                } catch (Throwable th) {
+                    s_logger.warn("Caught exception while executing for " + _hostId, th);
+                } finally {
+                    s_current.remove();
+                    _completed.incrementAndGet();
+                    boolean more;
+                    synchronized (HostQueue.this) {
+                        more = !_pending.isEmpty();
+                        if (!more) {
+                            _running--;
+                        }
+                    }
+                    if (more) {
+                        _workers.execute(this);
+                    }
+                }
+            }
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public synchronized int getQueueDepth() {
+            return _pending.size();
+        }
+
+        public synchronized int getRunningCount() {
+            return _running;
+        }
+
+        public long getCompletedCount() {
+            return _completed.get();
+        }
+
+        public long getAverageWaitMillis() {
+            long completed = _completed.get();
+            return completed == 0 ? 0 : _totalWait.get() / completed;
+        }
+
+        public long getMaxWaitMillis() {
+            return _maxWait;
+        }
+
+        public long getLastWaitMillis() {
+            return _lastWait;
+        }
+
+        public long getSkippedPingCount() {
+            return _skippedPings.get();
+        }
+
+        public boolean isPinging() {
+            return _pinging.get();
+        }
+
+        public boolean isForgotten() {
+            return _forgotten;
+        }
+    }
+}
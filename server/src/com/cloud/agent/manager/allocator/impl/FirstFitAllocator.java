@@ -19,8 +19,10 @@ package com.cloud.agent.manager.allocator.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -28,6 +30,7 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.deploy.DeploymentPlan;
@@ -158,6 +161,35 @@ public class FirstFitAllocator implements HostAllocator {
             
         }
 
+        // check the hosts the capacity index has room on first, hosts it has not loaded yet included; the
+        // others are only checked if none of those will do, as capacity may have been freed on them
+        // by another management server since the index was reconciled
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        if (capacityIndex != null && clusterId != null && considerReservedCapacity && !clusterHosts.isEmpty()) {
+            int cpu_requested = offering.getCpu() * offering.getSpeed();
+            long ram_requested = offering.getRamSize() * 1024L * 1024L;
+            Set<Long> hostsWithCapacity = new HashSet<Long>(capacityIndex.listHostsWithCapacity(clusterId, cpu_requested, ram_requested, _factor));
+            List<HostVO> candidates = new ArrayList<HostVO>(clusterHosts.size());
+            List<HostVO> others = new ArrayList<HostVO>();
+            for (HostVO host : clusterHosts) {
+                if (hostsWithCapacity.contains(host.getId()) || capacityIndex.getHost(host.getId()) == null) {
+                    candidates.add(host);
+                } else {
+                    others.add(host);
+                }
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Capacity index shows " + candidates.size() + " of " + clusterHosts.size() + " hosts with enough capacity");
+            }
+            if (!others.isEmpty()) {
+                List<Host> suitableHosts = allocateTo(offering, template, avoid, candidates, returnUpTo, considerReservedCapacity);
+                if (!suitableHosts.isEmpty()) {
+                    return suitableHosts;
+                }
+                clusterHosts = others;
+            }
+        }
+
         return allocateTo(offering, template, avoid, clusterHosts, returnUpTo, considerReservedCapacity);
     }
 
@@ -115,6 +115,7 @@ import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.EntityLookup;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.InstanceGroupVO;
@@ -667,4 +668,48 @@ public class ApiDBUtils {
     public static long getProjectOwnwerId(long projectId) {
         return _projectMgr.getProjectOwner(projectId).getId();
     }
+    
+    // ///////////////////////////////////////////////////////////
+    // Bulk lookups //
+    // ///////////////////////////////////////////////////////////
+
+    public static EntityLookup<AccountVO, Long> lookupAccountsIncludingRemoved() {
+        return new EntityLookup<AccountVO, Long>(_accountDao, true);
+    }
+
+    public static EntityLookup<DomainVO, Long> lookupDomainsIncludingRemoved() {
+        return new EntityLookup<DomainVO, Long>(_domainDao, true);
+    }
+
+    public static EntityLookup<DataCenterVO, Long> lookupZones() {
+        return new EntityLookup<DataCenterVO, Long>(_zoneDao, false);
+    }
+
+    public static EntityLookup<UserVO, Long> lookupUsers() {
+        return new EntityLookup<UserVO, Long>(_userDao, false);
+    }
+
+    public static EntityLookup<VMInstanceVO, Long> lookupVMInstances() {
+        return new EntityLookup<VMInstanceVO, Long>(_vmDao, false);
+    }
+
+    public static EntityLookup<UserVmVO, Long> lookupUserVms() {
+        return new EntityLookup<UserVmVO, Long>(_userVmDao, false);
+    }
+
+    public static EntityLookup<VlanVO, Long> lookupVlans() {
+        return new EntityLookup<VlanVO, Long>(_vlanDao, false);
+    }
+
+    public static EntityLookup<DiskOfferingVO, Long> lookupDiskOfferingsIncludingRemoved() {
+        return new EntityLookup<DiskOfferingVO, Long>(_diskOfferingDao, true);
+    }
+
+    public static EntityLookup<StoragePoolVO, Long> lookupStoragePoolsIncludingRemoved() {
+        return new EntityLookup<StoragePoolVO, Long>(_storagePoolDao, true);
+    }
+
+    public static EntityLookup<VMTemplateVO, Long> lookupTemplatesIncludingRemoved() {
+        return new EntityLookup<VMTemplateVO, Long>(_templateDao, true);
+    }
 }
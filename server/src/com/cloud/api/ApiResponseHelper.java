@@ -107,6 +107,7 @@ import com.cloud.dc.Vlan;
 import com.cloud.dc.Vlan.VlanType;
 import com.cloud.dc.VlanVO;
 import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
 import com.cloud.event.Event;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.host.Host;
@@ -161,6 +162,7 @@ import com.cloud.storage.snapshot.SnapshotPolicy;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.test.PodZoneConfig;
 import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
 import com.cloud.user.User;
 import com.cloud.user.UserAccount;
 import com.cloud.user.UserContext;
@@ -168,10 +170,12 @@ import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.UserVO;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.StringUtils;
+import com.cloud.utils.db.EntityLookup;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.InstanceGroup;
 import com.cloud.vm.NicProfile;
+import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -649,7 +653,28 @@ public class ApiResponseHelper implements ResponseGenerator {
 
     @Override
     public IPAddressResponse createIPAddressResponse(IpAddress ipAddress) {
-        VlanVO vlan = ApiDBUtils.findVlanById(ipAddress.getVlanId());
+        return createIPAddressResponse(ipAddress, new ResponseLookups());
+    }
+
+    @Override
+    public List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses) {
+        ResponseLookups lookups = new ResponseLookups();
+        for (IpAddress ipAddress : ipAddresses) {
+            lookups.vlans.add(ipAddress.getVlanId());
+            lookups.zones.add(ipAddress.getDataCenterId());
+            lookups.addOwner(ipAddress);
+            lookups.userVms.add(ipAddress.getAssociatedWithVmId());
+        }
+
+        List<IPAddressResponse> responses = new ArrayList<IPAddressResponse>(ipAddresses.size());
+        for (IpAddress ipAddress : ipAddresses) {
+            responses.add(createIPAddressResponse(ipAddress, lookups));
+        }
+        return responses;
+    }
+
+    protected IPAddressResponse createIPAddressResponse(IpAddress ipAddress, ResponseLookups lookups) {
+        VlanVO vlan = lookups.vlans.find(ipAddress.getVlanId());
         boolean forVirtualNetworks = vlan.getVlanType().equals(VlanType.VirtualNetwork);
         long zoneId = ipAddress.getDataCenterId();
 
@@ -660,17 +685,17 @@ public class ApiResponseHelper implements ResponseGenerator {
             ipResponse.setAllocated(ipAddress.getAllocatedTime());
         }
         ipResponse.setZoneId(zoneId);
-        ipResponse.setZoneName(ApiDBUtils.findZoneById(ipAddress.getDataCenterId()).getName());
+        ipResponse.setZoneName(lookups.zones.find(ipAddress.getDataCenterId()).getName());
         ipResponse.setSourceNat(ipAddress.isSourceNat());
 
         // get account information
-        populateOwner(ipResponse, ipAddress);
+        populateOwner(ipResponse, ipAddress, lookups);
 
         ipResponse.setForVirtualNetwork(forVirtualNetworks);
         ipResponse.setStaticNat(ipAddress.isOneToOneNat());
 
         if (ipAddress.getAssociatedWithVmId() != null) {
-            UserVm vm = ApiDBUtils.findUserVmById(ipAddress.getAssociatedWithVmId());
+            UserVm vm = lookups.userVms.find(ipAddress.getAssociatedWithVmId());
             ipResponse.setVirtualMachineId(vm.getId());
             ipResponse.setVirtualMachineName(vm.getHostName());
             ipResponse.setVirtualMachineDisplayName(vm.getDisplayName());
@@ -702,7 +727,7 @@ public class ApiResponseHelper implements ResponseGenerator {
         Account account = UserContext.current().getCaller();
         if ((account == null) || account.getType() == Account.ACCOUNT_TYPE_ADMIN) {
             ipResponse.setVlanId(ipAddress.getVlanId());
-            ipResponse.setVlanName(ApiDBUtils.findVlanById(ipAddress.getVlanId()).getVlanTag());
+            ipResponse.setVlanName(vlan.getVlanTag());
         }
         ipResponse.setObjectName("ipaddress");
         return ipResponse;
@@ -876,6 +901,32 @@ public class ApiResponseHelper implements ResponseGenerator {
     
     @Override
     public VolumeResponse createVolumeResponse(Volume volume) {
+        return createVolumeResponse(volume, new ResponseLookups());
+    }
+
+    @Override
+    public List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes) {
+        ResponseLookups lookups = new ResponseLookups();
+        for (Volume volume : volumes) {
+            lookups.zones.add(volume.getDataCenterId());
+            lookups.addOwner(volume);
+            if (volume.getState() != Volume.State.Destroy) {
+                lookups.vmInstances.add(volume.getInstanceId());
+                lookups.userVms.add(volume.getInstanceId());
+            }
+            lookups.diskOfferings.add(volume.getDiskOfferingId());
+            lookups.storagePools.add(volume.getPoolId());
+            lookups.templates.add(volume.getTemplateId());
+        }
+
+        List<VolumeResponse> responses = new ArrayList<VolumeResponse>(volumes.size());
+        for (Volume volume : volumes) {
+            responses.add(createVolumeResponse(volume, lookups));
+        }
+        return responses;
+    }
+
+    protected VolumeResponse createVolumeResponse(Volume volume, ResponseLookups lookups) {
         VolumeResponse volResponse = new VolumeResponse();
         volResponse.setId(volume.getId());
 
@@ -886,18 +937,18 @@ public class ApiResponseHelper implements ResponseGenerator {
         }
 
         volResponse.setZoneId(volume.getDataCenterId());
-        volResponse.setZoneName(ApiDBUtils.findZoneById(volume.getDataCenterId()).getName());
+        volResponse.setZoneName(lookups.zones.find(volume.getDataCenterId()).getName());
 
         volResponse.setVolumeType(volume.getVolumeType().toString());
         volResponse.setDeviceId(volume.getDeviceId());
 
         Long instanceId = volume.getInstanceId();
         if (instanceId != null && volume.getState() != Volume.State.Destroy) {
-            VMInstanceVO vm = ApiDBUtils.findVMInstanceById(instanceId);
+            VMInstanceVO vm = lookups.vmInstances.find(instanceId);
             if(vm != null){
             	volResponse.setVirtualMachineId(vm.getId());
             	volResponse.setVirtualMachineName(vm.getHostName());
-            	UserVm userVm = ApiDBUtils.findUserVmById(vm.getId());
+            	UserVm userVm = lookups.userVms.find(vm.getId());
             	if (userVm != null) {
             		volResponse.setVirtualMachineDisplayName(userVm.getDisplayName());
             		volResponse.setVirtualMachineState(vm.getState().toString());
@@ -915,7 +966,7 @@ public class ApiResponseHelper implements ResponseGenerator {
         volResponse.setCreated(volume.getCreated());
         volResponse.setState(volume.getState().toString());
 
-        populateOwner(volResponse, volume);
+        populateOwner(volResponse, volume, lookups);
 
         String storageType;
         try {
@@ -941,7 +992,7 @@ public class ApiResponseHelper implements ResponseGenerator {
             volResponse.setDiskOfferingId(volume.getDiskOfferingId());
         }
 
-        DiskOfferingVO diskOffering = ApiDBUtils.findDiskOfferingById(volume.getDiskOfferingId());
+        DiskOfferingVO diskOffering = lookups.diskOfferings.find(volume.getDiskOfferingId());
         if (volume.getVolumeType().equals(Volume.Type.ROOT)) {
             volResponse.setServiceOfferingName(diskOffering.getName());
             volResponse.setServiceOfferingDisplayText(diskOffering.getDisplayText());
@@ -951,7 +1002,7 @@ public class ApiResponseHelper implements ResponseGenerator {
         }
 
         Long poolId = volume.getPoolId();
-        String poolName = (poolId == null) ? "none" : ApiDBUtils.findStoragePoolById(poolId).getName();
+        String poolName = (poolId == null) ? "none" : lookups.storagePools.find(poolId).getName();
         volResponse.setStoragePoolName(poolName);
         // volResponse.setSourceId(volume.getSourceId());
         // if (volume.getSourceType() != null) {
@@ -960,7 +1011,7 @@ public class ApiResponseHelper implements ResponseGenerator {
         volResponse.setHypervisor(ApiDBUtils.getVolumeHyperType(volume.getId()).toString());
         volResponse.setAttached(volume.getAttached());
         volResponse.setDestroyed(volume.getState() == Volume.State.Destroy);
-        VMTemplateVO template = ApiDBUtils.findTemplateById(volume.getTemplateId());
+        VMTemplateVO template = lookups.templates.find(volume.getTemplateId());
         boolean isExtractable = template != null && template.isExtractable() && !(template.getTemplateType() == TemplateType.SYSTEM);
         volResponse.setExtractable(isExtractable);
         volResponse.setObjectName("volume");
@@ -1901,6 +1952,25 @@ public class ApiResponseHelper implements ResponseGenerator {
 
     @Override
     public EventResponse createEventResponse(Event event) {
+        return createEventResponse(event, new ResponseLookups());
+    }
+
+    @Override
+    public List<EventResponse> createEventResponses(List<? extends Event> events) {
+        ResponseLookups lookups = new ResponseLookups();
+        for (Event event : events) {
+            lookups.addOwner(event);
+            lookups.users.add(event.getUserId());
+        }
+
+        List<EventResponse> responses = new ArrayList<EventResponse>(events.size());
+        for (Event event : events) {
+            responses.add(createEventResponse(event, lookups));
+        }
+        return responses;
+    }
+
+    protected EventResponse createEventResponse(Event event, ResponseLookups lookups) {
         EventResponse responseEvent = new EventResponse();
         responseEvent.setCreated(event.getCreateDate());
         responseEvent.setDescription(event.getDescription());
@@ -1910,9 +1980,9 @@ public class ApiResponseHelper implements ResponseGenerator {
         responseEvent.setParentId(event.getStartId());
         responseEvent.setState(event.getState());
         
-        populateOwner(responseEvent, event);
+        populateOwner(responseEvent, event, lookups);
         
-        User user = ApiDBUtils.findUserById(event.getUserId());
+        User user = lookups.users.find(event.getUserId());
         if (user != null) {
             responseEvent.setUsername(user.getUsername());
         }
@@ -2619,6 +2689,15 @@ public class ApiResponseHelper implements ResponseGenerator {
     
     private void populateOwner(ControlledEntityResponse response, ControlledEntity object) {
         Account account = ApiDBUtils.findAccountByIdIncludingRemoved(object.getAccountId());
+        Domain domain = ApiDBUtils.findDomainById(object.getDomainId());
+        populateOwner(response, account, domain);
+    }
+
+    private void populateOwner(ControlledEntityResponse response, ControlledEntity object, ResponseLookups lookups) {
+        populateOwner(response, lookups.accounts.find(object.getAccountId()), lookups.domains.find(object.getDomainId()));
+    }
+
+    private void populateOwner(ControlledEntityResponse response, Account account, Domain domain) {
         
         if (account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
             //find the project
@@ -2629,7 +2708,6 @@ public class ApiResponseHelper implements ResponseGenerator {
             response.setAccountName(account.getAccountName());
         }
      
-        Domain domain = ApiDBUtils.findDomainById(object.getDomainId());
         if (domain != null) {
             response.setDomainId(domain.getId());
             response.setDomainName(domain.getName());
@@ -2728,4 +2806,27 @@ public class ApiResponseHelper implements ResponseGenerator {
         vmResponse.setObjectName("systemvminstance");
         return vmResponse;
     }
+
+    /**
+     * The entities referenced by the responses for a page of list results.
+     * Everything the page refers to is added first so that each kind of
+     * entity is looked up with one query instead of one query per response.
+     */
+    protected static class ResponseLookups {
+        final EntityLookup<AccountVO, Long> accounts = ApiDBUtils.lookupAccountsIncludingRemoved();
+        final EntityLookup<DomainVO, Long> domains = ApiDBUtils.lookupDomainsIncludingRemoved();
+        final EntityLookup<DataCenterVO, Long> zones = ApiDBUtils.lookupZones();
+        final EntityLookup<UserVO, Long> users = ApiDBUtils.lookupUsers();
+        final EntityLookup<VMInstanceVO, Long> vmInstances = ApiDBUtils.lookupVMInstances();
+        final EntityLookup<UserVmVO, Long> userVms = ApiDBUtils.lookupUserVms();
+        final EntityLookup<VlanVO, Long> vlans = ApiDBUtils.lookupVlans();
+        final EntityLookup<DiskOfferingVO, Long> diskOfferings = ApiDBUtils.lookupDiskOfferingsIncludingRemoved();
+        final EntityLookup<StoragePoolVO, Long> storagePools = ApiDBUtils.lookupStoragePoolsIncludingRemoved();
+        final EntityLookup<VMTemplateVO, Long> templates = ApiDBUtils.lookupTemplatesIncludingRemoved();
+
+        void addOwner(ControlledEntity object) {
+            accounts.add(object.getAccountId());
+            domains.add(object.getDomainId());
+        }
+    }
 }
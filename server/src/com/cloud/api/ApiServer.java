@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -55,12 +56,17 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpServerConnection;
 import org.apache.http.HttpStatus;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.DefaultHttpServerConnection;
 import org.apache.http.impl.NoConnectionReuseStrategy;
@@ -121,6 +127,7 @@ public class ApiServer implements HttpRequestHandler {
     public static final short RESOURCE_DOMAIN_ADMIN_COMMAND = 2;
     public static final short USER_COMMAND = 8;
     public static boolean encodeApiResponse = false;
+    public static boolean compressApiResponse = true;
     public static String jsonContentType = "text/javascript";
     private Properties _apiCommands = null;
     private ApiDispatcher _dispatcher;
@@ -235,6 +242,10 @@ public class ApiServer implements HttpRequestHandler {
         }
         
         encodeApiResponse = Boolean.valueOf(configDao.getValue(Config.EncodeApiResponse.key()));
+        String compress = configDao.getValue(Config.CompressApiResponse.key());
+        if (compress != null) {
+            compressApiResponse = Boolean.valueOf(compress);
+        }
         
         String jsonType = configDao.getValue(Config.JavaScriptDefaultContentType.key());
         if (jsonType != null) {
@@ -291,10 +302,16 @@ public class ApiServer implements HttpRequestHandler {
                 // always trust commands from API port, user context will always be UID_SYSTEM/ACCOUNT_ID_SYSTEM
                 UserContext.registerContext(_systemUser.getId(), _systemAccount, null, true);
                 sb.insert(0, "(userId=" + User.UID_SYSTEM + " accountId=" + Account.ACCOUNT_ID_SYSTEM + " sessionId=" + null + ") ");
-                String responseText = handleRequest(parameterMap, true, responseType, sb);
-                sb.append(" 200 " + ((responseText == null) ? 0 : responseText.length()));
+                Object result = handleStreamingRequest(parameterMap, true, responseType, sb);
+                if (result instanceof ResponseObject) {
+                    Header acceptEncoding = request.getFirstHeader("Accept-Encoding");
+                    writeResponse(response, (ResponseObject) result, responseType, acceptsGzip(acceptEncoding != null ? acceptEncoding.getValue() : null));
+                } else {
+                    String responseText = (String) result;
+                    sb.append(" 200 " + ((responseText == null) ? 0 : responseText.length()));
 
-                writeResponse(response, responseText, HttpStatus.SC_OK, responseType, null);
+                    writeResponse(response, responseText, HttpStatus.SC_OK, responseType, null);
+                }
             } catch (ServerApiException se) {
                 String responseText = getSerializedApiError(se.getErrorCode(), se.getDescription(), parameterMap, responseType);
                 writeResponse(response, responseText, se.getErrorCode(), responseType, se.getDescription());
@@ -312,7 +329,21 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
-        String response = null;
+        Object response = handleStreamingRequest(params, decode, responseType, auditTrailSb);
+        if (response instanceof ResponseObject) {
+            return ApiResponseSerializer.toSerializedString((ResponseObject) response, responseType);
+        }
+        return (String) response;
+    }
+
+    /**
+     * Same as handleRequest except that list responses are not serialized.
+     * 
+     * @return the serialized response or the ListResponse to be streamed to the client.
+     */
+    @SuppressWarnings("rawtypes")
+    public Object handleStreamingRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        Object response = null;
         String[] command = null;
         try {
             command = (String[]) params.get("command");
@@ -387,7 +418,7 @@ public class ApiServer implements HttpRequestHandler {
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) {
+    private Object queueCommand(BaseCmd cmdObj, Map<String, String> params) {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -455,7 +486,12 @@ public class ApiServer implements HttpRequestHandler {
             if (cmdObj instanceof BaseListCmd) {
                 buildAsyncListResponse((BaseListCmd) cmdObj, caller);
             }
-            return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
+            ResponseObject response = (ResponseObject) cmdObj.getResponseObject();
+            if (response instanceof ListResponse) {
+                // list responses can be large, they are written out as they are serialized
+                return response;
+            }
+            return ApiResponseSerializer.toSerializedString(response, cmdObj.getResponseType());
         }
     }
 
@@ -491,12 +527,17 @@ public class ApiServer implements HttpRequestHandler {
         }
     }
 
-    private void buildAuditTrail(StringBuffer auditTrailSb, String command, String result) {
+    private void buildAuditTrail(StringBuffer auditTrailSb, String command, Object result) {
         if (result == null) {
             return;
         }
         auditTrailSb.append(" " + HttpServletResponse.SC_OK + " ");
-        auditTrailSb.append(result);
+        if (result instanceof ListResponse) {
+            ListResponse<?> listResponse = (ListResponse<?>) result;
+            auditTrailSb.append(listResponse.getResponseName() + " count=" + listResponse.getCount());
+        } else {
+            auditTrailSb.append(result);
+        }
         /*
          * if (command.equals("queryAsyncJobResult")){ //For this command we need to also log job status and job resultcode for
          * (Pair<String,Object> pair : resultValues){ String key = pair.first(); if (key.equals("jobstatus")){
@@ -800,6 +841,60 @@ public class ApiServer implements HttpRequestHandler {
         }
     }
 
+    /**
+     * Serializes the head of the response before a status is committed for it,
+     * see ApiResponseSerializer.serializeHead(), so that a response that can't
+     * be serialized is answered with an error rather than a truncated 200.
+     */
+    public static byte[] serializeResponseHead(ResponseObject result, String responseType, boolean gzip) throws ServerApiException {
+        try {
+            return ApiResponseSerializer.serializeHead(result, responseType, gzip);
+        } catch (RuntimeException e) {
+            s_logger.error("Unable to serialize " + result.getResponseName(), e);
+            throw new ServerApiException(BaseCmd.INTERNAL_ERROR, "Unable to serialize the response");
+        }
+    }
+
+    private void writeResponse(HttpResponse resp, final ResponseObject result, final String responseType, final boolean gzip) throws ServerApiException {
+        byte[] head = serializeResponseHead(result, responseType, gzip);
+        resp.setStatusCode(HttpStatus.SC_OK);
+
+        AbstractHttpEntity body;
+        if (head != null) {
+            body = new ByteArrayEntity(head);
+        } else {
+            body = new EntityTemplate(new ContentProducer() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ApiResponseSerializer.serialize(result, responseType, out, gzip);
+                }
+            });
+            body.setChunked(true);
+        }
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            body.setContentType(jsonContentType);
+        } else {
+            body.setContentType("text/xml");
+        }
+        if (gzip) {
+            body.setContentEncoding("gzip");
+        }
+        resp.setEntity(body);
+    }
+
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (!compressApiResponse || acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
     // FIXME: the following two threads are copied from
     // http://svn.apache.org/repos/asf/httpcomponents/httpcore/trunk/httpcore/src/examples/org/apache/http/examples/ElementalHttpServer.java
     // we have to cite a license if we are using this code directly, so we need to add the appropriate citation or modify the
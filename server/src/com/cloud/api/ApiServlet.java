@@ -32,6 +32,7 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.cluster.StackMaid;
 import com.cloud.exception.CloudAuthenticationException;
 import com.cloud.server.ManagementServer;
@@ -299,8 +300,12 @@ public class ApiServlet extends HttpServlet {
                                 + ")");
 
                 try {
-                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
-                    writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                    Object response = _apiServer.handleStreamingRequest(params, false, responseType, auditTrailSb);
+                    if (response instanceof ResponseObject) {
+                        writeResponse(resp, (ResponseObject) response, responseType, ApiServer.acceptsGzip(req.getHeader("Accept-Encoding")));
+                    } else {
+                        writeResponse(resp, response != null ? (String) response : "", HttpServletResponse.SC_OK, responseType);
+                    }
                 } catch (ServerApiException se) {
                     String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType);
                     resp.setHeader("X-Description", se.getDescription());
@@ -370,6 +375,33 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    private void writeResponse(HttpServletResponse resp, ResponseObject response, String responseType, boolean gzip) throws ServerApiException {
+        byte[] head = ApiServer.serializeResponseHead(response, responseType, gzip);
+        try {
+            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+            } else {
+                resp.setContentType("text/xml; charset=UTF-8");
+            }
+            if (gzip) {
+                resp.setHeader("Content-Encoding", "gzip");
+            }
+
+            resp.setStatus(HttpServletResponse.SC_OK);
+            if (head != null) {
+                resp.setContentLength(head.length);
+                resp.getOutputStream().write(head);
+            } else {
+                // no content length is set so the container sends the response chunked as it is written
+                ApiResponseSerializer.serialize(response, responseType, resp.getOutputStream(), gzip);
+            }
+        } catch (IOException ioex) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("exception writing response: " + ioex);
+            }
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     private String getLoginSuccessResponse(HttpSession session, String responseType) {
         StringBuffer sb = new StringBuffer();
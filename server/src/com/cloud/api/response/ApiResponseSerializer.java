@@ -18,14 +18,28 @@
 
 package com.cloud.api.response;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -35,22 +49,99 @@ import com.cloud.api.ApiResponseGsonHelper;
 import com.cloud.api.ApiServer;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ResponseObject;
-import com.cloud.configuration.Config;
-import com.cloud.configuration.dao.ConfigurationDao;
-import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
 
+/**
+ * ApiResponseSerializer writes api responses as JSON or XML.  Responses are
+ * written field by field straight to the output, using the fields of each
+ * response class that are looked up once and cached, so that a large list
+ * response never has to be held in memory as a string.
+ */
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * How much of a response is serialized before its status is committed.
+     */
+    public static final int COMMIT_THRESHOLD = 64 * 1024;
+
+    private static final int KIND_STRING = 0;
+    private static final int KIND_NUMBER = 1;
+    private static final int KIND_BOOLEAN = 2;
+    private static final int KIND_DATE = 3;
+    private static final int KIND_RESPONSE = 4;
+    private static final int KIND_RESPONSE_LIST = 5;
+    private static final int KIND_OTHER = 6;
+
+    // Only used for the field types that aren't written directly, i.e. maps, enums and fields declared as ResponseObject.
+    private static final Gson s_gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).disableHtmlEscaping().create();
+
+    private static final Map<Class<?>, JsonField[]> s_jsonFields = new ConcurrentHashMap<Class<?>, JsonField[]>();
+    private static final Map<Class<?>, XmlField[]> s_xmlFields = new ConcurrentHashMap<Class<?>, XmlField[]>();
+
     public static String toSerializedString(ResponseObject result, String responseType) {
+        if (result == null) {
+            return null;
+        }
+
+        StringWriter writer = new StringWriter();
+        try {
+            serialize(result, responseType, writer);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + result.getResponseName(), e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Serializes the response to the stream as UTF-8, compressing it if asked
+     * to.  The stream is not closed.
+     */
+    public static void serialize(ResponseObject result, String responseType, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream zipped = null;
+        if (gzip) {
+            zipped = new GZIPOutputStream(out, BUFFER_SIZE);
+            out = zipped;
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+        serialize(result, responseType, writer);
+        writer.flush();
+        if (zipped != null) {
+            zipped.finish();
+        }
+    }
+
+    /**
+     * Serializes the response, compressing it if asked to, as long as it fits
+     * in COMMIT_THRESHOLD bytes.  Returns the serialized response, or null if it
+     * is longer and has to be streamed.  Either way the head of the response,
+     * and so at least the first objects of a list, has been serialized without
+     * error before the caller commits a status for it.
+     */
+    public static byte[] serializeHead(ResponseObject result, String responseType, boolean gzip) {
+        HeadOutputStream out = new HeadOutputStream(COMMIT_THRESHOLD);
+        try {
+            serialize(result, responseType, out, gzip);
+        } catch (ThresholdReachedException e) {
+            return null;
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + result.getResponseName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    public static void serialize(ResponseObject result, String responseType, Writer out) throws IOException {
         if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result);
+            serializeJSON(result, out);
         } else {
-            return toXMLSerializedString(result);
+            serializeXML(result, out, ApiDBUtils.getVersion());
         }
     }
 
@@ -65,155 +156,284 @@ public class ApiResponseSerializer {
         return str;
     }
 
-    private static String toJSONSerializedString(ResponseObject result) {
-        if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            StringBuilder sb = new StringBuilder();
+    static void serializeJSON(ResponseObject result, Writer out) throws IOException {
+        out.write("{ \"" + result.getResponseName() + "\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
+            if ((responses != null) && !responses.isEmpty()) {
+                out.write("{ \"" + ApiConstants.COUNT + "\":" + responses.size() + " ,\"" + responses.get(0).getObjectName() + "\" : [  ");
+                boolean first = true;
+                for (ResponseObject response : responses) {
+                    if (!first) {
+                        out.write(", ");
+                    }
+                    first = false;
+                    writeJSONObject(out, response, response.getClass());
+                }
+                out.write(" ] }");
+            } else {
+                out.write("{ }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.write("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
+        } else if (result instanceof ExceptionResponse) {
+            out.write("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
+        } else {
+            if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                writeJSONObject(out, result, result.getClass());
+            } else {
+                out.write(" { \"" + result.getObjectName() + "\" : ");
+                writeJSONObject(out, result, result.getClass());
+                out.write(" } ");
+            }
+        }
+        out.write(" }");
+    }
 
-            sb.append("{ \"" + result.getResponseName() + "\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                if ((responses != null) && !responses.isEmpty()) {
+    /**
+     * Writes the object the way gson does for the declared class: fields of
+     * the class come before the fields of its super classes and null fields
+     * are left out.
+     */
+    private static void writeJSONObject(Writer out, Object obj, Class<?> clazz) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (JsonField jsonField : getJSONFields(clazz)) {
+            Object value = jsonField.get(obj);
+            if (value == null) {
+                continue;
+            }
 
-                    Integer count = ((ListResponse) result).getCount();
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeJSONString(out, jsonField.name);
+            out.write(':');
 
-                    if (count != null && count != 0) {
-                        sb.append("{ \"" + ApiConstants.COUNT + "\":" + ((ListResponse) result).getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + jsonStr);
-                    }
-                    for (int i = 1; i < count; i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", " + jsonStr);
+            switch (jsonField.kind) {
+            case KIND_STRING:
+                writeJSONString(out, encodeParam(value.toString()));
+                break;
+            case KIND_NUMBER:
+            case KIND_BOOLEAN:
+                out.write(value.toString());
+                break;
+            case KIND_DATE:
+                writeJSONString(out, BaseCmd.getDateString((Date) value));
+                break;
+            case KIND_RESPONSE:
+                writeJSONObject(out, value, jsonField.type);
+                break;
+            case KIND_RESPONSE_LIST:
+                out.write('[');
+                boolean firstElement = true;
+                for (Object element : (Collection<?>) value) {
+                    if (!firstElement) {
+                        out.write(',');
                     }
-                    sb.append(" ] }");
-                } else {
-                    sb.append("{ }");
-                }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
-            } else if (result instanceof ExceptionResponse) {
-                sb.append("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
-            } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
+                    firstElement = false;
+                    if (element == null) {
+                        out.write("null");
                     } else {
-                        sb.append(" { \"" + result.getObjectName() + "\" : " + jsonStr + " } ");
+                        writeJSONObject(out, element, jsonField.type);
                     }
-                } else {
-                    sb.append("{ }");
                 }
+                out.write(']');
+                break;
+            default:
+                s_gson.toJson(value, jsonField.genericType, new JsonWriter(out));
+                break;
+            }
+        }
+        out.write('}');
+    }
+
+    private static void writeJSONString(Writer out, String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement = null;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c < 0x20) {
+                switch (c) {
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\b':
+                    replacement = "\\b";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                case '\f':
+                    replacement = "\\f";
+                    break;
+                default:
+                    replacement = String.format("\\u%04x", (int) c);
+                    break;
+                }
+            }
+
+            if (replacement != null) {
+                out.write(value, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+
+    private static JsonField[] getJSONFields(Class<?> clazz) {
+        JsonField[] fields = s_jsonFields.get(clazz);
+        if (fields != null) {
+            return fields;
+        }
+
+        // gson keeps the position of the first field with a name but the value of the last one that isn't null
+        Map<String, List<Field>> byName = new LinkedHashMap<String, List<Field>>();
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if ((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC)) != 0 || field.isSynthetic()) {
+                    continue;
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                String name = serializedName != null ? serializedName.value() : field.getName();
+                List<Field> sameName = byName.get(name);
+                if (sameName == null) {
+                    sameName = new ArrayList<Field>(1);
+                    byName.put(name, sameName);
+                }
+                field.setAccessible(true);
+                sameName.add(0, field);
             }
-            sb.append(" }");
-            return sb.toString();
         }
-        return null;
+
+        fields = new JsonField[byName.size()];
+        int i = 0;
+        for (Map.Entry<String, List<Field>> entry : byName.entrySet()) {
+            List<Field> sameName = entry.getValue();
+            fields[i++] = new JsonField(entry.getKey(), sameName.toArray(new Field[sameName.size()]));
+        }
+        s_jsonFields.put(clazz, fields);
+        return fields;
     }
 
-    private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
-        sb.append("<" + result.getResponseName() + " cloud-stack-version=\"" + ApiDBUtils.getVersion() + "\">");
+    static void serializeXML(ResponseObject result, Writer out, String version) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
+        out.write("<" + result.getResponseName() + " cloud-stack-version=\"" + version + "\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse) result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<" + ApiConstants.COUNT + ">" + ((ListResponse) result).getCount() + "</" + ApiConstants.COUNT + ">");
+                out.write("<" + ApiConstants.COUNT + ">" + count + "</" + ApiConstants.COUNT + ">");
             }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</" + result.getResponseName() + ">");
-        return sb.toString();
+        out.write("</" + result.getResponseName() + ">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<" + obj.getObjectName() + ">");
+            out.write("<" + obj.getObjectName() + ">");
         }
-        serializeResponseObjFieldsXML(sb, obj);
+        serializeResponseObjFieldsXML(out, obj);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</" + obj.getObjectName() + ">");
+            out.write("</" + obj.getObjectName() + ">");
         }
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
 
-        Field[] fields = obj.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
-
-            SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
-            }
-
-            field.setAccessible(true);
-            Object fieldValue = null;
-            try {
-                fieldValue = field.get(obj);
-            } catch (IllegalArgumentException e) {
-                throw new CloudRuntimeException("how illegal is it?", e);
-            } catch (IllegalAccessException e) {
-                throw new CloudRuntimeException("come on...we set accessible already", e);
-            }
+        for (XmlField xmlField : getXMLFields(obj.getClass())) {
+            Object fieldValue = xmlField.get(obj);
             if (fieldValue != null) {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject) fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.write("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.write("</jobresult>");
                     }
                 } else if (fieldValue instanceof List<?>) {
-                    List<?> subResponseList = (List<Object>) fieldValue;
+                    List<?> subResponseList = (List<?>) fieldValue;
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject) value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(xmlField.name);
+                            serializeResponseObjXML(out, subObj);
                         }
                     }
 
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<" + serializedName.value() + ">" + BaseCmd.getDateString((Date) fieldValue) + "</" + serializedName.value() + ">");
+                    out.write(xmlField.startTag);
+                    out.write(BaseCmd.getDateString((Date) fieldValue));
+                    out.write(xmlField.endTag);
                 } else {
-                    String resultString = escapeSpecialXmlChars(fieldValue.toString());
-                    if (!(obj instanceof ExceptionResponse)) {
-                        resultString = encodeParam(resultString);
+                    out.write(xmlField.startTag);
+                    if (!(obj instanceof ExceptionResponse) && ApiServer.encodeApiResponse) {
+                        out.write(encodeParam(escapeSpecialXmlChars(fieldValue.toString())));
+                    } else {
+                        writeEscapedXml(out, fieldValue.toString());
                     }
-                    
-                    sb.append("<" + serializedName.value() + ">" + resultString + "</" + serializedName.value() + ">");
+                    out.write(xmlField.endTag);
                 }
             }
         }
     }
 
+    private static XmlField[] getXMLFields(Class<?> clazz) {
+        XmlField[] fields = s_xmlFields.get(clazz);
+        if (fields != null) {
+            return fields;
+        }
+
+        List<XmlField> list = new ArrayList<XmlField>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                continue; // skip transient fields
+            }
+
+            SerializedName serializedName = field.getAnnotation(SerializedName.class);
+            if (serializedName == null) {
+                continue; // skip fields w/o serialized name
+            }
+
+            field.setAccessible(true);
+            list.add(new XmlField(serializedName.value(), field));
+        }
+        fields = list.toArray(new XmlField[list.size()]);
+        s_xmlFields.put(clazz, fields);
+        return fields;
+    }
+
     private static Method getGetMethod(Object o, String propName) {
         Method method = null;
         String methodName = getGetMethodName("get", propName);
@@ -255,21 +475,45 @@ public class ApiResponseSerializer {
         return sb.toString();
     }
 
+    private static void writeEscapedXml(Writer out, String value) throws IOException {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String replacement = xmlReplacement(value.charAt(i));
+            if (replacement != null) {
+                out.write(value, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+    }
+
+    private static String xmlReplacement(char c) {
+        switch (c) {
+        case '"':
+            return "&quot;";
+        case '\'':
+            return "&apos;";
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '&':
+            return "&amp;";
+        default:
+            return null;
+        }
+    }
+
     private static String escapeSpecialXmlChars(String originalString) {
         char[] origChars = originalString.toCharArray();
         StringBuilder resultString = new StringBuilder();
 
         for (char singleChar : origChars) {
-            if (singleChar == '"') {
-                resultString.append("&quot;");
-            } else if (singleChar == '\'') {
-                resultString.append("&apos;");
-            } else if (singleChar == '<') {
-                resultString.append("&lt;");
-            } else if (singleChar == '>') {
-                resultString.append("&gt;");
-            } else if (singleChar == '&') {
-                resultString.append("&amp;");
+            String replacement = xmlReplacement(singleChar);
+            if (replacement != null) {
+                resultString.append(replacement);
             } else {
                 resultString.append(singleChar);
             }
@@ -289,5 +533,138 @@ public class ApiResponseSerializer {
         }
         return value;
     }
-    
+
+    private static Object getValue(Field field, Object obj) {
+        try {
+            return field.get(obj);
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("how illegal is it?", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("come on...we set accessible already", e);
+        }
+    }
+
+    private static int getKind(Class<?> type) {
+        if (type == String.class) {
+            return KIND_STRING;
+        } else if (Number.class.isAssignableFrom(type) || (type.isPrimitive() && type != boolean.class && type != char.class)) {
+            return KIND_NUMBER;
+        } else if (type == Boolean.class || type == boolean.class) {
+            return KIND_BOOLEAN;
+        } else if (type == Date.class) {
+            return KIND_DATE;
+        } else if (isResponseClass(type)) {
+            return KIND_RESPONSE;
+        }
+        return KIND_OTHER;
+    }
+
+    /**
+     * Fields declared as ResponseObject itself are left to gson as they go
+     * through ResponseObjectTypeAdapter.
+     */
+    private static boolean isResponseClass(Type type) {
+        return type instanceof Class && ResponseObject.class.isAssignableFrom((Class<?>) type) && !((Class<?>) type).isInterface();
+    }
+
+    private static class JsonField {
+        final String name;
+        final Field[] fields;   // fields with this name, the one whose value wins first
+        final int kind;
+        final Class<?> type;
+        final Type genericType;
+
+        JsonField(String name, Field[] fields) {
+            this.name = name;
+            this.fields = fields;
+
+            Field field = fields[0];
+            Type genericType = field.getGenericType();
+            Class<?> type = field.getType();
+            int kind = getKind(type);
+            if (kind == KIND_OTHER && Collection.class.isAssignableFrom(type) && genericType instanceof ParameterizedType) {
+                Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (isResponseClass(elementType)) {
+                    kind = KIND_RESPONSE_LIST;
+                    type = (Class<?>) elementType;
+                }
+            }
+            this.kind = fields.length == 1 || sameType(fields) ? kind : KIND_OTHER;
+            this.type = type;
+            this.genericType = genericType;
+        }
+
+        Object get(Object obj) {
+            for (Field field : fields) {
+                Object value = getValue(field, obj);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        private static boolean sameType(Field[] fields) {
+            for (Field field : fields) {
+                if (!field.getGenericType().equals(fields[0].getGenericType())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class XmlField {
+        final String name;
+        final String startTag;
+        final String endTag;
+        final Field field;
+
+        XmlField(String name, Field field) {
+            this.name = name;
+            this.startTag = "<" + name + ">";
+            this.endTag = "</" + name + ">";
+            this.field = field;
+        }
+
+        Object get(Object obj) {
+            return getValue(field, obj);
+        }
+    }
+
+    protected static class ThresholdReachedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Keeps what is written until it grows past the threshold.
+     */
+    protected static class HeadOutputStream extends OutputStream {
+        private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        private final int _threshold;
+
+        public HeadOutputStream(int threshold) {
+            _threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_buffer.size() + 1 > _threshold) {
+                throw new ThresholdReachedException();
+            }
+            _buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (_buffer.size() + len > _threshold) {
+                throw new ThresholdReachedException();
+            }
+            _buffer.write(b, off, len);
+        }
+
+        public byte[] toByteArray() {
+            return _buffer.toByteArray();
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.async;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.DateUtil;
+import com.google.gson.Gson;
+
+/**
+ * AsyncJobArchiver writes expired jobs to gzipped files, one JSON object per
+ * line, before the GC deletes them.  Every call appends a gzip member to the
+ * current file and syncs it to disk, so what has been archived survives a
+ * crash; zcat reads the members back as one stream.  A new file is started
+ * once the current one reaches the maximum size.
+ */
+public class AsyncJobArchiver {
+    private static final Logger s_logger = Logger.getLogger(AsyncJobArchiver.class);
+
+    private final File _dir;
+    private final long _maxFileSize;
+    private final Gson _gson = new Gson();
+    private File _current;
+
+    /**
+     * @param dir directory that the archives go in.
+     * @param maxFileSize size in bytes after which a new file is started.
+     */
+    public AsyncJobArchiver(File dir, long maxFileSize) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            throw new IOException("Unable to write to " + dir.getAbsolutePath());
+        }
+        _dir = dir;
+        _maxFileSize = maxFileSize;
+    }
+
+    protected File getFile() {
+        if (_current == null || _current.length() >= _maxFileSize) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            _current = new File(_dir, "async-job-" + format.format(new Date()) + ".json.gz");
+            s_logger.info("Archiving expired async jobs to " + _current.getAbsolutePath());
+        }
+        return _current;
+    }
+
+    public synchronized void archive(List<AsyncJobVO> jobs) throws IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        FileOutputStream fos = new FileOutputStream(getFile(), true);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(fos, 65536));
+            Writer writer = new OutputStreamWriter(gzip, "UTF-8");
+            for (AsyncJobVO job : jobs) {
+                writer.write(_gson.toJson(toMap(job)));
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+            gzip.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Everything but the session key, which is of no use once the job is gone.
+     */
+    protected static Map<String, Object> toMap(AsyncJobVO job) {
+        TimeZone gmt = TimeZone.getTimeZone("GMT");
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("id", job.getId());
+        map.put("user_id", job.getUserId());
+        map.put("account_id", job.getAccountId());
+        map.put("job_cmd", job.getCmd());
+        map.put("job_cmd_originator", job.getCmdOriginator());
+        map.put("job_cmd_info", job.getCmdInfo());
+        map.put("job_cmd_ver", job.getCmdVersion());
+        map.put("callback_type", job.getCallbackType());
+        map.put("callback_address", job.getCallbackAddress());
+        map.put("job_status", job.getStatus());
+        map.put("job_process_status", job.getProcessStatus());
+        map.put("job_result_code", job.getResultCode());
+        map.put("job_result", job.getResult());
+        map.put("instance_type", job.getInstanceType() != null ? job.getInstanceType().toString() : null);
+        map.put("instance_id", job.getInstanceId());
+        map.put("job_init_msid", job.getInitMsid());
+        map.put("job_complete_msid", job.getCompleteMsid());
+        map.put("created", job.getCreated() != null ? DateUtil.getDateDisplayString(gmt, job.getCreated()) : null);
+        map.put("last_updated", job.getLastUpdated() != null ? DateUtil.getDateDisplayString(gmt, job.getLastUpdated()) : null);
+        map.put("last_polled", job.getLastPolled() != null ? DateUtil.getDateDisplayString(gmt, job.getLastPolled()) : null);
+        return map;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.async;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.DateUtil;
+
+public class AsyncJobGCMBeanImpl extends StandardMBean implements AsyncJobGCMBean {
+	private AsyncJobManagerImpl _jobMgr;
+	
+	public AsyncJobGCMBeanImpl(AsyncJobManagerImpl jobMgr) {
+		super(AsyncJobGCMBean.class, false);
+		_jobMgr = jobMgr;
+	}
+	
+	public long getPurgedCount() {
+		return _jobMgr.getGCStatistics().getPurged();
+	}
+	
+	public long getArchivedCount() {
+		return _jobMgr.getGCStatistics().getArchived();
+	}
+	
+	public long getLastPurgedCount() {
+		return _jobMgr.getGCStatistics().getLastPurged();
+	}
+	
+	public long getPurgeRatePerMinute() {
+		return _jobMgr.getGCStatistics().getRatePerMinute();
+	}
+	
+	public long getBacklog() {
+		return _jobMgr.getGCStatistics().getBacklog();
+	}
+	
+	public String getLastRunTime() {
+		long time = _jobMgr.getGCStatistics().getLastRun();
+		return time == 0 ? "" : DateUtil.getDateDisplayString(TimeZone.getDefault(), new Date(time));
+	}
+	
+	public long getNextRunDelayMillis() {
+		return _jobMgr.getGCStatistics().getNextDelay();
+	}
+	
+	public int getBatchSize() {
+		return _jobMgr.getGCBatchSize();
+	}
+	
+	public void setBatchSize(int batchSize) {
+		if (batchSize > 0) {
+			_jobMgr.setGCBatchSize(batchSize);
+		}
+	}
+	
+	public boolean isArchiving() {
+		return _jobMgr.getGCStatistics().isArchiving();
+	}
+}
@@ -20,17 +20,23 @@ package com.cloud.async;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -38,6 +44,9 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SyncQueueNotifyCommand;
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
 import com.cloud.api.ApiSerializerHelper;
@@ -47,6 +56,8 @@ import com.cloud.api.ServerApiException;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
 import com.cloud.api.response.ExceptionResponse;
 import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.async.dao.SyncQueueDao;
+import com.cloud.cluster.ClusterCommandHandler;
 import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHostVO;
@@ -61,6 +72,7 @@ import com.cloud.user.User;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentLocator;
@@ -81,24 +93,47 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 	private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 3; 	// 3 seconds
     
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
-    private static final int HEARTBEAT_INTERVAL = 2000;
+    // Queues are dispatched as soon as they change, this poll only picks up what was missed
+    private static final int HEARTBEAT_INTERVAL = 10000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int GC_BACKLOG_INTERVAL = 2000;        // run sooner while expired jobs remain
+    private static final int GC_CATCHUP_INTERVAL = 500;         // run almost back to back when far behind
+    private static final int GC_TIME_BUDGET = 5000;             // stop a run after this long
+    private static final int MAX_CACHED_QUEUE_TYPES = 4096;
     
     private String _name;
     
     private AsyncJobExecutorContext _context;
     private SyncQueueManager _queueMgr;
+    private SyncQueueDao _queueDao;
     private ClusterManager _clusterMgr;
     private AccountManager _accountMgr;
     private AccountDao _accountDao;
-    private AsyncJobDao _jobDao;
+    AsyncJobDao _jobDao;
     private long _jobExpireSeconds = 86400;						// 1 day
     private long _jobCancelThresholdSeconds = 3600;             // 1 hour
+    private volatile int _gcBatchSize = 1000;
+    AsyncJobArchiver _archiver;
+    private long _archivedUpTo;                                  // highest job id written to the archive
+    private final GCStatistics _gcStats = new GCStatistics();
     private ApiDispatcher _dispatcher;
 
     private final ScheduledExecutorService _heartbeatScheduler =
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final ScheduledExecutorService _gcScheduler =
+        Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-GC"));
     private ExecutorService _executor;
+    private final AtomicBoolean _dispatchPending = new AtomicBoolean(false);
+    private final Runnable _dispatchTask = getHeartbeatTask();
+    // the type of a queue never changes, keep the ones used most recently
+    @SuppressWarnings("serial")
+    private final Map<Long, String> _queueTypes = Collections.synchronizedMap(new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_CACHED_QUEUE_TYPES;
+        }
+    });
+    private final Map<String, LatencyHistogram> _queueWaits = new ConcurrentHashMap<String, LatencyHistogram>();
 
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
@@ -272,11 +307,14 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	for(int i = 0; i < 5; i++) {
     		queue = _queueMgr.queue(syncObjType, syncObjId, "AsyncJob", job.getId());
     		if(queue != null) {
+    		    _queueTypes.put(queue.getId(), syncObjType);
                 break;
             }
 
+    		// back off 100ms, 200ms, ... 1.6s with jitter so colliding transactions spread out
     		try {
-				Thread.sleep(1000 + random.nextInt(5000));
+    		    int backoff = 100 << i;
+				Thread.sleep(backoff + random.nextInt(backoff));
 			} catch (InterruptedException e) {
 			}
     	}
@@ -511,6 +549,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                 s_logger.debug("Schedule queued job-" + job.getId());
             }
 
+            recordQueueWait(item);
             job.setFromPreviousSession(fromPreviousSession);
             job.setSyncSource(item);
             
@@ -522,6 +561,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 			} catch(RejectedExecutionException e) {
 				s_logger.warn("Execution for job-" + job.getId() + " is rejected, return it to the queue for next turn");
 				_queueMgr.returnItem(item.getId());
+				// We're out of threads, let a peer have it.
+				if (_clusterMgr != null) {
+				    _clusterMgr.notifyPeers(new SyncQueueNotifyCommand(item.getQueueId()));
+				}
 			}
             
         } else {
@@ -562,15 +605,71 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		    	}
     		} catch(Throwable e) {
     			s_logger.error("Unexpected exception when kicking sync queue-" + queueId, e);
+    			wakeupDispatcher();
     			break;
     		}
     	}
     }
     
+    /**
+     * Schedules a pass over all of the sync queues now instead of at the next
+     * heartbeat.  Calls made while a pass is already pending are folded into it.
+     */
+    private void wakeupDispatcher() {
+        if (_dispatchPending.compareAndSet(false, true)) {
+            try {
+                _heartbeatScheduler.execute(_dispatchTask);
+            } catch (RejectedExecutionException e) {
+                _dispatchPending.set(false);
+            }
+        }
+    }
+    
+    private void recordQueueWait(SyncQueueItemVO item) {
+        if (item.getCreated() == null) {
+            return;
+        }
+        
+        String syncObjType = _queueTypes.get(item.getQueueId());
+        if (syncObjType == null) {
+            SyncQueueVO queue = _queueDao.findById(item.getQueueId());
+            if (queue == null) {
+                return;
+            }
+            syncObjType = queue.getSyncObjType();
+            _queueTypes.put(item.getQueueId(), syncObjType);
+        }
+        
+        LatencyHistogram waits = _queueWaits.get(syncObjType);
+        if (waits == null) {
+            synchronized (_queueWaits) {
+                waits = _queueWaits.get(syncObjType);
+                if (waits == null) {
+                    waits = new LatencyHistogram();
+                    _queueWaits.put(syncObjType, waits);
+                    try {
+                        JmxUtil.registerMBean("AsyncJobManager", "SyncQueue " + syncObjType, new SyncQueueMBeanImpl(syncObjType, waits));
+                    } catch (Exception e) {
+                        s_logger.warn("Unable to register sync queue statistics for " + syncObjType + " to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+                    }
+                }
+            }
+        }
+        waits.record(DateUtil.currentGMTTime().getTime() - item.getCreated().getTime());
+    }
+    
+    /**
+     * @return queue wait statistics keyed by sync object type.
+     */
+    public Map<String, LatencyHistogram> getQueueWaitStatistics() {
+        return _queueWaits;
+    }
+    
 	private Runnable getHeartbeatTask() {
 		return new Runnable() {
 			@Override
             public void run() {
+			    _dispatchPending.set(false);
 				try {
 					List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
 					if(l != null && l.size() > 0) {
@@ -595,33 +694,48 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		return new Runnable() {
 			@Override
             public void run() {
+				long delay = GC_INTERVAL;
 				GlobalLock scanLock = GlobalLock.getInternLock("AsyncJobManagerGC");
 				try {
 					if(scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
 						try {
-							reallyRun();
+							delay = reallyRun();
 						} finally {
 							scanLock.unlock();
 						}
 					}
 				} finally {
 					scanLock.releaseRef();
+					_gcStats._nextDelay = delay;
+					if(!_gcScheduler.isShutdown()) {
+						_gcScheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+					}
 				}
 			}
 			
-			private void reallyRun() {
+			private long reallyRun() {
+				long delay = GC_INTERVAL;
 				try {
 					s_logger.trace("Begin cleanup expired async-jobs");
 					
 					Date cutTime = new Date(DateUtil.currentGMTTime().getTime() - _jobExpireSeconds*1000);
 					
-					// limit to 100 jobs per turn, this gives cleanup throughput as 600 jobs per minute
-					// hopefully this will be fast enough to balance potential growth of job table
-					List<AsyncJobVO> l = _jobDao.getExpiredJobs(cutTime, 100);
-					if(l != null && l.size() > 0) {
-						for(AsyncJobVO job : l) {
-							_jobDao.expunge(job.getId());
-						}
+					long begin = System.currentTimeMillis();
+					int batchSize = _gcBatchSize;
+					boolean more = purgeExpiredJobs(cutTime, batchSize, GC_TIME_BUDGET);
+					long backlog = _gcStats._backlog;
+					if(backlog > (long)batchSize*10) {
+						delay = GC_CATCHUP_INTERVAL;
+					} else if(more) {
+						delay = GC_BACKLOG_INTERVAL;
+					}
+					
+					long elapsed = Math.max(System.currentTimeMillis() - begin, 1);
+					long purged = _gcStats._lastPurged;
+					_gcStats._rate = purged*60000/(elapsed + delay);
+					_gcStats._lastRun = begin;
+					if(purged > 0 && s_logger.isDebugEnabled()) {
+						s_logger.debug("Cleaned up " + purged + " expired async-jobs in " + elapsed + "ms" + (more ? ", about " + backlog + " left" : ""));
 					}
 					
 					// forcely cancel blocking queue items if they've been staying there for too long
@@ -643,9 +757,165 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 				} finally {
 					StackMaid.current().exitCleanup();
 				}
+				return delay;
 			}
 		};
 	}
+	
+	/**
+	 * Deletes the jobs created before cutTime by id range a batch at a time,
+	 * pausing between batches as long as the batch took so the job table is
+	 * not hogged while catching up.  The expired jobs are paged by id and
+	 * never counted; when time runs out the backlog is estimated from the
+	 * id range still left.  A job is archived once, even if it can not be
+	 * deleted yet and comes up again in later runs.
+	 * 
+	 * @return true if a full batch was still left when timeBudget ran out.
+	 */
+	protected boolean purgeExpiredJobs(Date cutTime, int batchSize, long timeBudget) throws InterruptedException {
+		long begin = System.currentTimeMillis();
+		long fromId = 0;
+		long purged = 0;
+		boolean more = false;
+		long backlog = 0;
+		try {
+			while(true) {
+				long batchBegin = System.currentTimeMillis();
+				List<Long> ids = _jobDao.listExpiredJobIds(cutTime, fromId, batchSize);
+				if(ids.isEmpty()) {
+					more = false;
+					break;
+				}
+				
+				long firstId = ids.get(0);
+				long lastId = ids.get(ids.size() - 1);
+				if(_archiver != null && lastId > _archivedUpTo) {
+					List<AsyncJobVO> jobs = _jobDao.listExpiredJobs(cutTime, Math.max(firstId, _archivedUpTo + 1), lastId);
+					try {
+						_archiver.archive(jobs);
+					} catch(IOException e) {
+						// keep the jobs rather than lose them, try again next time
+						s_logger.error("Unable to archive expired async-jobs, skip cleanup", e);
+						more = false;
+						break;
+					}
+					_archivedUpTo = lastId;
+					_gcStats._archived.addAndGet(jobs.size());
+				}
+				
+				int expunged = 0;
+				try {
+					expunged = _jobDao.expungeExpiredJobs(cutTime, firstId, lastId);
+				} catch(CloudRuntimeException e) {
+					// a job that is still referenced fails the whole range, so that one
+					// job does not hold up the rest of the batch delete them one by one
+					s_logger.debug("Unable to expunge async-jobs " + firstId + "-" + lastId + " at once, expunging them one by one: " + e.getMessage());
+					for(Long id : ids) {
+						try {
+							expunged += _jobDao.expungeExpiredJobs(cutTime, id, id);
+						} catch(CloudRuntimeException ex) {
+							s_logger.warn("Unable to expunge async-job " + id + ", will try again next time", ex);
+						}
+					}
+				}
+				purged += expunged;
+				fromId = lastId + 1;
+				
+				more = ids.size() >= batchSize;
+				long now = System.currentTimeMillis();
+				if(!more || now - begin >= timeBudget) {
+					break;
+				}
+				Thread.sleep(Math.max(now - batchBegin, 10));
+			}
+			
+			if(more) {
+				Long lastExpiredId = _jobDao.getLastExpiredJobId(cutTime);
+				if(lastExpiredId != null) {
+					backlog = Math.max(lastExpiredId - fromId + 1, 0);
+				}
+			}
+		} finally {
+			_gcStats._purged.addAndGet(purged);
+			_gcStats._lastPurged = purged;
+			_gcStats._behind = more;
+			_gcStats._backlog = backlog;
+		}
+		return more;
+	}
+	
+	/**
+	 * Numbers from the async-job cleanup, read by AsyncJobGCMBean.
+	 */
+	protected static class GCStatistics {
+		final AtomicLong _purged = new AtomicLong();
+		final AtomicLong _archived = new AtomicLong();
+		volatile long _lastPurged;
+		volatile long _rate;
+		volatile boolean _behind;
+		volatile long _backlog;
+		volatile long _lastRun;
+		volatile long _nextDelay = GC_INTERVAL;
+		volatile boolean _archiving;
+		
+		public long getPurged() {
+			return _purged.get();
+		}
+		
+		public long getArchived() {
+			return _archived.get();
+		}
+		
+		public long getLastPurged() {
+			return _lastPurged;
+		}
+		
+		/**
+		 * @return jobs purged per minute over the last run, counting the wait until the next one.
+		 */
+		public long getRatePerMinute() {
+			return _rate;
+		}
+		
+		/**
+		 * @return whether the last run ran out of time with expired jobs left.
+		 */
+		public boolean isBehind() {
+			return _behind;
+		}
+		
+		/**
+		 * @return an estimate of the expired jobs left after the last run, from the
+		 *         ids between where it stopped and the newest expired job.
+		 */
+		public long getBacklog() {
+			return _backlog;
+		}
+		
+		public long getLastRun() {
+			return _lastRun;
+		}
+		
+		public long getNextDelay() {
+			return _nextDelay;
+		}
+		
+		public boolean isArchiving() {
+			return _archiving;
+		}
+	}
+	
+	public GCStatistics getGCStatistics() {
+		return _gcStats;
+	}
+	
+	public int getGCBatchSize() {
+		return _gcBatchSize;
+	}
+	
+	public void setGCBatchSize(int batchSize) {
+		_gcBatchSize = batchSize;
+	}
 	
 	private long getMsid() {
 		if(_clusterMgr != null) {
@@ -693,6 +963,22 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		_jobCancelThresholdSeconds = NumbersUtil.parseInt(
 		       configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60);
 		_jobCancelThresholdSeconds *= 60;
+		
+		_gcBatchSize = NumbersUtil.parseInt(configDao.getValue(Config.JobGcBatchSize.key()), 1000);
+		if (_gcBatchSize <= 0) {
+			_gcBatchSize = 1000;
+		}
+		
+		String archiveDir = configDao.getValue(Config.JobArchiveDir.key());
+		if (archiveDir != null && !archiveDir.trim().isEmpty()) {
+			long archiveFileSize = NumbersUtil.parseInt(configDao.getValue(Config.JobArchiveFileSize.key()), 64);
+			try {
+				_archiver = new AsyncJobArchiver(new File(archiveDir.trim()), archiveFileSize*1024*1024);
+				_gcStats._archiving = true;
+			} catch (IOException e) {
+				throw new ConfigurationException("Unable to archive async-jobs to " + archiveDir + ": " + e.getMessage());
+			}
+		}
 
 		_accountDao = locator.getDao(AccountDao.class);
 		if (_accountDao == null) {
@@ -716,7 +1002,25 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 					+ SyncQueueManager.class.getName());
 		}
 		
+		_queueDao = locator.getDao(SyncQueueDao.class);
+		if(_queueDao == null) {
+			throw new ConfigurationException("Unable to get "
+					+ SyncQueueDao.class.getName());
+		}
+		
 		_clusterMgr = locator.getManager(ClusterManager.class);
+		if(_clusterMgr != null) {
+		    _clusterMgr.registerCommandHandler(SyncQueueNotifyCommand.class, new ClusterCommandHandler() {
+		        @Override
+		        public Answer handleCommand(Command cmd) {
+		            if(s_logger.isDebugEnabled()) {
+		                s_logger.debug("Peer notified sync queue-" + ((SyncQueueNotifyCommand)cmd).getQueueId());
+		            }
+		            wakeupDispatcher();
+		            return new Answer(cmd);
+		        }
+		    });
+		}
 		
 		_accountMgr = locator.getManager(AccountManager.class);
 
@@ -756,6 +1060,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         		_queueMgr.resetQueueProcess(msHost.getId());
         		_jobDao.resetJobProcess(msHost.getId(), BaseCmd.INTERNAL_ERROR, getSerializedErrorMessage("job cancelled because of management server restart"));
     			txn.commit();
+    			// the queues the node was working on are free now
+    			wakeupDispatcher();
     		} catch(Throwable e) {
     			s_logger.warn("Unexpected exception ", e);
     			txn.rollback();
@@ -780,10 +1086,15 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		s_logger.error("Unexpected exception " + e.getMessage(), e);
     	}
     	
-    	_heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL,
+    	_heartbeatScheduler.scheduleAtFixedRate(_dispatchTask, HEARTBEAT_INTERVAL,
 			HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
-    	_heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
-			GC_INTERVAL, TimeUnit.MILLISECONDS);
+    	_gcScheduler.schedule(getGCTask(), GC_INTERVAL, TimeUnit.MILLISECONDS);
+    	
+    	try {
+    		JmxUtil.registerMBean("AsyncJobManager", "GC", new AsyncJobGCMBeanImpl(this));
+    	} catch(Exception e) {
+    		s_logger.warn("Unable to register async-job GC MBean", e);
+    	}
     	
         return true;
     }
@@ -802,6 +1113,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     @Override
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
+    	_gcScheduler.shutdown();
     	_executor.shutdown();
         return true;
     }
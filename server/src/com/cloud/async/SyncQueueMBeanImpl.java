@@ -0,0 +1,66 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.async;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+/**
+ * Reports how long items of one sync object type waited in their queue
+ * before being dispatched.
+ */
+public class SyncQueueMBeanImpl extends StandardMBean implements SyncQueueMBean {
+	private final String _syncObjType;
+	private final LatencyHistogram _waits;
+	
+	public SyncQueueMBeanImpl(String syncObjType, LatencyHistogram waits) {
+		super(SyncQueueMBean.class, false);
+		_syncObjType = syncObjType;
+		_waits = waits;
+	}
+	
+	public String getSyncObjType() {
+		return _syncObjType;
+	}
+	
+	public long getDispatchCount() {
+		return _waits.getCount();
+	}
+	
+	public long getAverageWaitMillis() {
+		return _waits.getAverage();
+	}
+	
+	public long getP50WaitMillis() {
+		return _waits.getPercentile(50);
+	}
+	
+	public long getP99WaitMillis() {
+		return _waits.getPercentile(99);
+	}
+	
+	public long getMaxWaitMillis() {
+		return _waits.getMax();
+	}
+	
+	public void resetStatistics() {
+		_waits.reset();
+	}
+}
@@ -28,6 +28,28 @@ import com.cloud.utils.db.GenericDao;
 public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
 	AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId);
 	List<AsyncJobVO> findInstancePendingAsyncJobs(AsyncJob.Type instanceType, Long accountId);
-	List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit);
+	
+	/**
+	 * @return ids of up to limit jobs created before cutTime, starting from fromId in ascending order.
+	 */
+	List<Long> listExpiredJobIds(Date cutTime, long fromId, int limit);
+	
+	/**
+	 * @return the jobs created before cutTime with ids between fromId and toId.
+	 */
+	List<AsyncJobVO> listExpiredJobs(Date cutTime, long fromId, long toId);
+	
+	/**
+	 * @return id of the newest job created before cutTime, null if there is none.
+	 */
+	Long getLastExpiredJobId(Date cutTime);
+	
+	/**
+	 * Deletes the jobs created before cutTime with ids between fromId and toId in one statement,
+	 * so a job that is still referenced fails them all.
+	 * @return number of jobs deleted.
+	 * @throws CloudRuntimeException if the statement fails.
+	 */
+	int expungeExpiredJobs(Date cutTime, long fromId, long toId);
 	void resetJobProcess(long msid, int jobResultCode, String jobResultMessage);
 }
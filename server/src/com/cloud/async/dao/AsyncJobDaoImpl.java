@@ -19,9 +19,12 @@
 package com.cloud.async.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
@@ -30,12 +33,13 @@ import org.apache.log4j.Logger;
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.DB;
-import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { AsyncJobDao.class })
 public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements AsyncJobDao {
@@ -43,7 +47,7 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobSearch;	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobsSearch;	
-	private final SearchBuilder<AsyncJobVO> expiringAsyncJobSearch;		
+	private final SearchBuilder<AsyncJobVO> expiringAsyncJobRangeSearch;
 	
 	public AsyncJobDaoImpl() {
 		pendingAsyncJobSearch = createSearchBuilder();
@@ -64,10 +68,12 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 				SearchCriteria.Op.EQ);
 		pendingAsyncJobsSearch.done();
 		
-		expiringAsyncJobSearch = createSearchBuilder();
-		expiringAsyncJobSearch.and("created", expiringAsyncJobSearch.entity().getCreated(), 
+		expiringAsyncJobRangeSearch = createSearchBuilder();
+		expiringAsyncJobRangeSearch.and("created", expiringAsyncJobRangeSearch.entity().getCreated(), 
 			SearchCriteria.Op.LTEQ);
-		expiringAsyncJobSearch.done();
+		expiringAsyncJobRangeSearch.and("id", expiringAsyncJobRangeSearch.entity().getId(), 
+			SearchCriteria.Op.BETWEEN);
+		expiringAsyncJobRangeSearch.done();
 	}
 	
 	public AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId) {
@@ -99,13 +105,72 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         return listBy(sc);
 	}
 	
-	public List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit) {
-		SearchCriteria<AsyncJobVO> sc = expiringAsyncJobSearch.create();
+	public List<AsyncJobVO> listExpiredJobs(Date cutTime, long fromId, long toId) {
+		SearchCriteria<AsyncJobVO> sc = expiringAsyncJobRangeSearch.create();
 		sc.setParameters("created", cutTime);
-		Filter filter = new Filter(AsyncJobVO.class, "created", true, 0L, (long)limit);
-		return listIncludingRemovedBy(sc, filter);
+		sc.setParameters("id", fromId, toId);
+		return listIncludingRemovedBy(sc);
 	}
-
+	
+	@DB
+	public List<Long> listExpiredJobIds(Date cutTime, long fromId, int limit) {
+		String sql = "SELECT id FROM async_job WHERE id >= ? AND created <= ? ORDER BY id LIMIT ?";
+		
+		List<Long> ids = new ArrayList<Long>();
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, fromId);
+            pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), cutTime));
+            pstmt.setInt(3, limit);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+        } catch (SQLException e) {
+        	throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+        return ids;
+	}
+	
+	@DB
+	public Long getLastExpiredJobId(Date cutTime) {
+		// walks back from the newest job, so only the jobs that have not expired yet are read
+		String sql = "SELECT id FROM async_job WHERE created <= ? ORDER BY id DESC LIMIT 1";
+		
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setString(1, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), cutTime));
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+        	throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+        return null;
+	}
+	
+	@DB
+	public int expungeExpiredJobs(Date cutTime, long fromId, long toId) {
+		String sql = "DELETE FROM async_job WHERE id >= ? AND id <= ? AND created <= ?";
+		
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, fromId);
+            pstmt.setLong(2, toId);
+            pstmt.setString(3, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), cutTime));
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+        	throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+	}
+	
 	@DB
 	public void resetJobProcess(long msid, int jobResultCode, String jobResultMessage) {
 		String sql = "UPDATE async_job SET job_status=" + AsyncJobResult.STATUS_FAILED + ", job_result_code=" + jobResultCode 
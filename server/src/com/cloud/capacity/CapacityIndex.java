@@ -0,0 +1,583 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CapacityIndex keeps the cpu and memory rows of op_host_capacity in memory
+ * so the planners can pick clusters and hosts without going to the database.
+ * Hosts of a cluster are kept sorted by free cpu and by free memory, which
+ * makes finding the hosts that can take a vm O(log n).
+ *
+ * The index is a hint for planning, the capacity rows remain the source of
+ * truth: CapacityManager writes its changes through as deltas after they are
+ * committed and reconciles the whole index with the database periodically.
+ * It is kept per management server, so capacity changed by another one is
+ * only seen after the next reconcile; callers must fall back to the
+ * database when the index finds nothing.
+ */
+public class CapacityIndex {
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private Map<Long, HostCapacity> _hosts = new HashMap<Long, HostCapacity>();
+    private Map<Long, ClusterCapacity> _clusters = new HashMap<Long, ClusterCapacity>();
+    private float _cpuOverprovisioningFactor;
+    private volatile boolean _ready = false;
+    private volatile long _lastReconciled;
+    private volatile int _lastDrift;
+
+    public CapacityIndex(float cpuOverprovisioningFactor) {
+        _cpuOverprovisioningFactor = cpuOverprovisioningFactor;
+    }
+
+    public static class HostCapacity {
+        final long _hostId;
+        long _zoneId;
+        Long _podId;
+        Long _clusterId;
+        long _usedCpu;
+        long _reservedCpu;
+        long _totalCpu;
+        long _usedMem;
+        long _reservedMem;
+        long _totalMem;
+        boolean _hasCpu;
+        boolean _hasMem;
+        long _freeCpu;              // as sorted, with the factor of the index
+        long _listedCpu;            // free cpu as CapacityDao lists clusters, reserved counted as free
+
+        public HostCapacity(long hostId) {
+            _hostId = hostId;
+        }
+
+        protected HostCapacity(HostCapacity other) {
+            _hostId = other._hostId;
+            _zoneId = other._zoneId;
+            _podId = other._podId;
+            _clusterId = other._clusterId;
+            _usedCpu = other._usedCpu;
+            _reservedCpu = other._reservedCpu;
+            _totalCpu = other._totalCpu;
+            _usedMem = other._usedMem;
+            _reservedMem = other._reservedMem;
+            _totalMem = other._totalMem;
+            _hasCpu = other._hasCpu;
+            _hasMem = other._hasMem;
+            _freeCpu = other._freeCpu;
+            _listedCpu = other._listedCpu;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public Long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getUsedCpu() {
+            return _usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return _reservedCpu;
+        }
+
+        public long getTotalCpu() {
+            return _totalCpu;
+        }
+
+        public long getUsedMemory() {
+            return _usedMem;
+        }
+
+        public long getReservedMemory() {
+            return _reservedMem;
+        }
+
+        public long getTotalMemory() {
+            return _totalMem;
+        }
+
+        protected long freeCpu(float cpuOverprovisioningFactor) {
+            return (long)(_totalCpu * cpuOverprovisioningFactor) - _usedCpu - _reservedCpu;
+        }
+
+        protected long freeMem() {
+            return _totalMem - _usedMem - _reservedMem;
+        }
+
+        protected long listedCpu(float cpuOverprovisioningFactor) {
+            return (long)(_totalCpu * cpuOverprovisioningFactor) - _usedCpu + _reservedCpu;
+        }
+
+        protected long listedMem() {
+            return _totalMem - _usedMem + _reservedMem;
+        }
+
+        protected boolean isComplete() {
+            return _hasCpu && _hasMem && _clusterId != null;
+        }
+
+        @Override
+        public String toString() {
+            return "Host[" + _hostId + ", cpu " + _usedCpu + "+" + _reservedCpu + "/" + _totalCpu + ", mem " + _usedMem + "+" + _reservedMem + "/" + _totalMem + "]";
+        }
+    }
+
+    protected static final Comparator<HostCapacity> s_byFreeCpu = new Comparator<HostCapacity>() {
+        @Override
+        public int compare(HostCapacity h1, HostCapacity h2) {
+            if (h1._freeCpu != h2._freeCpu) {
+                return h1._freeCpu < h2._freeCpu ? -1 : 1;
+            }
+            return h1._hostId < h2._hostId ? -1 : (h1._hostId == h2._hostId ? 0 : 1);
+        }
+    };
+
+    protected static final Comparator<HostCapacity> s_byFreeMem = new Comparator<HostCapacity>() {
+        @Override
+        public int compare(HostCapacity h1, HostCapacity h2) {
+            long free1 = h1.freeMem();
+            long free2 = h2.freeMem();
+            if (free1 != free2) {
+                return free1 < free2 ? -1 : 1;
+            }
+            return h1._hostId < h2._hostId ? -1 : (h1._hostId == h2._hostId ? 0 : 1);
+        }
+    };
+
+    protected static final Comparator<HostCapacity> s_byListedCpu = new Comparator<HostCapacity>() {
+        @Override
+        public int compare(HostCapacity h1, HostCapacity h2) {
+            if (h1._listedCpu != h2._listedCpu) {
+                return h1._listedCpu < h2._listedCpu ? -1 : 1;
+            }
+            return h1._hostId < h2._hostId ? -1 : (h1._hostId == h2._hostId ? 0 : 1);
+        }
+    };
+
+    protected static final Comparator<HostCapacity> s_byListedMem = new Comparator<HostCapacity>() {
+        @Override
+        public int compare(HostCapacity h1, HostCapacity h2) {
+            long listed1 = h1.listedMem();
+            long listed2 = h2.listedMem();
+            if (listed1 != listed2) {
+                return listed1 < listed2 ? -1 : 1;
+            }
+            return h1._hostId < h2._hostId ? -1 : (h1._hostId == h2._hostId ? 0 : 1);
+        }
+    };
+
+    protected static class ClusterCapacity {
+        final long _clusterId;
+        long _zoneId;
+        Long _podId;
+        final TreeSet<HostCapacity> _byFreeCpu = new TreeSet<HostCapacity>(s_byFreeCpu);
+        final TreeSet<HostCapacity> _byFreeMem = new TreeSet<HostCapacity>(s_byFreeMem);
+        final TreeSet<HostCapacity> _byListedCpu = new TreeSet<HostCapacity>(s_byListedCpu);
+        final TreeSet<HostCapacity> _byListedMem = new TreeSet<HostCapacity>(s_byListedMem);
+        long _usedCpu;
+        long _reservedCpu;
+        long _totalCpu;
+        long _usedMem;
+        long _reservedMem;
+        long _totalMem;
+
+        ClusterCapacity(long clusterId) {
+            _clusterId = clusterId;
+        }
+
+        void add(HostCapacity host) {
+            _byFreeCpu.add(host);
+            _byFreeMem.add(host);
+            _byListedCpu.add(host);
+            _byListedMem.add(host);
+            _usedCpu += host._usedCpu;
+            _reservedCpu += host._reservedCpu;
+            _totalCpu += host._totalCpu;
+            _usedMem += host._usedMem;
+            _reservedMem += host._reservedMem;
+            _totalMem += host._totalMem;
+        }
+
+        void remove(HostCapacity host) {
+            _byFreeCpu.remove(host);
+            _byFreeMem.remove(host);
+            _byListedCpu.remove(host);
+            _byListedMem.remove(host);
+            _usedCpu -= host._usedCpu;
+            _reservedCpu -= host._reservedCpu;
+            _totalCpu -= host._totalCpu;
+            _usedMem -= host._usedMem;
+            _reservedMem -= host._reservedMem;
+            _totalMem -= host._totalMem;
+        }
+
+        boolean isEmpty() {
+            return _byFreeCpu.isEmpty();
+        }
+
+        double usedRatio(short capacityType, float cpuOverprovisioningFactor) {
+            double used;
+            double total;
+            if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+                used = _usedCpu + _reservedCpu;
+                total = _totalCpu * (double)cpuOverprovisioningFactor;
+            } else {
+                used = _usedMem + _reservedMem;
+                total = _totalMem;
+            }
+            return total > 0 ? used / total : Double.MAX_VALUE;
+        }
+    }
+
+    public boolean isReady() {
+        return _ready;
+    }
+
+    public long getLastReconciled() {
+        return _lastReconciled;
+    }
+
+    /**
+     * @return number of hosts that differed from the database at the last reconcile.
+     */
+    public int getLastDrift() {
+        return _lastDrift;
+    }
+
+    public int getHostCount() {
+        _lock.readLock().lock();
+        try {
+            return _hosts.size();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public float getCpuOverprovisioningFactor() {
+        _lock.readLock().lock();
+        try {
+            return _cpuOverprovisioningFactor;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Re-sorts the hosts if the factor changed since the index was built.
+     */
+    public void setCpuOverprovisioningFactor(float cpuOverprovisioningFactor) {
+        _lock.writeLock().lock();
+        try {
+            if (_cpuOverprovisioningFactor == cpuOverprovisioningFactor) {
+                return;
+            }
+            _cpuOverprovisioningFactor = cpuOverprovisioningFactor;
+            List<HostCapacity> hosts = new ArrayList<HostCapacity>(_hosts.values());
+            _hosts = new HashMap<Long, HostCapacity>();
+            _clusters = new HashMap<Long, ClusterCapacity>();
+            for (HostCapacity host : hosts) {
+                _hosts.put(host._hostId, host);
+                attach(host);
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the clusters in the zone or pod that have a host with enough cpu
+     * and a host with enough memory, least used first, the same as
+     * CapacityDao.listClustersInZoneOrPodByHostCapacities and
+     * orderClustersByAggregateCapacity together.  Like the former, a host's
+     * capacity counts here as total * factor - used + reserved.
+     */
+    public List<Long> listClustersByCapacity(long id, boolean isZone, int requiredCpu, long requiredRam, final short capacityTypeForOrdering, float cpuOverprovisioningFactor) {
+        setCpuOverprovisioningFactor(cpuOverprovisioningFactor);
+
+        _lock.readLock().lock();
+        try {
+            final float factor = _cpuOverprovisioningFactor;
+            List<ClusterCapacity> clusters = new ArrayList<ClusterCapacity>();
+            for (ClusterCapacity cluster : _clusters.values()) {
+                if (isZone ? cluster._zoneId != id : (cluster._podId == null || cluster._podId.longValue() != id)) {
+                    continue;
+                }
+                if (cluster._byListedCpu.last()._listedCpu >= requiredCpu && cluster._byListedMem.last().listedMem() >= requiredRam) {
+                    clusters.add(cluster);
+                }
+            }
+
+            Collections.sort(clusters, new Comparator<ClusterCapacity>() {
+                @Override
+                public int compare(ClusterCapacity c1, ClusterCapacity c2) {
+                    int result = Double.compare(c1.usedRatio(capacityTypeForOrdering, factor), c2.usedRatio(capacityTypeForOrdering, factor));
+                    if (result != 0) {
+                        return result;
+                    }
+                    return c1._clusterId < c2._clusterId ? -1 : (c1._clusterId == c2._clusterId ? 0 : 1);
+                }
+            });
+
+            List<Long> result = new ArrayList<Long>(clusters.size());
+            for (ClusterCapacity cluster : clusters) {
+                result.add(cluster._clusterId);
+            }
+            return result;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the hosts of the cluster that have both the cpu and the memory
+     * asked for, counting reserved capacity as taken.
+     */
+    public List<Long> listHostsWithCapacity(long clusterId, int requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        setCpuOverprovisioningFactor(cpuOverprovisioningFactor);
+
+        _lock.readLock().lock();
+        try {
+            List<Long> result = new ArrayList<Long>();
+            ClusterCapacity cluster = _clusters.get(clusterId);
+            if (cluster == null) {
+                return result;
+            }
+
+            HostCapacity key = new HostCapacity(Long.MIN_VALUE);
+            key._freeCpu = requiredCpu;
+            for (HostCapacity host : cluster._byFreeCpu.tailSet(key, true)) {
+                if (host.freeMem() >= requiredRam) {
+                    result.add(host._hostId);
+                }
+            }
+            return result;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the capacity of the host, null if the index does not know it.
+     */
+    public HostCapacity getHost(long hostId) {
+        _lock.readLock().lock();
+        try {
+            HostCapacity host = _hosts.get(hostId);
+            return host != null && host._hasCpu && host._hasMem ? new HostCapacity(host) : null;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return used, reserved and total capacity of the cluster, null if the index does not know it.
+     */
+    public long[] getClusterCapacity(long clusterId, short capacityType) {
+        _lock.readLock().lock();
+        try {
+            ClusterCapacity cluster = _clusters.get(clusterId);
+            if (cluster == null) {
+                return null;
+            }
+            if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+                return new long[] { cluster._usedCpu, cluster._reservedCpu, cluster._totalCpu };
+            }
+            return new long[] { cluster._usedMem, cluster._reservedMem, cluster._totalMem };
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a committed change to the used and reserved capacity of a host.
+     * Changes are applied as deltas so that concurrent writers need not be
+     * applied in the order they committed.
+     */
+    public void adjust(long hostId, short capacityType, long usedDelta, long reservedDelta) {
+        if (capacityType != Capacity.CAPACITY_TYPE_CPU && capacityType != Capacity.CAPACITY_TYPE_MEMORY) {
+            return;
+        }
+
+        _lock.writeLock().lock();
+        try {
+            HostCapacity host = _hosts.get(hostId);
+            if (host == null) {
+                return;
+            }
+            detach(host);
+            if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+                host._usedCpu += usedDelta;
+                host._reservedCpu += reservedDelta;
+            } else {
+                host._usedMem += usedDelta;
+                host._reservedMem += reservedDelta;
+            }
+            attach(host);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the host's capacity of the type to what the row holds.
+     */
+    public void update(CapacityVO capacity) {
+        short capacityType = capacity.getCapacityType();
+        if (capacity.getHostOrPoolId() == null || (capacityType != Capacity.CAPACITY_TYPE_CPU && capacityType != Capacity.CAPACITY_TYPE_MEMORY)) {
+            return;
+        }
+
+        _lock.writeLock().lock();
+        try {
+            long hostId = capacity.getHostOrPoolId();
+            HostCapacity host = _hosts.get(hostId);
+            if (host == null) {
+                host = new HostCapacity(hostId);
+                _hosts.put(hostId, host);
+            } else {
+                detach(host);
+            }
+            set(host, capacity);
+            attach(host);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long hostId) {
+        _lock.writeLock().lock();
+        try {
+            HostCapacity host = _hosts.remove(hostId);
+            if (host != null) {
+                detach(host);
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the content of the index with the cpu and memory rows read
+     * from the database.
+     *
+     * @return number of hosts whose capacity was different in the index.
+     */
+    public int reconcile(List<CapacityVO> capacities) {
+        Map<Long, HostCapacity> hosts = new HashMap<Long, HostCapacity>();
+        for (CapacityVO capacity : capacities) {
+            short capacityType = capacity.getCapacityType();
+            if (capacity.getHostOrPoolId() == null || (capacityType != Capacity.CAPACITY_TYPE_CPU && capacityType != Capacity.CAPACITY_TYPE_MEMORY)) {
+                continue;
+            }
+            HostCapacity host = hosts.get(capacity.getHostOrPoolId());
+            if (host == null) {
+                host = new HostCapacity(capacity.getHostOrPoolId());
+                hosts.put(host._hostId, host);
+            }
+            set(host, capacity);
+        }
+
+        _lock.writeLock().lock();
+        try {
+            int drift = 0;
+            for (HostCapacity host : hosts.values()) {
+                HostCapacity old = _hosts.get(host._hostId);
+                if (old == null || old._usedCpu != host._usedCpu || old._reservedCpu != host._reservedCpu || old._totalCpu != host._totalCpu
+                        || old._usedMem != host._usedMem || old._reservedMem != host._reservedMem || old._totalMem != host._totalMem) {
+                    drift++;
+                }
+            }
+            for (Long hostId : _hosts.keySet()) {
+                if (!hosts.containsKey(hostId)) {
+                    drift++;
+                }
+            }
+
+            _hosts = hosts;
+            _clusters = new HashMap<Long, ClusterCapacity>();
+            for (HostCapacity host : hosts.values()) {
+                attach(host);
+            }
+
+            _lastDrift = _ready ? drift : 0;
+            _lastReconciled = System.currentTimeMillis();
+            _ready = true;
+            return _lastDrift;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    protected static void set(HostCapacity host, CapacityVO capacity) {
+        host._zoneId = capacity.getDataCenterId();
+        host._podId = capacity.getPodId();
+        host._clusterId = capacity.getClusterId();
+        if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+            host._usedCpu = capacity.getUsedCapacity();
+            host._reservedCpu = capacity.getReservedCapacity();
+            host._totalCpu = capacity.getTotalCapacity();
+            host._hasCpu = true;
+        } else {
+            host._usedMem = capacity.getUsedCapacity();
+            host._reservedMem = capacity.getReservedCapacity();
+            host._totalMem = capacity.getTotalCapacity();
+            host._hasMem = true;
+        }
+    }
+
+    // both must be called with the write lock held, the trees have to be
+    // left before the values they are sorted by change
+    private void attach(HostCapacity host) {
+        if (!host.isComplete()) {
+            return;
+        }
+        host._freeCpu = host.freeCpu(_cpuOverprovisioningFactor);
+        host._listedCpu = host.listedCpu(_cpuOverprovisioningFactor);
+        ClusterCapacity cluster = _clusters.get(host._clusterId);
+        if (cluster == null) {
+            cluster = new ClusterCapacity(host._clusterId);
+            _clusters.put(host._clusterId, cluster);
+        }
+        cluster._zoneId = host._zoneId;
+        cluster._podId = host._podId;
+        cluster.add(host);
+    }
+
+    private void detach(HostCapacity host) {
+        if (!host.isComplete()) {
+            return;
+        }
+        ClusterCapacity cluster = _clusters.get(host._clusterId);
+        if (cluster != null) {
+            cluster.remove(host);
+            if (cluster.isEmpty()) {
+                _clusters.remove(host._clusterId);
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package com.cloud.capacity;
 
+import java.util.List;
+
 import com.cloud.host.HostVO;
 import com.cloud.utils.component.Manager;
 import com.cloud.vm.VirtualMachine;
@@ -43,4 +45,27 @@ public interface CapacityManager extends Manager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, boolean considerReservedCapacity);
     
 	void updateCapacityForHost(HostVO host);
+	
+	/**
+	 * Reserves capacity for a group of stopped vms of the same service offering on the hosts planned for
+	 * them, and makes each host the last host of its vm so that starting the vm uses up the reservation.
+	 * A vm moved off its previous last host gives back the capacity it still held there. Either all of
+	 * the capacity is reserved or none of it.
+	 * 
+	 * @param vms virtual machines to reserve capacity for
+	 * @param hostIds host planned for each of the vms
+	 * @return true if the capacity is reserved, false if one of the hosts does not have enough
+	 */
+	boolean reserveVmCapacity(List<? extends VirtualMachine> vms, List<Long> hostIds);
+	
+	/**
+	 * @return the in-memory capacity of the hosts, null if the planners should go to the database.
+	 */
+	CapacityIndex getCapacityIndex();
+	
+	/**
+	 * Drops a removed host from the capacity index once the current transaction commits
+	 * the removal of its capacity rows.
+	 */
+	void removeFromCapacityIndex(long hostId);
 }
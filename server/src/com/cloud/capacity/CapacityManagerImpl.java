@@ -17,11 +17,14 @@
  */
 package com.cloud.capacity;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -86,6 +89,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     private boolean _stopped;
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
+    private int _capacityIndexReconcileInterval;
+    private CapacityIndex _capacityIndex;
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -98,6 +103,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _cpuOverProvisioningFactor = 1.0f;
         }
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
+        _capacityIndexReconcileInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityIndexReconcileInterval.key()), 300);
+        if (_capacityIndexReconcileInterval > 0) {
+            _capacityIndex = new CapacityIndex(_cpuOverProvisioningFactor);
+        }
         VirtualMachine.State.getStateMachine().registerListener(this);
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageOverProvisioningFactor), true, false, false);
         _agentManager.registerForHostEvents(new ComputeCapacityListener(_capacityDao, this, _cpuOverProvisioningFactor), true, false, false);
@@ -107,9 +116,38 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
     @Override
     public boolean start() {
+        if (_capacityIndex != null) {
+            _executor.scheduleWithFixedDelay(new CapacityIndexReconciler(), 0, _capacityIndexReconcileInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
+    @Override
+    public CapacityIndex getCapacityIndex() {
+        return _capacityIndex != null && _capacityIndex.isReady() ? _capacityIndex : null;
+    }
+
+    protected class CapacityIndexReconciler implements Runnable {
+        @Override
+        public void run() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                long begin = System.currentTimeMillis();
+                int drift = _capacityIndex.reconcile(_capacityDao.listComputeCapacities());
+                if (drift > 0) {
+                    s_logger.info("Capacity index had drifted from the database on " + drift + " hosts");
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Reconciled capacity index of " + _capacityIndex.getHostCount() + " hosts in " + (System.currentTimeMillis() - begin) + "ms");
+                }
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reconcile the capacity index", e);
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
     @Override
     public boolean stop() {
         _executor.shutdownNow();
@@ -192,6 +230,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
+            adjustCapacityIndexOnCommit(txn, hostId, capacityCpu.getUsedCapacity() - usedCpu, capacityCpu.getReservedCapacity() - reservedCpu,
+                    capacityMemory.getUsedCapacity() - usedMem, capacityMemory.getReservedCapacity() - reservedMem);
             txn.commit();
             return true;
         } catch (Exception e) {
@@ -282,11 +322,154 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
+            adjustCapacityIndexOnCommit(txn, hostId, capacityCpu.getUsedCapacity() - usedCpu, capacityCpu.getReservedCapacity() - reservedCpu,
+                    capacityMem.getUsedCapacity() - usedMem, capacityMem.getReservedCapacity() - reservedMem);
+            txn.commit();
+        } catch (Exception e) {
+            txn.rollback();
+            return;
+        }
+    }
+
+    @DB
+    @Override
+    public boolean reserveVmCapacity(List<? extends VirtualMachine> vms, List<Long> hostIds) {
+        if (vms.isEmpty()) {
+            return true;
+        }
+        ServiceOfferingVO svo = _offeringsDao.findById(vms.get(0).getServiceOfferingId());
+        if (svo == null || vms.size() != hostIds.size()) {
+            return false;
+        }
+        int cpu = svo.getCpu() * svo.getSpeed();
+        long ram = svo.getRamSize() * 1024L * 1024L;
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1);
+
+        // a stopped VM keeps its capacity reserved on its last host, so moving
+        // the VM to a new host hands that reservation back. Count the net change
+        // per host and lock the rows in host order so that two groups cannot
+        // deadlock each other.
+        Map<Long, Integer> counts = new TreeMap<Long, Integer>();
+        for (int i = 0; i < vms.size(); i++) {
+            Long hostId = hostIds.get(i);
+            Long lastHostId = vms.get(i).getLastHostId();
+            if (hostId.equals(lastHostId)) {
+                continue;
+            }
+            Integer count = counts.get(hostId);
+            counts.put(hostId, count == null ? 1 : count + 1);
+            if (lastHostId != null) {
+                count = counts.get(lastHostId);
+                counts.put(lastHostId, count == null ? -1 : count - 1);
+            }
+        }
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+                long hostId = entry.getKey();
+                int count = entry.getValue();
+                if (count == 0) {
+                    continue;
+                }
+                CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+                CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+                if (capacityCpu == null || capacityMem == null) {
+                    if (count < 0) {
+                        // the old host is gone along with its reservation
+                        continue;
+                    }
+                    s_logger.debug("Capacity entries are missing for host " + hostId + ", unable to reserve capacity");
+                    txn.rollback();
+                    return false;
+                }
+                capacityCpu = _capacityDao.lockRow(capacityCpu.getId(), true);
+                capacityMem = _capacityDao.lockRow(capacityMem.getId(), true);
+
+                long requestedCpu = (long)cpu * count;
+                long requestedMem = ram * count;
+                if (count > 0) {
+                    long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOverprovisioningFactor);
+                    if (capacityCpu.getUsedCapacity() + capacityCpu.getReservedCapacity() + requestedCpu > totalCpu
+                            || capacityMem.getUsedCapacity() + capacityMem.getReservedCapacity() + requestedMem > capacityMem.getTotalCapacity()) {
+                        s_logger.debug("Host " + hostId + " no longer has room for " + count + " VMs, unable to reserve capacity");
+                        txn.rollback();
+                        return false;
+                    }
+                } else {
+                    // the reservation may already have been released by the capacity checker
+                    requestedCpu = -Math.min(-requestedCpu, capacityCpu.getReservedCapacity());
+                    requestedMem = -Math.min(-requestedMem, capacityMem.getReservedCapacity());
+                }
+
+                capacityCpu.setReservedCapacity(capacityCpu.getReservedCapacity() + requestedCpu);
+                capacityMem.setReservedCapacity(capacityMem.getReservedCapacity() + requestedMem);
+                _capacityDao.update(capacityCpu.getId(), capacityCpu);
+                _capacityDao.update(capacityMem.getId(), capacityMem);
+                adjustCapacityIndexOnCommit(txn, hostId, 0, requestedCpu, 0, requestedMem);
+            }
+
+            // a stopped VM only counts against its last host for capacity.skipcounting.hours
+            // after its last update, so the reservation starts that clock again
+            Date now = DateUtil.currentGMTTime();
+            for (int i = 0; i < vms.size(); i++) {
+                VMInstanceVO vo = _vmDao.createForUpdate();
+                vo.setLastHostId(hostIds.get(i));
+                vo.setUpdateTime(now);
+                _vmDao.update(vms.get(i).getId(), vo);
+            }
             txn.commit();
         } catch (Exception e) {
+            s_logger.warn("Unable to reserve capacity for " + vms.size() + " VMs", e);
             txn.rollback();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a change to the capacity rows of a host through to the index
+     * once the outermost transaction has committed it.
+     */
+    private void adjustCapacityIndexOnCommit(Transaction txn, final long hostId, final long usedCpuDelta, final long reservedCpuDelta,
+            final long usedMemDelta, final long reservedMemDelta) {
+        if (_capacityIndex == null) {
             return;
         }
+        txn.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacityIndex.adjust(hostId, CapacityVO.CAPACITY_TYPE_CPU, usedCpuDelta, reservedCpuDelta);
+                _capacityIndex.adjust(hostId, CapacityVO.CAPACITY_TYPE_MEMORY, usedMemDelta, reservedMemDelta);
+            }
+        });
+    }
+
+    private void updateCapacityIndexOnCommit(Transaction txn, final CapacityVO cpuCapacity, final CapacityVO memCapacity) {
+        if (_capacityIndex == null) {
+            return;
+        }
+        txn.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacityIndex.update(cpuCapacity);
+                _capacityIndex.update(memCapacity);
+            }
+        });
+    }
+
+    @Override @DB
+    public void removeFromCapacityIndex(final long hostId) {
+        if (_capacityIndex == null) {
+            return;
+        }
+        Transaction.currentTxn().onCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacityIndex.remove(hostId);
+            }
+        });
     }
 
     @Override
@@ -486,20 +669,21 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 	        try {
 	            _capacityDao.update(cpuCap.getId(), cpuCap);
 	            _capacityDao.update(memCap.getId(), memCap);
+	            updateCapacityIndexOnCommit(Transaction.currentTxn(), cpuCap, memCap);
 	        } catch (Exception e) {
 	
 	        }
         }else {
         	Transaction txn = Transaction.currentTxn();
         	txn.start();
-        	CapacityVO capacity = new CapacityVO(host.getId(),
+        	CapacityVO memCapacity = new CapacityVO(host.getId(),
                     host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory,
                     host.getTotalMemory(),
                     CapacityVO.CAPACITY_TYPE_MEMORY);
-            capacity.setReservedCapacity(reservedMemory);
-            _capacityDao.persist(capacity);
+            memCapacity.setReservedCapacity(reservedMemory);
+            _capacityDao.persist(memCapacity);
         	
-            capacity = new CapacityVO(
+            CapacityVO cpuCapacity = new CapacityVO(
                     host.getId(),
                     host.getDataCenterId(),
                     host.getPodId(), 
@@ -507,8 +691,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     usedCpu,
                     (long)(host.getCpus().longValue() * host.getSpeed().longValue()),
                     CapacityVO.CAPACITY_TYPE_CPU);
-            capacity.setReservedCapacity(reservedCpu);
-            _capacityDao.persist(capacity);
+            cpuCapacity.setReservedCapacity(reservedCpu);
+            _capacityDao.persist(cpuCapacity);
+            updateCapacityIndexOnCommit(txn, cpuCapacity, memCapacity);
             txn.commit();
             
         }
@@ -571,7 +756,7 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         
         if ((newState == State.Starting || newState == State.Migrating || event == Event.AgentReportMigrated) && vm.getHostId() != null) {
             boolean fromLastHost = false;
-            if (vm.getLastHostId() == vm.getHostId()) {
+            if (vm.getHostId().equals(vm.getLastHostId())) {
                 s_logger.debug("VM starting again on the last host it was stopped on");
                 fromLastHost = true;
             }
@@ -33,4 +33,9 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	List<SummedCapacity> findNonSharedStorageForClusterPodZone(Long zoneId,Long podId, Long clusterId);
     List<Long> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor);
 	List<SummedCapacity> findCapacityBy(Integer capacityType, Long zoneId, Long podId, Long clusterId);
+	
+	/**
+	 * @return the cpu and memory capacity of every host in a cluster that has not been removed.
+	 */
+	List<CapacityVO> listComputeCapacities();
 }
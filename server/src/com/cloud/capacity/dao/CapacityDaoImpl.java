@@ -70,6 +70,10 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
 	
     private static final String ORDER_CLUSTERS_BY_AGGREGATE_CAPACITY_PART1 = "SELECT cluster_id FROM `cloud`.`op_host_capacity` WHERE " ;
     private static final String ORDER_CLUSTERS_BY_AGGREGATE_CAPACITY_PART2 = " AND capacity_type = ? GROUP BY cluster_id ORDER BY SUM(used_capacity+reserved_capacity)/SUM(total_capacity * ?) ASC";
+
+    private static final String LIST_COMPUTE_CAPACITIES = "SELECT capacity.host_id, capacity.data_center_id, capacity.pod_id, capacity.cluster_id, capacity.used_capacity, capacity.reserved_capacity, " +
+            "capacity.total_capacity, capacity.capacity_type FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL) " +
+            "WHERE capacity.capacity_type IN (?, ?)";
 	
     
     public CapacityDaoImpl() {
@@ -415,4 +419,29 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
             throw new CloudRuntimeException("Caught: " + sql, e);
         }
     }
+
+    @Override
+    public List<CapacityVO> listComputeCapacities() {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        List<CapacityVO> result = new ArrayList<CapacityVO>();
+
+        try {
+            pstmt = txn.prepareAutoCloseStatement(LIST_COMPUTE_CAPACITIES);
+            pstmt.setShort(1, CapacityVO.CAPACITY_TYPE_CPU);
+            pstmt.setShort(2, CapacityVO.CAPACITY_TYPE_MEMORY);
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                CapacityVO capacity = new CapacityVO(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(7), rs.getShort(8));
+                capacity.setReservedCapacity(rs.getLong(6));
+                result.add(capacity);
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + LIST_COMPUTE_CAPACITIES, e);
+        } catch (Throwable e) {
+            throw new CloudRuntimeException("Caught: " + LIST_COMPUTE_CAPACITIES, e);
+        }
+    }
 }
@@ -66,6 +66,24 @@ public interface ClusterManager extends Manager {
      */
     public void broadcast(long agentId, Command[] cmds);
     
+    /**
+     * Sends the command to all of the other management server nodes in the
+     * background.  Their answers are ignored, a peer that can't be reached
+     * is tried a few more times before giving up.
+     * @param cmd command that a ClusterCommandHandler is registered for on the peers.
+     */
+    public void notifyPeers(Command cmd);
+    
+    /**
+     * Registers the handler for commands of this class coming from peers.
+     */
+    public void registerCommandHandler(Class<? extends Command> clazz, ClusterCommandHandler handler);
+    
+    /**
+     * @return the answer from the handler registered for the command or null if there's none.
+     */
+    public Answer handlePeerCommand(Command cmd);
+    
     boolean rebalanceAgent(long agentId, Event event, long currentOwnerId, long futureOwnerId) throws AgentUnavailableException, OperationTimedoutException;
     
     boolean isAgentRebalanceEnabled();
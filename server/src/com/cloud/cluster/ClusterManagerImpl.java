@@ -33,6 +33,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -91,6 +92,7 @@ public class ClusterManagerImpl implements ClusterManager {
 
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
+    private static final int NOTIFY_PEER_ATTEMPTS = 3;
 
 
     private final List<ClusterManagerListener> listeners = new ArrayList<ClusterManagerListener>();
@@ -112,11 +114,13 @@ public class ClusterManagerImpl implements ClusterManager {
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-Heartbeat"));
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
     private final List<ClusterManagerMessage> _notificationMsgs = new ArrayList<ClusterManagerMessage>();
+    private final Map<Class<?>, ClusterCommandHandler> _commandHandlers = new ConcurrentHashMap<Class<?>, ClusterCommandHandler>();
     private ConnectionConcierge _heartbeatConnection = null;
 
     private final ExecutorService _executor;
 
     private ClusterServiceAdapter _currentServiceAdapter;
+    private EntityCacheSynchronizer _cacheSynchronizer;
 
     private ManagementServerHostDao _mshostDao;
     private HostDao _hostDao;
@@ -233,13 +237,62 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    @Override
+    public void notifyPeers(final Command cmd) {
+        final Date cutTime = DateUtil.currentGMTTime();
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<ManagementServerHostVO> peers = _mshostDao.getActiveList(new Date(cutTime.getTime() - heartbeatThreshold));
+                for (ManagementServerHostVO peer : peers) {
+                    String peerName = Long.toString(peer.getMsid());
+                    if (getSelfPeerName().equals(peerName)) {
+                        continue;
+                    }
+                    for (int i = 0; i < NOTIFY_PEER_ATTEMPTS; i++) {
+                        try {
+                            if (execute(peerName, 0, new Command[] { cmd }, false) != null) {
+                                break;
+                            }
+                        } catch (Exception e) {
+                            s_logger.debug("Unable to notify " + peerName + " of " + cmd.getClass().getSimpleName() + ": " + e.getMessage());
+                        }
+                        if (i == NOTIFY_PEER_ATTEMPTS - 1) {
+                            s_logger.warn("Gave up notifying " + peerName + " of " + cmd.getClass().getSimpleName() + " after " + NOTIFY_PEER_ATTEMPTS + " attempts");
+                            break;
+                        }
+                        try {
+                            Thread.sleep(1000L << i);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void registerCommandHandler(Class<? extends Command> clazz, ClusterCommandHandler handler) {
+        _commandHandlers.put(clazz, handler);
+    }
+
+    @Override
+    public Answer handlePeerCommand(Command cmd) {
+        ClusterCommandHandler handler = _commandHandlers.get(cmd.getClass());
+        if (handler == null) {
+            return null;
+        }
+        return handler.handleCommand(cmd);
+    }
+
     @Override
     public Answer[] execute(String strPeer, long agentId, Command [] cmds, boolean stopOnError) {
         ClusterService peerService =  null;
+        String gsonPackage = gson.toJson(cmds, Command[].class);
 
         if(s_logger.isDebugEnabled()) {
-            s_logger.debug(getSelfPeerName() + " -> " + strPeer + "." + agentId + " " +
-                    gson.toJson(cmds, Command[].class));
+            s_logger.debug(getSelfPeerName() + " -> " + strPeer + "." + agentId + " " + gsonPackage);
         }
 
         for(int i = 0; i < 2; i++) {
@@ -256,7 +309,7 @@ public class ClusterManagerImpl implements ClusterManager {
                     }
 
                     long startTick = System.currentTimeMillis();
-                    String strResult = peerService.execute(getSelfPeerName(), agentId, gson.toJson(cmds, Command[].class), stopOnError);
+                    String strResult = peerService.execute(getSelfPeerName(), agentId, gsonPackage, stopOnError);
                     if(s_logger.isDebugEnabled()) {
                         s_logger.debug("Completed " + getSelfPeerName() + " -> " + strPeer + "." + agentId + "in " +
                                 (System.currentTimeMillis() - startTick) + " ms, result: " + strResult);
@@ -286,10 +339,10 @@ public class ClusterManagerImpl implements ClusterManager {
     @Override
     public long executeAsync(String strPeer, long agentId, Command[] cmds, boolean stopOnError, Listener listener) {
         ClusterService peerService =  null;
+        String gsonPackage = gson.toJson(cmds, Command[].class);
 
         if(s_logger.isDebugEnabled()) {
-            s_logger.debug("Async " + getSelfPeerName() + " -> " + strPeer + "." + agentId + " " +
-                    gson.toJson(cmds, Command[].class));
+            s_logger.debug("Async " + getSelfPeerName() + " -> " + strPeer + "." + agentId + " " + gsonPackage);
         }
 
         for(int i = 0; i < 2; i++) {
@@ -307,7 +360,7 @@ public class ClusterManagerImpl implements ClusterManager {
                         }
 
                         long startTick = System.currentTimeMillis();
-                        seq = peerService.executeAsync(getSelfPeerName(), agentId, gson.toJson(cmds, Command[].class), stopOnError);
+                        seq = peerService.executeAsync(getSelfPeerName(), agentId, gsonPackage, stopOnError);
                         if(seq > 0) {
                             if(s_logger.isDebugEnabled()) {
                                 s_logger.debug("Completed Async " + getSelfPeerName() + " -> " + strPeer + "." + agentId
@@ -988,6 +1041,7 @@ public class ClusterManagerImpl implements ClusterManager {
             // use seperate thread for heartbeat updates
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
             _notificationExecutor.submit(getNotificationTask());
+            _cacheSynchronizer.start();
 
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
@@ -1011,6 +1065,7 @@ public class ClusterManagerImpl implements ClusterManager {
             _mshostDao.update(_mshostId, mshost);
         }
 
+        _cacheSynchronizer.stop();
         _heartbeatScheduler.shutdownNow();
         _executor.shutdownNow();
 
@@ -1072,6 +1127,8 @@ public class ClusterManagerImpl implements ClusterManager {
             heartbeatThreshold = NumbersUtil.parseInt(value, ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD);
         }
 
+        _cacheSynchronizer = new EntityCacheSynchronizer(this, NumbersUtil.parseInt(configs.get("cluster.cache.sync.interval"), 100));
+
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
         try {
@@ -1117,7 +1174,9 @@ public class ClusterManagerImpl implements ClusterManager {
             _connectedAgentsThreshold = Double.parseDouble(connectedAgentsThreshold);
         }
 
-        this.registerListener(new LockMasterListener(_msId));
+        LockMasterListener lockMasterListener = new LockMasterListener(_msId);
+        lockMasterListener.connect(this, Boolean.parseBoolean(configs.get("cluster.lock.notify.peers")));
+        this.registerListener(lockMasterListener);
 
         checkConflicts();
 
@@ -0,0 +1,246 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.ChangeAgentAnswer;
+import com.cloud.agent.api.ChangeAgentCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateResourceEventCommand;
+import com.cloud.agent.api.TransferAgentCommand;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.OperationTimedoutException;
+import com.cloud.serializer.GsonHelper;
+import com.google.gson.Gson;
+
+/**
+ * ClusterServiceDispatcher is the local end of ClusterService.  Whichever
+ * transport a peer's call comes in on, the servlet or the rpc channel, it is
+ * handed to the ClusterManager here.
+ */
+public class ClusterServiceDispatcher implements ClusterService {
+    private static final long serialVersionUID = -8311207419658458539L;
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceDispatcher.class);
+
+    private final Gson gson;
+    private final ClusterManager manager;
+
+    public ClusterServiceDispatcher(ClusterManager manager) {
+        this.manager = manager;
+
+        gson = GsonHelper.getGson();
+    }
+
+    @Override
+    public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("|->" + agentId + " " + gsonPackage);
+        }
+
+        Command [] cmds = null;
+        try {
+            cmds = gson.fromJson(gsonPackage, Command[].class);
+        } catch(Throwable e) {
+            assert(false);
+            s_logger.error("Excection in gson decoding : ", e);
+        }
+
+        if (cmds.length == 1 && cmds[0] instanceof ChangeAgentCommand) {  //intercepted
+            ChangeAgentCommand cmd = (ChangeAgentCommand)cmds[0];
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Intercepting command for agent change: agent " + cmd.getAgentId() + " event: " + cmd.getEvent());
+            }
+            boolean result = false;
+            try {
+                result = manager.executeAgentUserRequest(cmd.getAgentId(), cmd.getEvent());
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Result is " + result);
+                }
+
+            } catch (AgentUnavailableException e) {
+                s_logger.warn("Agent is unavailable", e);
+                return null;
+            }
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new ChangeAgentAnswer(cmd, result);
+            return gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof TransferAgentCommand) {
+            TransferAgentCommand cmd = (TransferAgentCommand) cmds[0];
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Intercepting command for agent rebalancing: agent " + cmd.getAgentId() + " event: " + cmd.getEvent());
+            }
+            boolean result = false;
+            try {
+                result = manager.rebalanceAgent(cmd.getAgentId(), cmd.getEvent(), cmd.getCurrentOwner(), cmd.getFutureOwner());
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Result is " + result);
+                }
+
+            } catch (AgentUnavailableException e) {
+                s_logger.warn("Agent is unavailable", e);
+                return null;
+            } catch (OperationTimedoutException e) {
+                s_logger.warn("Operation timed out", e);
+                return null;
+            }
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, result, null);
+            return gson.toJson(answers);
+		} else if (cmds.length == 1 && cmds[0] instanceof PropagateResourceEventCommand) {
+			PropagateResourceEventCommand cmd = (PropagateResourceEventCommand) cmds[0];
+
+			if (s_logger.isDebugEnabled()) {
+				s_logger.debug("Intercepting command for resource event: host " + cmd.getHostId() + " event: " + cmd.getEvent());
+			}
+			boolean result = false;
+			try {
+				result = manager.executeResourceUserRequest(cmd.getHostId(), cmd.getEvent());
+				if (s_logger.isDebugEnabled()) {
+					s_logger.debug("Result is " + result);
+				}
+
+			} catch (AgentUnavailableException e) {
+				s_logger.warn("Agent is unavailable", e);
+				return null;
+			}
+
+			Answer[] answers = new Answer[1];
+			answers[0] = new Answer(cmd, result, null);
+			return gson.toJson(answers);
+		} else if (cmds.length == 1) {
+		    Answer answer = manager.handlePeerCommand(cmds[0]);
+		    if (answer != null) {
+		        return gson.toJson(new Answer[] { answer });
+		    }
+		}
+
+        try {
+            long startTick = System.currentTimeMillis();
+            if(s_logger.isDebugEnabled()) {
+                s_logger.debug("Send |-> " + agentId + " " + gsonPackage + " to agent manager");
+            }
+
+            Answer[] answers = manager.sendToAgent(agentId, cmds, stopOnError);
+
+            if(answers != null) {
+                String jsonReturn =  gson.toJson(answers);
+
+                if(s_logger.isDebugEnabled()) {
+                    s_logger.debug("Completed |-> " + agentId + " " + gsonPackage +
+                            " in " + (System.currentTimeMillis() - startTick) + " ms, return result: " + jsonReturn);
+                }
+
+                return jsonReturn;
+            } else {
+                if(s_logger.isDebugEnabled()) {
+                    s_logger.debug("Completed |-> " + agentId + " " + gsonPackage +
+                            " in " + (System.currentTimeMillis() - startTick) + " ms, return null result");
+                }
+            }
+        } catch(AgentUnavailableException e) {
+            s_logger.warn("Agent is unavailable", e);
+        } catch (OperationTimedoutException e) {
+            s_logger.warn("Timed Out", e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public long executeAsync(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Async " + callingPeer + " |-> " + agentId + " " + gsonPackage);
+        }
+
+        Command [] cmds = null;
+        try {
+            cmds = gson.fromJson(gsonPackage, Command[].class);
+        } catch(Throwable e) {
+            assert(false);
+            s_logger.error("Excection in gson decoding : ", e);
+        }
+
+        Listener listener = new ClusterAsyncExectuionListener(manager, callingPeer);
+        long seq = -1;
+        try {
+            long startTick = System.currentTimeMillis();
+            if(s_logger.isDebugEnabled()) {
+                s_logger.debug("Send Async " + callingPeer + " |-> " + agentId + " " + gsonPackage + " to agent manager");
+            }
+
+            seq = manager.sendToAgent(agentId, cmds, stopOnError, listener);
+
+            if(s_logger.isDebugEnabled()) {
+                s_logger.debug("Complated Async " + callingPeer + " |-> " + agentId + " " + gsonPackage + " in " +
+                        + (System.currentTimeMillis() - startTick) + " ms, returned seq: " + seq);
+            }
+        } catch (AgentUnavailableException e) {
+            s_logger.warn("Agent is unavailable", e);
+            seq = -1;
+        }
+
+        return seq;
+    }
+
+    @Override
+    public boolean onAsyncResult(String executingPeer, long agentId, long seq, String gsonPackage) {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Async callback " + executingPeer + "." + agentId + " |-> " + gsonPackage);
+        }
+
+        Answer[] answers = null;
+        try {
+            answers = gson.fromJson(gsonPackage, Answer[].class);
+        } catch(Throwable e) {
+            assert(false);
+            s_logger.error("Excection in gson decoding : ", e);
+        }
+
+        long startTick = System.currentTimeMillis();
+        if(manager.onAsyncResult(executingPeer, agentId, seq, answers)) {
+            if(s_logger.isDebugEnabled()) {
+                s_logger.debug("Completed local callback in " + (System.currentTimeMillis() - startTick) +
+                " ms, return recurring=true, let async listener contine on");
+            }
+
+            return true;
+        }
+
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Completed local callback in " + (System.currentTimeMillis() - startTick) +
+            " ms, return recurring=false, indicate to tear down async listener");
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean ping(String callingPeer) {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Handle ping request from " + callingPeer);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterServiceNioClient is the rpc channel to one peer.  It keeps one
+ * connection open and sends every call on it as soon as it is made; the
+ * responses are matched to their calls by id as they come back, so calls
+ * don't wait for each other and don't pay for a connection each.
+ * 
+ * If the peer can't be reached, the channel says so right away and doesn't
+ * try again for a while, so that callers can use the cluster servlet instead.
+ * Only one connection attempt is made at a time; calls made meanwhile wait
+ * for its outcome.
+ */
+public class ClusterServiceNioClient {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioClient.class);
+
+    protected static final int CONNECT_TIMEOUT = 5000;            // 5 seconds
+    protected static final int RETRY_INTERVAL = 30000;            // 30 seconds
+
+    private final String _host;
+    private final int _port;
+    private final Map<Long, PendingCall> _pending = new ConcurrentHashMap<Long, PendingCall>();
+    private final AtomicLong _nextId = new AtomicLong();
+
+    private NioClient _client;
+    private ClientHandler _handler;
+    private boolean _connecting;
+    private Link _link;
+    private long _retryAfter;
+    private boolean _closed;
+
+    public ClusterServiceNioClient(String host, int port) {
+        _host = host;
+        _port = port;
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     * @param request request to send; its id is set here.
+     * @return the call that completes when the response comes back.
+     * @throws ClosedChannelException if the peer can't be reached right now.
+     *         Nothing was sent.
+     */
+    public PendingCall send(ClusterServicePacket request) throws ClosedChannelException {
+        Link link = connect();
+        request.setId(_nextId.incrementAndGet());
+        PendingCall call = new PendingCall(link);
+        _pending.put(request.getId(), call);
+        try {
+            link.send(request.getBytes());
+        } catch (ClosedChannelException e) {
+            _pending.remove(request.getId());
+            disconnected(link);
+            throw e;
+        }
+        return call;
+    }
+
+    /**
+     * Sends a request and waits for the response.
+     * @return the response; null if there was none in time or the connection
+     *         was lost after the request went out.
+     * @throws ClosedChannelException if the peer can't be reached right now.
+     *         Nothing was sent.
+     */
+    public ClusterServicePacket call(ClusterServicePacket request, int timeoutSeconds) throws ClosedChannelException {
+        PendingCall call = send(request);
+        ClusterServicePacket response = call.get(timeoutSeconds, TimeUnit.SECONDS);
+        if (response == null) {
+            _pending.remove(request.getId());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No response to " + request + " from " + this);
+            }
+        }
+        return response;
+    }
+
+    public synchronized void close() {
+        _closed = true;
+        if (_link != null) {
+            _link.close();
+        }
+        disconnected(_link);
+    }
+
+    public synchronized boolean isConnected() {
+        return _link != null;
+    }
+
+    public int getPendingCount() {
+        return _pending.size();
+    }
+
+    protected synchronized Link connect() throws ClosedChannelException {
+        // wait() lets go of the monitor, so calls made while another one is
+        // connecting wait for it instead of starting a client of their own
+        while (_connecting && _link == null) {
+            try {
+                wait(CONNECT_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            }
+        }
+        if (_link != null) {
+            return _link;
+        }
+        if (_closed || System.currentTimeMillis() < _retryAfter) {
+            throw new ClosedChannelException();
+        }
+
+        _connecting = true;
+        try {
+            stopClient();
+            ClientHandler handler = new ClientHandler();
+            NioClient client = new NioClient("ClusterRpc-" + _host, _host, _port, 1, handler);
+            client.setConnectTimeout(CONNECT_TIMEOUT);
+            _client = client;
+            _handler = handler;
+            client.start();
+            if (client.isStartup()) {
+                long waitUntil = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                while (_link == null && System.currentTimeMillis() < waitUntil) {
+                    try {
+                        wait(CONNECT_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            if (_link == null) {
+                s_logger.info("Unable to connect to " + this + ", will try again in " + RETRY_INTERVAL / 1000 + " seconds");
+                _retryAfter = System.currentTimeMillis() + RETRY_INTERVAL;
+                stopClient();
+                throw new ClosedChannelException();
+            }
+        } finally {
+            _connecting = false;
+            notifyAll();
+        }
+
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Connected to " + this);
+        }
+        return _link;
+    }
+
+    protected synchronized void connected(ClientHandler handler, Link link) {
+        if (handler != _handler) {
+            s_logger.debug("Ignoring a connection to " + this + " made by a client that has been stopped");
+            return;
+        }
+        _link = link;
+        notifyAll();
+    }
+
+    /**
+     * Fails the calls that are waiting on the link and lets the next call
+     * connect again.
+     */
+    protected void disconnected(ClientHandler handler, Link link) {
+        synchronized (this) {
+            if (handler != _handler) {
+                return;
+            }
+        }
+        s_logger.info("Lost connection to " + this);
+        disconnected(link);
+    }
+
+    protected void disconnected(Link link) {
+        synchronized (this) {
+            if (link != null && _link == link) {
+                _link = null;
+                stopClient();
+            }
+        }
+
+        Iterator<PendingCall> it = _pending.values().iterator();
+        while (it.hasNext()) {
+            PendingCall call = it.next();
+            if (link == null || call._link == link) {
+                it.remove();
+                call.complete(null);
+            }
+        }
+    }
+
+    protected void stopClient() {
+        if (_client != null) {
+            _client.stop();
+            for (int i = 0; i < 100 && _client.isStartup(); i++) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            try {
+                _client.cleanUp();
+            } catch (IOException e) {
+                s_logger.debug("Unable to clean up the connection to " + this + ": " + e.getMessage());
+            }
+            _client = null;
+            _handler = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "cluster rpc " + _host + ":" + _port;
+    }
+
+    /**
+     * ClientHandler hands the events of one NioClient to the channel, so
+     * that the connects and disconnects of a client that has since been
+     * stopped can be told apart from those of the current one.
+     */
+    protected class ClientHandler implements HandlerFactory {
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new ResponseTask(this, type, link, data);
+        }
+    }
+
+    protected class ResponseTask extends Task {
+        private final ClientHandler _taskHandler;
+
+        public ResponseTask(ClientHandler handler, Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+            _taskHandler = handler;
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() == Task.Type.CONNECT) {
+                connected(_taskHandler, task.getLink());
+            } else if (task.getType() == Task.Type.DISCONNECT) {
+                disconnected(_taskHandler, task.getLink());
+            } else if (task.getType() == Task.Type.DATA) {
+                ClusterServicePacket response = ClusterServicePacket.parse(task.getData());
+                PendingCall call = _pending.remove(response.getId());
+                if (call != null) {
+                    call.complete(response);
+                } else if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Nobody is waiting for " + response + " from " + ClusterServiceNioClient.this);
+                }
+            }
+        }
+    }
+
+    /**
+     * PendingCall is a request that has been sent and is waiting for its
+     * response.
+     */
+    public static class PendingCall {
+        private final Link _link;
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile ClusterServicePacket _response;
+
+        protected PendingCall(Link link) {
+            _link = link;
+        }
+
+        protected void complete(ClusterServicePacket response) {
+            _response = response;
+            _done.countDown();
+        }
+
+        public boolean isDone() {
+            return _done.getCount() == 0;
+        }
+
+        /**
+         * @return the response; null if there was none in time or the
+         *         connection was lost.
+         */
+        public ClusterServicePacket get(long timeout, TimeUnit unit) {
+            try {
+                _done.await(timeout, unit);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return _response;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ClusterServiceNioImpl calls a peer over its rpc channel.  Whenever the
+ * channel can't reach the peer, as when the peer is running a version
+ * without the rpc server, the call goes through the cluster servlet instead.
+ * Once a request has gone out on the channel it is never sent again through
+ * the servlet, since the peer may already be carrying it out.  If no
+ * response comes back for it, because it timed out or the connection was
+ * lost, the call fails with a RemoteException so that the cluster manager
+ * drops this service and decides whether to try the peer again.
+ */
+public class ClusterServiceNioImpl implements ClusterService {
+    private static final long serialVersionUID = -3206531726406935398L;
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioImpl.class);
+
+    private final ClusterServiceNioClient _channel;
+    private final ClusterService _fallback;
+    private final int _requestTimeoutSeconds;
+
+    public ClusterServiceNioImpl(ClusterServiceNioClient channel, ClusterService fallback, int requestTimeoutSeconds) {
+        _channel = channel;
+        _fallback = fallback;
+        _requestTimeoutSeconds = requestTimeoutSeconds;
+    }
+
+    @Override
+    public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+        ClusterServicePacket response;
+        try {
+            response = _channel.call(ClusterServicePacket.request(RemoteMethodConstants.METHOD_EXECUTE, callingPeer, agentId, 0, stopOnError, gsonPackage),
+                    _requestTimeoutSeconds);
+        } catch (ClosedChannelException e) {
+            return _fallback.execute(callingPeer, agentId, gsonPackage, stopOnError);
+        }
+
+        checkResponse(response, "execution");
+        if (response.isFailed()) {
+            return null;
+        }
+        return response.getPayload();
+    }
+
+    @Override
+    public long executeAsync(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+        ClusterServicePacket response;
+        try {
+            response = _channel.call(ClusterServicePacket.request(RemoteMethodConstants.METHOD_EXECUTE_ASYNC, callingPeer, agentId, 0, stopOnError, gsonPackage),
+                    _requestTimeoutSeconds);
+        } catch (ClosedChannelException e) {
+            return _fallback.executeAsync(callingPeer, agentId, gsonPackage, stopOnError);
+        }
+
+        checkResponse(response, "async-execution");
+        if (response.isFailed()) {
+            s_logger.error("No result from remote async-execution on " + _channel);
+            throw new RemoteException("Invalid result returned from async-execution on peer : " + _channel);
+        }
+        return response.getSeq();
+    }
+
+    @Override
+    public boolean onAsyncResult(String executingPeer, long agentId, long seq, String gsonPackage) throws RemoteException {
+        ClusterServicePacket response;
+        try {
+            response = _channel.call(ClusterServicePacket.request(RemoteMethodConstants.METHOD_ASYNC_RESULT, executingPeer, agentId, seq, false, gsonPackage),
+                    _requestTimeoutSeconds);
+        } catch (ClosedChannelException e) {
+            return _fallback.onAsyncResult(executingPeer, agentId, seq, gsonPackage);
+        }
+
+        checkResponse(response, "async result");
+        return response.getResult();
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        ClusterServicePacket response;
+        try {
+            response = _channel.call(ClusterServicePacket.request(RemoteMethodConstants.METHOD_PING, callingPeer, 0, 0, false, null), _requestTimeoutSeconds);
+        } catch (ClosedChannelException e) {
+            return _fallback.ping(callingPeer);
+        }
+
+        checkResponse(response, "ping");
+        return response.getResult();
+    }
+
+    protected void checkResponse(ClusterServicePacket response, String what) throws RemoteException {
+        if (response == null) {
+            s_logger.info("No response to " + what + " from " + _channel);
+            throw new RemoteException("No response to " + what + " from " + _channel + " in time or the connection was lost");
+        }
+    }
+}
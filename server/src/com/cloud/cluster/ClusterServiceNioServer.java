@@ -0,0 +1,140 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterServiceNioServer takes the calls that peers make over their rpc
+ * channels and hands them to the local ClusterService.  Calls can take as
+ * long as the agent takes to answer, so they are carried out on their own
+ * threads and the responses are sent back as they complete.
+ */
+public class ClusterServiceNioServer implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioServer.class);
+
+    private final ClusterService _service;
+    private final ExecutorService _executor;
+    private NioServer _server;
+
+    public ClusterServiceNioServer(ClusterService service) {
+        _service = service;
+        _executor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-Rpc"));
+    }
+
+    public boolean start(int port) {
+        _server = new NioServer("ClusterRpcServer", port, 2, this);
+        _server.start();
+        if (!_server.isStartup()) {
+            s_logger.warn("Unable to listen for cluster rpc on port " + port + ", peers will use the cluster servlet");
+            return false;
+        }
+
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Cluster rpc server listening on port " + port);
+        }
+        return true;
+    }
+
+    public void stop() {
+        if (_server != null) {
+            _server.stop();
+        }
+        _executor.shutdown();
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new RequestTask(type, link, data);
+    }
+
+    protected ClusterServicePacket dispatch(ClusterServicePacket request) {
+        try {
+            switch (request.getMethod()) {
+            case RemoteMethodConstants.METHOD_EXECUTE :
+                String answers = _service.execute(request.getPeer(), request.getAgentId(), request.getPayload(), request.getStopOnError());
+                if (answers == null) {
+                    return ClusterServicePacket.failure(request);
+                }
+                return ClusterServicePacket.response(request, true, 0, answers);
+
+            case RemoteMethodConstants.METHOD_EXECUTE_ASYNC :
+                long seq = _service.executeAsync(request.getPeer(), request.getAgentId(), request.getPayload(), request.getStopOnError());
+                return ClusterServicePacket.response(request, true, seq, null);
+
+            case RemoteMethodConstants.METHOD_ASYNC_RESULT :
+                boolean recurring = _service.onAsyncResult(request.getPeer(), request.getAgentId(), request.getSeq(), request.getPayload());
+                return ClusterServicePacket.response(request, recurring, 0, null);
+
+            case RemoteMethodConstants.METHOD_PING :
+                return ClusterServicePacket.response(request, _service.ping(request.getPeer()), 0, null);
+
+            default :
+                s_logger.error("unrecognized method " + request.getMethod());
+                return ClusterServicePacket.failure(request);
+            }
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception when processing cluster rpc request : ", e);
+            return ClusterServicePacket.failure(request);
+        }
+    }
+
+    protected class RequestTask extends Task {
+        public RequestTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() != Task.Type.DATA) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster rpc " + task.getType() + " from " + task.getLink().getSocketAddress());
+                }
+                return;
+            }
+
+            final Link link = task.getLink();
+            final ClusterServicePacket request = ClusterServicePacket.parse(task.getData());
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Received " + request + " from " + link.getSocketAddress());
+            }
+
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ClusterServicePacket response = dispatch(request);
+                    try {
+                        link.send(response.getBytes());
+                    } catch (ClosedChannelException e) {
+                        s_logger.info("Unable to send the response to " + request + ", the peer has gone away");
+                    }
+                }
+            });
+        }
+    }
+}
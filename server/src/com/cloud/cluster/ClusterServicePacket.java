@@ -0,0 +1,213 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * ClusterServicePacket is a request or response on the rpc channel between
+ * management servers.  Every request carries an id that its response comes
+ * back with, so any number of calls can be outstanding on one connection and
+ * their responses can come back in any order.
+ * 
+ * The wire format is
+ *   byte   version
+ *   byte   type, request or response
+ *   long   id
+ *   int    method, one of RemoteMethodConstants
+ *   byte   flags
+ *   long   agent id
+ *   long   seq, or the seq executeAsync returned
+ *   string peer, the calling or executing peer
+ *   string payload, the commands or answers as json
+ * where a string is an int length, -1 for null, followed by that many bytes
+ * of UTF-8.
+ */
+public class ClusterServicePacket {
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+
+    protected static final byte FLAG_STOP_ON_ERROR = 0x01;
+    protected static final byte FLAG_RESULT = 0x02;
+    protected static final byte FLAG_FAILED = 0x04;
+
+    protected byte _type;
+    protected long _id;
+    protected int _method;
+    protected byte _flags;
+    protected long _agentId;
+    protected long _seq;
+    protected String _peer;
+    protected String _payload;
+
+    protected ClusterServicePacket() {
+    }
+
+    public static ClusterServicePacket request(int method, String peer, long agentId, long seq, boolean stopOnError, String payload) {
+        ClusterServicePacket packet = new ClusterServicePacket();
+        packet._type = TYPE_REQUEST;
+        packet._method = method;
+        packet._peer = peer;
+        packet._agentId = agentId;
+        packet._seq = seq;
+        packet._flags = stopOnError ? FLAG_STOP_ON_ERROR : 0;
+        packet._payload = payload;
+        return packet;
+    }
+
+    /**
+     * @param request request that this responds to.
+     * @param result what a boolean method returned.
+     * @param seq what executeAsync returned.
+     * @param payload what execute returned.
+     */
+    public static ClusterServicePacket response(ClusterServicePacket request, boolean result, long seq, String payload) {
+        ClusterServicePacket packet = new ClusterServicePacket();
+        packet._type = TYPE_RESPONSE;
+        packet._id = request._id;
+        packet._method = request._method;
+        packet._agentId = request._agentId;
+        packet._seq = seq;
+        packet._flags = result ? FLAG_RESULT : 0;
+        packet._payload = payload;
+        return packet;
+    }
+
+    /**
+     * @return a response telling the caller that the peer could not carry out its request.
+     */
+    public static ClusterServicePacket failure(ClusterServicePacket request) {
+        ClusterServicePacket packet = response(request, false, 0, null);
+        packet._flags = FLAG_FAILED;
+        return packet;
+    }
+
+    public static ClusterServicePacket parse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cluster service packet version " + version);
+        }
+
+        ClusterServicePacket packet = new ClusterServicePacket();
+        packet._type = in.readByte();
+        packet._id = in.readLong();
+        packet._method = in.readInt();
+        packet._flags = in.readByte();
+        packet._agentId = in.readLong();
+        packet._seq = in.readLong();
+        packet._peer = readString(in);
+        packet._payload = readString(in);
+        return packet;
+    }
+
+    public byte[] getBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (_payload != null ? _payload.length() : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(_type);
+            out.writeLong(_id);
+            out.writeInt(_method);
+            out.writeByte(_flags);
+            out.writeLong(_agentId);
+            out.writeLong(_seq);
+            writeString(out, _peer);
+            writeString(out, _payload);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write to memory", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    public boolean isRequest() {
+        return _type == TYPE_REQUEST;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    public void setId(long id) {
+        _id = id;
+    }
+
+    public int getMethod() {
+        return _method;
+    }
+
+    public long getAgentId() {
+        return _agentId;
+    }
+
+    public long getSeq() {
+        return _seq;
+    }
+
+    public String getPeer() {
+        return _peer;
+    }
+
+    public String getPayload() {
+        return _payload;
+    }
+
+    public boolean getStopOnError() {
+        return (_flags & FLAG_STOP_ON_ERROR) != 0;
+    }
+
+    public boolean getResult() {
+        return (_flags & FLAG_RESULT) != 0;
+    }
+
+    public boolean isFailed() {
+        return (_flags & FLAG_FAILED) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return (isRequest() ? "Request " : "Response ") + _id + " method " + _method + " agent " + _agentId;
+    }
+}
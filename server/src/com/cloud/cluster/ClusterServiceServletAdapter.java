@@ -23,6 +23,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -38,12 +40,18 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentLocator;
 
+/**
+ * ClusterServiceServletAdapter serves the cluster servlet and, unless
+ * cluster.rpc.enabled is off, the rpc channel on the port after it.  Peers
+ * are called over the rpc channel and through the servlet when that fails.
+ */
 @Local(value={ClusterServiceAdapter.class})
-public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
+public class ClusterServiceServletAdapter implements ClusterServiceAdapter, ClusterManagerListener {
 
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletAdapter.class);
     private static final int DEFAULT_SERVICE_PORT = 9090;
     private static final int DEFAULT_REQUEST_TIMEOUT = 300;			// 300 seconds
+    private static final int RPC_PORT_OFFSET = 1;
     
     private ClusterManager _manager;
     
@@ -53,10 +61,16 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     
     private ClusterServiceServletContainer _servletContainer;
     
+    private ClusterServiceNioServer _rpcServer;
+    
+    private final Map<String, ClusterServiceNioClient> _rpcChannels = new HashMap<String, ClusterServiceNioClient>();
+    
     private String _name;
     private int _clusterServicePort = DEFAULT_SERVICE_PORT;
     
     private int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
+    
+    private boolean _rpcEnabled = true;
     
     @Override
 	public ClusterService getPeerService(String strPeer) throws RemoteException {
@@ -67,13 +81,48 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     		throw new RemoteException("Unable to init ClusterServiceServletAdapter");
     	}
     	
-    	String serviceUrl = getServiceEndpointName(strPeer);
-    	if(serviceUrl == null)
+    	ManagementServerHostVO mshost = _mshostDao.findByMsid(Long.parseLong(strPeer));
+    	if(mshost == null)
     		return null;
     	
-    	return new ClusterServiceServletImpl(serviceUrl, _clusterRequestTimeoutSeconds);
+    	ClusterService service = new ClusterServiceServletImpl(composeEndpointName(mshost.getServiceIP(), mshost.getServicePort()), _clusterRequestTimeoutSeconds);
+    	if(!_rpcEnabled)
+    		return service;
+    	
+    	return new ClusterServiceNioImpl(getRpcChannel(mshost.getServiceIP(), mshost.getServicePort() + RPC_PORT_OFFSET), service, _clusterRequestTimeoutSeconds);
 	}
     
+    private ClusterServiceNioClient getRpcChannel(String nodeIP, int port) {
+    	String endpoint = nodeIP + ":" + port;
+    	synchronized(_rpcChannels) {
+    		ClusterServiceNioClient channel = _rpcChannels.get(endpoint);
+    		if(channel == null) {
+    			channel = new ClusterServiceNioClient(nodeIP, port);
+    			_rpcChannels.put(endpoint, channel);
+    		}
+    		return channel;
+    	}
+    }
+    
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+    }
+    
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+    	synchronized(_rpcChannels) {
+    		for(ManagementServerHostVO mshost : nodeList) {
+    			ClusterServiceNioClient channel = _rpcChannels.remove(mshost.getServiceIP() + ":" + (mshost.getServicePort() + RPC_PORT_OFFSET));
+    			if(channel != null)
+    				channel.close();
+    		}
+    	}
+    }
+    
+    @Override
+    public void onManagementNodeIsolated() {
+    }
+    
     @Override
 	public String getServiceEndpointName(String strPeer) {
     	try {
@@ -118,8 +167,15 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     
     @Override
     public boolean start() {
+    	ClusterService dispatcher = new ClusterServiceDispatcher(_manager);
     	_servletContainer = new ClusterServiceServletContainer();
-    	_servletContainer.start(new ClusterServiceServletHttpHandler(_manager), _clusterServicePort);
+    	_servletContainer.start(new ClusterServiceServletHttpHandler(dispatcher), _clusterServicePort);
+    	
+    	if(_rpcEnabled) {
+    		_rpcServer = new ClusterServiceNioServer(dispatcher);
+    		_rpcServer.start(_clusterServicePort + RPC_PORT_OFFSET);
+    		_manager.registerListener(this);
+    	}
     	return true;
     }
     
@@ -127,6 +183,15 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     public boolean stop() {
     	if(_servletContainer != null)
     		_servletContainer.stop();
+    	
+    	if(_rpcServer != null)
+    		_rpcServer.stop();
+    	
+    	synchronized(_rpcChannels) {
+    		for(ClusterServiceNioClient channel : _rpcChannels.values())
+    			channel.close();
+    		_rpcChannels.clear();
+    	}
     	return true;
     }
     
@@ -154,6 +219,8 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
         String value = _configDao.getValue(Config.ClusterMessageTimeOutSeconds.key());
     	_clusterRequestTimeoutSeconds = NumbersUtil.parseInt(value, DEFAULT_REQUEST_TIMEOUT);
     	s_logger.info("Configure cluster request time out. timeout: " + _clusterRequestTimeoutSeconds + " seconds");
+    	
+    	_rpcEnabled = !"false".equalsIgnoreCase(_configDao.getValue(Config.ClusterRpcEnabled.key()));
         
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
@@ -21,6 +21,7 @@ package com.cloud.cluster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.rmi.RemoteException;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -33,15 +34,6 @@ import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
-import com.cloud.agent.Listener;
-import com.cloud.agent.api.Answer;
-import com.cloud.agent.api.ChangeAgentAnswer;
-import com.cloud.agent.api.ChangeAgentCommand;
-import com.cloud.agent.api.Command;
-import com.cloud.agent.api.PropagateResourceEventCommand;
-import com.cloud.agent.api.TransferAgentCommand;
-import com.cloud.exception.AgentUnavailableException;
-import com.cloud.exception.OperationTimedoutException;
 import com.cloud.serializer.GsonHelper;
 import com.google.gson.Gson;
 
@@ -49,10 +41,10 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletHttpHandler.class);
 
     private final Gson gson;
-    private final ClusterManager manager;
+    private final ClusterService dispatcher;
 
-    public ClusterServiceServletHttpHandler(ClusterManager manager) {
-        this.manager = manager;
+    public ClusterServiceServletHttpHandler(ClusterService dispatcher) {
+        this.dispatcher = dispatcher;
 
         gson = GsonHelper.getGson();
     }
@@ -180,207 +172,40 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         }
     }
 
-    private String handleExecuteMethodCall(HttpRequest req) {
+    private String handleExecuteMethodCall(HttpRequest req) throws RemoteException {
         String agentId = (String)req.getParams().getParameter("agentId");
         String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
         String stopOnError = (String)req.getParams().getParameter("stopOnError");
+        String callingPeer = (String)req.getParams().getParameter("caller");
 
-        if(s_logger.isDebugEnabled()) {
-            s_logger.debug("|->" + agentId + " " + gsonPackage);
-        }
-
-        Command [] cmds = null;
-        try {
-            cmds = gson.fromJson(gsonPackage, Command[].class);
-        } catch(Throwable e) {
-            assert(false);
-            s_logger.error("Excection in gson decoding : ", e);
-        }
-
-        if (cmds.length == 1 && cmds[0] instanceof ChangeAgentCommand) {  //intercepted
-            ChangeAgentCommand cmd = (ChangeAgentCommand)cmds[0];
-
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Intercepting command for agent change: agent " + cmd.getAgentId() + " event: " + cmd.getEvent());
-            }
-            boolean result = false;
-            try {
-                result = manager.executeAgentUserRequest(cmd.getAgentId(), cmd.getEvent());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Result is " + result);
-                }
-
-            } catch (AgentUnavailableException e) {
-                s_logger.warn("Agent is unavailable", e);
-                return null;
-            }
-
-            Answer[] answers = new Answer[1];
-            answers[0] = new ChangeAgentAnswer(cmd, result);
-            return gson.toJson(answers);
-        } else if (cmds.length == 1 && cmds[0] instanceof TransferAgentCommand) {
-            TransferAgentCommand cmd = (TransferAgentCommand) cmds[0];
-
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Intercepting command for agent rebalancing: agent " + cmd.getAgentId() + " event: " + cmd.getEvent());
-            }
-            boolean result = false;
-            try {
-                result = manager.rebalanceAgent(cmd.getAgentId(), cmd.getEvent(), cmd.getCurrentOwner(), cmd.getFutureOwner());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Result is " + result);
-                }
-
-            } catch (AgentUnavailableException e) {
-                s_logger.warn("Agent is unavailable", e);
-                return null;
-            } catch (OperationTimedoutException e) {
-                s_logger.warn("Operation timed out", e);
-                return null;
-            }
-            Answer[] answers = new Answer[1];
-            answers[0] = new Answer(cmd, result, null);
-            return gson.toJson(answers);
-		} else if (cmds.length == 1 && cmds[0] instanceof PropagateResourceEventCommand) {
-			PropagateResourceEventCommand cmd = (PropagateResourceEventCommand) cmds[0];
-
-			if (s_logger.isDebugEnabled()) {
-				s_logger.debug("Intercepting command for resource event: host " + cmd.getHostId() + " event: " + cmd.getEvent());
-			}
-			boolean result = false;
-			try {
-				result = manager.executeResourceUserRequest(cmd.getHostId(), cmd.getEvent());
-				if (s_logger.isDebugEnabled()) {
-					s_logger.debug("Result is " + result);
-				}
-
-			} catch (AgentUnavailableException e) {
-				s_logger.warn("Agent is unavailable", e);
-				return null;
-			}
-
-			Answer[] answers = new Answer[1];
-			answers[0] = new Answer(cmd, result, null);
-			return gson.toJson(answers);
-		}
-
-        try {
-            long startTick = System.currentTimeMillis();
-            if(s_logger.isDebugEnabled()) {
-                s_logger.debug("Send |-> " + agentId + " " + gsonPackage + " to agent manager");
-            }
-
-            Answer[] answers = manager.sendToAgent(Long.parseLong(agentId), cmds,
-                    Integer.parseInt(stopOnError) != 0 ? true : false);
-
-            if(answers != null) {
-                String jsonReturn =  gson.toJson(answers);
-
-                if(s_logger.isDebugEnabled()) {
-                    s_logger.debug("Completed |-> " + agentId + " " + gsonPackage +
-                            " in " + (System.currentTimeMillis() - startTick) + " ms, return result: " + jsonReturn);
-                }
-
-                return jsonReturn;
-            } else {
-                if(s_logger.isDebugEnabled()) {
-                    s_logger.debug("Completed |-> " + agentId + " " + gsonPackage +
-                            " in " + (System.currentTimeMillis() - startTick) + " ms, return null result");
-                }
-            }
-        } catch(AgentUnavailableException e) {
-            s_logger.warn("Agent is unavailable", e);
-        } catch (OperationTimedoutException e) {
-            s_logger.warn("Timed Out", e);
-        }
-
-        return null;
+        return dispatcher.execute(callingPeer, Long.parseLong(agentId), gsonPackage, Integer.parseInt(stopOnError) != 0);
     }
 
-    private String handleExecuteAsyncMethodCall(HttpRequest  req) {
+    private String handleExecuteAsyncMethodCall(HttpRequest req) throws RemoteException {
         String agentId = (String)req.getParams().getParameter("agentId");
         String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
         String stopOnError = (String)req.getParams().getParameter("stopOnError");
         String callingPeer = (String)req.getParams().getParameter("caller");
 
-        if(s_logger.isDebugEnabled()) {
-            s_logger.debug("Async " + callingPeer + " |-> " + agentId + " " + gsonPackage);
-        }
-
-        Command [] cmds = null;
-        try {
-            cmds = gson.fromJson(gsonPackage, Command[].class);
-        } catch(Throwable e) {
-            assert(false);
-            s_logger.error("Excection in gson decoding : ", e);
-        }
-
-        Listener listener = new ClusterAsyncExectuionListener(manager, callingPeer);
-        long seq = -1;
-        try {
-            long startTick = System.currentTimeMillis();
-            if(s_logger.isDebugEnabled()) {
-                s_logger.debug("Send Async " + callingPeer + " |-> " + agentId + " " + gsonPackage + " to agent manager");
-            }
-
-            seq = manager.sendToAgent(Long.parseLong(agentId), cmds,
-                    Integer.parseInt(stopOnError) != 0 ? true : false, listener);
-
-            if(s_logger.isDebugEnabled()) {
-                s_logger.debug("Complated Async " + callingPeer + " |-> " + agentId + " " + gsonPackage + " in " +
-                        + (System.currentTimeMillis() - startTick) + " ms, returned seq: " + seq);
-            }
-        } catch (AgentUnavailableException e) {
-            s_logger.warn("Agent is unavailable", e);
-            seq = -1;
-        }
-
+        long seq = dispatcher.executeAsync(callingPeer, Long.parseLong(agentId), gsonPackage, Integer.parseInt(stopOnError) != 0);
         return gson.toJson(seq);
     }
 
-    private String handleAsyncResultMethodCall(HttpRequest  req) {
+    private String handleAsyncResultMethodCall(HttpRequest req) throws RemoteException {
         String agentId = (String)req.getParams().getParameter("agentId");
         String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
         String seq = (String)req.getParams().getParameter("seq");
         String executingPeer = (String)req.getParams().getParameter("executingPeer");
 
-        if(s_logger.isDebugEnabled()) {
-            s_logger.debug("Async callback " + executingPeer + "." + agentId + " |-> " + gsonPackage);
-        }
-
-        Answer[] answers = null;
-        try {
-            answers = gson.fromJson(gsonPackage, Answer[].class);
-        } catch(Throwable e) {
-            assert(false);
-            s_logger.error("Excection in gson decoding : ", e);
-        }
-
-        long startTick = System.currentTimeMillis();
-        if(manager.onAsyncResult(executingPeer, Long.parseLong(agentId), Long.parseLong(seq), answers)) {
-            if(s_logger.isDebugEnabled()) {
-                s_logger.debug("Completed local callback in " + (System.currentTimeMillis() - startTick) +
-                " ms, return recurring=true, let async listener contine on");
-            }
-
+        if (dispatcher.onAsyncResult(executingPeer, Long.parseLong(agentId), Long.parseLong(seq), gsonPackage)) {
             return "recurring=true";
         }
-
-        if(s_logger.isDebugEnabled()) {
-            s_logger.debug("Completed local callback in " + (System.currentTimeMillis() - startTick) +
-            " ms, return recurring=false, indicate to tear down async listener");
-        }
-
         return "recurring=false";
     }
 
-    private String handlePingMethodCall(HttpRequest req) {
+    private String handlePingMethodCall(HttpRequest req) throws RemoteException {
         String callingPeer = (String)req.getParams().getParameter("callingPeer");
 
-        if(s_logger.isDebugEnabled()) {
-            s_logger.debug("Handle ping request from " + callingPeer);
-        }
-
-        return "true";
+        return dispatcher.ping(callingPeer) ? "true" : "false";
     }
 }
@@ -66,6 +66,7 @@ public class ClusterServiceServletImpl implements ClusterService {
         method.addParameter("agentId", Long.toString(agentId));
         method.addParameter("gsonPackage", gsonPackage);
         method.addParameter("stopOnError", stopOnError ? "1" : "0");
+        method.addParameter("caller", callingPeer);
 
         return executePostMethod(client, method);
     }
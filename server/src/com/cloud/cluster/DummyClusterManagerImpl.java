@@ -144,6 +144,19 @@ public class DummyClusterManagerImpl implements ClusterManager {
 		return true;
 	}
 	
+	@Override
+	public void notifyPeers(Command cmd) {
+	}
+
+	@Override
+	public void registerCommandHandler(Class<? extends Command> clazz, ClusterCommandHandler handler) {
+	}
+
+	@Override
+	public Answer handlePeerCommand(Command cmd) {
+		return null;
+	}
+
 	@Override
 	public void broadcast(long hostId, Command[] cmds) {
 	}
@@ -0,0 +1,209 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.EntityCacheInvalidateCommand;
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCacheListener;
+import com.cloud.utils.db.GenericDaoBase;
+
+/**
+ * Keeps the entity caches of the management servers coherent.  Entities
+ * invalidated here are collected for a short while and then sent to the
+ * peers in one EntityCacheInvalidateCommand, which the peers use to drop
+ * the same entities from their caches.
+ * 
+ * The commands are numbered.  A peer that sees a gap in the numbers has
+ * missed invalidations and drops all of its cached entities.  When there is
+ * nothing to invalidate, an empty command is still sent every
+ * KEEPALIVE_INTERVAL so that a missed last command is noticed too.
+ */
+public class EntityCacheSynchronizer implements EntityCacheListener, ClusterCommandHandler, ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(EntityCacheSynchronizer.class);
+
+    protected static final long KEEPALIVE_INTERVAL = 30000;		// in ms
+
+    private final ClusterManager _clusterMgr;
+    private final int _interval;
+    private long _sequence = 0;
+    private long _lastSent = 0;
+    // msid -> run id and number of the last command received from the peer
+    private final Map<Long, long[]> _received = new HashMap<Long, long[]>();
+    private final ConcurrentLinkedQueue<Pair<String, Object[]>> _pending = new ConcurrentLinkedQueue<Pair<String, Object[]>>();
+    private final ScheduledExecutorService _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-CacheSync"));
+
+    /**
+     * @param clusterMgr cluster manager to notify the peers with.
+     * @param interval how long, in milliseconds, invalidations are collected before they are sent.
+     */
+    public EntityCacheSynchronizer(ClusterManager clusterMgr, int interval) {
+        _clusterMgr = clusterMgr;
+        _interval = interval;
+    }
+
+    public void start() {
+        _clusterMgr.registerCommandHandler(EntityCacheInvalidateCommand.class, this);
+        _clusterMgr.registerListener(this);
+        GenericDaoBase.setEntityCacheListener(this);
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to send cache invalidations to the peers", e);
+                }
+            }
+        }, _interval, _interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        GenericDaoBase.setEntityCacheListener(null);
+        _executor.shutdownNow();
+    }
+
+    @Override
+    public void invalidated(String table, Object[] ids) {
+        _pending.add(new Pair<String, Object[]>(table, ids));
+    }
+
+    protected void flush() {
+        Map<String, Set<Long>> byTable = new HashMap<String, Set<Long>>();
+        Pair<String, Object[]> invalidation;
+        while ((invalidation = _pending.poll()) != null) {
+            String table = invalidation.first();
+            Object[] ids = invalidation.second();
+            boolean all = byTable.containsKey(table) && byTable.get(table) == null;
+            if (all) {
+                continue;
+            }
+            Set<Long> tableIds = byTable.get(table);
+            if (tableIds == null) {
+                tableIds = new HashSet<Long>();
+                byTable.put(table, tableIds);
+            }
+            if (ids == null) {
+                byTable.put(table, null);
+                continue;
+            }
+            for (Object id : ids) {
+                if (!(id instanceof Number)) {
+                    byTable.put(table, null);
+                    break;
+                }
+                tableIds.add(((Number)id).longValue());
+            }
+        }
+        if (byTable.isEmpty() && System.currentTimeMillis() - _lastSent < KEEPALIVE_INTERVAL) {
+            return;
+        }
+
+        String[] tables = new String[byTable.size()];
+        long[][] ids = new long[byTable.size()][];
+        int i = 0;
+        for (Map.Entry<String, Set<Long>> entry : byTable.entrySet()) {
+            tables[i] = entry.getKey();
+            if (entry.getValue() != null) {
+                ids[i] = new long[entry.getValue().size()];
+                int j = 0;
+                for (Long id : entry.getValue()) {
+                    ids[i][j++] = id;
+                }
+            }
+            i++;
+        }
+        _lastSent = System.currentTimeMillis();
+        _clusterMgr.notifyPeers(new EntityCacheInvalidateCommand(_clusterMgr.getManagementNodeId(), _clusterMgr.getCurrentRunId(), ++_sequence, tables, ids));
+    }
+
+    @Override
+    public Answer handleCommand(Command cmd) {
+        EntityCacheInvalidateCommand invalidate = (EntityCacheInvalidateCommand)cmd;
+        if (isMissingCommands(invalidate)) {
+            s_logger.info("Missed cache invalidations from management server " + invalidate.getMsid() + ", dropping all cached entities");
+            GenericDaoBase.clearCaches();
+        }
+
+        String[] tables = invalidate.getTables();
+        long[][] ids = invalidate.getIds();
+        for (int i = 0; i < tables.length; i++) {
+            GenericDaoBase.invalidateCached(tables[i], ids[i]);
+        }
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Peer invalidated cached entities of " + tables.length + " tables");
+        }
+        return new Answer(cmd);
+    }
+
+    /**
+     * Records the command and tells if commands sent before it were missed.
+     * Commands that arrive late, after a later one, are not counted as
+     * missed.  The first command from a peer run, other than its very first
+     * one, counts as missing some, as what came before it isn't known.
+     */
+    protected boolean isMissingCommands(EntityCacheInvalidateCommand cmd) {
+        synchronized (_received) {
+            long[] last = _received.get(cmd.getMsid());
+            if (last == null || last[0] != cmd.getRunId()) {
+                _received.put(cmd.getMsid(), new long[] { cmd.getRunId(), cmd.getSequence() });
+                return cmd.getSequence() != 1;
+            }
+            if (cmd.getSequence() <= last[1]) {
+                return false;
+            }
+            boolean missing = cmd.getSequence() != last[1] + 1;
+            last[1] = cmd.getSequence();
+            return missing;
+        }
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        synchronized (_received) {
+            for (ManagementServerHostVO node : nodeList) {
+                _received.remove(node.getMsid());
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        // we may have missed what the peers changed while we were cut off
+        GenericDaoBase.clearCaches();
+    }
+}
@@ -19,11 +19,16 @@ package com.cloud.cluster;
 
 import java.util.List;
 
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockReleasedCommand;
+import com.cloud.utils.db.LockReleaseListener;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * This listener is specifically written to cause cleanups in the Merovingian
- * when a management server is down.
+ * when a management server is down.  It also passes lock releases between
+ * the management servers so waiters don't have to wait out their back off.
  *
  */
 public class LockMasterListener implements ClusterManagerListener {
@@ -33,6 +38,28 @@ public class LockMasterListener implements ClusterManagerListener {
         _lockMaster = Merovingian2.createLockMaster(msId);
     }
 
+    /**
+     * @param clusterMgr cluster manager the releases come in from and go out through.
+     * @param notifyPeers whether to tell the peers about locks released here.
+     */
+    public void connect(final ClusterManager clusterMgr, boolean notifyPeers) {
+        clusterMgr.registerCommandHandler(LockReleasedCommand.class, new ClusterCommandHandler() {
+            @Override
+            public Answer handleCommand(Command cmd) {
+                _lockMaster.wakeup(((LockReleasedCommand)cmd).getKey());
+                return new Answer(cmd);
+            }
+        });
+        if (notifyPeers) {
+            _lockMaster.setReleaseListener(new LockReleaseListener() {
+                @Override
+                public void released(String key) {
+                    clusterMgr.notifyPeers(new LockReleasedCommand(key));
+                }
+            });
+        }
+    }
+
     @Override
     public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
     }
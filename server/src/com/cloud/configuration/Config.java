@@ -137,6 +137,9 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobGcBatchSize("Advanced", ManagementServer.class, Integer.class, "job.gc.batch.size", "1000", "Number of expired async-jobs deleted by one statement of the async-job cleanup", null),
+    JobArchiveDir("Advanced", ManagementServer.class, String.class, "job.archive.dir", null, "Directory to archive expired async-jobs to before they are deleted, archiving is disabled if not set", null),
+    JobArchiveFileSize("Advanced", ManagementServer.class, Integer.class, "job.archive.file.size", "64", "Size (in MB) of an async-job archive file before a new one is started", null),
  SwiftEnable(
             "Advanced", ManagementServer.class, Boolean.class, "swift.enable", "false", "enable swift ", null),
 	
@@ -161,6 +164,8 @@ public enum Config {
 	RouterCpuMHz("Advanced", NetworkManager.class, Integer.class, "router.cpu.mhz", String.valueOf(VirtualNetworkApplianceManager.DEFAULT_ROUTER_CPU_MHZ), "Default CPU speed (MHz) for router VM.", null),
 	RestartRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "restart.retry.interval", "600", "Time (in seconds) between retries to restart a vm", null),
 	RouterStatsInterval("Advanced", NetworkManager.class, Integer.class, "router.stats.interval", "300", "Interval (in seconds) to report router statistics.", null),
+	RouterStatsWorkers("Advanced", NetworkManager.class, Integer.class, "router.stats.workers", "16", "The number of router statistics commands sent at the same time", null),
+	RouterStatsConcurrencyPerHost("Advanced", NetworkManager.class, Integer.class, "router.stats.concurrency.per.host", "4", "The number of router statistics commands sent to one host at the same time", null),
 	RouterTemplateId("Advanced", NetworkManager.class, Long.class, "router.template.id", "1", "Default ID for template.", null),
     RouterExtraPublicNics("Advanced", NetworkManager.class, Integer.class, "router.extra.public.nics", "2", "specify extra public nics used for virtual router(up to 5)", "0-5"),
 	StartRetry("Advanced", AgentManager.class, Integer.class, "start.retry", "10", "Number of times to retry create and start commands", null),
@@ -201,7 +206,10 @@ public enum Config {
 	NetworkGcWait("Advanced", ManagementServer.class, Integer.class, "network.gc.wait", "600", "Time (in seconds) to wait before shutting down a network that's not in used", null),
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),	
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
+	CapacityIndexReconcileInterval("Advanced", ManagementServer.class, Integer.class, "capacity.index.reconcile.interval", "300", "Interval (in seconds) to reconcile with the database the in-memory host capacity index that this management server orders planning candidates by, 0 to plan from the database only", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
+	StatsCollectorThreads("Advanced", ManagementServer.class, Integer.class, "stats.collector.threads", "10", "The number of hosts host and vm stats are retrieved from at the same time", null),
+	VmStatsFullInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.full.interval", "10", "Every how many vm stats collections the stats of all vms are retrieved instead of the changed ones only", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	
 	ControlCidr("Advanced", ManagementServer.class, String.class, "control.cidr", "169.254.0.0/16", "Changes the cidr for the control network traffic.  Defaults to using link local.  Must be unique within pods", null),
@@ -288,14 +296,19 @@ public enum Config {
 	DefaultMaxAccountVolumes("Account Defaults", ManagementServer.class, Long.class, "max.account.volumes", "20", "The default maximum number of volumes that can be created for an account", null),
 	ResourceCountCheckInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.check.interval", "0", "Time (in seconds) to wait before retrying resource count check task. Default is 0 which is to never run the task", "Seconds"),
 	DirectAgentLoadSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.load.size", "16", "The number of direct agents to load each time", null),
+	DirectAgentPoolSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.pool.size", "100", "The maximum number of threads executing commands on all direct-connected hosts", null),
+	DirectAgentPerHostLimit("Advanced", ManagementServer.class, Integer.class, "direct.agent.per.host.limit", "8", "The maximum number of commands executing at the same time on one direct-connected host", null),
+	DirectAgentPingPoolSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.ping.pool.size", "20", "The maximum number of threads pinging direct-connected hosts", null),
 	
 	AgentLbEnable("Advanced", ClusterManager.class, Boolean.class, "agent.lb.enabled", "true", "If agent load balancing enabled in cluster setup", null),
 	SubDomainNetworkAccess("Advanced", NetworkManager.class, Boolean.class, "allow.subdomain.network.access", "true", "Allow subdomains to use networks dedicated to their parent domain(s)", null),
 	UseExternalDnsServers("Advanced", NetworkManager.class, Boolean.class, "use.external.dns", "false", "Bypass internal dns, use exetrnal dns1 and dns2", null),
 	EncodeApiResponse("Advanced", ManagementServer.class, Boolean.class, "encode.api.response", "false", "Do UTF-8 encoding for the api response, false by default", null),
+	CompressApiResponse("Advanced", ManagementServer.class, Boolean.class, "compress.api.response", "true", "Gzip list api responses for clients that accept gzip encoding", null),
 	DnsBasicZoneUpdates("Advanced", NetworkManager.class, String.class, "network.dns.basiczone.updates", "all", "This parameter can take 2 values: all (default) and pod. It defines if DHCP/DNS requests have to be send to all dhcp servers in cloudstack, or only to the one in the same pod", "all,pod"),
 
 	ClusterMessageTimeOutSeconds("Advanced", ManagementServer.class, Integer.class, "cluster.message.timeout.seconds", "300", "Time (in seconds) to wait before a inter-management server message post times out.", null),
+	ClusterRpcEnabled("Advanced", ManagementServer.class, Boolean.class, "cluster.rpc.enabled", "true", "Send inter-management server messages over one persistent connection per peer, listening on the cluster servlet port + 1 (9091 by default, which has to be open between management servers), and fall back to the cluster servlet for peers that can not be reached that way", null),
 	AgentLoadThreshold("Advanced", ManagementServer.class, Float.class, "agent.load.threshold", "0.7", "Percentage (as a value between 0 and 1) of connected agents after which agent load balancing will start happening", null),
 	
 	JavaScriptDefaultContentType("Advanced", ManagementServer.class, String.class, "json.content.type", "text/javascript", "Http response content type for .js files (default is text/javascript)", null),
@@ -32,6 +32,7 @@ import java.util.UUID;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
+import javax.persistence.EntityExistsException;
 
 import org.apache.log4j.Logger;
 
@@ -97,6 +98,7 @@ import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.IPAddressVO;
 import com.cloud.network.Network;
 import com.cloud.network.Network.GuestIpType;
 import com.cloud.network.NetworkManager;
@@ -141,6 +143,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
@@ -2486,12 +2489,29 @@ public class ConfigurationManagerImpl implements ConfigurationManager, Configura
     protected boolean savePublicIPRange(String startIP, String endIP, long zoneId, long vlanDbId, long sourceNetworkid) {
         long startIPLong = NetUtils.ip2Long(startIP);
         long endIPLong = NetUtils.ip2Long(endIP);
+        if (endIPLong < startIPLong) {
+            return false;
+        }
+
+        long macAddress = _zoneDao.getNextMacAddressBlock(zoneId, (int)(endIPLong - startIPLong + 1));
+        List<IPAddressVO> ips = new ArrayList<IPAddressVO>((int)(endIPLong - startIPLong + 1));
+        for (long ip = startIPLong; ip <= endIPLong; ip++) {
+            IPAddressVO addr = new IPAddressVO(new Ip(ip), zoneId, macAddress++, vlanDbId, false);
+            addr.setSourceNetworkId(sourceNetworkid);
+            ips.add(addr);
+        }
+
         Transaction txn = Transaction.currentTxn();
         txn.start();
-        IPRangeConfig config = new IPRangeConfig();
-        List<String> problemIps = config.savePublicIPRange(txn, startIPLong, endIPLong, zoneId, vlanDbId, sourceNetworkid);
+        try {
+            _publicIpAddressDao.persistAll(ips);
+        } catch (EntityExistsException e) {
+            s_logger.warn("Some of the ip addresses from " + startIP + " to " + endIP + " already exist", e);
+            txn.rollback();
+            return false;
+        }
         txn.commit();
-        return problemIps != null && problemIps.size() == 0;
+        return true;
     }
 
     @DB
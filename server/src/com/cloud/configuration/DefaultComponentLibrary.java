@@ -174,10 +174,12 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("StackMaidDao", StackMaidDaoImpl.class);
         addDao("VMTemplateZoneDao", VMTemplateZoneDaoImpl.class);
         addDao("DomainRouterDao", DomainRouterDaoImpl.class);
-        addDao("HostDao", HostDaoImpl.class);
+        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("HostDao", HostDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
         addDao("VMInstanceDao", VMInstanceDaoImpl.class);
         addDao("UserVmDao", UserVmDaoImpl.class);
-        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
+        info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
         info = addDao("DiskOfferingDao", DiskOfferingDaoImpl.class);
@@ -215,7 +217,9 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("AlertDao", AlertDaoImpl.class);
         addDao("CapacityDao", CapacityDaoImpl.class);
         addDao("DomainDao", DomainDaoImpl.class);
-        addDao("AccountDao", AccountDaoImpl.class);
+        info = addDao("AccountDao", AccountDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
         addDao("ResourceLimitDao", ResourceLimitDaoImpl.class);
         addDao("ResourceCountDao", ResourceCountDaoImpl.class);
         addDao("UserAccountDao", UserAccountDaoImpl.class);
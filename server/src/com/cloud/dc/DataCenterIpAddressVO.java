@@ -75,6 +75,11 @@ public class DataCenterIpAddressVO {
         this.dataCenterId = dataCenterId;
         this.podId = podId;
     }
+
+    public DataCenterIpAddressVO(String ipAddress, long dataCenterId, long podId, long macAddress) {
+        this(ipAddress, dataCenterId, podId);
+        this.macAddress = macAddress;
+    }
     
     public Long getId() {
         return id;
@@ -34,6 +34,13 @@ public interface DataCenterDao extends GenericDao<DataCenterVO, Long> {
      */
     String[] getNextAvailableMacAddressPair(long id);
     String[] getNextAvailableMacAddressPair(long id, long mask);
+    
+    /**
+     * @param id data center id
+     * @param count number of mac addresses to reserve.
+     * @return the first of count consecutive mac address sequence numbers.
+     */
+    long getNextMacAddressBlock(long id, int count);
     Pair<String, Long> allocatePrivateIpAddress(long id, long podId, long instanceId, String reservationId);
     String allocateLinkLocalIpAddress(long id, long podId, long instanceId, String reservationId);
     String allocateVnet(long dcId, long accountId, String reservationId);
@@ -44,6 +44,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SequenceFetcher;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 
 /**
@@ -201,6 +202,15 @@ public class DataCenterDaoImpl extends GenericDaoBase<DataCenterVO, Long> implem
         return pair;
     }
 
+    @Override
+    public long getNextMacAddressBlock(long id, int count) {
+        Long seq = SequenceFetcher.getInstance().getNextSequenceBlock(Long.class, _tgMacAddress, id, count);
+        if (seq == null) {
+            throw new CloudRuntimeException("Unable to reserve " + count + " mac addresses in data center " + id);
+        }
+        return seq;
+    }
+
     @Override
     public Pair<String, Long> allocatePrivateIpAddress(long dcId, long podId, long instanceId, String reservationId) {
         DataCenterIpAddressVO vo = _ipAllocDao.takeIpAddress(dcId, podId, instanceId, reservationId);
@@ -236,7 +246,11 @@ public class DataCenterDaoImpl extends GenericDaoBase<DataCenterVO, Long> implem
     
     @Override
     public void addPrivateIpAddress(long dcId,long podId, String start, String end) {
-        _ipAllocDao.addIpRange(dcId, podId, start, end);
+        int count = (int)(NetUtils.ip2Long(end) - NetUtils.ip2Long(start) + 1);
+        if (count <= 0) {
+            return;
+        }
+        _ipAllocDao.addIpRange(dcId, podId, start, end, getNextMacAddressBlock(dcId, count));
     }
     
     @Override
@@ -17,8 +17,7 @@
  */
 package com.cloud.dc.dao;
 
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -34,7 +33,6 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.Transaction;
-import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 
 @Local(value={DataCenterIpAddressDao.class}) @DB(txn=false)
@@ -86,35 +84,18 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     }
     
     @DB
-    public void addIpRange(long dcId, long podId, String start, String end) {
-        Transaction txn = Transaction.currentTxn();
-        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?))";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
-        PreparedStatement stmt = null;
-        
+    /**
+     * @param firstMacAddress mac address of the first ip, the others get the ones following it.
+     */
+    public void addIpRange(long dcId, long podId, String start, String end, long firstMacAddress) {
         long startIP = NetUtils.ip2Long(start);
         long endIP = NetUtils.ip2Long(end);
         
-        try {
-            txn.start();
-            
-            while (startIP <= endIP) {
-                stmt = txn.prepareStatement(insertSql);
-                stmt.setString(1, NetUtils.long2Ip(startIP++));
-                stmt.setLong(2, dcId);
-                stmt.setLong(3, podId);
-                stmt.setLong(4, dcId);
-                stmt.executeUpdate();
-                stmt.close();
-                stmt = txn.prepareStatement(updateSql);
-                stmt.setLong(1, dcId);
-                stmt.executeUpdate();
-                stmt.close();
-            }
-            txn.commit();
-        } catch (SQLException ex) {
-            throw new CloudRuntimeException("Unable to persist ip address range ", ex);
-        } 
+        List<DataCenterIpAddressVO> ips = new ArrayList<DataCenterIpAddressVO>();
+        for (long ip = startIP, mac = firstMacAddress; ip <= endIP; ip++, mac++) {
+            ips.add(new DataCenterIpAddressVO(NetUtils.long2Ip(ip), dcId, podId, mac));
+        }
+        persistAll(ips);
     }
     
     public void releaseIpAddress(String ipAddress, long dcId, Long instanceId) {
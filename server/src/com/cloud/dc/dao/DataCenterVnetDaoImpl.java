@@ -17,8 +17,7 @@
  */
 package com.cloud.dc.dao;
 
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -34,7 +33,6 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
-import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  * DataCenterVnetDaoImpl maintains the one-to-many relationship between
@@ -71,22 +69,11 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
     
     @DB
     public void add(long dcId, int start, int end) {
-        String insertVnet = "INSERT INTO `cloud`.`op_dc_vnet_alloc` (vnet, data_center_id) VALUES ( ?, ?)";
-        
-        Transaction txn = Transaction.currentTxn();
-        try {
-            txn.start();
-            PreparedStatement stmt = txn.prepareAutoCloseStatement(insertVnet);
-            for (int i = start; i <= end; i++) {
-                stmt.setString(1, String.valueOf(i));
-                stmt.setLong(2, dcId);
-                stmt.addBatch();
-            }
-            stmt.executeBatch();
-            txn.commit();
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Exception caught adding vnet ", e);
+        List<DataCenterVnetVO> vnets = new ArrayList<DataCenterVnetVO>(end - start + 1);
+        for (int i = start; i <= end; i++) {
+            vnets.add(new DataCenterVnetVO(String.valueOf(i), dcId));
         }
+        persistAll(vnets);
     }
     
     public void delete(long dcId) {
@@ -19,6 +19,7 @@ package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -45,23 +46,12 @@ public class PodVlanDaoImpl extends GenericDaoBase<PodVlanVO, Long> implements G
     	return listBy(sc);
     }
     
-    public void add(long podId, int start, int end) {
-        String insertVnet = "INSERT INTO `cloud`.`op_pod_vlan_alloc` (vlan, pod_id) VALUES ( ?, ?)";
-        
-        Transaction txn = Transaction.currentTxn();
-        try {
-            txn.start();
-            PreparedStatement stmt = txn.prepareAutoCloseStatement(insertVnet);
-            for (int i = start; i < end; i++) {
-                stmt.setString(1, String.valueOf(i));
-                stmt.setLong(2, podId);
-                stmt.addBatch();
-            }
-            stmt.executeBatch();
-            txn.commit();
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Exception caught adding vnet ", e);
+    public void add(long dcId, long podId, int start, int end) {
+        List<PodVlanVO> vlans = new ArrayList<PodVlanVO>(Math.max(end - start, 0));
+        for (int i = start; i < end; i++) {
+            vlans.add(new PodVlanVO(String.valueOf(i), dcId, podId));
         }
+        persistAll(vlans);
     }
     
     public void delete(long podId) {
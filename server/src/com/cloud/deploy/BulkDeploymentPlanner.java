@@ -0,0 +1,50 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.deploy;
+
+import java.util.List;
+
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+/**
+ * A DeploymentPlanner that can also place a group of identical virtual
+ * machines in one pass.
+ */
+public interface BulkDeploymentPlanner {
+    public enum Placement {
+        Spread,     // spread the group over as many hosts as possible
+        Pack        // fill up a host before moving on to the next one
+    }
+
+    /**
+     * planGroup is called to determine where each of a number of virtual
+     * machines of the same offering and template should be running.  The
+     * destinations have no storage set, storage is picked when each of them
+     * starts.
+     *
+     * @param vm profile of one of the virtual machines.
+     * @param plan deployment plan that tells you where they are being deployed to.
+     * @param avoid avoid these data centers, pods, clusters, or hosts.
+     * @param count number of virtual machines.
+     * @param placement how to spread them over the hosts.
+     * @return a destination for every virtual machine, fewer if there is not enough capacity.
+     */
+    List<DeployDestination> planGroup(VirtualMachineProfile<? extends VirtualMachine> vm, DeploymentPlan plan, ExcludeList avoid, int count, Placement placement);
+}
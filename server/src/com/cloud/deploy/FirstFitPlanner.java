@@ -20,6 +20,7 @@ package com.cloud.deploy;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +33,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -82,7 +84,7 @@ import com.cloud.vm.dao.UserVmDao;
 import com.cloud.vm.dao.VMInstanceDao;
 
 @Local(value=DeploymentPlanner.class)
-public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
+public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner, BulkDeploymentPlanner {
     private static final Logger s_logger = Logger.getLogger(FirstFitPlanner.class);
     @Inject protected HostDao _hostDao;
     @Inject protected DataCenterDao _dcDao;
@@ -221,6 +223,22 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             s_logger.debug("Cannot choose the last host to deploy this VM ");
         }
 
+        DeployDestination dest = planInClusters(vmProfile, plan, avoid, dc, cpu_requested, ram_requested, cpuOverprovisioningFactor, _allocationAlgorithm, true);
+        if (dest == null && plan.getClusterId() == null && _capacityMgr.getCapacityIndex() != null) {
+            // the index only knows what this management server changed since it was last reconciled,
+            // the clusters tried are in the avoid set now so only the others the database lists are left
+            s_logger.debug("No destination in the clusters listed by the capacity index, listing clusters by capacity from the database");
+            dest = planInClusters(vmProfile, plan, avoid, dc, cpu_requested, ram_requested, cpuOverprovisioningFactor, _allocationAlgorithm, false);
+        }
+        return dest;
+    }
+
+    /**
+     * Looks for a destination in the cluster of the plan, or else in the clusters of its pod or zone
+     * that have capacity, asking the capacity index for them only if useCapacityIndex is set.
+     */
+    private DeployDestination planInClusters(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, DataCenter dc,
+            int cpu_requested, long ram_requested, float cpuOverprovisioningFactor, String _allocationAlgorithm, boolean useCapacityIndex) {
         List<Long> clusterList = new ArrayList<Long>();
         if (plan.getClusterId() != null) {
             Long clusterIdSpecified = plan.getClusterId();
@@ -242,7 +260,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             HostPodVO pod = _podDao.findById(podIdSpecified);
             if (pod != null) {
                 //list clusters under this pod by cpu and ram capacity
-                clusterList = listClustersByCapacity(podIdSpecified, cpu_requested, ram_requested, avoid, false, cpuOverprovisioningFactor);
+                clusterList = listClustersByCapacity(podIdSpecified, cpu_requested, ram_requested, avoid, false, cpuOverprovisioningFactor, useCapacityIndex);
                 if(!clusterList.isEmpty()){
                     if(avoid.getClustersToAvoid() != null){
                         if (s_logger.isDebugEnabled()) {
@@ -280,7 +298,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             //consider all clusters under this zone.
             s_logger.debug("Searching all possible resources under this Zone: "+ plan.getDataCenterId());
             //list clusters under this zone by cpu and ram capacity
-            List<Long> prioritizedClusterIds = listClustersByCapacity(plan.getDataCenterId(), cpu_requested, ram_requested, avoid, true, cpuOverprovisioningFactor);
+            List<Long> prioritizedClusterIds = listClustersByCapacity(plan.getDataCenterId(), cpu_requested, ram_requested, avoid, true, cpuOverprovisioningFactor, useCapacityIndex);
             if(!prioritizedClusterIds.isEmpty()){
                 if(avoid.getClustersToAvoid() != null){
                     if (s_logger.isDebugEnabled()) {
@@ -333,6 +351,205 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
 
     }
 
+    @Override
+    public List<DeployDestination> planGroup(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, int count, Placement placement) {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        ServiceOffering offering = vmProfile.getServiceOffering();
+        DataCenter dc = _dcDao.findById(vm.getDataCenterIdToDeployIn());
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+
+        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Planning " + count + " VMs, placement " + placement + ", in dc:" + plan.getDataCenterId() + ", pod:" + plan.getPodId() + ",cluster:" + plan.getClusterId()
+                    + ", requested cpu: " + cpu_requested + ", requested ram: " + ram_requested);
+        }
+
+        List<Long> clusterList = listGroupClusters(vmProfile, plan, avoid, cpu_requested, ram_requested, cpuOverprovisioningFactor, true);
+        List<HostSlots> candidates = listCandidates(clusterList, vmProfile, plan, avoid, dc, cpu_requested, ram_requested, cpuOverprovisioningFactor);
+        List<DeployDestination> dests = distribute(candidates, count, placement);
+        if (dests.size() < count && plan.getClusterId() == null && _capacityMgr.getCapacityIndex() != null) {
+            // the clusters the capacity index left out may have room it does not know about yet
+            List<Long> moreClusters = listGroupClusters(vmProfile, plan, avoid, cpu_requested, ram_requested, cpuOverprovisioningFactor, false);
+            moreClusters.removeAll(clusterList);
+            if (!moreClusters.isEmpty()) {
+                s_logger.debug("Not enough room in the clusters listed by the capacity index, also looking at clusters " + moreClusters);
+                candidates.addAll(listCandidates(moreClusters, vmProfile, plan, avoid, dc, cpu_requested, ram_requested, cpuOverprovisioningFactor));
+                dests = distribute(candidates, count, placement);
+            }
+        }
+        s_logger.debug("Found destinations for " + dests.size() + " of " + count + " VMs on " + candidates.size() + " candidate hosts");
+        return dests;
+    }
+
+    private List<Long> listGroupClusters(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, int cpu_requested, long ram_requested,
+            float cpuOverprovisioningFactor, boolean useCapacityIndex) {
+        List<Long> clusterList = new ArrayList<Long>();
+        if (plan.getClusterId() != null) {
+            clusterList.add(plan.getClusterId());
+        } else {
+            boolean isZone = plan.getPodId() == null;
+            clusterList = listClustersByCapacity(isZone ? plan.getDataCenterId() : plan.getPodId(), cpu_requested, ram_requested, avoid, isZone, cpuOverprovisioningFactor, useCapacityIndex);
+            clusterList.removeAll(listDisabledClusters(plan.getDataCenterId(), plan.getPodId()));
+        }
+        if (avoid.getClustersToAvoid() != null) {
+            clusterList.removeAll(avoid.getClustersToAvoid());
+        }
+        removeClustersCrossingThreshold(clusterList, avoid, vmProfile);
+        return clusterList;
+    }
+
+    /**
+     * Finds the hosts of the clusters and how many of the vms each can take, looking at every cluster once.
+     */
+    private List<HostSlots> listCandidates(List<Long> clusterList, VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid,
+            DataCenter dc, int cpu_requested, long ram_requested, float cpuOverprovisioningFactor) {
+        List<HostSlots> candidates = new ArrayList<HostSlots>();
+        for (Long clusterId : clusterList) {
+            ClusterVO cluster = _clusterDao.findById(clusterId);
+            if (cluster == null || cluster.getHypervisorType() != vmProfile.getHypervisorType()) {
+                continue;
+            }
+
+            DataCenterDeployment potentialPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), clusterId, null, plan.getPoolId());
+            List<Host> suitableHosts = findSuitableHosts(vmProfile, potentialPlan, avoid, HostAllocator.RETURN_UPTO_ALL);
+            if (suitableHosts == null || suitableHosts.isEmpty()) {
+                s_logger.debug("No suitable hosts found under this Cluster: " + clusterId);
+                continue;
+            }
+
+            Map<Volume, List<StoragePool>> suitableVolumeStoragePools = null;
+            if (vmProfile.getHypervisorType() != HypervisorType.BareMetal) {
+                suitableVolumeStoragePools = findSuitablePoolsForVolumes(vmProfile, potentialPlan, avoid, StoragePoolAllocator.RETURN_UPTO_ALL).first();
+                if (suitableVolumeStoragePools.isEmpty()) {
+                    s_logger.debug("No suitable storagePools found under this Cluster: " + clusterId);
+                    continue;
+                }
+            }
+
+            int[] clusterRoom = new int[] { getClusterSlots(clusterId, cpu_requested, ram_requested, cpuOverprovisioningFactor) };
+            if (clusterRoom[0] <= 0) {
+                continue;
+            }
+            Pod pod = _podDao.findById(cluster.getPodId());
+            for (Host host : suitableHosts) {
+                if (suitableVolumeStoragePools != null) {
+                    List<Host> thisHost = new ArrayList<Host>();
+                    thisHost.add(host);
+                    if (findPotentialDeploymentResources(thisHost, suitableVolumeStoragePools) == null) {
+                        continue;
+                    }
+                }
+                int slots = getHostSlots(host.getId(), cpu_requested, ram_requested, cpuOverprovisioningFactor);
+                if (slots > 0) {
+                    candidates.add(new HostSlots(new DeployDestination(dc, pod, cluster, host), slots, clusterRoom));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Hands out up to count vms over the candidate hosts. Pack fills each host in the given order before
+     * moving to the next, Spread goes round-robin starting with the hosts that have the most room.
+     */
+    protected static List<DeployDestination> distribute(List<HostSlots> candidates, int count, Placement placement) {
+        List<DeployDestination> dests = new ArrayList<DeployDestination>(count);
+        if (placement == Placement.Pack) {
+            for (HostSlots candidate : candidates) {
+                while (dests.size() < count && candidate.take()) {
+                    dests.add(candidate._dest);
+                }
+            }
+        } else {
+            // the emptiest hosts get the first vms
+            Collections.sort(candidates, new Comparator<HostSlots>() {
+                @Override
+                public int compare(HostSlots s1, HostSlots s2) {
+                    return s2._slots - s1._slots;
+                }
+            });
+            boolean placed = true;
+            while (dests.size() < count && placed) {
+                placed = false;
+                for (HostSlots candidate : candidates) {
+                    if (dests.size() < count && candidate.take()) {
+                        dests.add(candidate._dest);
+                        placed = true;
+                    }
+                }
+            }
+        }
+        return dests;
+    }
+
+    protected static class HostSlots {
+        final DeployDestination _dest;
+        int _slots;
+        final int[] _clusterRoom;
+
+        HostSlots(DeployDestination dest, int slots, int[] clusterRoom) {
+            _dest = dest;
+            _slots = slots;
+            _clusterRoom = clusterRoom;
+        }
+
+        boolean take() {
+            if (_slots <= 0 || _clusterRoom[0] <= 0) {
+                return false;
+            }
+            _slots--;
+            _clusterRoom[0]--;
+            return true;
+        }
+    }
+
+    /**
+     * @return how many vms of the size the host still has room for, counting reserved capacity as taken.
+     */
+    protected int getHostSlots(long hostId, int cpu, long ram, float cpuOverprovisioningFactor) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+        if (capacityCpu == null || capacityMem == null) {
+            return 0;
+        }
+        long freeCpu = (long)(capacityCpu.getTotalCapacity() * cpuOverprovisioningFactor) - capacityCpu.getUsedCapacity() - capacityCpu.getReservedCapacity();
+        long freeMem = capacityMem.getTotalCapacity() - capacityMem.getUsedCapacity() - capacityMem.getReservedCapacity();
+        return getSlots(freeCpu, freeMem, cpu, ram);
+    }
+
+    /**
+     * @return how many vms of the size the cluster takes before crossing its disable thresholds.
+     */
+    protected int getClusterSlots(long clusterId, int cpu, long ram, float cpuOverprovisioningFactor) {
+        Map<Short, Float> capacityThresholdMap = getCapacityThresholdMap();
+        long[] free = new long[2];
+        short[] types = new short[] { Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY };
+        for (int i = 0; i < types.length; i++) {
+            List<SummedCapacity> summedCapacityList = _capacityDao.findCapacityBy(new Integer(types[i]), null, null, clusterId);
+            if (summedCapacityList == null || summedCapacityList.isEmpty()) {
+                return 0;
+            }
+            SummedCapacity summedCapacity = summedCapacityList.get(0);
+            double total = types[i] == Capacity.CAPACITY_TYPE_CPU ? summedCapacity.getTotalCapacity() * (double)cpuOverprovisioningFactor : summedCapacity.getTotalCapacity();
+            free[i] = (long)(total * capacityThresholdMap.get(types[i])) - summedCapacity.getUsedCapacity() - summedCapacity.getReservedCapacity();
+        }
+        return getSlots(free[0], free[1], cpu, ram);
+    }
+
+    protected static int getSlots(long freeCpu, long freeMem, int cpu, long ram) {
+        long slots = Integer.MAX_VALUE;
+        if (cpu > 0) {
+            slots = Math.min(slots, freeCpu / cpu);
+        }
+        if (ram > 0) {
+            slots = Math.min(slots, freeMem / ram);
+        }
+        return slots > 0 ? (int)slots : 0;
+    }
+
     private List<Long> listDisabledClusters(long zoneId, Long podId){
         List<Long> disabledClusters = _clusterDao.listDisabledClusters(zoneId, podId);
         if(podId == null){
@@ -419,6 +636,10 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         
         for(Long clusterId : clusterList){
             Cluster clusterVO = _clusterDao.findById(clusterId);
+            if (clusterVO == null) {
+                s_logger.debug("Cluster: " + clusterId + " is no longer there, skipping this cluster");
+                continue;
+            }
 
             if (clusterVO.getHypervisorType() != vmProfile.getHypervisorType()) {
                 s_logger.debug("Cluster: "+clusterId + " has HyperVisorType that does not match the VM, skipping this cluster");
@@ -524,7 +745,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         return prioritizedPods;
     }
 
-    protected List<Long> listClustersByCapacity(long id, int requiredCpu, long requiredRam, ExcludeList avoid, boolean isZone, float cpuOverprovisioningFactor){
+    protected List<Long> listClustersByCapacity(long id, int requiredCpu, long requiredRam, ExcludeList avoid, boolean isZone, float cpuOverprovisioningFactor, boolean useCapacityIndex){
         //look at the aggregate available cpu and ram per cluster
         //although an aggregate value may be false indicator that a cluster can host a vm, it will at the least eliminate those clusters which definitely cannot
 
@@ -541,6 +762,19 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
+
+        CapacityIndex capacityIndex = useCapacityIndex ? _capacityMgr.getCapacityIndex() : null;
+        if (capacityIndex != null) {
+            List<Long> clusterIds = capacityIndex.listClustersByCapacity(id, isZone, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("ClusterId List having enough CPU and RAM capacity & in order of aggregate capacity from capacity index: " + clusterIds);
+            }
+            // capacity freed on another management server is not in the index yet
+            if (!clusterIds.isEmpty()) {
+                return clusterIds;
+            }
+        }
+
         List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
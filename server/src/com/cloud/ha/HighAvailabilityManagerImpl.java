@@ -23,9 +23,13 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -44,6 +48,9 @@ import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeployDestination;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
@@ -64,6 +71,7 @@ import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.AccountManager;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.component.Adapters;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
@@ -90,13 +98,21 @@ import com.cloud.vm.dao.VMInstanceDao;
  * have re-started more than the configured number of times are marked as in Error state and the user is not allowed to restart
  * the VM.
  * 
+ * When a host goes down, scheduleRestartForVmsOnHost() handles all of its VMs as one event instead: the host is investigated
+ * and, if nobody can tell whether it's down, fenced once, each VM is checked with the Investigators and fenced off as in steps 1
+ * and 2, the VMs are stopped, their restarts are planned as a group through the deployment planner and then run in parallel with
+ * no more than restart.concurrency.per.cluster of them in flight per cluster.  Anything that can't be settled this way falls back
+ * to the work queue above.
+ * 
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
  *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
  *         consider it as another retry | seconds | 3600 || || time.between.cleanup | Time to wait before the cleanup thread
  *         runs | seconds | 86400 || || force.ha | Force HA to happen even if the VM says no | boolean | false || ||
  *         ha.retry.wait | time to wait before retrying the work item | seconds | 120 || || stop.retry.wait | time to wait
- *         before retrying the stop | seconds | 120 || * }
+ *         before retrying the stop | seconds | 120 || || restart.workers | number of threads that run the restarts after a host
+ *         failure | int | 16 || || restart.concurrency.per.cluster | restarts in flight per cluster after a host failure | int
+ *         | 4 || * }
  **/
 @Local(value = { HighAvailabilityManager.class })
 public class HighAvailabilityManagerImpl implements HighAvailabilityManager, ClusterManagerListener {
@@ -141,6 +157,9 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
 
     String _instance;
     ScheduledExecutorService _executor;
+    ExecutorService _hostFailureExecutor;
+    ExecutorService _restartExecutor;
+    RestartDispatcher _restartDispatcher;
     int _stopRetryInterval;
     int _investigateRetryInterval;
     int _migrateRetryInterval;
@@ -195,6 +214,7 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         
         s_logger.warn("Scheduling restart for VMs on host " + host.getId());
 
+        final long begin = System.currentTimeMillis();
         final List<VMInstanceVO> vms = _instanceDao.listByHostId(host.getId());
         final DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
 
@@ -223,12 +243,56 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         _alertMgr.sendAlert(AlertManager.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Host is down, " + hostDesc, "Host [" + hostDesc + "] is down."
                 + ((sb != null) ? sb.toString() : ""));
 
+        // the work items are written up front, taken by us, so that another
+        // management server picks them up if we go away half way through
+        List<Long> vmIds = new ArrayList<Long>(vms.size());
+        for (final VMInstanceVO vm : vms) {
+            vmIds.add(vm.getId());
+        }
+        Map<Long, List<HaWorkVO>> previous = new HashMap<Long, List<HaWorkVO>>();
+        for (HaWorkVO item : _haDao.findPreviousHA(vmIds)) {
+            List<HaWorkVO> items = previous.get(item.getInstanceId());
+            if (items == null) {
+                items = new ArrayList<HaWorkVO>();
+                previous.put(item.getInstanceId(), items);
+            }
+            items.add(item);
+        }
+
+        Date now = new Date();
+        List<HaWorkVO> works = new ArrayList<HaWorkVO>(vms.size());
         for (final VMInstanceVO vm : vms) {
+            if (vm.getHypervisorType() == HypervisorType.VMware) {
+                s_logger.info("Skip HA for VMware VM " + vm.getInstanceName());
+                continue;
+            }
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Notifying HA Mgr of to restart vm " + vm.getId() + "-" + vm.getHostName());
             }
-            scheduleRestart(vm, investigate);
+            List<HaWorkVO> items = previous.get(vm.getId());
+            int maxRetries = items == null ? 0 : getPreviousRetries(items);
+            HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.HA, investigate ? Step.Investigating : Step.Scheduled, host.getId(), vm.getState(), maxRetries + 1, vm.getUpdated());
+            work.setServerId(_serverId);
+            work.setDateTaken(now);
+            works.add(work);
+        }
+        if (works.isEmpty()) {
+            return;
+        }
+        _haDao.persistAll(works);
+
+        _hostFailureExecutor.execute(new HostFailureTask(host, works, investigate, begin));
+    }
+
+    protected int getPreviousRetries(List<HaWorkVO> items) {
+        int maxRetries = 0;
+        for (HaWorkVO item : items) {
+            if (maxRetries < item.getTimesTried() && !item.canScheduleNew(_timeBetweenFailures)) {
+                maxRetries = item.getTimesTried();
+                break;
+            }
         }
+        return maxRetries;
     }
 
     @Override
@@ -325,14 +389,7 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
             }        
         }
 
-        List<HaWorkVO> items = _haDao.findPreviousHA(vm.getId());
-        int maxRetries = 0;
-        for (HaWorkVO item : items) {
-            if (maxRetries < item.getTimesTried() && !item.canScheduleNew(_timeBetweenFailures)) {
-                maxRetries = item.getTimesTried();
-                break;
-            }
-        }
+        int maxRetries = getPreviousRetries(_haDao.findPreviousHA(vm.getId()));
 
         HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.HA, investigate ? Step.Investigating : Step.Scheduled, hostId, vm.getState(), maxRetries + 1, vm.getUpdated());
         _haDao.persist(work);
@@ -739,6 +796,14 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
 
         _executor = Executors.newScheduledThreadPool(count, new NamedThreadFactory("HA"));
 
+        value = params.get("restart.workers");
+        _restartExecutor = Executors.newFixedThreadPool(NumbersUtil.parseInt(value, 16), new NamedThreadFactory("HA-Restart"));
+
+        value = params.get("restart.concurrency.per.cluster");
+        _restartDispatcher = new RestartDispatcher(_restartExecutor, NumbersUtil.parseInt(value, 4));
+
+        _hostFailureExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("HA-Host"));
+
         return true;
     }
 
@@ -767,6 +832,8 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         wakeupWorkers();
 
         _executor.shutdown();
+        _hostFailureExecutor.shutdownNow();
+        _restartExecutor.shutdown();
 
         return true;
     }
@@ -786,6 +853,330 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         }
     }
 
+    /**
+     * Runs a work item and records the outcome.
+     * 
+     * @return true if the work is done; false if it has been rescheduled or failed.
+     */
+    protected boolean process(HaWorkVO work) {
+        s_logger.info("Processing " + work);
+
+        try {
+            final WorkType wt = work.getWorkType();
+            Long nextTime = null;
+            if (wt == WorkType.Migration) {
+                nextTime = migrate(work);
+            } else if (wt == WorkType.HA) {
+                nextTime = restart(work);
+            } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
+                nextTime = stopVM(work);
+            } else if (wt == WorkType.Destroy) {
+                nextTime = destroyVM(work);
+            } else {
+                assert false : "How did we get here with " + wt.toString();
+                return false;
+            }
+
+            if (nextTime == null) {
+                s_logger.info("Completed " + work);
+                work.setStep(Step.Done);
+            } else {
+                s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
+                work.setTimeToTry(nextTime);
+                work.setServerId(null);
+                work.setDateTaken(null);
+            }
+        } catch (Exception e) {
+            s_logger.error("Terminating " + work, e);
+            work.setStep(Step.Error);
+        }
+        _haDao.update(work.getId(), work);
+        return work.getStep() == Step.Done;
+    }
+
+    /**
+     * HostFailureTask takes the vms of a host that went down through HA as
+     * one event.  The host is investigated and, if nobody can tell whether
+     * it's down, fenced once for all of its vms.  Each vm is then checked
+     * with the investigators, fenced off if they can't tell whether it's
+     * alive, and stopped; their restarts are planned as a group and run on
+     * the restart dispatcher.  Work it can't settle is handed back to the
+     * HA workers.
+     */
+    protected class HostFailureTask implements Runnable {
+        final HostVO _host;
+        final List<HaWorkVO> _works;
+        final boolean _investigate;
+        final long _begin;
+
+        Long _fencedThrough;
+
+        final AtomicInteger _remaining = new AtomicInteger();
+        final AtomicInteger _restarted = new AtomicInteger();
+        final AtomicLong _slowest = new AtomicLong();
+
+        public HostFailureTask(HostVO host, List<HaWorkVO> works, boolean investigate, long begin) {
+            _host = host;
+            _works = works;
+            _investigate = investigate;
+            _begin = begin;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Boolean investigate = isDown();
+                if (investigate == null) {
+                    s_logger.info("Unable to determine that host " + _host.getId() + " is down, investigating its " + _works.size() + " vms one by one");
+                    release(_works);
+                    return;
+                }
+
+                List<HaWorkVO> stopped = stop(investigate);
+                Map<Long, DeployDestination> dests = plan(stopped);
+
+                _remaining.set(stopped.size());
+                for (final HaWorkVO work : stopped) {
+                    DeployDestination dest = dests.get(work.getInstanceId());
+                    long clusterId = dest != null ? dest.getCluster().getId() : _host.getClusterId();
+                    _restartDispatcher.dispatch(clusterId, new Runnable() {
+                        @Override
+                        public void run() {
+                            restart(work);
+                        }
+                    });
+                }
+                if (stopped.isEmpty()) {
+                    report();
+                }
+            } catch (Throwable th) {
+                s_logger.error("Unable to handle the failure of host " + _host.getId() + ", handing its vms to the HA workers", th);
+                release(_works);
+            } finally {
+                StackMaid.current().exitCleanup();
+            }
+        }
+
+        /**
+         * An investigator may find the host down only because it can't reach
+         * it, so its vms are still checked one by one unless the caller
+         * asked for no investigation.
+         * 
+         * @return false if the vms are to be stopped without investigating
+         *         them, true if each of them has to be investigated and null
+         *         if the host can't be said to be down.
+         */
+        protected Boolean isDown() {
+            if (!_investigate) {
+                return false;
+            }
+
+            Status status = investigate(_host.getId());
+            if (status == Status.Down) {
+                return true;
+            } else if (status == Status.Up) {
+                return null;
+            }
+
+            // fencing is done through one of the vms but is decided on the host's heartbeat
+            HaWorkVO work = _works.get(0);
+            VMInstanceVO vm = _itMgr.findByIdAndType(work.getType(), work.getInstanceId());
+            if (vm == null) {
+                return null;
+            }
+            Enumeration<FenceBuilder> en = _fenceBuilders.enumeration();
+            while (en.hasMoreElements()) {
+                FenceBuilder fb = en.nextElement();
+                Boolean result = fb.fenceOff(vm, _host);
+                s_logger.info("Fencer " + fb.getName() + " returned " + result + " for host " + _host.getId());
+                if (result != null && result) {
+                    _fencedThrough = vm.getId();
+                    return true;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stops the vms, in parallel per cluster, investigating each of them
+         * first if asked to.
+         * 
+         * @return work items of the vms that were stopped.
+         */
+        protected List<HaWorkVO> stop(final boolean investigate) throws InterruptedException {
+            final List<HaWorkVO> stopped = new ArrayList<HaWorkVO>(_works.size());
+            final List<HaWorkVO> unsettled = new ArrayList<HaWorkVO>();
+            final CountDownLatch latch = new CountDownLatch(_works.size());
+            for (final HaWorkVO work : _works) {
+                _restartDispatcher.dispatch(_host.getClusterId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Boolean result = stop(work, investigate);
+                            if (result == null) {
+                                synchronized (unsettled) {
+                                    unsettled.add(work);
+                                }
+                            } else if (result) {
+                                synchronized (stopped) {
+                                    stopped.add(work);
+                                }
+                            }
+                        } catch (Throwable th) {
+                            s_logger.warn("Unable to stop vm " + work.getInstanceId() + " from host " + _host.getId(), th);
+                            synchronized (unsettled) {
+                                unsettled.add(work);
+                            }
+                        } finally {
+                            StackMaid.current().exitCleanup();
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+            latch.await();
+            release(unsettled);
+            return stopped;
+        }
+
+        /**
+         * Stops the vm.  When it's investigated, a vm found alive is left to
+         * the HA workers and one nobody can tell about is fenced off first,
+         * unless the host was fenced through it.
+         * 
+         * @return true if the vm is stopped, false if there's nothing more to
+         *         do for it and null if it's alive or couldn't be fenced off.
+         */
+        protected Boolean stop(HaWorkVO work, boolean investigate) throws Exception {
+            VMInstanceVO vm = _itMgr.findByIdAndType(work.getType(), work.getInstanceId());
+            if (vm == null || vm.getHostId() == null || vm.getHostId() != _host.getId() || vm.getState() != work.getPreviousState()) {
+                s_logger.info("VM " + work.getInstanceId() + " is now no longer on host " + _host.getId() + " in " + work.getPreviousState());
+                work.setStep(Step.Done);
+                _haDao.update(work.getId(), work);
+                return false;
+            }
+
+            if (investigate) {
+                Boolean alive = null;
+                Enumeration<Investigator> en = _investigators.enumeration();
+                while (en.hasMoreElements() && alive == null) {
+                    Investigator investigator = en.nextElement();
+                    alive = investigator.isVmAlive(vm, _host);
+                    s_logger.info(investigator.getName() + " found " + vm + " to be alive? " + alive);
+                }
+                if (alive != null && alive) {
+                    s_logger.info(vm + " is alive on host " + _host.getId() + ", leaving it to the HA workers");
+                    return null;
+                }
+
+                if (alive == null && (_fencedThrough == null || vm.getId() != _fencedThrough)) {
+                    boolean fenced = false;
+                    Enumeration<FenceBuilder> enfb = _fenceBuilders.enumeration();
+                    while (enfb.hasMoreElements() && !fenced) {
+                        FenceBuilder fb = enfb.nextElement();
+                        Boolean result = fb.fenceOff(vm, _host);
+                        s_logger.info("Fencer " + fb.getName() + " returned " + result + " for " + vm);
+                        fenced = result != null && result;
+                    }
+                    if (!fenced) {
+                        return null;
+                    }
+                }
+            }
+
+            _itMgr.advanceStop(vm, true, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount());
+
+            vm = _itMgr.findByIdAndType(vm.getType(), vm.getId());
+            work.setStep(Step.Scheduled);
+            work.setPreviousState(vm.getState());
+            work.setUpdateTime(vm.getUpdated());
+            _haDao.update(work.getId(), work);
+            return true;
+        }
+
+        /**
+         * Plans where the stopped vms go, a group of vms with the same
+         * template and service offering at a time, and reserves the capacity
+         * so that each of them starts on its planned host.  Groups that don't
+         * fit are left to the planner as each vm starts.
+         */
+        protected Map<Long, DeployDestination> plan(List<HaWorkVO> stopped) {
+            Map<Ternary<Long, Long, Long>, List<VMInstanceVO>> groups = new HashMap<Ternary<Long, Long, Long>, List<VMInstanceVO>>();
+            for (HaWorkVO work : stopped) {
+                VMInstanceVO vm = _itMgr.findByIdAndType(work.getType(), work.getInstanceId());
+                if (vm == null || vm.getState() != State.Stopped || !(_forceHA || vm.isHaEnabled()) || !_storageMgr.canVmRestartOnAnotherServer(vm.getId())) {
+                    continue;
+                }
+                Ternary<Long, Long, Long> key = new Ternary<Long, Long, Long>(vm.getDataCenterIdToDeployIn(), vm.getServiceOfferingId(), vm.getTemplateId());
+                List<VMInstanceVO> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<VMInstanceVO>();
+                    groups.put(key, group);
+                }
+                group.add(vm);
+            }
+
+            Map<Long, DeployDestination> dests = new HashMap<Long, DeployDestination>();
+            for (Map.Entry<Ternary<Long, Long, Long>, List<VMInstanceVO>> group : groups.entrySet()) {
+                try {
+                    Map<VMInstanceVO, DeployDestination> planned = _itMgr.reserveGroup(group.getValue(), new DataCenterDeployment(group.getKey().first()), Placement.Spread);
+                    for (Map.Entry<VMInstanceVO, DeployDestination> entry : planned.entrySet()) {
+                        dests.put(entry.getKey().getId(), entry.getValue());
+                    }
+                } catch (InsufficientServerCapacityException e) {
+                    s_logger.warn("Unable to plan the restart of " + group.getValue().size() + " vms from host " + _host.getId() + " as a group: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    s_logger.warn("Unable to plan the restart of " + group.getValue().size() + " vms from host " + _host.getId() + " as a group", e);
+                }
+            }
+            return dests;
+        }
+
+        protected void restart(HaWorkVO work) {
+            NDC.push("work-" + work.getId());
+            try {
+                boolean done = process(work);
+                long elapsed = System.currentTimeMillis() - _begin;
+                VMInstanceVO vm = _instanceDao.findById(work.getInstanceId());
+                if (done && vm != null && vm.getState() == State.Running) {
+                    _restarted.incrementAndGet();
+                    s_logger.info("VM " + work.getInstanceId() + " from host " + _host.getId() + " is running again on host " + vm.getHostId() + " after " + elapsed + "ms");
+                } else {
+                    s_logger.info("VM " + work.getInstanceId() + " from host " + _host.getId() + " is not running after " + elapsed + "ms");
+                }
+                long slowest = _slowest.get();
+                while (elapsed > slowest && !_slowest.compareAndSet(slowest, elapsed)) {
+                    slowest = _slowest.get();
+                }
+            } catch (Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+            } finally {
+                StackMaid.current().exitCleanup();
+                NDC.pop();
+                if (_remaining.decrementAndGet() == 0) {
+                    report();
+                }
+            }
+        }
+
+        protected void release(List<HaWorkVO> works) {
+            if (works.isEmpty()) {
+                return;
+            }
+            for (HaWorkVO work : works) {
+                work.setServerId(null);
+                work.setDateTaken(null);
+                _haDao.update(work.getId(), work);
+            }
+            wakeupWorkers();
+        }
+
+        protected void report() {
+            s_logger.info("HA for host " + _host.getId() + " restarted " + _restarted.get() + " of " + _works.size() + " vms in " + (System.currentTimeMillis() - _begin)
+                    + "ms, the slowest vm took " + _slowest.get() + "ms");
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -812,38 +1203,7 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
                     }
 
                     NDC.push("work-" + work.getId());
-                    s_logger.info("Processing " + work);
-
-                    try {
-                        final WorkType wt = work.getWorkType();
-                        Long nextTime = null;
-                        if (wt == WorkType.Migration) {
-                            nextTime = migrate(work);
-                        } else if (wt == WorkType.HA) {
-                            nextTime = restart(work);
-                        } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
-                            nextTime = stopVM(work);
-                        } else if (wt == WorkType.Destroy) {
-                            nextTime = destroyVM(work);
-                        } else {
-                            assert false : "How did we get here with " + wt.toString();
-                            continue;
-                        }
-
-                        if (nextTime == null) {
-                            s_logger.info("Completed " + work);
-                            work.setStep(Step.Done);
-                        } else {
-                            s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
-                            work.setTimeToTry(nextTime);
-                            work.setServerId(null);
-                            work.setDateTaken(null);
-                        }
-                    } catch (Exception e) {
-                        s_logger.error("Terminating " + work, e);
-                        work.setStep(Step.Error);
-                    }
-                    _haDao.update(work.getId(), work);
+                    process(work);
                 } catch (final Throwable th) {
                     s_logger.error("Caught this throwable, ", th);
                 } finally {
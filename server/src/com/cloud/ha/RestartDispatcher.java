@@ -0,0 +1,115 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.ha;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * RestartDispatcher runs HA work on a shared executor with no more than a
+ * fixed number of items in flight per cluster, so that losing a host does
+ * not flood the storage and hosts of one cluster with starts.  Work over
+ * the limit waits in the cluster's queue rather than holding a thread.
+ */
+public class RestartDispatcher {
+    private static final Logger s_logger = Logger.getLogger(RestartDispatcher.class);
+
+    private final Executor _executor;
+    private final int _perCluster;
+    private final Map<Long, Integer> _running = new HashMap<Long, Integer>();
+    private final Map<Long, Queue<Runnable>> _queued = new HashMap<Long, Queue<Runnable>>();
+
+    public RestartDispatcher(Executor executor, int perCluster) {
+        _executor = executor;
+        _perCluster = perCluster;
+    }
+
+    public void dispatch(long clusterId, Runnable task) {
+        synchronized (this) {
+            Integer running = _running.get(clusterId);
+            if (running != null && running >= _perCluster) {
+                Queue<Runnable> queue = _queued.get(clusterId);
+                if (queue == null) {
+                    queue = new LinkedList<Runnable>();
+                    _queued.put(clusterId, queue);
+                }
+                queue.add(task);
+                return;
+            }
+            _running.put(clusterId, running == null ? 1 : running + 1);
+        }
+        submit(clusterId, task);
+    }
+
+    protected void submit(final long clusterId, final Runnable task) {
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done(clusterId);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            s_logger.warn("Unable to run HA work for cluster " + clusterId + " as we are shutting down");
+            done(clusterId);
+        }
+    }
+
+    protected void done(long clusterId) {
+        Runnable next = null;
+        synchronized (this) {
+            Queue<Runnable> queue = _queued.get(clusterId);
+            if (queue != null) {
+                next = queue.poll();
+                if (queue.isEmpty()) {
+                    _queued.remove(clusterId);
+                }
+            }
+            if (next == null) {
+                int running = _running.get(clusterId) - 1;
+                if (running == 0) {
+                    _running.remove(clusterId);
+                } else {
+                    _running.put(clusterId, running);
+                }
+                return;
+            }
+        }
+        submit(clusterId, next);
+    }
+
+    public synchronized int getRunning(long clusterId) {
+        Integer running = _running.get(clusterId);
+        return running == null ? 0 : running;
+    }
+
+    public synchronized int getQueued(long clusterId) {
+        Queue<Runnable> queue = _queued.get(clusterId);
+        return queue == null ? 0 : queue.size();
+    }
+}
@@ -17,6 +17,7 @@
  */
 package com.cloud.ha.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.ha.HaWorkVO;
@@ -40,6 +41,14 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      * @return list of WorkVO or empty list.
      */
     List<HaWorkVO> findPreviousHA(long instanceId);
+
+    /**
+     * Finds all the work items related to a number of instances at once.
+     * 
+     * @param instanceIds
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> findPreviousHA(Collection<Long> instanceIds);
     
     boolean delete(long instanceId, WorkType type);
 
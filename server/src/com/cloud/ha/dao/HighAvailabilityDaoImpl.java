@@ -17,6 +17,8 @@
  */
 package com.cloud.ha.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -42,6 +44,7 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 	
     private final SearchBuilder<HaWorkVO> TBASearch;
     private final SearchBuilder<HaWorkVO> PreviousInstanceSearch;
+    private final SearchBuilder<HaWorkVO> PreviousInstancesSearch;
     private final SearchBuilder<HaWorkVO> UntakenMigrationSearch;
     private final SearchBuilder<HaWorkVO> CleanupSearch;
     private final SearchBuilder<HaWorkVO> PreviousWorkSearch;
@@ -67,6 +70,10 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         PreviousInstanceSearch = createSearchBuilder();
         PreviousInstanceSearch.and("instance", PreviousInstanceSearch.entity().getInstanceId(), Op.EQ);
         PreviousInstanceSearch.done();
+
+        PreviousInstancesSearch = createSearchBuilder();
+        PreviousInstancesSearch.and("instances", PreviousInstancesSearch.entity().getInstanceId(), Op.IN);
+        PreviousInstancesSearch.done();
         
         UntakenMigrationSearch = createSearchBuilder();
         UntakenMigrationSearch.and("host", UntakenMigrationSearch.entity().getHostId(), Op.EQ);
@@ -166,6 +173,18 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         return listIncludingRemovedBy(sc);
     }
 
+    @Override
+    public List<HaWorkVO> findPreviousHA(final Collection<Long> instanceIds) {
+        final List<Long> ids = new ArrayList<Long>(instanceIds);
+        final List<HaWorkVO> items = new ArrayList<HaWorkVO>();
+        for (int i = 0; i < ids.size(); i += ID_BATCH_SIZE) {
+            final SearchCriteria<HaWorkVO> sc = PreviousInstancesSearch.create();
+            sc.setParameters("instances", ids.subList(i, Math.min(i + ID_BATCH_SIZE, ids.size())).toArray());
+            items.addAll(listIncludingRemovedBy(sc));
+        }
+        return items;
+    }
+
     @Override
     public void cleanup(final long time) {
         final SearchCriteria<HaWorkVO> sc = CleanupSearch.create();
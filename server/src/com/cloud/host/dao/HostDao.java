@@ -17,6 +17,7 @@
  */
 package com.cloud.host.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -67,4 +68,12 @@ public interface HostDao extends GenericDao<HostVO, Long>, StateDao<Status, Stat
 	List<HostVO> findAndUpdateApplianceToLoad(long lastPingSecondsAfter, long managementServerId);
 
     boolean updateResourceState(ResourceState oldState, ResourceState.Event event, ResourceState newState, Host vo);
+
+    /**
+     * Looks up a set of hosts by guid in one query.
+     * 
+     * @param guids guids reported by the agents.
+     * @return the hosts found; guids that don't match a host are left out.
+     */
+    List<HostVO> listByGuids(Collection<String> guids);
 }
@@ -21,6 +21,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -81,6 +82,7 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     protected final SearchBuilder<HostVO> DcStorageIpAddressSearch;
 
     protected final SearchBuilder<HostVO> GuidSearch;
+    protected final SearchBuilder<HostVO> GuidsSearch;
     protected final SearchBuilder<HostVO> DcSearch;
     protected final SearchBuilder<HostVO> PodSearch;
     protected final SearchBuilder<HostVO> TypeSearch;
@@ -180,6 +182,10 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         GuidSearch.and("guid", GuidSearch.entity().getGuid(), SearchCriteria.Op.EQ);
         GuidSearch.done();
 
+        GuidsSearch = createSearchBuilder();
+        GuidsSearch.and("guids", GuidsSearch.entity().getGuid(), SearchCriteria.Op.IN);
+        GuidsSearch.done();
+
         DcSearch = createSearchBuilder();
         DcSearch.and("dc", DcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         DcSearch.done();
@@ -582,6 +588,16 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         return customSearch(sc, null).get(0);
     }
 
+    @Override
+    public List<HostVO> listByGuids(Collection<String> guids) {
+        if (guids.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+        SearchCriteria<HostVO> sc = GuidsSearch.create();
+        sc.setParameters("guids", guids.toArray());
+        return listBy(sc);
+    }
+
 
 	@Override
 	public boolean updateState(Status oldStatus, Event event, Status newStatus, Host vo, Object data) {
@@ -412,7 +412,7 @@ public class VmwareManagerImpl implements VmwareManager, VmwareStorageMount, Lis
             hostSpec.setForce(true);		// forcely take over the host
 
             ManagedObjectReference morTask = serviceContext.getService().addHost_Task(morCluster, hostSpec, true, null, null);
-            String taskResult = serviceUtil.waitForTask(morTask);
+            String taskResult = serviceContext.waitForTask(morTask);
             if(!taskResult.equals("sucess")) {
                 s_logger.error("Unable to add host " + host + " to vSphere cluster due to " + TaskMO.getTaskFailureInfo(serviceContext, morTask));
                 throw new CloudRuntimeException("Unable to add host " + host + " to vSphere cluster due to " + taskResult);
@@ -0,0 +1,272 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.user.UserStatisticsVO;
+import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.db.Transaction;
+import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * NetworkUsageCollector asks routers for their network usage a host at a
+ * time in parallel, with no more than a fixed number of commands in flight
+ * to any one agent, and applies the answers to user_statistics in batches.
+ */
+public class NetworkUsageCollector {
+    private static final Logger s_logger = Logger.getLogger(NetworkUsageCollector.class);
+    private static final int UPDATE_BATCH_SIZE = 100;
+
+    private final AgentManager _agentMgr;
+    private final UserStatisticsDao _statsDao;
+    private final ExecutorService _executor;
+    private final int _perHost;
+
+    /**
+     * What one collection pass did.
+     */
+    public static class Pass {
+        int _routers;
+        int _updated;
+        int _idle;
+        int _skipped;
+        long _elapsed;
+
+        public int getRouters() {
+            return _routers;
+        }
+
+        /**
+         * @return routers whose stats were updated.
+         */
+        public int getUpdated() {
+            return _updated;
+        }
+
+        /**
+         * @return routers that answered with no traffic at all.
+         */
+        public int getIdle() {
+            return _idle;
+        }
+
+        /**
+         * @return routers that could not be asked, did not answer in time,
+         *         or whose stats could not be updated.
+         */
+        public int getSkipped() {
+            return _skipped;
+        }
+
+        public long getElapsed() {
+            return _elapsed;
+        }
+    }
+
+    public NetworkUsageCollector(AgentManager agentMgr, UserStatisticsDao statsDao, ExecutorService executor, int perHost) {
+        _agentMgr = agentMgr;
+        _statsDao = statsDao;
+        _executor = executor;
+        _perHost = Math.max(1, perHost);
+    }
+
+    /**
+     * @param routers running routers to collect from.
+     * @param timeout milliseconds to wait for the agents; routers not asked by then are skipped.
+     */
+    public Pass collect(List<DomainRouterVO> routers, long timeout) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        Pass pass = new Pass();
+        pass._routers = routers.size();
+
+        Map<Long, DomainRouterVO> routersById = new HashMap<Long, DomainRouterVO>(routers.size() * 2);
+        Map<Long, Queue<DomainRouterVO>> routersByHost = new HashMap<Long, Queue<DomainRouterVO>>();
+        for (DomainRouterVO router : routers) {
+            if (router.getPrivateIpAddress() == null || router.getHostId() == null) {
+                continue;
+            }
+            routersById.put(router.getId(), router);
+            Queue<DomainRouterVO> queue = routersByHost.get(router.getHostId());
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<DomainRouterVO>();
+                routersByHost.put(router.getHostId(), queue);
+            }
+            queue.add(router);
+        }
+
+        // remember the stats as they were before asking, so that anything changing them in the meantime wins
+        Map<Long, UserStatisticsVO> previousStats = new HashMap<Long, UserStatisticsVO>(routersById.size() * 2);
+        if (!routersById.isEmpty()) {
+            for (UserStatisticsVO stats : _statsDao.listByDevices(routersById.keySet(), VirtualMachine.Type.DomainRouter.toString())) {
+                DomainRouterVO router = routersById.get(stats.getDeviceId());
+                if (router != null && isStatsOf(stats, router)) {
+                    previousStats.put(router.getId(), stats);
+                }
+            }
+        }
+
+        final Map<Long, NetworkUsageAnswer> answers = new ConcurrentHashMap<Long, NetworkUsageAnswer>(routersById.size() * 2);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (Map.Entry<Long, Queue<DomainRouterVO>> entry : routersByHost.entrySet()) {
+            int streams = Math.min(_perHost, entry.getValue().size());
+            for (int i = 0; i < streams; i++) {
+                tasks.add(new HostTask(entry.getKey(), entry.getValue(), answers));
+            }
+        }
+        if (!tasks.isEmpty()) {
+            _executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        List<DomainRouterVO> changed = new ArrayList<DomainRouterVO>(answers.size());
+        for (Map.Entry<Long, NetworkUsageAnswer> entry : answers.entrySet()) {
+            NetworkUsageAnswer answer = entry.getValue();
+            if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
+                pass._idle++;
+            } else if (!previousStats.containsKey(entry.getKey())) {
+                s_logger.warn("unable to find stats for account: " + routersById.get(entry.getKey()).getAccountId());
+            } else {
+                changed.add(routersById.get(entry.getKey()));
+            }
+        }
+
+        for (int i = 0; i < changed.size(); i += UPDATE_BATCH_SIZE) {
+            pass._updated += update(changed.subList(i, Math.min(i + UPDATE_BATCH_SIZE, changed.size())), previousStats, answers);
+        }
+
+        pass._skipped = pass._routers - pass._updated - pass._idle;
+        pass._elapsed = System.currentTimeMillis() - begin;
+        return pass;
+    }
+
+    protected static boolean isStatsOf(UserStatisticsVO stats, DomainRouterVO router) {
+        return stats.getPublicIpAddress() == null && stats.getAccountId() == router.getAccountId()
+                && stats.getDataCenterId() == router.getDataCenterIdToDeployIn() && stats.getNetworkId() != null && stats.getNetworkId() == router.getNetworkId();
+    }
+
+    /**
+     * Applies the answers of a batch of routers in one transaction.
+     * 
+     * @return the number of routers whose stats were updated.
+     */
+    protected int update(List<DomainRouterVO> routers, Map<Long, UserStatisticsVO> previousStats, Map<Long, NetworkUsageAnswer> answers) {
+        List<Long> statsIds = new ArrayList<Long>(routers.size());
+        Map<Long, DomainRouterVO> routersByStats = new HashMap<Long, DomainRouterVO>(routers.size() * 2);
+        for (DomainRouterVO router : routers) {
+            Long statsId = previousStats.get(router.getId()).getId();
+            statsIds.add(statsId);
+            routersByStats.put(statsId, router);
+        }
+
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            txn.start();
+            List<UserStatisticsVO> updates = new ArrayList<UserStatisticsVO>(routers.size());
+            for (UserStatisticsVO stats : _statsDao.lockByIds(statsIds)) {
+                DomainRouterVO router = routersByStats.get(stats.getId());
+                UserStatisticsVO previous = previousStats.get(router.getId());
+                NetworkUsageAnswer answer = answers.get(router.getId());
+
+                if ((previous.getCurrentBytesReceived() != stats.getCurrentBytesReceived()) || (previous.getCurrentBytesSent() != stats.getCurrentBytesSent())) {
+                    s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. Ignoring current answer. Router: "+answer.getRouterName()+" Rcvd: " + answer.getBytesReceived()+ "Sent: " +answer.getBytesSent());
+                    continue;
+                }
+
+                if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesReceived()
+                                + " Stored: " + stats.getCurrentBytesReceived());
+                    }
+                    stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+                }
+                stats.setCurrentBytesReceived(answer.getBytesReceived());
+                if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesSent()
+                                + " Stored: " + stats.getCurrentBytesSent());
+                    }
+                    stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+                }
+                stats.setCurrentBytesSent(answer.getBytesSent());
+                updates.add(stats);
+            }
+            _statsDao.updateAll(updates);
+            txn.commit();
+            return updates.size();
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Unable to update user statistics of " + routers.size() + " routers", e);
+            return 0;
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Takes routers off one host's queue until it is empty.  A host gets as
+     * many of these as it may have commands in flight.
+     */
+    protected class HostTask implements Callable<Object> {
+        private final long _hostId;
+        private final Queue<DomainRouterVO> _routers;
+        private final Map<Long, NetworkUsageAnswer> _answers;
+
+        public HostTask(long hostId, Queue<DomainRouterVO> routers, Map<Long, NetworkUsageAnswer> answers) {
+            _hostId = hostId;
+            _routers = routers;
+            _answers = answers;
+        }
+
+        @Override
+        public Object call() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                DomainRouterVO router;
+                while (!Thread.currentThread().isInterrupted() && (router = _routers.poll()) != null) {
+                    NetworkUsageCommand usageCmd = new NetworkUsageCommand(router.getPrivateIpAddress(), router.getHostName());
+                    try {
+                        NetworkUsageAnswer answer = (NetworkUsageAnswer) _agentMgr.easySend(_hostId, usageCmd);
+                        if (answer != null) {
+                            _answers.put(router.getId(), answer);
+                        }
+                    } catch (Exception e) {
+                        s_logger.warn("Error while collecting network stats from router: "+router.getInstanceName()+" from host: "+_hostId, e);
+                    }
+                }
+            } finally {
+                txn.close();
+            }
+            return null;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -50,7 +51,6 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetDomRVersionAnswer;
 import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.ModifySshKeysCommand;
-import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
 import com.cloud.agent.api.RebootAnswer;
 import com.cloud.agent.api.StartupCommand;
@@ -183,6 +183,7 @@ import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PasswordGenerator;
@@ -193,6 +194,7 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.DomainRouterVO;
@@ -347,6 +349,13 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
     ScheduledExecutorService _executor;
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
+    ExecutorService _networkUsagePool;
+    NetworkUsageCollector _networkUsageCollector;
+
+    private final LatencyHistogram _networkUsagePasses = new LatencyHistogram();
+    private volatile long _lastNetworkUsagePassMillis;
+    private volatile int _lastNetworkUsageRouters;
+    private volatile int _lastNetworkUsageSkipped;
 
     Account _systemAcct;
 
@@ -616,6 +625,16 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         value = configs.get("router.stats.interval");
         _routerStatsInterval = NumbersUtil.parseInt(value, 300);
 
+        int statsWorkers = NumbersUtil.parseInt(configs.get("router.stats.workers"), 16);
+        int statsPerHost = NumbersUtil.parseInt(configs.get("router.stats.concurrency.per.host"), 4);
+        _networkUsagePool = Executors.newFixedThreadPool(statsWorkers, new NamedThreadFactory("NetworkUsageCollector"));
+        _networkUsageCollector = new NetworkUsageCollector(_agentMgr, _statsDao, _networkUsagePool, statsPerHost);
+        try {
+            JmxUtil.registerMBean("VirtualNetworkApplianceManager", "NetworkUsage", new NetworkUsageMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the network usage MBean", e);
+        }
+
         _instance = configs.get("instance.name");
         if (_instance == null) {
             _instance = "DEFAULT";
@@ -780,64 +799,19 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         		final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestIpType.Virtual, mgmtSrvrId);
         		s_logger.debug("Found " + routers.size() + " running routers. ");
 
-        		for (DomainRouterVO router : routers) {
-        			String privateIP = router.getPrivateIpAddress();
-        			if (privateIP != null) {
-        				final NetworkUsageCommand usageCmd = new NetworkUsageCommand(privateIP, router.getHostName());
-        				UserStatisticsVO previousStats = _statsDao.findBy(router.getAccountId(), router.getDataCenterIdToDeployIn(), router.getNetworkId(), null, router.getId(), router.getType().toString());
-        				NetworkUsageAnswer answer = null;
-						try {
-							answer = (NetworkUsageAnswer) _agentMgr.easySend(router.getHostId(), usageCmd);
-						} catch (Exception e) {
-							s_logger.warn("Error while collecting network stats from router: "+router.getInstanceName()+" from host: "+router.getHostId(), e);
-							continue;
-						}
-        				if (answer != null) {
-        					Transaction txn = Transaction.open(Transaction.CLOUD_DB);
-        					try {
-        						if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
-        							s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
-        							continue;
-        						}
-        						txn.start();
-        						UserStatisticsVO stats = _statsDao.lock(router.getAccountId(), router.getDataCenterIdToDeployIn(), router.getNetworkId(), null, router.getId(), router.getType().toString());
-        						if (stats == null) {
-        							s_logger.warn("unable to find stats for account: " + router.getAccountId());
-        							continue;
-        						}
-
-        						if(previousStats != null 
-        								&& ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived()) || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))){
-        							s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. Ignoring current answer. Router: "+answer.getRouterName()+" Rcvd: " + answer.getBytesReceived()+ "Sent: " +answer.getBytesSent());
-        							continue;
-        						}
-
-        						if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
-        							if (s_logger.isDebugEnabled()) {
-        								s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesReceived()
-        										+ " Stored: " + stats.getCurrentBytesReceived());
-        							}
-        							stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-        						}
-        						stats.setCurrentBytesReceived(answer.getBytesReceived());
-        						if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
-        							if (s_logger.isDebugEnabled()) {
-        								s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesSent()
-        										+ " Stored: " + stats.getCurrentBytesSent());
-        							}
-        							stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-        						}
-        						stats.setCurrentBytesSent(answer.getBytesSent());
-        						_statsDao.update(stats.getId(), stats);
-        						txn.commit();
-        					} catch (Exception e) {
-        						txn.rollback();
-        						s_logger.warn("Unable to update user statistics for account: " + router.getAccountId() + " Rx: " + answer.getBytesReceived() + "; Tx: " + answer.getBytesSent());
-        					} finally {
-        						txn.close();
-        					}
-        				}
-        			}
+        		// routers not asked by the time the next pass is due are left for that pass
+        		NetworkUsageCollector.Pass pass = _networkUsageCollector.collect(routers, _routerStatsInterval * 1000L);
+
+        		_networkUsagePasses.record(pass.getElapsed());
+        		_lastNetworkUsagePassMillis = pass.getElapsed();
+        		_lastNetworkUsageRouters = pass.getRouters();
+        		_lastNetworkUsageSkipped = pass.getSkipped();
+        		String summary = "Collected network usage of " + pass.getRouters() + " routers in " + pass.getElapsed() + "ms: " + pass.getUpdated() + " updated, " + pass.getIdle()
+        		        + " without traffic, " + pass.getSkipped() + " skipped";
+        		if (pass.getElapsed() > _routerStatsInterval * 1000L) {
+        			s_logger.warn(summary + "; the pass took longer than router.stats.interval");
+        		} else if (s_logger.isDebugEnabled()) {
+        			s_logger.debug(summary);
         		}
         	} catch (Exception e) {
         		s_logger.warn("Error while collecting network stats", e);
@@ -845,6 +819,22 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         }
     }
 
+    public LatencyHistogram getNetworkUsagePasses() {
+        return _networkUsagePasses;
+    }
+
+    public long getLastNetworkUsagePassMillis() {
+        return _lastNetworkUsagePassMillis;
+    }
+
+    public int getLastNetworkUsageRouters() {
+        return _lastNetworkUsageRouters;
+    }
+
+    public int getLastNetworkUsageSkipped() {
+        return _lastNetworkUsageSkipped;
+    }
+
     protected class NetworkStatsUpdateTask implements Runnable {
 
         public NetworkStatsUpdateTask() {
@@ -59,6 +59,7 @@ import com.cloud.api.commands.ReconnectHostCmd;
 import com.cloud.api.commands.UpdateHostCmd;
 import com.cloud.api.commands.UpdateHostPasswordCmd;
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.cluster.ClusterManager;
@@ -193,6 +194,8 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
     @Inject
     protected ClusterManager                 _clusterMgr;
     @Inject
+    protected CapacityManager                _capacityMgr;
+    @Inject
     protected StoragePoolHostDao             _storagePoolHostDao;
     @Inject
     protected HostDetailsDao                 _detailsDao;
@@ -766,6 +769,7 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
         hostCapacitySC.addAnd("hostOrPoolId", SearchCriteria.Op.EQ, hostId);
         hostCapacitySC.addAnd("capacityType", SearchCriteria.Op.IN, capacityTypes);
         _capacityDao.remove(hostCapacitySC);
+        _capacityMgr.removeFromCapacityIndex(hostId);
         txn.commit();
         return true;
     }
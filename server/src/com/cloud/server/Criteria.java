@@ -67,6 +67,7 @@ public class Criteria {
     public static final String CREATED_BY = "createdBy";
     public static final String GROUPID = "groupId";
     public static final String PATH = "path";
+    public static final String STARTID = "startId";
     public static final String KEYWORD = "keyword";
     public static final String ISADMIN = "isadmin";
     public static final String VLAN = "vlan";
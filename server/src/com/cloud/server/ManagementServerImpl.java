@@ -1690,6 +1690,9 @@ public class ManagementServerImpl implements ManagementServer {
         }
 
         Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setKeyset(EventVO.class, "id", cmd.getStartId());
+        }
 
         Object id = cmd.getId();
         Object type = cmd.getType();
@@ -1913,6 +1916,9 @@ public class ManagementServerImpl implements ManagementServer {
         } 
 
         Filter searchFilter = new Filter(VolumeVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setKeyset(VolumeVO.class, "id", cmd.getStartId());
+        }
 
         Object id = cmd.getId();
         Long vmInstanceId = cmd.getVirtualMachineId();
@@ -2080,6 +2086,9 @@ public class ManagementServerImpl implements ManagementServer {
         }
 
         Filter searchFilter = new Filter(IPAddressVO.class, "address", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setKeyset(IPAddressVO.class, "id", cmd.getStartId());
+        }
 
         Object zone = cmd.getZoneId();
         Object address = cmd.getIpAddress();
@@ -23,9 +23,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import com.cloud.resource.ResourceManager;
@@ -37,9 +41,12 @@ import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.GetFileStatsCommand;
 import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.HostStatsEntry;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.Host;
@@ -58,11 +65,13 @@ import com.cloud.storage.dao.StoragePoolDao;
 import com.cloud.storage.dao.StoragePoolHostDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.storage.secondary.SecondaryStorageVmManager;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.vm.UserVmManager;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VmStats;
 import com.cloud.vm.dao.UserVmDao;
@@ -79,8 +88,8 @@ public class StatsCollector {
 	private static StatsCollector s_instance = null;
 
 	private ScheduledExecutorService _executor = null;
+	private ExecutorService _collectorPool = null;
 	private final AgentManager _agentMgr;
-	private final UserVmManager _userVmMgr;
 	private final HostDao _hostDao;
 	private final UserVmDao _userVmDao;
 	private final VolumeDao _volsDao;
@@ -91,7 +100,7 @@ public class StatsCollector {
     private final ResourceManager _resourceMgr;
 
 	private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
-	private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
+	private final VmStatsStore _vmStats = new VmStatsStore();
 	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
@@ -100,6 +109,15 @@ public class StatsCollector {
 	long hostAndVmStatsInterval = -1L;
 	long storageStatsInterval = -1L;
 	long volumeStatsInterval = -1L;
+	int _vmStatsFullInterval = 10;
+	long _vmStatsCycle = 0;
+	long _msId;
+
+	private final LatencyHistogram _hostStatsCycles = new LatencyHistogram();
+	private final LatencyHistogram _vmStatsCycles = new LatencyHistogram();
+	private volatile long _lastHostStatsCycleMillis;
+	private volatile long _lastVmStatsCycleMillis;
+	private volatile int _lastChangedVmCount;
 
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
@@ -116,7 +134,6 @@ public class StatsCollector {
 	private StatsCollector(Map<String, String> configs) {
 		ComponentLocator locator = ComponentLocator.getLocator(ManagementServer.Name);
 		_agentMgr = locator.getManager(AgentManager.class);
-		_userVmMgr = locator.getManager(UserVmManager.class);
 		_ssvmMgr = locator.getManager(SecondaryStorageVmManager.class);
 		_hostDao = locator.getDao(HostDao.class);
 		_userVmDao = locator.getDao(UserVmDao.class);
@@ -127,11 +144,20 @@ public class StatsCollector {
         _resourceMgr = locator.getManager(ResourceManager.class);
 
 		_executor = Executors.newScheduledThreadPool(3, new NamedThreadFactory("StatsCollector"));
+		_collectorPool = Executors.newFixedThreadPool(NumbersUtil.parseInt(configs.get("stats.collector.threads"), 10), new NamedThreadFactory("StatsCollector-Host"));
+		_msId = ManagementServerNode.getManagementServerId();
 
 		 hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
 		 volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
+		 _vmStatsFullInterval = NumbersUtil.parseInt(configs.get("vm.stats.full.interval"), 10);
+
+		 try {
+		     JmxUtil.registerMBean("StatsCollector", "StatsCollector", new StatsCollectorMBeanImpl(this));
+		 } catch (Exception e) {
+		     s_logger.warn("Unable to register the stats collector MBean", e);
+		 }
 
 		 if (hostStatsInterval > 0) {
 		     _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -158,6 +184,7 @@ public class StatsCollector {
         public void run() {
 			try {
 				s_logger.debug("HostStatsCollector is running...");
+				long begin = System.currentTimeMillis();
 				
 				SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
 				sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
@@ -172,19 +199,50 @@ public class StatsCollector {
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalLoadBalancer.toString());
 				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				for (HostVO host : hosts)
-				{
-				    HostStatsEntry stats = (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
-				    if (stats != null)
-				    {
-                        hostStats.put(host.getId(), stats);
-				    }
-				    else
-				    {
-				        s_logger.warn("Received invalid host stats for host: " + host.getId());
+
+				List<Callable<HostStatsEntry>> tasks = new ArrayList<Callable<HostStatsEntry>>(hosts.size());
+				for (HostVO host : hosts) {
+				    final long hostId = host.getId();
+				    tasks.add(new Callable<HostStatsEntry>() {
+				        @Override
+				        public HostStatsEntry call() {
+				            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+				            try {
+				                return (HostStatsEntry) _resourceMgr.getHostStatistics(hostId);
+				            } finally {
+				                txn.close();
+				            }
+				        }
+				    });
+				}
+
+				// hosts that do not answer within the interval are left out of this cycle
+				List<Future<HostStatsEntry>> results = _collectorPool.invokeAll(tasks, hostStatsInterval, TimeUnit.MILLISECONDS);
+				int timedOut = 0;
+				for (int i = 0; i < results.size(); i++) {
+				    long hostId = hosts.get(i).getId();
+				    try {
+				        HostStatsEntry stats = results.get(i).get();
+				        if (stats != null) {
+				            hostStats.put(hostId, stats);
+				        } else {
+				            s_logger.warn("Received invalid host stats for host: " + hostId);
+				        }
+				    } catch (CancellationException e) {
+				        timedOut++;
+				        s_logger.warn("Timed out retrieving host stats for host: " + hostId);
+				    } catch (ExecutionException e) {
+				        s_logger.warn("Unable to retrieve host stats for host: " + hostId, e.getCause());
 				    }
 				}
 				_hostStats = hostStats;
+
+				long elapsed = System.currentTimeMillis() - begin;
+				_hostStatsCycles.record(elapsed);
+				_lastHostStatsCycleMillis = elapsed;
+				if (s_logger.isDebugEnabled()) {
+				    s_logger.debug("Retrieved host stats of " + hostStats.size() + " of " + hosts.size() + " hosts in " + elapsed + "ms, " + timedOut + " timed out");
+				}
 			}
 			catch (Throwable t)
 			{
@@ -192,12 +250,80 @@ public class StatsCollector {
 			}
 		}
 	}
+
+	/**
+	 * Stats of the running user vms on one host, null stats if the host could not be asked.
+	 */
+	static class HostVmStats {
+	    final long[] _vmIds;
+	    Map<Long, VmStatsEntry> _stats;
+
+	    HostVmStats(long[] vmIds) {
+	        _vmIds = vmIds;
+	    }
+	}
+
+	class HostVmStatsTask implements Callable<HostVmStats> {
+	    private final HostVO _host;
+	    private final boolean _full;
+
+	    HostVmStatsTask(HostVO host, boolean full) {
+	        _host = host;
+	        _full = full;
+	    }
+
+	    @Override
+	    public HostVmStats call() {
+	        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+	        try {
+	            List<UserVmVO> vms = _userVmDao.listRunningByHostId(_host.getId());
+	            HostVmStats result = new HostVmStats(new long[vms.size()]);
+	            if (vms.isEmpty()) {
+	                result._stats = new HashMap<Long, VmStatsEntry>();
+	                return result;
+	            }
+
+	            // ask for everything when we have nothing on one of the vms, e.g. after a restart
+	            boolean changedOnly = !_full;
+	            List<String> vmNames = new ArrayList<String>(vms.size());
+	            Map<String, Long> vmIdsByName = new HashMap<String, Long>(vms.size() * 2);
+	            for (int i = 0; i < vms.size(); i++) {
+	                UserVmVO vm = vms.get(i);
+	                result._vmIds[i] = vm.getId();
+	                vmNames.add(vm.getInstanceName());
+	                vmIdsByName.put(vm.getInstanceName(), vm.getId());
+	                if (changedOnly && !_vmStats.contains(vm.getId())) {
+	                    changedOnly = false;
+	                }
+	            }
+
+	            Answer answer = _agentMgr.easySend(_host.getId(), new GetVmStatsCommand(vmNames, _host.getGuid(), _host.getName(), changedOnly, _msId));
+	            if (answer == null || !answer.getResult() || ((GetVmStatsAnswer)answer).getVmStatsMap() == null) {
+	                s_logger.debug("Failed to get VM stats for host with ID: " + _host.getId());
+	                return result;
+	            }
+
+	            Map<String, VmStatsEntry> vmStatsByName = ((GetVmStatsAnswer)answer).getVmStatsMap();
+	            result._stats = new HashMap<Long, VmStatsEntry>(vmStatsByName.size() * 2);
+	            for (Map.Entry<String, VmStatsEntry> entry : vmStatsByName.entrySet()) {
+	                Long vmId = vmIdsByName.get(entry.getKey());
+	                if (vmId != null) {
+	                    result._stats.put(vmId, entry.getValue());
+	                }
+	            }
+	            return result;
+	        } finally {
+	            txn.close();
+	        }
+	    }
+	}
 	
 	class VmStatsCollector implements Runnable {
 		@Override
         public void run() {
 			try {
 				s_logger.debug("VmStatsCollector is running...");
+				long begin = System.currentTimeMillis();
 				
 				SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
 				sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
@@ -209,53 +335,68 @@ public class StatsCollector {
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				
+
+				boolean full = _vmStatsFullInterval <= 1 || (_vmStatsCycle++ % _vmStatsFullInterval) == 0;
+				List<HostVmStatsTask> tasks = new ArrayList<HostVmStatsTask>(hosts.size());
 				for (HostVO host : hosts) {
-					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-					List<Long> vmIds = new ArrayList<Long>();
-					
-					for (UserVmVO vm : vms) {
-						vmIds.add(vm.getId());
-					}
-					
-					try
-					{
-							HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-							
-							if(vmStatsById != null)
-							{
-								VmStatsEntry statsInMemory = null;
-								
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-									
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
-							}
-							
-					} catch (Exception e) {
-						s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-						continue;
-					}
+				    tasks.add(new HostVmStatsTask(host, full));
+				}
+				List<Future<HostVmStats>> results = _collectorPool.invokeAll(tasks, hostAndVmStatsInterval, TimeUnit.MILLISECONDS);
+
+				// vms that are no longer running on any of the hosts are dropped
+				Map<Long, VmStatsEntry> updates = new HashMap<Long, VmStatsEntry>();
+				List<long[]> running = new ArrayList<long[]>(results.size());
+				int vmCount = 0;
+				int timedOut = 0;
+				for (int i = 0; i < results.size(); i++) {
+				    try {
+				        HostVmStats stats = results.get(i).get();
+				        running.add(stats._vmIds);
+				        vmCount += stats._vmIds.length;
+				        if (stats._stats != null) {
+				            updates.putAll(stats._stats);
+				        }
+				    } catch (CancellationException e) {
+				        timedOut++;
+				        s_logger.debug("Timed out getting VM stats for host with ID: " + hosts.get(i).getId());
+				    } catch (ExecutionException e) {
+				        s_logger.debug("Failed to get VM stats for host with ID: " + hosts.get(i).getId(), e.getCause());
+				        // keep the stats of the host's vms, they aren't known to be gone
+				        try {
+				            List<UserVmVO> vms = _userVmDao.listRunningByHostId(hosts.get(i).getId());
+				            long[] vmIds = new long[vms.size()];
+				            for (int j = 0; j < vmIds.length; j++) {
+				                vmIds[j] = vms.get(j).getId();
+				            }
+				            running.add(vmIds);
+				            vmCount += vmIds.length;
+				        } catch (RuntimeException re) {
+				            // same as a time out, nothing is dropped this time round
+				            timedOut++;
+				            s_logger.debug("Unable to list the running VMs of host with ID: " + hosts.get(i).getId(), re);
+				        }
+				    }
+				}
+
+				long[] retain = null;
+				if (timedOut == 0) {
+				    retain = new long[vmCount];
+				    int next = 0;
+				    for (long[] vmIds : running) {
+				        System.arraycopy(vmIds, 0, retain, next, vmIds.length);
+				        next += vmIds.length;
+				    }
+				}
+				_vmStats.merge(updates, retain);
+
+				long elapsed = System.currentTimeMillis() - begin;
+				_vmStatsCycles.record(elapsed);
+				_lastVmStatsCycleMillis = elapsed;
+				_lastChangedVmCount = updates.size();
+				if (s_logger.isDebugEnabled()) {
+				    s_logger.debug("Retrieved " + (full ? "all" : "changed") + " VM stats from " + hosts.size() + " hosts in " + elapsed + "ms, " + updates.size() + " of " + vmCount
+				            + " vms changed, " + timedOut + " hosts timed out");
 				}
-				
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
 			}
@@ -263,7 +404,31 @@ public class StatsCollector {
 	}
 
 	public VmStats getVmStats(long id) {
-		return _VmStats.get(id);
+		return _vmStats.get(id);
+	}
+
+	public int getTrackedVmCount() {
+	    return _vmStats.size();
+	}
+
+	public int getLastChangedVmCount() {
+	    return _lastChangedVmCount;
+	}
+
+	public long getLastHostStatsCycleMillis() {
+	    return _lastHostStatsCycleMillis;
+	}
+
+	public long getLastVmStatsCycleMillis() {
+	    return _lastVmStatsCycleMillis;
+	}
+
+	public LatencyHistogram getHostStatsCycles() {
+	    return _hostStatsCycles;
+	}
+
+	public LatencyHistogram getVmStatsCycles() {
+	    return _vmStatsCycles;
 	}
 
 	class StorageCollector implements Runnable {
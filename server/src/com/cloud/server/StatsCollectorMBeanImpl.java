@@ -0,0 +1,66 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.server;
+
+import javax.management.StandardMBean;
+
+public class StatsCollectorMBeanImpl extends StandardMBean implements StatsCollectorMBean {
+	private StatsCollector _collector;
+
+	public StatsCollectorMBeanImpl(StatsCollector collector) {
+		super(StatsCollectorMBean.class, false);
+
+		_collector = collector;
+	}
+
+	public int getTrackedVmCount() {
+		return _collector.getTrackedVmCount();
+	}
+
+	public int getLastChangedVmCount() {
+		return _collector.getLastChangedVmCount();
+	}
+
+	public long getLastHostStatsCycleMillis() {
+		return _collector.getLastHostStatsCycleMillis();
+	}
+
+	public long getAverageHostStatsCycleMillis() {
+		return _collector.getHostStatsCycles().getAverage();
+	}
+
+	public long getMaxHostStatsCycleMillis() {
+		return _collector.getHostStatsCycles().getMax();
+	}
+
+	public long getLastVmStatsCycleMillis() {
+		return _collector.getLastVmStatsCycleMillis();
+	}
+
+	public long getAverageVmStatsCycleMillis() {
+		return _collector.getVmStatsCycles().getAverage();
+	}
+
+	public long getMaxVmStatsCycleMillis() {
+		return _collector.getVmStatsCycles().getMax();
+	}
+
+	public long getVmStatsCycleCount() {
+		return _collector.getVmStatsCycles().getCount();
+	}
+}
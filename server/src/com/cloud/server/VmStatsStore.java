@@ -0,0 +1,140 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.server;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.vm.VmStats;
+
+/**
+ * VmStatsStore keeps the latest stats of every vm in sorted primitive
+ * arrays.  The arrays are never modified once published, a merge builds a
+ * new snapshot and swaps it in, so readers never take a lock and always see
+ * the stats of one collection cycle.  Cpu utilization and number of cpus
+ * are replaced by a merge, the network counters are added up.
+ */
+public class VmStatsStore {
+    private static final long[] NO_IDS = new long[0];
+
+    private volatile Snapshot _snapshot = new Snapshot(NO_IDS);
+
+    private static class Snapshot {
+        final long[] _ids;
+        final double[] _cpu;
+        final double[] _networkRead;
+        final double[] _networkWrite;
+        final int[] _numCpus;
+        final String[] _entityTypes;
+
+        Snapshot(long[] ids) {
+            _ids = ids;
+            _cpu = new double[ids.length];
+            _networkRead = new double[ids.length];
+            _networkWrite = new double[ids.length];
+            _numCpus = new int[ids.length];
+            _entityTypes = new String[ids.length];
+        }
+
+        void copy(int from, Snapshot to, int index) {
+            to._cpu[index] = _cpu[from];
+            to._networkRead[index] = _networkRead[from];
+            to._networkWrite[index] = _networkWrite[from];
+            to._numCpus[index] = _numCpus[from];
+            to._entityTypes[index] = _entityTypes[from];
+        }
+    }
+
+    public VmStats get(long vmId) {
+        Snapshot snapshot = _snapshot;
+        int index = Arrays.binarySearch(snapshot._ids, vmId);
+        if (index < 0) {
+            return null;
+        }
+        return new VmStatsEntry(snapshot._cpu[index], snapshot._networkRead[index], snapshot._networkWrite[index], snapshot._numCpus[index], snapshot._entityTypes[index]);
+    }
+
+    public boolean contains(long vmId) {
+        return Arrays.binarySearch(_snapshot._ids, vmId) >= 0;
+    }
+
+    public int size() {
+        return _snapshot._ids.length;
+    }
+
+    /**
+     * Merges the stats collected in one cycle.
+     *
+     * @param updates stats by vm id.
+     * @param retain if not null, only the vms in here are kept, the others no longer run.
+     */
+    public synchronized void merge(Map<Long, VmStatsEntry> updates, long[] retain) {
+        Snapshot current = _snapshot;
+
+        long[] updated = new long[updates.size()];
+        int i = 0;
+        for (Long vmId : updates.keySet()) {
+            updated[i++] = vmId;
+        }
+        Arrays.sort(updated);
+        if (retain != null) {
+            retain = retain.clone();
+            Arrays.sort(retain);
+        }
+
+        // both id lists are sorted, so walk them together
+        long[] ids = new long[current._ids.length + updated.length];
+        int count = 0;
+        int c = 0;
+        int u = 0;
+        while (c < current._ids.length || u < updated.length) {
+            long id;
+            if (u == updated.length || (c < current._ids.length && current._ids[c] < updated[u])) {
+                id = current._ids[c++];
+                if (retain != null && Arrays.binarySearch(retain, id) < 0) {
+                    continue;
+                }
+            } else {
+                id = updated[u++];
+                if (c < current._ids.length && current._ids[c] == id) {
+                    c++;
+                }
+            }
+            ids[count++] = id;
+        }
+
+        Snapshot snapshot = new Snapshot(count == ids.length ? ids : Arrays.copyOf(ids, count));
+        for (i = 0; i < count; i++) {
+            long id = snapshot._ids[i];
+            int old = Arrays.binarySearch(current._ids, id);
+            if (old >= 0) {
+                current.copy(old, snapshot, i);
+            }
+            VmStatsEntry update = updates.get(id);
+            if (update != null) {
+                snapshot._cpu[i] = update.getCPUUtilization();
+                snapshot._numCpus[i] = update.getNumCPUs();
+                snapshot._networkRead[i] += update.getNetworkReadKBs();
+                snapshot._networkWrite[i] += update.getNetworkWriteKBs();
+                snapshot._entityTypes[i] = update.getEntityType();
+            }
+        }
+        _snapshot = snapshot;
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.cloud.user.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -31,6 +32,16 @@ public interface UserStatisticsDao extends GenericDao<UserStatisticsVO, Long> {
 
     List<UserStatisticsVO> listBy(long accountId);
 
+    /**
+     * Lists the stats of a number of devices of one type, e.g. all the routers looked after by a management server.
+     */
+    List<UserStatisticsVO> listByDevices(Collection<Long> deviceIds, String deviceType);
+
+    /**
+     * Locks the stats rows for update.  Must be called within a transaction.
+     */
+    List<UserStatisticsVO> lockByIds(Collection<Long> ids);
+
     List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit);
 
 	boolean updateAggStats();
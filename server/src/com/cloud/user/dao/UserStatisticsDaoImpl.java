@@ -21,6 +21,7 @@ package com.cloud.user.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -46,6 +47,8 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
     private static final String UPDATE_AGG_STATS = "UPDATE user_statistics set agg_bytes_received = net_bytes_received + current_bytes_received , agg_bytes_sent = net_bytes_sent + current_bytes_sent";
     private final SearchBuilder<UserStatisticsVO> AllFieldsSearch;
     private final SearchBuilder<UserStatisticsVO> AccountSearch;
+    private final SearchBuilder<UserStatisticsVO> DevicesSearch;
+    private final SearchBuilder<UserStatisticsVO> IdsSearch;
     
     public UserStatisticsDaoImpl() {
     	AccountSearch = createSearchBuilder();
@@ -60,6 +63,15 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         AllFieldsSearch.and("device", AllFieldsSearch.entity().getDeviceId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("deviceType", AllFieldsSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);        
         AllFieldsSearch.done();
+
+        DevicesSearch = createSearchBuilder();
+        DevicesSearch.and("devices", DevicesSearch.entity().getDeviceId(), SearchCriteria.Op.IN);
+        DevicesSearch.and("deviceType", DevicesSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);
+        DevicesSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
     }
     
     @Override
@@ -93,6 +105,31 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         return search(sc, null);
     }
 
+    @Override
+    public List<UserStatisticsVO> listByDevices(Collection<Long> deviceIds, String deviceType) {
+        List<Long> all = new ArrayList<Long>(deviceIds);
+        List<UserStatisticsVO> stats = new ArrayList<UserStatisticsVO>(all.size());
+        for (int i = 0; i < all.size(); i += ID_BATCH_SIZE) {
+            SearchCriteria<UserStatisticsVO> sc = DevicesSearch.create();
+            sc.setParameters("devices", all.subList(i, Math.min(i + ID_BATCH_SIZE, all.size())).toArray());
+            sc.setParameters("deviceType", deviceType);
+            stats.addAll(listBy(sc));
+        }
+        return stats;
+    }
+
+    @Override
+    public List<UserStatisticsVO> lockByIds(Collection<Long> ids) {
+        List<Long> all = new ArrayList<Long>(ids);
+        List<UserStatisticsVO> stats = new ArrayList<UserStatisticsVO>(all.size());
+        for (int i = 0; i < all.size(); i += ID_BATCH_SIZE) {
+            SearchCriteria<UserStatisticsVO> sc = IdsSearch.create();
+            sc.setParameters("ids", all.subList(i, Math.min(i + ID_BATCH_SIZE, all.size())).toArray());
+            stats.addAll(lockRows(sc, null, true));
+        }
+        return stats;
+    }
+
     @Override
     public List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit) {
         List<UserStatisticsVO> userStats = new ArrayList<UserStatisticsVO>();
@@ -20,8 +20,10 @@ package com.cloud.vm;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -66,6 +68,7 @@ import com.cloud.api.commands.ListVMsCmd;
 import com.cloud.api.commands.AssignVMCmd;
 import com.cloud.api.commands.RebootVMCmd;
 import com.cloud.api.commands.RecoverVMCmd;
+import com.cloud.api.commands.ReserveVMsCmd;
 import com.cloud.api.commands.ResetVMPasswordCmd;
 import com.cloud.api.commands.RestoreVMCmd;
 import com.cloud.api.commands.StartVMCmd;
@@ -90,6 +93,7 @@ import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.dc.dao.VlanDao;
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.domain.DomainVO;
@@ -2887,6 +2891,49 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         }
     }
 
+    @Override
+    public List<UserVmVO> reserveVirtualMachines(ReserveVMsCmd cmd) throws InsufficientCapacityException {
+        Placement placement = Placement.Spread;
+        if (cmd.getPlacement() != null) {
+            if (cmd.getPlacement().equalsIgnoreCase(Placement.Spread.toString())) {
+                placement = Placement.Spread;
+            } else if (cmd.getPlacement().equalsIgnoreCase(Placement.Pack.toString())) {
+                placement = Placement.Pack;
+            } else {
+                throw new InvalidParameterValueException("Invalid placement " + cmd.getPlacement() + ", it must be spread or pack");
+            }
+        }
+
+        List<UserVmVO> vms = new ArrayList<UserVmVO>(cmd.getIds().size());
+        Set<Long> vmIds = new HashSet<Long>();
+        for (Long vmId : cmd.getIds()) {
+            if (!vmIds.add(vmId)) {
+                throw new InvalidParameterValueException("Virtual machine " + vmId + " is listed more than once");
+            }
+            UserVmVO vm = _vmDao.findById(vmId);
+            if (vm == null) {
+                throw new InvalidParameterValueException("Unable to find a virtual machine with id " + vmId);
+            }
+            if (vm.getState() != State.Stopped) {
+                throw new InvalidParameterValueException("Virtual machine " + vmId + " is not stopped, only stopped virtual machines can be reserved");
+            }
+            if (!vms.isEmpty()) {
+                UserVmVO first = vms.get(0);
+                if (vm.getDataCenterIdToDeployIn() != first.getDataCenterIdToDeployIn() || vm.getServiceOfferingId() != first.getServiceOfferingId()
+                        || vm.getTemplateId() != first.getTemplateId()) {
+                    throw new InvalidParameterValueException("Virtual machine " + vmId + " does not share the zone, template and service offering of virtual machine " + first.getId());
+                }
+            }
+            vms.add(vm);
+        }
+        if (vms.isEmpty()) {
+            return vms;
+        }
+
+        _itMgr.reserveGroup(vms, new DataCenterDeployment(vms.get(0).getDataCenterIdToDeployIn()), placement);
+        return vms;
+    }
+
     @Override
     public List<UserVmVO> searchForUserVMs(ListVMsCmd cmd) {
         Account caller = UserContext.current().getCaller();
@@ -2961,6 +3008,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         } 
 
         Criteria c = new Criteria("id", Boolean.TRUE, cmd.getStartIndex(), cmd.getPageSizeVal());
+        c.addCriteria(Criteria.STARTID, cmd.getStartId());
         c.addCriteria(Criteria.KEYWORD, cmd.getKeyword());
         c.addCriteria(Criteria.ID, cmd.getId());
         c.addCriteria(Criteria.NAME, cmd.getInstanceName());
@@ -3002,6 +3050,10 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Override
     public List<UserVmVO> searchForUserVMs(Criteria c) {
         Filter searchFilter = new Filter(UserVmVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
+        Object startId = c.getCriteria(Criteria.STARTID);
+        if (startId != null) {
+            searchFilter.setKeyset(UserVmVO.class, "id", startId);
+        }
 
         SearchBuilder<UserVmVO> sb = _vmDao.createSearchBuilder();
         Object[] accountIds = (Object[]) c.getCriteria(Criteria.ACCOUNTID);
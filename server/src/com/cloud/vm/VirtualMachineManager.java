@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.cloud.deploy.DeployDestination;
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConcurrentOperationException;
@@ -123,6 +124,19 @@ public interface VirtualMachineManager extends Manager {
     
     VMInstanceVO findById(long vmId);
 
+    /**
+     * Plans where a group of stopped virtual machines of the same template and service offering
+     * go in one pass and reserves the capacity for all of them at once.  Each vm then lands on its
+     * host when it is started as usual.
+     * 
+     * @param vms virtual machines to place.
+     * @param plan where to place them.
+     * @param placement whether to spread them over hosts or pack them on as few as possible.
+     * @return the destination of each of the vms.
+     * @throws InsufficientServerCapacityException if there is no room for all of them.
+     */
+    <T extends VMInstanceVO> Map<T, DeployDestination> reserveGroup(List<T> vms, DeploymentPlan plan, Placement placement) throws InsufficientServerCapacityException;
+
 	<T extends VMInstanceVO> T storageMigration(T vm, StoragePool storagePoolId);
 
 }
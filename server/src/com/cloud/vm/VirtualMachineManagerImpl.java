@@ -22,8 +22,11 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -76,6 +79,8 @@ import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.BulkDeploymentPlanner;
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
@@ -1672,6 +1677,7 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     
     public Commands deltaSync(Map<String, Pair<String, State>> newStates) {
         Map<Long, AgentVmInfo> states = convertToInfos(newStates);
+        Map<String, Long> hostIds = findHostIdsByGuid(states.values());
         Commands commands = new Commands(OnError.Continue);
 
         for (Map.Entry<Long, AgentVmInfo> entry : states.entrySet()) {
@@ -1679,10 +1685,19 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             VMInstanceVO vm = info.vm;
             Command command = null;
             if (vm != null) {
-                String hostGuid = info.getHostUuid();
-                Host host = _resourceMgr.findHostByGuid(hostGuid);
-                long hId = host.getId();
-               
+                Long hId = hostIds.get(info.getHostUuid());
+                if (hId == null) {
+                    s_logger.warn("Skipping " + info.name + " as it is reported from an unknown host " + info.getHostUuid());
+                    continue;
+                }
+                if (isInSync(hId, vm, info, true)) {
+                    continue;
+                }
+                vm = info.guru.findById(vm.getId());
+                if (vm == null) {
+                    continue;
+                }
+
                 HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
                 command = compareState(hId, vm, info, false, hvGuru.trackVmHostChange());
             } else {
@@ -1703,26 +1718,35 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
 
     public Commands fullSync(final long clusterId, Map<String, Pair<String, State>> newStates) {
+        long begin = System.currentTimeMillis();
         Commands commands = new Commands(OnError.Continue);
-        Map<Long, AgentVmInfo> infos = convertToInfos(newStates);
-        long hId = 0;
         final List<VMInstanceVO> vms = _vmDao.listByClusterId(clusterId);
+        Map<Long, AgentVmInfo> infos = convertToInfos(newStates, vms);
+        Map<String, Long> hostIds = findHostIdsByGuid(infos.values());
+        int inSync = 0;
         for (VMInstanceVO vm : vms) {
             AgentVmInfo info = infos.remove(vm.getId());
-            VMInstanceVO castedVm = null;
-            if (info == null) {
+            boolean reported = info != null;
+            Long hId = null;
+            if (!reported) {
                 info = new AgentVmInfo(vm.getInstanceName(), getVmGuru(vm), vm, State.Stopped);
-                castedVm = info.guru.findById(vm.getId());
                 hId = vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId();
             } else {
-                castedVm = info.vm;
-                String hostGuid = info.getHostUuid();
-                Host host = _resourceMgr.findHostByGuid(hostGuid);
-                if (host == null) {
+                hId = hostIds.get(info.getHostUuid());
+                if (hId == null) {
                     infos.put(vm.getId(), info);
                     continue;
                 }
-                hId = host.getId();
+            }
+            if (isInSync(hId, vm, info, reported)) {
+                inSync++;
+                continue;
+            }
+
+            // only the vms that need attention pay for loading the guru's own vo
+            VMInstanceVO castedVm = info.guru.findById(vm.getId());
+            if (castedVm == null) {
+                continue;
             }
             HypervisorGuru hvGuru = _hvGuruMgr.getGuru(castedVm.getHypervisorType());
             Command command = compareState(hId, castedVm, info, true, hvGuru.trackVmHostChange());
@@ -1734,25 +1758,82 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             s_logger.warn("Stopping a VM that we have no record of: " + left.name);
             commands.addCommand(cleanup(left.name));
         }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Full sync of cluster " + clusterId + " compared " + vms.size() + " vms, " + inSync + " in sync, " + commands.size() + " commands, took "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        }
         return commands;
     }
 
+    /**
+     * Tells whether compareState() would neither change the vm nor send
+     * anything to the agent, so the cluster sync can skip the vm without
+     * loading it again.  A vm the agent didn't report is in sync unless we
+     * think it's up; a reported vm is in sync when it runs where we think it
+     * runs.
+     */
+    protected boolean isInSync(long hostId, VMInstanceVO vm, AgentVmInfo info, boolean reported) {
+        State serverState = vm.getState();
+        if (!reported) {
+            return serverState != State.Starting && serverState != State.Running && serverState != State.Stopping && serverState != State.Migrating;
+        }
+        return info.state == State.Running && serverState == State.Running && vm.getHostId() != null && vm.getHostId() == hostId;
+    }
+
+    protected Map<String, Long> findHostIdsByGuid(Collection<AgentVmInfo> infos) {
+        Set<String> guids = new HashSet<String>();
+        for (AgentVmInfo info : infos) {
+            if (info.getHostUuid() != null) {
+                guids.add(info.getHostUuid());
+            }
+        }
+        Map<String, Long> hostIds = new HashMap<String, Long>(guids.size() * 2);
+        for (HostVO host : _hostDao.listByGuids(guids)) {
+            hostIds.put(host.getGuid(), host.getId());
+        }
+        return hostIds;
+    }
 
     protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates) {
+        return convertToInfos(newStates, null);
+    }
+
+    /**
+     * Resolves the reported names against the vms we already have in hand,
+     * then looks up the rest in one batch.  Only names that aren't in the
+     * database fall through to the gurus to work out an id from the name.
+     */
+    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates, final List<? extends VMInstanceVO> known) {
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
         if (newStates == null) {
             return map;
         }
-        Collection<VirtualMachineGuru<? extends VMInstanceVO>> vmGurus = _vmGurus.values();
 
+        Map<String, VMInstanceVO> byName = new HashMap<String, VMInstanceVO>(newStates.size() * 2);
+        if (known != null) {
+            for (VMInstanceVO vm : known) {
+                if (newStates.containsKey(vm.getInstanceName())) {
+                    byName.put(vm.getInstanceName(), vm);
+                }
+            }
+        }
+        if (byName.size() < newStates.size()) {
+            Set<String> missing = new HashSet<String>(newStates.keySet());
+            missing.removeAll(byName.keySet());
+            for (VMInstanceVO vm : _vmDao.listByInstanceNames(missing)) {
+                byName.put(vm.getInstanceName(), vm);
+            }
+        }
+
+        Collection<VirtualMachineGuru<? extends VMInstanceVO>> vmGurus = _vmGurus.values();
         for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
+            String name = entry.getKey();
+            VMInstanceVO vm = byName.get(name);
+            if (vm != null && getVmGuru(vm) != null) {
+                map.put(vm.getId(), new AgentVmInfo(name, getVmGuru(vm), vm, entry.getValue().second(), entry.getValue().first()));
+                continue;
+            }
             for (VirtualMachineGuru<? extends VMInstanceVO> vmGuru : vmGurus) {
-                String name = entry.getKey();
-                VMInstanceVO vm = vmGuru.findByName(name);
-                if (vm != null) {
-                    map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vmGuru, vm, entry.getValue().second(), entry.getValue().first()));
-                    break;
-                }
                 Long id = vmGuru.convertToId(name);
                 if (id != null) {
                     map.put(id, new AgentVmInfo(entry.getKey(), vmGuru, null, entry.getValue().second(), entry.getValue().first()));
@@ -2246,4 +2327,50 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     public VMInstanceVO findById(long vmId) {
         return _vmDao.findById(vmId);
     }
+
+    @Override
+    public <T extends VMInstanceVO> Map<T, DeployDestination> reserveGroup(List<T> vms, DeploymentPlan plan, Placement placement) throws InsufficientServerCapacityException {
+        Map<T, DeployDestination> dests = new LinkedHashMap<T, DeployDestination>();
+        if (vms.isEmpty()) {
+            return dests;
+        }
+
+        T vm = vms.get(0);
+        for (T other : vms) {
+            if (other.getState() != State.Stopped || other.getServiceOfferingId() != vm.getServiceOfferingId() || other.getTemplateId() != vm.getTemplateId()) {
+                throw new CloudRuntimeException("Only stopped VMs of the same template and service offering can be placed as a group, " + other + " is not like " + vm);
+            }
+        }
+
+        ServiceOfferingVO offering = _offeringDao.findById(vm.getServiceOfferingId());
+        VMTemplateVO template = _templateDao.findById(vm.getTemplateId());
+        Account owner = _accountMgr.getAccount(vm.getAccountId());
+        VirtualMachineProfileImpl<T> vmProfile = new VirtualMachineProfileImpl<T>(vm, template, offering, owner, null);
+
+        List<DeployDestination> planned = null;
+        for (DeploymentPlanner planner : _planners) {
+            if (planner instanceof BulkDeploymentPlanner && planner.canHandle(vmProfile, plan, new ExcludeList())) {
+                planned = ((BulkDeploymentPlanner)planner).planGroup(vmProfile, plan, new ExcludeList(), vms.size(), placement);
+                break;
+            }
+        }
+        if (planned == null || planned.size() < vms.size()) {
+            throw new InsufficientServerCapacityException("Unable to find room for " + vms.size() + " VMs like " + vm + ", found " + (planned == null ? 0 : planned.size()),
+                    DataCenter.class, plan.getDataCenterId());
+        }
+
+        List<Long> hostIds = new ArrayList<Long>(vms.size());
+        for (int i = 0; i < vms.size(); i++) {
+            hostIds.add(planned.get(i).getHost().getId());
+            dests.put(vms.get(i), planned.get(i));
+        }
+        if (!_capacityMgr.reserveVmCapacity(vms, hostIds)) {
+            throw new InsufficientServerCapacityException("Unable to reserve capacity for " + vms.size() + " VMs like " + vm, DataCenter.class, plan.getDataCenterId());
+        }
+
+        for (T reserved : vms) {
+            reserved.setLastHostId(dests.get(reserved).getHost().getId());
+        }
+        return dests;
+    }
 }
@@ -18,6 +18,7 @@
 
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -82,6 +83,13 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
     public Long countAllocatedVirtualRoutersForAccount(long accountId);
 
     List<VMInstanceVO> listByClusterId(long clusterId);
+
+    /**
+     * Looks up vms by instance name, a batch of names per query.
+     * @param names instance names as reported by the hypervisor.
+     * @return the vms found; names that don't match a vm are left out.
+     */
+    List<VMInstanceVO> listByInstanceNames(Collection<String> names);
     List<VMInstanceVO> listVmsMigratingFromHost(Long hostId);
     
     public Long countRunningByHostId(long hostId);    
@@ -19,6 +19,8 @@
 package com.cloud.vm.dao;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -55,6 +57,7 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected final SearchBuilder<VMInstanceVO> AllFieldsSearch;
     protected final SearchBuilder<VMInstanceVO> ZoneTemplateNonExpungedSearch;
     protected final SearchBuilder<VMInstanceVO> NameLikeSearch;
+    protected final SearchBuilder<VMInstanceVO> InstanceNamesSearch;
     protected final SearchBuilder<VMInstanceVO> StateChangeSearch;
     protected final SearchBuilder<VMInstanceVO> TransitionSearch;
     protected final SearchBuilder<VMInstanceVO> TypesSearch;
@@ -100,6 +103,10 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         NameLikeSearch.and("name", NameLikeSearch.entity().getHostName(), Op.LIKE);
         NameLikeSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("names", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
         StateChangeSearch = createSearchBuilder();
         StateChangeSearch.and("id", StateChangeSearch.entity().getId(), Op.EQ);
         StateChangeSearch.and("states", StateChangeSearch.entity().getState(), Op.EQ);
@@ -192,6 +199,18 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return listBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        List<String> all = new ArrayList<String>(names);
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>(all.size());
+        for (int i = 0; i < all.size(); i += ID_BATCH_SIZE) {
+            SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+            sc.setParameters("names", all.subList(i, Math.min(i + ID_BATCH_SIZE, all.size())).toArray());
+            vms.addAll(listBy(sc));
+        }
+        return vms;
+    }
+
     @Override
     public List<VMInstanceVO> listByZoneIdAndType(long zoneId, VirtualMachine.Type type) {
         SearchCriteria<VMInstanceVO> sc = AllFieldsSearch.create();
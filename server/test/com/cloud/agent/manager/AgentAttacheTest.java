@@ -0,0 +1,163 @@
+package com.cloud.agent.manager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.ReadyCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.Status;
+
+/**
+ * Drives one attache from many threads the way a host with hundreds of VM
+ * operations in flight does: in-sequence commands must still go out one at
+ * a time while everything else goes straight through.
+ */
+public class AgentAttacheTest extends TestCase {
+
+    protected static class TestAttache extends AgentAttache {
+        final LinkedBlockingQueue<Request> _inSequence = new LinkedBlockingQueue<Request>();
+        final ConcurrentHashMap<Long, Request> _sent = new ConcurrentHashMap<Long, Request>();
+        final AtomicInteger _outstanding = new AtomicInteger();
+        volatile boolean _overlapped = false;
+
+        public TestAttache() {
+            super(null, 1, false);
+            ready();
+        }
+
+        @Override
+        public void send(Request req) throws AgentUnavailableException {
+            assertNull("Sent twice: " + req, _sent.put(req.getSequence(), req));
+            if (req.executeInSequence()) {
+                if (_outstanding.incrementAndGet() > 1) {
+                    _overlapped = true;
+                }
+                _inSequence.add(req);
+            }
+        }
+
+        /**
+         * Plays the agent: answers in-sequence requests one by one.
+         */
+        public void answer(int count) throws InterruptedException {
+            for (int i = 0; i < count; i++) {
+                Request req = _inSequence.poll(30, TimeUnit.SECONDS);
+                assertNotNull("In-sequence request got stuck in the queue", req);
+                _outstanding.decrementAndGet();
+                sendNext(req.getSequence());
+            }
+        }
+
+        @Override
+        public void updatePassword(Command newPassword) {
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    protected static class Sender implements Runnable {
+        final TestAttache _attache;
+        final int _count;
+        final boolean _inSequence;
+        final boolean _cancel;
+
+        public Sender(TestAttache attache, int count, boolean inSequence, boolean cancel) {
+            _attache = attache;
+            _count = count;
+            _inSequence = inSequence;
+            _cancel = cancel;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < _count; i++) {
+                Command cmd = _inSequence ? new ReadyCommand() : new GetHostStatsCommand("guid", "name", 1);
+                Request req = new Request(1, 1, cmd, true);
+                req.setSequence(_attache.getNextSequence());
+                try {
+                    _attache.send(req, null);
+                } catch (AgentUnavailableException e) {
+                    fail(e.getMessage());
+                }
+                if (_cancel) {
+                    _attache.cancel(req.getSequence());
+                }
+            }
+        }
+    }
+
+    protected void run(TestAttache attache, int threads, int count, boolean inSequence) throws Exception {
+        Thread[] senders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            senders[i] = new Thread(new Sender(attache, count, inSequence, !inSequence));
+            senders[i].start();
+        }
+        if (inSequence) {
+            attache.answer(threads * count);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+    }
+
+    public void testInSequence() throws Exception {
+        TestAttache attache = new TestAttache();
+        int threads = 20;
+        int count = 50;
+        run(attache, threads, count, true);
+
+        assertFalse("More than one in-sequence request was outstanding", attache._overlapped);
+        assertEquals(threads * count, attache._sent.size());
+        assertEquals(0, attache.getQueueSize());
+        assertNull(attache.getCurrentSequence());
+    }
+
+    public void testConcurrentSendAndCancel() throws Exception {
+        TestAttache attache = new TestAttache();
+        int threads = 20;
+        int count = 100;
+        run(attache, threads, count, false);
+
+        assertEquals(threads * count, attache._sent.size());
+        assertEquals(0, attache.getQueueSize());
+    }
+
+    public void testCancelQueued() throws Exception {
+        TestAttache attache = new TestAttache();
+        Request first = new Request(1, 1, new ReadyCommand(), true);
+        first.setSequence(attache.getNextSequence());
+        Request second = new Request(1, 1, new ReadyCommand(), true);
+        second.setSequence(attache.getNextSequence());
+        Request third = new Request(1, 1, new ReadyCommand(), true);
+        third.setSequence(attache.getNextSequence());
+
+        attache.send(first, null);
+        attache.send(second, null);
+        attache.send(third, null);
+        assertEquals(first.getSequence(), attache.getCurrentSequence().longValue());
+        assertEquals(2, attache.getQueueSize());
+
+        attache.cancel(second.getSequence());
+        assertEquals(1, attache.getQueueSize());
+
+        attache.answer(1);
+        assertEquals(third.getSequence(), attache.getCurrentSequence().longValue());
+        assertFalse(attache._sent.containsKey(second.getSequence()));
+        attache.answer(1);
+        assertNull(attache.getCurrentSequence());
+    }
+}
@@ -0,0 +1,74 @@
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
+import com.cloud.agent.transport.Response;
+import com.cloud.utils.Pair;
+import com.cloud.utils.nio.Task;
+
+public class ClusteredAgentHandlerTest extends TestCase {
+
+    protected static class RoutingAgentManager extends ClusteredAgentManagerImpl {
+        final List<Pair<String, byte[]>> _routed = new ArrayList<Pair<String, byte[]>>();
+
+        public RoutingAgentManager(long nodeId) {
+            _nodeId = nodeId;
+        }
+
+        @Override
+        public boolean routeToPeer(String peer, byte[] bytes) {
+            _routed.add(new Pair<String, byte[]>(peer, bytes));
+            return true;
+        }
+    }
+
+    protected byte[] answer(Version ver) {
+        Command cmd = new GetHostStatsCommand("guid", "name", 5);
+        // forwarded to the agent by management server 2
+        Request req = new Request(5, 2, cmd, true);
+        req.setSequence(10);
+        Response resp = new Response(req, new Answer(cmd, true, null));
+        resp.setVersion(ver);
+        return resp.getBytes();
+    }
+
+    public void testAnswerRoutedToPeer() throws Exception {
+        for (Version ver : new Version[] { Version.v1, Version.v4 }) {
+            RoutingAgentManager mgr = new RoutingAgentManager(1);
+            byte[] data = answer(ver);
+            assertEquals(ver, Request.getVersion(data));
+
+            ClusteredAgentManagerImpl.ClusteredAgentHandler handler = mgr.new ClusteredAgentHandler(Task.Type.DATA, null, data);
+            handler.doTask(handler);
+
+            assertEquals(ver.toString(), 1, mgr._routed.size());
+            assertEquals("2", mgr._routed.get(0).first());
+            assertSame(data, mgr._routed.get(0).second());
+        }
+    }
+
+    public void testForwardedRequestAdvertisesV1() throws Exception {
+        RoutingAgentManager mgr = new RoutingAgentManager(1);
+        ClusteredAgentAttache attache = new ClusteredAgentAttache(mgr, 5);
+        attache.setWireVersion(Version.v4);
+        attache.setTransferMode(true);
+
+        Command cmd = new GetHostStatsCommand("guid", "name", 5);
+        Request req = new Request(5, 1, cmd, true);
+        req.setSequence(10);
+        req.setVersion(Version.v4);
+        attache.send(req, null);
+
+        byte[] data = attache.getRequestToTransfer().getBytes();
+        assertEquals(Version.v1, Request.getVersion(data));
+        assertEquals(Version.v1, Request.getPeerVersion(data));
+    }
+}
@@ -0,0 +1,159 @@
+package com.cloud.agent.manager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class DirectAgentSchedulerTest extends TestCase {
+
+    protected static class Blocking implements Runnable {
+        final CountDownLatch _release;
+        final AtomicInteger _running;
+        final AtomicInteger _maxRunning;
+
+        public Blocking(CountDownLatch release, AtomicInteger running, AtomicInteger maxRunning) {
+            _release = release;
+            _running = running;
+            _maxRunning = maxRunning;
+        }
+
+        @Override
+        public void run() {
+            int running = _running.incrementAndGet();
+            synchronized (_maxRunning) {
+                if (running > _maxRunning.get()) {
+                    _maxRunning.set(running);
+                }
+            }
+            try {
+                _release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            } finally {
+                _running.decrementAndGet();
+            }
+        }
+    }
+
+    public void testSlowHostDoesNotStarveOthers() throws Exception {
+        DirectAgentScheduler scheduler = new DirectAgentScheduler(4, 2, 2);
+        scheduler.setJmxEnabled(false);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            for (int i = 0; i < 100; i++) {
+                scheduler.execute(1, new Blocking(release, running, maxRunning));
+            }
+
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.execute(2, new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue("Host 2 should not wait behind host 1", done.await(5, TimeUnit.SECONDS));
+
+            assertEquals(2, scheduler.getQueue(1).getRunningCount());
+            assertEquals(98, scheduler.getQueue(1).getQueueDepth());
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 30000;
+            while (scheduler.getQueue(1).getCompletedCount() < 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(100, scheduler.getQueue(1).getCompletedCount());
+            assertEquals(2, maxRunning.get());
+            assertEquals(0, scheduler.getQueue(1).getRunningCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testPingsAreNotStackedUp() throws Exception {
+        DirectAgentScheduler scheduler = new DirectAgentScheduler(1, 1, 1);
+        scheduler.setJmxEnabled(false);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            scheduler.execute(1, new Blocking(release, running, maxRunning));
+
+            final CountDownLatch pinged = new CountDownLatch(1);
+            final CountDownLatch stuck = new CountDownLatch(1);
+            scheduler.getQueue(2).ping(new Runnable() {
+                @Override
+                public void run() {
+                    pinged.countDown();
+                }
+            });
+            assertTrue("Ping should not wait for commands", pinged.await(5, TimeUnit.SECONDS));
+
+            scheduler.getQueue(3).ping(new Blocking(stuck, running, maxRunning));
+            scheduler.getQueue(3).ping(new Blocking(stuck, running, maxRunning));
+            assertEquals(1, scheduler.getQueue(3).getSkippedPingCount());
+
+            stuck.countDown();
+            release.countDown();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testNestedSendRunsInline() throws Exception {
+        DirectAgentScheduler scheduler = new DirectAgentScheduler(2, 1, 1);
+        scheduler.setJmxEnabled(false);
+        try {
+            final DirectAgentScheduler.HostQueue queue = scheduler.getQueue(1);
+            final CountDownLatch nested = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            queue.add(new Runnable() {
+                @Override
+                public void run() {
+                    queue.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            nested.countDown();
+                        }
+                    });
+                    try {
+                        if (nested.await(5, TimeUnit.SECONDS)) {
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            assertTrue("Nested send should not wait for a free slot", done.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testForgottenQueueIsNotRecreated() throws Exception {
+        DirectAgentScheduler scheduler = new DirectAgentScheduler(1, 1, 1);
+        scheduler.setJmxEnabled(false);
+        try {
+            DirectAgentScheduler.HostQueue queue = scheduler.getQueue(1);
+            scheduler.forget(queue);
+            assertTrue(queue.isForgotten());
+            assertTrue(scheduler._hosts.isEmpty());
+
+            final CountDownLatch ran = new CountDownLatch(1);
+            queue.add(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue("Work sent through a forgotten queue still runs", ran.await(5, TimeUnit.SECONDS));
+            assertTrue(scheduler._hosts.isEmpty());
+
+            assertNotSame(queue, scheduler.getQueue(1));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.cloud.agent.manager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.transport.Request;
+import com.cloud.ha.HighAvailabilityManager;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.Status.Event;
+import com.cloud.host.dao.HostDao;
+import com.cloud.utils.fsm.NoTransitionException;
+
+/**
+ * Disconnects a host that stopped pinging the way the agent manager's
+ * disconnect task does and checks that HA is started for its vms once,
+ * when the host is found to be down.
+ */
+public class HostDownHaTest extends TestCase {
+    Status _hostStatus;
+    Status _investigated;
+    final List<String> _calls = new ArrayList<String>();
+    HostVO _host;
+    AgentManagerImpl _mgr;
+
+    class TestAttache extends AgentAttache {
+        public TestAttache() {
+            super(null, 5, false);
+        }
+
+        @Override
+        public void send(Request req) {
+        }
+
+        @Override
+        public void updatePassword(Command new_password) {
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T fake(final Class<T> clazz) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("findById")) {
+                    return _host;
+                } else if (name.equals("investigate")) {
+                    return _investigated;
+                } else if (name.equals("scheduleRestartForVmsOnHost")) {
+                    _calls.add("restart " + ((HostVO)args[0]).getId() + " " + args[1]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    @Override
+    protected void setUp() {
+        _host = new HostVO("host-5") {
+            @Override
+            public long getId() {
+                return 5;
+            }
+
+            @Override
+            public Status getStatus() {
+                return _hostStatus;
+            }
+        };
+
+        _mgr = new AgentManagerImpl() {
+            @Override
+            public Answer easySend(Long hostId, Command cmd) {
+                // the agent doesn't answer its health check
+                return null;
+            }
+
+            @Override
+            public boolean agentStatusTransitTo(HostVO host, Event e, long msId) {
+                try {
+                    _hostStatus = _hostStatus.getNextStatus(e);
+                    return true;
+                } catch (NoTransitionException ex) {
+                    return false;
+                }
+            }
+        };
+        _mgr._hostDao = fake(HostDao.class);
+        _mgr._haMgr = fake(HighAvailabilityManager.class);
+    }
+
+    void disconnect() {
+        _mgr.new DisconnectTask(new TestAttache(), Event.PingTimeout, true).run();
+    }
+
+    public void testHostDownStartsHa() {
+        _hostStatus = Status.Up;
+        _investigated = Status.Down;
+        disconnect();
+
+        assertEquals(Status.Down, _hostStatus);
+        assertEquals(1, _calls.size());
+        assertEquals("restart 5 true", _calls.get(0));
+    }
+
+    public void testHostNobodyCanTellAboutStartsHa() {
+        _hostStatus = Status.Up;
+        _investigated = null;
+        disconnect();
+
+        assertEquals(Status.Down, _hostStatus);
+        assertEquals(1, _calls.size());
+    }
+
+    public void testHostUpDoesNotStartHa() {
+        _hostStatus = Status.Up;
+        _investigated = Status.Up;
+        disconnect();
+
+        assertEquals(Status.Up, _hostStatus);
+        assertTrue(_calls.isEmpty());
+    }
+
+    public void testHostAlreadyInAlertDoesNotStartHaAgain() {
+        _hostStatus = Status.Alert;
+        _investigated = Status.Down;
+        disconnect();
+
+        assertTrue(_calls.isEmpty());
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.api.ApiResponseGsonHelper;
+import com.cloud.api.BaseCmd;
+import com.google.gson.Gson;
+
+public class ApiResponseSerializerTest extends TestCase {
+
+    protected static UserVmResponse vm(long id) {
+        UserVmResponse vm = new UserVmResponse();
+        vm.setObjectName("virtualmachine");
+        vm.setId(id);
+        vm.setName("i-2-" + id + "-VM");
+        vm.setDisplayName("web \"server\" <" + id + "> & 'friends'\t\\");
+        vm.setAccountName("admin");
+        vm.setDomainId(1L);
+        vm.setDomainName("ROOT");
+        vm.setCreated(new Date(1300000000000L + id * 1000));
+        vm.setState("Running");
+        vm.setHaEnable(false);
+        vm.setZoneId(1L);
+        vm.setZoneName("zone1");
+        vm.setHostId(id % 50);
+        vm.setHostName("host" + id % 50);
+        vm.setTemplateId(2L);
+        vm.setTemplateName("CentOS 5.5(64-bit) no GUI (XenServer)");
+        vm.setServiceOfferingId(1L);
+        vm.setServiceOfferingName("Small Instance");
+        vm.setCpuNumber(1);
+        vm.setCpuSpeed(500);
+        vm.setMemory(512);
+        vm.setCpuUsed("0.12%");
+        vm.setNetworkKbsRead(id * 3);
+        vm.setNetworkKbsWrite(id * 2);
+        vm.setGuestOsId(12L);
+        vm.setRootDeviceId(0L);
+        vm.setRootDeviceType("NetworkFilesystem");
+        vm.setPasswordEnabled(true);
+        vm.setHypervisor("XenServer");
+        vm.setJobId(id);
+        vm.setJobStatus(0);
+
+        NicResponse nic = new NicResponse();
+        nic.setId(id);
+        nic.setNetworkid(204L);
+        nic.setNetmask("255.255.255.0");
+        nic.setGateway("10.1.1.1");
+        nic.setIpaddress("10.1.1." + id % 250);
+        nic.setTrafficType("Guest");
+        nic.setType("Virtual");
+        nic.setIsDefault(true);
+        nic.setMacAddress("02:00:1a:2b:3c:4d");
+        List<NicResponse> nics = new ArrayList<NicResponse>();
+        nics.add(nic);
+        vm.setNics(nics);
+
+        SecurityGroupResponse group = new SecurityGroupResponse();
+        group.setId(1L);
+        group.setName("default");
+        group.setDescription("Default Security Group");
+        List<SecurityGroupResponse> groups = new ArrayList<SecurityGroupResponse>();
+        groups.add(group);
+        vm.setSecurityGroupList(groups);
+        return vm;
+    }
+
+    protected static ListResponse<UserVmResponse> vms(int count) {
+        List<UserVmResponse> vms = new ArrayList<UserVmResponse>(count);
+        for (int i = 0; i < count; i++) {
+            vms.add(vm(i + 1));
+        }
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponseName("listvirtualmachinesresponse");
+        response.setResponses(vms);
+        return response;
+    }
+
+    /**
+     * How the list was serialized before: with gson, to one string per
+     * object, unescaped and appended to the whole response.
+     */
+    protected static String gsonSerialized(ListResponse<UserVmResponse> result) {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+        StringBuilder sb = new StringBuilder();
+        List<UserVmResponse> responses = result.getResponses();
+        sb.append("{ \"" + result.getResponseName() + "\" : ");
+        sb.append("{ \"count\":" + result.getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + ApiResponseSerializer.unescape(gson.toJson(responses.get(0))));
+        for (int i = 1; i < responses.size(); i++) {
+            sb.append(", " + ApiResponseSerializer.unescape(gson.toJson(responses.get(i))));
+        }
+        sb.append(" ] }");
+        sb.append(" }");
+        return sb.toString();
+    }
+
+    public void testJSONSameAsGson() {
+        ListResponse<UserVmResponse> result = vms(3);
+        assertEquals(gsonSerialized(result), ApiResponseSerializer.toSerializedString(result, BaseCmd.RESPONSE_TYPE_JSON));
+
+        AsyncJobResponse job = new AsyncJobResponse();
+        job.setResponseName("queryasyncjobresultresponse");
+        job.setId(10L);
+        job.setCmd("com.cloud.api.commands.DeployVMCmd");
+        job.setJobStatus(1);
+        job.setJobResultType("object");
+        job.setJobResult(vm(4));
+        String expected = "{ \"queryasyncjobresultresponse\" : " + ApiResponseSerializer.unescape(ApiResponseGsonHelper.getBuilder().create().toJson(job)) + " }";
+        assertEquals(expected, ApiResponseSerializer.toSerializedString(job, BaseCmd.RESPONSE_TYPE_JSON));
+
+        ListResponse<UserVmResponse> empty = new ListResponse<UserVmResponse>();
+        empty.setResponseName("listvirtualmachinesresponse");
+        assertEquals("{ \"listvirtualmachinesresponse\" : { } }", ApiResponseSerializer.toSerializedString(empty, BaseCmd.RESPONSE_TYPE_JSON));
+    }
+
+    public void testXML() throws IOException {
+        StringWriter writer = new StringWriter();
+        ApiResponseSerializer.serializeXML(vms(2), writer, "2.2");
+        String xml = writer.toString();
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><listvirtualmachinesresponse cloud-stack-version=\"2.2\"><count>2</count><virtualmachine><id>1</id>"));
+        assertTrue(xml.contains("<displayname>web &quot;server&quot; &lt;2&gt; &amp; &apos;friends&apos;\t\\</displayname>"));
+        assertTrue(xml.contains("<nic><id>2</id><networkid>204</networkid>"));
+        assertTrue(xml.contains("<securitygroup><id>1</id><name>default</name>"));
+        assertTrue(xml.endsWith("</virtualmachine></listvirtualmachinesresponse>"));
+    }
+
+    public void testSerializeHead() throws Exception {
+        ListResponse<UserVmResponse> small = vms(3);
+        byte[] head = ApiResponseSerializer.serializeHead(small, BaseCmd.RESPONSE_TYPE_JSON, false);
+        assertEquals(ApiResponseSerializer.toSerializedString(small, BaseCmd.RESPONSE_TYPE_JSON), new String(head, "UTF-8"));
+
+        ListResponse<UserVmResponse> large = vms(1000);
+        assertNull("a response past the threshold is streamed", ApiResponseSerializer.serializeHead(large, BaseCmd.RESPONSE_TYPE_JSON, false));
+        assertNotNull("compressed it still fits", ApiResponseSerializer.serializeHead(large, BaseCmd.RESPONSE_TYPE_JSON, true));
+        assertNull(ApiResponseSerializer.serializeHead(vms(10000), BaseCmd.RESPONSE_TYPE_JSON, true));
+
+        DigestOutputStream out = new DigestOutputStream();
+        ApiResponseSerializer.serialize(large, BaseCmd.RESPONSE_TYPE_JSON, out, false);
+        DigestOutputStream expected = new DigestOutputStream();
+        expected.write(gsonSerialized(large).getBytes("UTF-8"));
+        assertEquals(expected.getCount(), out.getCount());
+        assertTrue(MessageDigest.isEqual(expected.digest(), out.digest()));
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void testSerializeHeadFailsBeforeCommit() {
+        // an element that isn't a vm can't be serialized, it has to fail before a status is committed
+        List vms = new ArrayList();
+        vms.add(vm(1));
+        vms.add("not a vm");
+        ListResponse<UserVmResponse> result = new ListResponse<UserVmResponse>();
+        result.setResponseName("listvirtualmachinesresponse");
+        result.setResponses(vms);
+
+        for (boolean gzip : new boolean[] { false, true }) {
+            try {
+                ApiResponseSerializer.serializeHead(result, BaseCmd.RESPONSE_TYPE_JSON, gzip);
+                fail("serialized a bad response");
+            } catch (RuntimeException e) {
+            }
+        }
+    }
+
+    protected static class DigestOutputStream extends OutputStream {
+        MessageDigest _digest;
+        long _count;
+
+        public DigestOutputStream() throws Exception {
+            _digest = MessageDigest.getInstance("MD5");
+        }
+
+        @Override
+        public void write(int b) {
+            _digest.update((byte) b);
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            _digest.update(b, off, len);
+            _count += len;
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+        public byte[] digest() {
+            return _digest.digest();
+        }
+    }
+}
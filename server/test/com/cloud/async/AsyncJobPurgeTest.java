@@ -0,0 +1,231 @@
+package com.cloud.async;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class AsyncJobPurgeTest extends TestCase {
+    final Date _cutTime = new Date(System.currentTimeMillis() - 3600 * 1000L);
+    final TreeMap<Long, Date> _jobs = new TreeMap<Long, Date>();
+    final Set<Long> _referenced = new HashSet<Long>();
+    final List<Pair<Long, Long>> _deletes = new ArrayList<Pair<Long, Long>>();
+    boolean _databaseDown;
+    AsyncJobManagerImpl _mgr;
+
+    /**
+     * Keeps the job table in a sorted map.  Deleting a range that has a job
+     * that is still referenced fails as a whole, like a foreign key would.
+     * While the database is down every statement fails.
+     */
+    AsyncJobDao fakeDao() {
+        return (AsyncJobDao)Proxy.newProxyInstance(AsyncJobDao.class.getClassLoader(), new Class<?>[] { AsyncJobDao.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                Date cutTime = (Date)args[0];
+                if (_databaseDown) {
+                    throw new CloudRuntimeException("DB Exception on: " + name);
+                }
+                if (name.equals("listExpiredJobIds")) {
+                    List<Long> ids = new ArrayList<Long>();
+                    for (Map.Entry<Long, Date> job : _jobs.tailMap((Long)args[1]).entrySet()) {
+                        if (ids.size() < (Integer)args[2] && !job.getValue().after(cutTime)) {
+                            ids.add(job.getKey());
+                        }
+                    }
+                    return ids;
+                } else if (name.equals("listExpiredJobs")) {
+                    List<AsyncJobVO> jobs = new ArrayList<AsyncJobVO>();
+                    for (Long id : expired(cutTime, (Long)args[1], (Long)args[2]).keySet()) {
+                        AsyncJobVO job = new AsyncJobVO(1, 1, "cmd" + id, "{}");
+                        job.setId(id);
+                        jobs.add(job);
+                    }
+                    return jobs;
+                } else if (name.equals("getLastExpiredJobId")) {
+                    Long last = null;
+                    for (Long id : expired(cutTime, 0, Long.MAX_VALUE - 1).keySet()) {
+                        last = id;
+                    }
+                    return last;
+                } else if (name.equals("expungeExpiredJobs")) {
+                    long fromId = (Long)args[1];
+                    long toId = (Long)args[2];
+                    _deletes.add(new Pair<Long, Long>(fromId, toId));
+                    Map<Long, Date> expired = expired(cutTime, fromId, toId);
+                    for (Long id : expired.keySet()) {
+                        if (_referenced.contains(id)) {
+                            throw new CloudRuntimeException("DB Exception on: DELETE FROM async_job");
+                        }
+                    }
+                    int count = expired.size();
+                    _jobs.keySet().removeAll(new ArrayList<Long>(expired.keySet()));
+                    return count;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    Map<Long, Date> expired(Date cutTime, long fromId, long toId) {
+        Map<Long, Date> expired = new TreeMap<Long, Date>();
+        for (Map.Entry<Long, Date> job : _jobs.subMap(fromId, toId + 1).entrySet()) {
+            if (!job.getValue().after(cutTime)) {
+                expired.put(job.getKey(), job.getValue());
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    protected void setUp() {
+        // 25 expired jobs with every other id, then 5 recent ones
+        for (long id = 1; id < 50; id += 2) {
+            _jobs.put(id, new Date(_cutTime.getTime() - 1000));
+        }
+        for (long id = 50; id < 55; id++) {
+            _jobs.put(id, new Date());
+        }
+        _mgr = new AsyncJobManagerImpl();
+        _mgr._jobDao = fakeDao();
+    }
+
+    public void testBatchBoundaries() throws Exception {
+        assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+
+        // each batch is deleted from its first to its last id
+        assertEquals(3, _deletes.size());
+        assertEquals(new Pair<Long, Long>(1L, 19L), _deletes.get(0));
+        assertEquals(new Pair<Long, Long>(21L, 39L), _deletes.get(1));
+        assertEquals(new Pair<Long, Long>(41L, 49L), _deletes.get(2));
+        assertEquals(5, _jobs.size());
+        assertEquals(50L, _jobs.firstKey().longValue());
+        assertEquals(25, _mgr.getGCStatistics().getLastPurged());
+        assertFalse(_mgr.getGCStatistics().isBehind());
+    }
+
+    public void testFullLastBatch() throws Exception {
+        assertFalse(_mgr.purgeExpiredJobs(_cutTime, 25, 60000));
+        // the batch was full, so one more look finds nothing left
+        assertEquals(1, _deletes.size());
+        assertEquals(5, _jobs.size());
+    }
+
+    public void testOutOfTime() throws Exception {
+        assertTrue(_mgr.purgeExpiredJobs(_cutTime, 10, 0));
+        assertEquals(1, _deletes.size());
+        assertEquals(20, _jobs.size());
+        assertTrue(_mgr.getGCStatistics().isBehind());
+        // ids 20 to 49 are left, every other one of them expired
+        assertEquals(30, _mgr.getGCStatistics().getBacklog());
+
+        assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+        assertEquals(5, _jobs.size());
+        assertEquals(25, _mgr.getGCStatistics().getPurged());
+        assertEquals(0, _mgr.getGCStatistics().getBacklog());
+    }
+
+    public void testReferencedJob() throws Exception {
+        _referenced.add(5L);
+        assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+
+        // the rest of the first batch went one job at a time
+        assertEquals(new Pair<Long, Long>(1L, 19L), _deletes.get(0));
+        assertEquals(new Pair<Long, Long>(1L, 1L), _deletes.get(1));
+        assertEquals(new Pair<Long, Long>(21L, 39L), _deletes.get(11));
+        assertEquals(6, _jobs.size());
+        assertTrue(_jobs.containsKey(5L));
+        assertEquals(24, _mgr.getGCStatistics().getLastPurged());
+
+        // it is only deleted once nothing refers to it
+        _referenced.clear();
+        _mgr.purgeExpiredJobs(_cutTime, 10, 60000);
+        assertEquals(5, _jobs.size());
+    }
+
+    public void testDatabaseFailure() throws Exception {
+        _databaseDown = true;
+        try {
+            _mgr.purgeExpiredJobs(_cutTime, 10, 60000);
+            fail("the failure is not to be taken for no expired jobs");
+        } catch (CloudRuntimeException e) {
+        }
+        assertEquals(30, _jobs.size());
+        assertEquals(0, _mgr.getGCStatistics().getLastPurged());
+    }
+
+    public void testArchivedBeforeDelete() throws Exception {
+        File dir = File.createTempFile("async-job-archive", "");
+        dir.delete();
+        try {
+            _mgr._archiver = new AsyncJobArchiver(dir, 1024 * 1024);
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            assertEquals(25, _mgr.getGCStatistics().getArchived());
+            assertEquals(1, dir.listFiles().length);
+
+            // nothing is archived twice
+            _jobs.put(51L, new Date(_cutTime.getTime() - 1000));
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            assertEquals(26, _mgr.getGCStatistics().getArchived());
+
+            // keep the jobs if they can not be archived
+            setUp();
+            _deletes.clear();
+            _mgr._archiver = new AsyncJobArchiver(dir, 1024 * 1024);
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            assertTrue(_deletes.isEmpty());
+            assertEquals(30, _jobs.size());
+        } finally {
+            if (dir.exists()) {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    public void testReferencedJobArchivedOnce() throws Exception {
+        File dir = File.createTempFile("async-job-archive", "");
+        dir.delete();
+        try {
+            _mgr._archiver = new AsyncJobArchiver(dir, 1024 * 1024);
+            _referenced.add(5L);
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            assertEquals(25, _mgr.getGCStatistics().getArchived());
+            assertTrue(_jobs.containsKey(5L));
+
+            // job 5 comes up in every run until it can be deleted
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            _referenced.clear();
+            assertFalse(_mgr.purgeExpiredJobs(_cutTime, 10, 60000));
+            assertFalse(_jobs.containsKey(5L));
+            assertEquals(25, _mgr.getGCStatistics().getArchived());
+        } finally {
+            if (dir.exists()) {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+}
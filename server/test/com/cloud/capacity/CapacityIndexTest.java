@@ -0,0 +1,127 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CapacityIndexTest extends TestCase {
+    static final long GB = 1024L * 1024L * 1024L;
+
+    protected static List<CapacityVO> hosts(int pods, int clustersPerPod, int hostsPerCluster) {
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        long hostId = 1;
+        for (long pod = 1; pod <= pods; pod++) {
+            for (int c = 0; c < clustersPerPod; c++) {
+                long cluster = (pod - 1) * clustersPerPod + c + 1;
+                for (int h = 0; h < hostsPerCluster; h++, hostId++) {
+                    capacities.add(new CapacityVO(hostId, 1, pod, cluster, 0, 16 * 2000, Capacity.CAPACITY_TYPE_CPU));
+                    capacities.add(new CapacityVO(hostId, 1, pod, cluster, 0, 64 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+                }
+            }
+        }
+        return capacities;
+    }
+
+    public void testClustersAndHosts() {
+        CapacityIndex index = new CapacityIndex(1.0f);
+        assertFalse(index.isReady());
+        index.reconcile(hosts(2, 2, 3));
+        assertTrue(index.isReady());
+        assertEquals(12, index.getHostCount());
+
+        // fill up host 1 and half of cluster 2
+        index.adjust(1, Capacity.CAPACITY_TYPE_CPU, 16 * 2000, 0);
+        index.adjust(4, Capacity.CAPACITY_TYPE_MEMORY, 32 * GB, 0);
+        index.adjust(5, Capacity.CAPACITY_TYPE_MEMORY, 32 * GB, 0);
+        index.adjust(6, Capacity.CAPACITY_TYPE_MEMORY, 0, 40 * GB);
+
+        List<Long> clusters = index.listClustersByCapacity(1, true, 1000, GB, Capacity.CAPACITY_TYPE_MEMORY, 1.0f);
+        assertEquals(4, clusters.size());
+        assertEquals(2L, clusters.get(3).longValue());
+
+        // like the database, the clusters are listed counting reserved capacity as free,
+        // so host 6 keeps cluster 2 in, and they are ordered counting it as used
+        clusters = index.listClustersByCapacity(1, false, 1000, 40 * GB, Capacity.CAPACITY_TYPE_CPU, 1.0f);
+        assertEquals(2, clusters.size());
+        assertEquals(2L, clusters.get(0).longValue());
+        assertEquals(1L, clusters.get(1).longValue());
+        clusters = index.listClustersByCapacity(1, false, 1000, 65 * GB, Capacity.CAPACITY_TYPE_CPU, 1.0f);
+        assertEquals(1, clusters.size());
+        assertEquals(2L, clusters.get(0).longValue());
+
+        List<Long> hosts = index.listHostsWithCapacity(1, 1000, GB, 1.0f);
+        assertEquals(2, hosts.size());
+        assertFalse(hosts.contains(1L));
+
+        // overprovisioning gives host 1 room again
+        hosts = index.listHostsWithCapacity(1, 1000, GB, 2.0f);
+        assertEquals(3, hosts.size());
+
+        long[] summed = index.getClusterCapacity(2, Capacity.CAPACITY_TYPE_MEMORY);
+        assertEquals(64 * GB, summed[0]);
+        assertEquals(40 * GB, summed[1]);
+        assertEquals(3 * 64 * GB, summed[2]);
+
+        // the database is what counts
+        assertEquals(4, index.reconcile(hosts(2, 2, 3)));
+        assertEquals(4, index.listClustersByCapacity(1, true, 1000, 40 * GB, Capacity.CAPACITY_TYPE_CPU, 1.0f).size());
+
+        index.remove(12);
+        assertNull(index.getHost(12));
+        assertEquals(2, index.listHostsWithCapacity(4, 1000, GB, 1.0f).size());
+    }
+
+    /**
+     * Plans deployments on a zone of 100 hosts, picking the first cluster
+     * and host with room each time and allocating the vm on it, until the
+     * zone is full.
+     */
+    public void testPlanning() {
+        int cpu = 2 * 2000;
+        long ram = 4 * GB;
+
+        CapacityIndex index = new CapacityIndex(1.0f);
+        index.reconcile(hosts(2, 5, 10));
+        assertEquals(100, index.getHostCount());
+
+        // every host has room for 8 vms
+        for (int i = 0; i < 800; i++) {
+            List<Long> clusters = index.listClustersByCapacity(1, true, cpu, ram, Capacity.CAPACITY_TYPE_CPU, 1.0f);
+            assertFalse(clusters.isEmpty());
+            List<Long> hosts = index.listHostsWithCapacity(clusters.get(0), cpu, ram, 1.0f);
+            assertFalse(hosts.isEmpty());
+            long hostId = hosts.get(0);
+            index.adjust(hostId, Capacity.CAPACITY_TYPE_CPU, cpu, 0);
+            index.adjust(hostId, Capacity.CAPACITY_TYPE_MEMORY, ram, 0);
+
+            if (i == 399) {
+                // the least used cluster goes first, so the clusters fill up evenly
+                for (long cluster = 1; cluster <= 10; cluster++) {
+                    assertEquals(40 * cpu, index.getClusterCapacity(cluster, Capacity.CAPACITY_TYPE_CPU)[0]);
+                }
+            }
+        }
+
+        assertTrue(index.listClustersByCapacity(1, true, cpu, ram, Capacity.CAPACITY_TYPE_CPU, 1.0f).isEmpty());
+        assertTrue(index.listHostsWithCapacity(1, cpu, ram, 1.0f).isEmpty());
+        assertEquals(80 * cpu, index.getClusterCapacity(1, Capacity.CAPACITY_TYPE_CPU)[0]);
+    }
+}
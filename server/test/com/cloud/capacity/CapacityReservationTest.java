@@ -0,0 +1,161 @@
+package com.cloud.capacity;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.host.HostVO;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.utils.db.Transaction;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * Reserves capacity for stopped vms and checks that the capacity checker
+ * keeps counting the reservation.
+ */
+public class CapacityReservationTest extends TestCase {
+    static final long GB = 1024L * 1024L * 1024L;
+
+    final Map<Long, CapacityVO> _capacities = new HashMap<Long, CapacityVO>();
+    final Map<Long, VMInstanceVO> _vms = new HashMap<Long, VMInstanceVO>();
+    ServiceOfferingVO _offering;
+    CapacityManagerImpl _mgr;
+
+    @SuppressWarnings("unchecked")
+    <T> T fake(Class<T> clazz) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getValue")) {
+                    return args[0].equals(Config.CapacitySkipcountingHours.key()) ? "3600" : null;
+                } else if (name.equals("registerForHostEvents")) {
+                    return 0;
+                } else if (name.equals("findByHostIdType")) {
+                    return _capacities.get((Long)args[0] * 10 + (Short)args[1]);
+                } else if (name.equals("lockRow")) {
+                    return _capacities.get(args[0]);
+                } else if (name.equals("findById")) {
+                    return _offering;
+                } else if (name.equals("listAllIncludingRemoved")) {
+                    return Collections.singletonList(_offering);
+                } else if (name.equals("createForUpdate")) {
+                    return new VMInstanceVO(0, 0, null, null, VirtualMachine.Type.User, 0L, HypervisorType.XenServer, 0, 0, 0, false);
+                } else if (name.equals("update") && args[1] instanceof VMInstanceVO) {
+                    VMInstanceVO update = (VMInstanceVO)args[1];
+                    VMInstanceVO vm = _vms.get(args[0]);
+                    vm.setLastHostId(update.getLastHostId());
+                    if (update.getUpdateTime() != null) {
+                        vm.setUpdateTime(update.getUpdateTime());
+                    }
+                    return true;
+                } else if (name.equals("update")) {
+                    return true;
+                } else if (name.equals("listUpByHostId")) {
+                    return new ArrayList<VMInstanceVO>();
+                } else if (name.equals("listByLastHostId")) {
+                    List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+                    for (VMInstanceVO vm : _vms.values()) {
+                        if (args[0].equals(vm.getLastHostId())) {
+                            vms.add(vm);
+                        }
+                    }
+                    return vms;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    void host(long hostId) {
+        for (short type : new short[] { Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY }) {
+            // capacity ids are made of the host id and the type
+            final long id = hostId * 10 + type;
+            _capacities.put(id, new CapacityVO(hostId, 1, 1L, 1L, 0, type == Capacity.CAPACITY_TYPE_CPU ? 16 * 2000 : 64 * GB, type) {
+                @Override
+                public long getId() {
+                    return id;
+                }
+            });
+        }
+    }
+
+    VMInstanceVO stoppedVm(long id, long lastHostId, long stoppedMillisAgo) {
+        VMInstanceVO vm = new VMInstanceVO(id, 1, null, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1L, HypervisorType.XenServer, 1, 1, 2, false);
+        vm.setLastHostId(lastHostId);
+        vm.setUpdateTime(new Date(System.currentTimeMillis() - stoppedMillisAgo));
+        _vms.put(id, vm);
+        return vm;
+    }
+
+    static HostVO hostVO(final long id) {
+        return new HostVO("host-" + id) {
+            @Override
+            public long getId() {
+                return id;
+            }
+        };
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        _offering = new ServiceOfferingVO("small", 1, 512, 500, null, null, false, null, false, false, null, false, VirtualMachine.Type.User, false) {
+            @Override
+            public long getId() {
+                return 1;
+            }
+        };
+        _mgr = new CapacityManagerImpl();
+        _mgr._configDao = fake(ConfigurationDao.class);
+        _mgr._capacityDao = fake(CapacityDao.class);
+        _mgr._offeringsDao = fake(ServiceOfferingDao.class);
+        _mgr._vmDao = fake(VMInstanceDao.class);
+        _mgr._agentManager = fake(AgentManager.class);
+        _mgr.configure("CapacityReservationTest", new HashMap<String, Object>());
+        host(1);
+        host(2);
+    }
+
+    public void testReservationSurvivesRecalculation() {
+        // stopped two hours ago, longer than capacity.skipcounting.hours
+        VMInstanceVO old = stoppedVm(1, 1, 2 * 3600 * 1000L);
+        VMInstanceVO recent = stoppedVm(2, 1, 60 * 1000L);
+
+        Transaction txn = Transaction.open("testReservationSurvivesRecalculation");
+        try {
+            assertTrue(_mgr.reserveVmCapacity(Arrays.asList(old, recent), Arrays.asList(2L, 2L)));
+        } finally {
+            txn.close();
+        }
+        CapacityVO cpu = _capacities.get(2 * 10L + Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO mem = _capacities.get(2 * 10L + Capacity.CAPACITY_TYPE_MEMORY);
+        assertEquals(2 * 500, cpu.getReservedCapacity());
+        assertEquals(2 * 512 * 1024L * 1024L, mem.getReservedCapacity());
+        assertEquals(Long.valueOf(2), _vms.get(1L).getLastHostId());
+
+        // what AlertManagerImpl.recalculateCapacity does for every host
+        _mgr.updateCapacityForHost(hostVO(2));
+        assertEquals(2 * 500, cpu.getReservedCapacity());
+        assertEquals(2 * 512 * 1024L * 1024L, mem.getReservedCapacity());
+
+        _mgr.updateCapacityForHost(hostVO(1));
+        assertEquals(0, _capacities.get(1 * 10L + Capacity.CAPACITY_TYPE_CPU).getReservedCapacity());
+    }
+}
@@ -353,6 +353,19 @@ public class CheckPointManagerTest extends TestCase {
             throw new UnsupportedOperationException("Not implemented");
         }
 
+        @Override
+        public void notifyPeers(Command cmd) {
+        }
+
+        @Override
+        public void registerCommandHandler(Class<? extends Command> clazz, ClusterCommandHandler handler) {
+        }
+
+        @Override
+        public Answer handlePeerCommand(Command cmd) {
+            return null;
+        }
+
         @Override
         public void broadcast(long agentId, Command[] cmds) {
             throw new UnsupportedOperationException("Not implemented");
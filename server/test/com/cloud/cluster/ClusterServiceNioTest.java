@@ -0,0 +1,265 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.cluster.ClusterServiceNioClient.PendingCall;
+
+public class ClusterServiceNioTest extends TestCase {
+    static final int RPC_PORT = 19091;
+    static final int CONCURRENT_RPC_PORT = 19092;
+
+    static {
+        // Links frame their own SSL records, which the session tickets that
+        // newer JVMs send after a TLS 1.3 handshake don't go through.
+        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
+    }
+
+    /**
+     * A peer that echoes what it is sent, taking longer for the calls to
+     * lower agent ids.
+     */
+    protected static class EchoService implements ClusterService {
+        private static final long serialVersionUID = 1L;
+        final AtomicInteger _calls = new AtomicInteger();
+
+        @Override
+        public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+            _calls.incrementAndGet();
+            if (agentId < 10) {
+                try {
+                    Thread.sleep((10 - agentId) * 20);
+                } catch (InterruptedException e) {
+                }
+            }
+            return callingPeer + "/" + agentId + "/" + gsonPackage + "/" + stopOnError;
+        }
+
+        @Override
+        public long executeAsync(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+            _calls.incrementAndGet();
+            return agentId * 100;
+        }
+
+        @Override
+        public boolean onAsyncResult(String executingPeer, long agentId, long seq, String gsonPackage) throws RemoteException {
+            _calls.incrementAndGet();
+            return seq % 2 == 0;
+        }
+
+        @Override
+        public boolean ping(String callingPeer) throws RemoteException {
+            _calls.incrementAndGet();
+            return true;
+        }
+    }
+
+    public void testPacket() throws Exception {
+        ClusterServicePacket request = ClusterServicePacket.request(RemoteMethodConstants.METHOD_EXECUTE, "peer", 5, 6, true, "[{\"é\":1}]");
+        request.setId(42);
+        ClusterServicePacket parsed = ClusterServicePacket.parse(request.getBytes());
+        assertTrue(parsed.isRequest());
+        assertEquals(42, parsed.getId());
+        assertEquals(RemoteMethodConstants.METHOD_EXECUTE, parsed.getMethod());
+        assertEquals("peer", parsed.getPeer());
+        assertEquals(5, parsed.getAgentId());
+        assertEquals(6, parsed.getSeq());
+        assertTrue(parsed.getStopOnError());
+        assertEquals("[{\"é\":1}]", parsed.getPayload());
+
+        ClusterServicePacket response = ClusterServicePacket.parse(ClusterServicePacket.response(parsed, true, 7, null).getBytes());
+        assertFalse(response.isRequest());
+        assertEquals(42, response.getId());
+        assertTrue(response.getResult());
+        assertFalse(response.isFailed());
+        assertEquals(7, response.getSeq());
+        assertNull(response.getPayload());
+        assertTrue(ClusterServicePacket.parse(ClusterServicePacket.failure(parsed).getBytes()).isFailed());
+    }
+
+    public void testCalls() throws Exception {
+        EchoService peer = new EchoService();
+        EchoService fallback = new EchoService();
+        ClusterServiceNioServer server = new ClusterServiceNioServer(peer);
+        assertTrue(server.start(RPC_PORT));
+        ClusterServiceNioClient channel = new ClusterServiceNioClient("127.0.0.1", RPC_PORT);
+        try {
+            ClusterService service = new ClusterServiceNioImpl(channel, fallback, 30);
+            assertEquals("me/3/[]/true", service.execute("me", 3, "[]", true));
+            assertEquals(1200, service.executeAsync("me", 12, "[]", false));
+            assertTrue(service.onAsyncResult("me", 1, 4, "[]"));
+            assertFalse(service.onAsyncResult("me", 1, 5, "[]"));
+            assertTrue(service.ping("me"));
+            assertEquals(5, peer._calls.get());
+            assertEquals(0, fallback._calls.get());
+
+            // the slow calls don't hold up the ones sent after them
+            List<PendingCall> calls = new ArrayList<PendingCall>();
+            for (long agentId = 0; agentId < 20; agentId++) {
+                calls.add(channel.send(ClusterServicePacket.request(RemoteMethodConstants.METHOD_EXECUTE, "me", agentId, 0, false, "[" + agentId + "]")));
+            }
+            assertNotNull(calls.get(19).get(30, TimeUnit.SECONDS));
+            assertFalse(calls.get(0).isDone());
+            for (int agentId = 0; agentId < 20; agentId++) {
+                assertEquals("me/" + agentId + "/[" + agentId + "]/false", calls.get(agentId).get(30, TimeUnit.SECONDS).getPayload());
+            }
+            assertEquals(0, channel.getPendingCount());
+        } finally {
+            channel.close();
+            server.stop();
+        }
+    }
+
+    public void testFallback() throws Exception {
+        EchoService fallback = new EchoService();
+        ClusterServiceNioClient channel = new ClusterServiceNioClient("127.0.0.1", RPC_PORT + 100);
+        try {
+            ClusterService service = new ClusterServiceNioImpl(channel, fallback, 30);
+            assertEquals("me/11/[]/false", service.execute("me", 11, "[]", false));
+            assertTrue(service.ping("me"));
+            assertEquals(2, fallback._calls.get());
+            assertFalse(channel.isConnected());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Commands forwarded from several threads at once share the one
+     * connection and each gets its own answer back.
+     */
+    public void testConcurrentCalls() throws Exception {
+        EchoService peer = new EchoService();
+        ClusterServiceNioServer server = new ClusterServiceNioServer(peer);
+        assertTrue(server.start(CONCURRENT_RPC_PORT));
+        ClusterServiceNioClient channel = new ClusterServiceNioClient("127.0.0.1", CONCURRENT_RPC_PORT);
+        try {
+            ClusterService rpc = new ClusterServiceNioImpl(channel, null, 30);
+            callFromThreads(rpc, 8, 50);
+            assertEquals(8 * 50, peer._calls.get());
+            assertTrue(channel.isConnected());
+            assertEquals(0, channel.getPendingCount());
+        } finally {
+            channel.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A request that went out and got no response fails the same way the
+     * servlet does, so the cluster manager can retry it.
+     */
+    public void testNoResponseThrows() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        EchoService peer = new EchoService() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+                entered.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                return super.execute(callingPeer, agentId, gsonPackage, stopOnError);
+            }
+        };
+        ClusterServiceNioServer server = new ClusterServiceNioServer(peer);
+        assertTrue(server.start(CONCURRENT_RPC_PORT + 1));
+        final ClusterServiceNioClient channel = new ClusterServiceNioClient("127.0.0.1", CONCURRENT_RPC_PORT + 1);
+        try {
+            // timed out
+            ClusterService service = new ClusterServiceNioImpl(channel, null, 1);
+            try {
+                service.execute("me", 100, "[]", false);
+                fail("A call without a response should throw");
+            } catch (RemoteException e) {
+                // expected
+            }
+            assertTrue(entered.await(30, TimeUnit.SECONDS));
+            assertEquals(0, channel.getPendingCount());
+
+            // connection lost while waiting
+            final ClusterService waiting = new ClusterServiceNioImpl(channel, null, 30);
+            final List<Throwable> thrown = new ArrayList<Throwable>();
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        waiting.execute("me", 101, "[]", false);
+                    } catch (Throwable e) {
+                        thrown.add(e);
+                    }
+                }
+            };
+            caller.start();
+            while (channel.getPendingCount() == 0 && caller.isAlive()) {
+                Thread.sleep(10);
+            }
+            channel.close();
+            caller.join(30000);
+            assertEquals(1, thrown.size());
+            assertTrue(thrown.get(0) instanceof RemoteException);
+        } finally {
+            release.countDown();
+            channel.close();
+            server.stop();
+        }
+    }
+
+    protected void callFromThreads(final ClusterService service, int threads, final int calls) throws Exception {
+        final String gsonPackage = "[{\"com.cloud.agent.api.CheckHealthCommand\":{\"wait\":50,\"contextMap\":{}}}]";
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < calls; i++) {
+                            assertEquals("me/" + (100 + i) + "/" + gsonPackage + "/true", service.execute("me", 100 + i, gsonPackage, true));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+        }
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new RuntimeException(failures.get(0));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.cluster;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.EntityCacheInvalidateCommand;
+
+public class EntityCacheSynchronizerTest extends TestCase {
+
+    private static EntityCacheInvalidateCommand command(long msid, long runId, long sequence) {
+        return new EntityCacheInvalidateCommand(msid, runId, sequence, new String[0], new long[0][]);
+    }
+
+    public void testMissedCommands() {
+        EntityCacheSynchronizer synchronizer = new EntityCacheSynchronizer(null, 100);
+
+        assertFalse(synchronizer.isMissingCommands(command(1, 10, 1)));
+        assertFalse(synchronizer.isMissingCommands(command(1, 10, 2)));
+        assertTrue("command 3 was lost", synchronizer.isMissingCommands(command(1, 10, 4)));
+        assertFalse("a late command is not a gap", synchronizer.isMissingCommands(command(1, 10, 3)));
+        assertFalse(synchronizer.isMissingCommands(command(1, 10, 5)));
+
+        // each peer is numbered on its own
+        assertFalse(synchronizer.isMissingCommands(command(2, 20, 1)));
+        assertFalse(synchronizer.isMissingCommands(command(1, 10, 6)));
+
+        // a restarted peer starts over, a peer first heard of mid-run may have sent some before
+        assertFalse(synchronizer.isMissingCommands(command(1, 11, 1)));
+        assertTrue(synchronizer.isMissingCommands(command(3, 30, 7)));
+        assertFalse(synchronizer.isMissingCommands(command(3, 30, 8)));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
+import com.cloud.deploy.FirstFitPlanner.HostSlots;
+
+public class FirstFitPlannerTest extends TestCase {
+
+    public void testGetSlots() {
+        assertEquals(4, FirstFitPlanner.getSlots(4000, 8L << 30, 1000, 1L << 30));
+        assertEquals(2, FirstFitPlanner.getSlots(4000, 2L << 30, 1000, 1L << 30));
+        assertEquals(0, FirstFitPlanner.getSlots(500, 8L << 30, 1000, 1L << 30));
+        assertEquals(0, FirstFitPlanner.getSlots(-1000, 8L << 30, 1000, 1L << 30));
+    }
+
+    public void testPackFillsEachHostFirst() {
+        int[] clusterRoom = new int[] { 100 };
+        DeployDestination first = new DeployDestination();
+        DeployDestination second = new DeployDestination();
+        List<HostSlots> candidates = new ArrayList<HostSlots>();
+        candidates.add(new HostSlots(first, 3, clusterRoom));
+        candidates.add(new HostSlots(second, 5, clusterRoom));
+
+        List<DeployDestination> dests = FirstFitPlanner.distribute(candidates, 5, Placement.Pack);
+        assertEquals(5, dests.size());
+        for (int i = 0; i < 3; i++) {
+            assertSame(first, dests.get(i));
+        }
+        assertSame(second, dests.get(3));
+        assertSame(second, dests.get(4));
+        assertEquals(95, clusterRoom[0]);
+    }
+
+    public void testSpreadStartsWithEmptiestHost() {
+        int[] clusterRoom = new int[] { 100 };
+        DeployDestination small = new DeployDestination();
+        DeployDestination large = new DeployDestination();
+        List<HostSlots> candidates = new ArrayList<HostSlots>();
+        candidates.add(new HostSlots(small, 1, clusterRoom));
+        candidates.add(new HostSlots(large, 4, clusterRoom));
+
+        List<DeployDestination> dests = FirstFitPlanner.distribute(candidates, 4, Placement.Spread);
+        assertEquals(4, dests.size());
+        assertSame(large, dests.get(0));
+        assertSame(small, dests.get(1));
+        assertSame(large, dests.get(2));
+        assertSame(large, dests.get(3));
+    }
+
+    public void testClusterRoomIsSharedByItsHosts() {
+        int[] clusterRoom = new int[] { 3 };
+        int[] otherClusterRoom = new int[] { 10 };
+        DeployDestination a = new DeployDestination();
+        DeployDestination b = new DeployDestination();
+        DeployDestination c = new DeployDestination();
+        List<HostSlots> candidates = new ArrayList<HostSlots>();
+        candidates.add(new HostSlots(a, 2, clusterRoom));
+        candidates.add(new HostSlots(b, 2, clusterRoom));
+        candidates.add(new HostSlots(c, 2, otherClusterRoom));
+
+        List<DeployDestination> dests = FirstFitPlanner.distribute(candidates, 6, Placement.Pack);
+        assertEquals(5, dests.size());
+        assertSame(a, dests.get(0));
+        assertSame(a, dests.get(1));
+        assertSame(b, dests.get(2));
+        assertSame(c, dests.get(3));
+        assertSame(c, dests.get(4));
+        assertEquals(0, clusterRoom[0]);
+    }
+
+    public void testNotEnoughRoomReturnsWhatFits() {
+        List<HostSlots> candidates = new ArrayList<HostSlots>();
+        candidates.add(new HostSlots(new DeployDestination(), 2, new int[] { 10 }));
+        assertEquals(2, FirstFitPlanner.distribute(candidates, 5, Placement.Spread).size());
+        assertTrue(FirstFitPlanner.distribute(new ArrayList<HostSlots>(), 5, Placement.Pack).isEmpty());
+    }
+}
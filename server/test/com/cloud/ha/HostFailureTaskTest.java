@@ -0,0 +1,338 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.ha;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.cloud.deploy.DeployDestination;
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.ha.dao.HighAvailabilityDao;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.org.Cluster;
+import com.cloud.storage.StorageManager;
+import com.cloud.user.AccountManager;
+import com.cloud.utils.component.Adapter;
+import com.cloud.utils.component.Adapters;
+import com.cloud.utils.component.ComponentLocator.ComponentInfo;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.VirtualMachineManager;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * Runs HostFailureTask against fake investigators, fencers and vm manager,
+ * with the restart dispatcher running everything inline.
+ */
+public class HostFailureTaskTest extends TestCase {
+    static final long HOST_CLUSTER = 1;
+
+    final Map<Long, VMInstanceVO> _vms = new HashMap<Long, VMInstanceVO>();
+    final Map<Long, Long> _planned = new HashMap<Long, Long>();
+    final Map<Long, Boolean> _alive = new HashMap<Long, Boolean>();
+    final List<String> _calls = Collections.synchronizedList(new ArrayList<String>());
+    final List<Long> _dispatched = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Long> _restarted = Collections.synchronizedList(new ArrayList<Long>());
+    Status _hostStatus;
+    Boolean _fenced;
+    int _wakeups;
+    HostVO _host;
+    HighAvailabilityManagerImpl _mgr;
+
+    class TestManager extends HighAvailabilityManagerImpl {
+        @Override
+        protected boolean process(HaWorkVO work) {
+            _restarted.add(work.getInstanceId());
+            _vms.get(work.getInstanceId()).setState(State.Running);
+            work.setStep(Step.Done);
+            return true;
+        }
+
+        @Override
+        protected void wakeupWorkers() {
+            _wakeups++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T fake(final Class<T> clazz) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getName")) {
+                    return clazz.getSimpleName();
+                } else if (name.equals("isAgentAlive")) {
+                    _calls.add("investigate " + ((HostVO)args[0]).getId());
+                    return _hostStatus;
+                } else if (name.equals("isVmAlive")) {
+                    long vmId = ((VMInstanceVO)args[0]).getId();
+                    _calls.add("alive " + vmId);
+                    return _alive.get(vmId);
+                } else if (name.equals("fenceOff")) {
+                    _calls.add("fence " + ((VMInstanceVO)args[0]).getId());
+                    return _fenced;
+                } else if (name.equals("findById") && clazz == HostDao.class) {
+                    return _host;
+                } else if (name.equals("findById") || name.equals("findByIdAndType")) {
+                    return _vms.get(args[args.length - 1]);
+                } else if (name.equals("advanceStop")) {
+                    VMInstanceVO vm = (VMInstanceVO)args[0];
+                    _calls.add("stop " + vm.getId());
+                    vm.setState(State.Stopped);
+                    vm.setHostId(null);
+                    return true;
+                } else if (name.equals("reserveGroup")) {
+                    Map<VMInstanceVO, DeployDestination> dests = new HashMap<VMInstanceVO, DeployDestination>();
+                    for (VMInstanceVO vm : (List<VMInstanceVO>)args[0]) {
+                        Long clusterId = _planned.get(vm.getId());
+                        if (clusterId != null) {
+                            dests.put(vm, new DeployDestination(null, null, cluster(clusterId), null));
+                        }
+                    }
+                    return dests;
+                } else if (name.equals("canVmRestartOnAnotherServer") || name.equals("update")) {
+                    return true;
+                } else if (name.equals("getSystemUser") || name.equals("getSystemAccount")) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    static Cluster cluster(final long id) {
+        return (Cluster)Proxy.newProxyInstance(Cluster.class.getClassLoader(), new Class<?>[] { Cluster.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getId")) {
+                    return id;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    <T extends Adapter> Adapters<T> adapters(final Class<T> clazz) {
+        return new Adapters<T>(clazz.getSimpleName(), new ArrayList<ComponentInfo<Adapter>>()) {
+            {
+                _map.put(clazz.getSimpleName(), fake(clazz));
+            }
+        };
+    }
+
+    List<HaWorkVO> works(int count) {
+        List<HaWorkVO> works = new ArrayList<HaWorkVO>();
+        for (long id = 1; id <= count; id++) {
+            VMInstanceVO vm = new VMInstanceVO(id, 1, null, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1L, HypervisorType.XenServer, 1, 1, 2, true);
+            vm.setDataCenterId(1);
+            vm.setHostId(_host.getId());
+            vm.setState(State.Running);
+            _vms.put(id, vm);
+
+            HaWorkVO work = new HaWorkVO(id, VirtualMachine.Type.User, WorkType.HA, Step.Investigating, _host.getId(), State.Running, 1, 0);
+            work.setServerId(1L);
+            works.add(work);
+        }
+        return works;
+    }
+
+    void run(List<HaWorkVO> works, boolean investigate) {
+        _mgr.new HostFailureTask(_host, works, investigate, System.currentTimeMillis()).run();
+    }
+
+    List<String> filter(String call) {
+        List<String> calls = new ArrayList<String>();
+        for (String c : _calls) {
+            if (c.startsWith(call)) {
+                calls.add(c);
+            }
+        }
+        return calls;
+    }
+
+    int count(String call) {
+        return filter(call).size();
+    }
+
+    @Override
+    protected void setUp() {
+        _host = new HostVO("host-5") {
+            @Override
+            public long getId() {
+                return 5;
+            }
+        };
+        _host.setClusterId(HOST_CLUSTER);
+
+        _mgr = new TestManager();
+        _mgr._investigators = adapters(Investigator.class);
+        _mgr._fenceBuilders = adapters(FenceBuilder.class);
+        _mgr._itMgr = fake(VirtualMachineManager.class);
+        _mgr._hostDao = fake(HostDao.class);
+        _mgr._instanceDao = fake(VMInstanceDao.class);
+        _mgr._haDao = fake(HighAvailabilityDao.class);
+        _mgr._storageMgr = fake(StorageManager.class);
+        _mgr._accountMgr = fake(AccountManager.class);
+        _mgr._restartDispatcher = new RestartDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 100) {
+            @Override
+            public void dispatch(long clusterId, Runnable task) {
+                _dispatched.add(clusterId);
+                super.dispatch(clusterId, task);
+            }
+        };
+    }
+
+    public void testHostUpGoesBackToWorkers() {
+        _hostStatus = Status.Up;
+        List<HaWorkVO> works = works(3);
+        run(works, true);
+
+        assertEquals(Collections.singletonList("investigate 5"), _calls);
+        assertTrue(_dispatched.isEmpty());
+        assertEquals(1, _wakeups);
+        for (HaWorkVO work : works) {
+            assertNull(work.getServerId());
+            assertNull(work.getDateTaken());
+            assertEquals(State.Running, _vms.get(work.getInstanceId()).getState());
+        }
+    }
+
+    public void testRestartsDispatchedPerCluster() {
+        _hostStatus = Status.Down;
+        _planned.put(1L, 10L);
+        _planned.put(2L, 20L);
+        _planned.put(3L, 10L);
+        // vm 4 doesn't fit anywhere as a group and starts from its own cluster
+        List<HaWorkVO> works = works(4);
+        for (HaWorkVO work : works) {
+            _alive.put(work.getInstanceId(), false);
+        }
+        run(works, true);
+
+        assertEquals(1, count("investigate"));
+        assertEquals(4, count("alive"));
+        assertEquals(0, count("fence"));
+        assertEquals(4, count("stop"));
+        assertEquals(0, _wakeups);
+
+        // stops run in the host's cluster, each restart in its planned one
+        assertEquals(8, _dispatched.size());
+        Map<Long, Long> restartClusters = new HashMap<Long, Long>();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Long.valueOf(HOST_CLUSTER), _dispatched.get(i));
+            restartClusters.put(_restarted.get(i), _dispatched.get(4 + i));
+        }
+        assertEquals(Long.valueOf(10), restartClusters.get(1L));
+        assertEquals(Long.valueOf(20), restartClusters.get(2L));
+        assertEquals(Long.valueOf(10), restartClusters.get(3L));
+        assertEquals(Long.valueOf(HOST_CLUSTER), restartClusters.get(4L));
+        for (VMInstanceVO vm : _vms.values()) {
+            assertEquals(State.Running, vm.getState());
+        }
+    }
+
+    public void testFencedOnceForHostThenPerVm() {
+        _hostStatus = null;
+        _fenced = true;
+        run(works(3), true);
+
+        assertEquals(1, count("investigate"));
+        // the first vm fences the host, the others are fenced off on their own
+        assertEquals(3, count("fence"));
+        assertEquals("fence 1", _calls.get(1));
+        assertEquals(3, count("stop"));
+        assertEquals(3, _restarted.size());
+    }
+
+    public void testHostDownVmsInvestigated() {
+        _hostStatus = Status.Down;
+        _fenced = true;
+        _alive.put(1L, false);
+        _alive.put(2L, true);
+        List<HaWorkVO> works = works(3);
+        run(works, true);
+
+        // only the vm nobody can tell about is fenced off, the one alive is left to the workers
+        assertEquals(3, count("alive"));
+        assertEquals(Collections.singletonList("fence 3"), filter("fence"));
+        assertEquals(2, count("stop"));
+        assertEquals(State.Running, _vms.get(2L).getState());
+        assertNull(works.get(1).getServerId());
+        assertEquals(1, _wakeups);
+        assertEquals(2, _restarted.size());
+    }
+
+    public void testHostDownUnableToFenceVmsGoesBackToWorkers() {
+        // a host that only lost its management network is reported down as well
+        _hostStatus = Status.Down;
+        _fenced = false;
+        List<HaWorkVO> works = works(2);
+        run(works, true);
+
+        assertEquals(2, count("fence"));
+        assertEquals(0, count("stop"));
+        assertEquals(1, _wakeups);
+        for (HaWorkVO work : works) {
+            assertNull(work.getServerId());
+            assertEquals(State.Running, _vms.get(work.getInstanceId()).getState());
+        }
+    }
+
+    public void testNotInvestigated() {
+        run(works(2), false);
+
+        assertEquals(0, count("investigate"));
+        assertEquals(0, count("alive"));
+        assertEquals(2, count("stop"));
+        assertEquals(2, _restarted.size());
+    }
+
+    public void testUnableToFenceGoesBackToWorkers() {
+        _hostStatus = null;
+        _fenced = false;
+        List<HaWorkVO> works = works(2);
+        run(works, true);
+
+        assertEquals(1, count("investigate"));
+        assertEquals(0, count("stop"));
+        assertEquals(1, _wakeups);
+        for (HaWorkVO work : works) {
+            assertNull(work.getServerId());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.ha;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RestartDispatcherTest extends TestCase {
+    static final int CLUSTERS = 3;
+    static final int VMS = 80;
+    static final int PER_CLUSTER = 4;
+
+    final Map<Long, Integer> _running = new HashMap<Long, Integer>();
+    final Map<Long, Integer> _peak = new HashMap<Long, Integer>();
+
+    void enter(long clusterId) {
+        synchronized (_running) {
+            Integer running = _running.get(clusterId);
+            running = running == null ? 1 : running + 1;
+            _running.put(clusterId, running);
+            Integer peak = _peak.get(clusterId);
+            if (peak == null || peak < running) {
+                _peak.put(clusterId, running);
+            }
+        }
+    }
+
+    void leave(long clusterId) {
+        synchronized (_running) {
+            _running.put(clusterId, _running.get(clusterId) - 1);
+        }
+    }
+
+    public void testConcurrencyPerCluster() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        final RestartDispatcher dispatcher = new RestartDispatcher(executor, PER_CLUSTER);
+        final CountDownLatch latch = new CountDownLatch(VMS);
+        // the first restarts hold on until every cluster is running as many as it may
+        final CountDownLatch full = new CountDownLatch(CLUSTERS * PER_CLUSTER);
+
+        for (int i = 0; i < VMS; i++) {
+            final long clusterId = i % CLUSTERS;
+            dispatcher.dispatch(clusterId, new Runnable() {
+                @Override
+                public void run() {
+                    enter(clusterId);
+                    try {
+                        full.countDown();
+                        full.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    } finally {
+                        leave(clusterId);
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+        // the tasks count down before the dispatcher is told they're done
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, full.getCount());
+
+        for (long clusterId = 0; clusterId < CLUSTERS; clusterId++) {
+            assertEquals(PER_CLUSTER, _peak.get(clusterId).intValue());
+            assertEquals(0, dispatcher.getRunning(clusterId));
+            assertEquals(0, dispatcher.getQueued(clusterId));
+        }
+    }
+
+    public void testQueuedWhileBusy() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        RestartDispatcher dispatcher = new RestartDispatcher(executor, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        dispatcher.dispatch(7, task);
+        dispatcher.dispatch(7, task);
+        dispatcher.dispatch(7, task);
+
+        assertEquals(1, dispatcher.getRunning(7));
+        assertEquals(2, dispatcher.getQueued(7));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getRunning(7));
+    }
+}
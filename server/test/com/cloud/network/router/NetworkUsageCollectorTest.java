@@ -0,0 +1,202 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.network.router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.router.VirtualRouter.RedundantState;
+import com.cloud.user.UserStatisticsVO;
+import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.vm.DomainRouterVO;
+
+public class NetworkUsageCollectorTest extends TestCase {
+    static final int HOSTS = 20;
+    static final int ROUTERS_PER_HOST = 50;
+    static final int PER_HOST = 4;
+    static final long LATENCY = 5;
+
+    final Map<Long, UserStatisticsVO> _stats = new ConcurrentHashMap<Long, UserStatisticsVO>();
+    final Map<String, AtomicInteger> _calls = new ConcurrentHashMap<String, AtomicInteger>();
+    final Map<Long, AtomicInteger> _inFlight = new ConcurrentHashMap<Long, AtomicInteger>();
+    final AtomicInteger _maxInFlight = new AtomicInteger();
+    final CountDownLatch _host3Asked = new CountDownLatch(1);
+    final AtomicInteger _host2Waits = new AtomicInteger();
+    final AtomicInteger _host2Overlapped = new AtomicInteger();
+    final List<DomainRouterVO> _routers = new ArrayList<DomainRouterVO>();
+    ExecutorService _executor;
+    NetworkUsageCollector _collector;
+    long _changedBehindOurBack = -1;
+
+    static UserStatisticsVO stats(final long id, DomainRouterVO router) {
+        return new UserStatisticsVO(router.getAccountId(), router.getDataCenterIdToDeployIn(), null, router.getId(), router.getType().toString(), router.getNetworkId()) {
+            @Override
+            public Long getId() {
+                return id;
+            }
+        };
+    }
+
+    void count(String name) {
+        AtomicInteger count = _calls.get(name);
+        if (count == null) {
+            _calls.put(name, count = new AtomicInteger());
+        }
+        count.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T fake(Class<T> clazz) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                synchronized (_calls) {
+                    count(name);
+                }
+                if (name.equals("easySend")) {
+                    long hostId = (Long)args[0];
+                    NetworkUsageCommand cmd = (NetworkUsageCommand)args[1];
+                    int inFlight = _inFlight.get(hostId).incrementAndGet();
+                    synchronized (_maxInFlight) {
+                        _maxInFlight.set(Math.max(_maxInFlight.get(), inFlight));
+                    }
+                    try {
+                        if (hostId == 3) {
+                            _host3Asked.countDown();
+                        } else if (hostId == 2 && _host2Waits.getAndIncrement() == 0 && _host3Asked.await(30, TimeUnit.SECONDS)) {
+                            // host 3 was asked while this command to host 2 was in flight
+                            _host2Overlapped.incrementAndGet();
+                        }
+                        Thread.sleep(LATENCY);
+                    } finally {
+                        _inFlight.get(hostId).decrementAndGet();
+                    }
+                    long routerId = Long.parseLong(cmd.getDomRName().substring("r-".length()));
+                    if (hostId == 1) {
+                        throw new RuntimeException("host 1 is down");
+                    }
+                    long bytes = routerId % 10 == 0 ? 0 : routerId * 1000;
+                    return new NetworkUsageAnswer(cmd, null, bytes, bytes);
+                } else if (name.equals("listByDevices")) {
+                    List<UserStatisticsVO> found = new ArrayList<UserStatisticsVO>();
+                    for (UserStatisticsVO stats : _stats.values()) {
+                        if (((Collection<Long>)args[0]).contains(stats.getDeviceId())) {
+                            found.add(stats);
+                        }
+                    }
+                    return found;
+                } else if (name.equals("lockByIds")) {
+                    List<UserStatisticsVO> found = new ArrayList<UserStatisticsVO>();
+                    for (Long id : (Collection<Long>)args[0]) {
+                        UserStatisticsVO stats = _stats.get(id);
+                        if (id == _changedBehindOurBack) {
+                            // someone else updated the row while the router was asked
+                            DomainRouterVO router = _routers.get((int)(id - 1));
+                            stats = stats(id, router);
+                            stats.setCurrentBytesReceived(1);
+                        }
+                        found.add(stats);
+                    }
+                    return found;
+                } else if (name.equals("updateAll")) {
+                    for (UserStatisticsVO stats : (List<UserStatisticsVO>)args[0]) {
+                        _stats.put(stats.getId(), stats);
+                    }
+                    return ((List<UserStatisticsVO>)args[0]).size();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    @Override
+    protected void setUp() {
+        long id = 1;
+        for (long hostId = 1; hostId <= HOSTS; hostId++) {
+            _inFlight.put(hostId, new AtomicInteger());
+            for (int i = 0; i < ROUTERS_PER_HOST; i++, id++) {
+                DomainRouterVO router = new DomainRouterVO(id, 1, "r-" + id, 1, HypervisorType.XenServer, 1, 1, 2, 200 + id, false, 0, false, RedundantState.UNKNOWN, false, false);
+                router.setHostId(hostId);
+                router.setDataCenterId(1);
+                router.setPrivateIpAddress(id % 100 == 1 ? null : "169.254.0." + id);
+                _routers.add(router);
+                // stats ids follow router ids
+                _stats.put(id, stats(id, router));
+            }
+        }
+        _executor = Executors.newFixedThreadPool(16);
+        _collector = new NetworkUsageCollector(fake(AgentManager.class), fake(UserStatisticsDao.class), _executor, PER_HOST);
+    }
+
+    @Override
+    protected void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    public void testCollect() throws Exception {
+        NetworkUsageCollector.Pass pass = _collector.collect(_routers, 60000);
+
+        int routers = HOSTS * ROUTERS_PER_HOST;
+        int noIp = routers / 100;
+        int down = ROUTERS_PER_HOST - 1;
+        int idle = routers / 10 - 5; // host 1 does not answer for r-10 .. r-50
+        assertEquals(routers, pass.getRouters());
+        assertEquals(idle, pass.getIdle());
+        assertEquals(noIp + down, pass.getSkipped());
+        assertEquals(routers - noIp - down - idle, pass.getUpdated());
+        assertTrue("at most " + PER_HOST + " commands in flight per host, saw " + _maxInFlight.get(), _maxInFlight.get() <= PER_HOST);
+
+        assertEquals(1, _calls.get("listByDevices").get());
+        assertEquals((pass.getUpdated() + 99) / 100, _calls.get("lockByIds").get());
+        assertEquals(_calls.get("lockByIds").get(), _calls.get("updateAll").get());
+        assertEquals(777000, _stats.get(777L).getCurrentBytesSent());
+        assertEquals(0, _stats.get(780L).getCurrentBytesSent());
+        assertEquals(0, _stats.get(27L).getCurrentBytesSent());
+        assertTrue("hosts are asked in parallel", _host2Overlapped.get() > 0);
+    }
+
+    public void testStatsChangedWhileAsking() throws Exception {
+        _changedBehindOurBack = 777;
+        NetworkUsageCollector.Pass pass = _collector.collect(_routers.subList(700, 800), 60000);
+
+        assertEquals(100, pass.getRouters());
+        assertEquals(10, pass.getIdle());
+        assertEquals(1 + 1, pass.getSkipped());
+        assertEquals(0, _stats.get(777L).getCurrentBytesSent());
+        assertEquals(778000, _stats.get(778L).getCurrentBytesSent());
+    }
+}
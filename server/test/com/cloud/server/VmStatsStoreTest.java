@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.vm.VmStats;
+
+public class VmStatsStoreTest extends TestCase {
+    public void testMerge() {
+        VmStatsStore store = new VmStatsStore();
+        assertNull(store.get(1));
+
+        Map<Long, VmStatsEntry> updates = new HashMap<Long, VmStatsEntry>();
+        updates.put(3L, new VmStatsEntry(10, 100, 200, 1, "vm"));
+        updates.put(1L, new VmStatsEntry(20, 1, 2, 2, "vm"));
+        store.merge(updates, null);
+        assertEquals(2, store.size());
+
+        // cpu is replaced, network traffic adds up, vms not reported keep their stats
+        updates.clear();
+        updates.put(3L, new VmStatsEntry(50, 10, 20, 2, "vm"));
+        updates.put(2L, new VmStatsEntry(5, 0, 0, 1, "vm"));
+        store.merge(updates, null);
+        assertEquals(3, store.size());
+        VmStats stats = store.get(3);
+        assertEquals(50.0, stats.getCPUUtilization());
+        assertEquals(110.0, stats.getNetworkReadKBs());
+        assertEquals(220.0, stats.getNetworkWriteKBs());
+        assertEquals(2, ((VmStatsEntry)stats).getNumCPUs());
+        assertEquals(20.0, store.get(1).getCPUUtilization());
+
+        // vm 1 stopped running
+        updates.clear();
+        store.merge(updates, new long[] { 3, 2 });
+        assertEquals(2, store.size());
+        assertFalse(store.contains(1));
+        assertTrue(store.contains(2));
+        assertEquals(110.0, store.get(3).getNetworkReadKBs());
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.cloud.host.HostVO;
+
+public class BulkLookupTest extends TestCase {
+
+    /**
+     * A database that answers every query with a host row for each id bound
+     * to it and remembers the sql it was given.
+     */
+    protected static class IdDatabase extends EntityCacheTest.FakeDatabase {
+        final List<String> _sql = new ArrayList<String>();
+
+        IdDatabase(GenericDaoBase<?, ?> dao) {
+            super(dao);
+        }
+
+        @Override
+        Connection connect() {
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("prepareStatement")) {
+                        _sql.add((String)args[0]);
+                        return statement();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        PreparedStatement statement() {
+            final Map<Integer, Object> params = new TreeMap<Integer, Object>();
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+                        params.put((Integer)args[0], args[1]);
+                    } else if (name.equals("executeQuery")) {
+                        _queries.incrementAndGet();
+                        return rows(params.values());
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ResultSet rows(Collection<Object> ids) {
+            final List<ResultSet> rows = new ArrayList<ResultSet>();
+            for (Object id : ids) {
+                List<String> values = new ArrayList<String>(_values);
+                values.set(_idIndex, id.toString());
+                rows.add(EntityRowMapperTest.resultSet(_columns, values));
+            }
+            return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < rows.size();
+                    } else if (name.equals("close")) {
+                        return null;
+                    }
+                    return method.invoke(rows.get(Math.max(_row, 0)), args);
+                }
+            });
+        }
+    }
+
+    public void testFindByIds() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = EntityCacheTest.createDao("BulkLookupTest-FindByIds", true);
+        IdDatabase db = new IdDatabase(dao);
+
+        Transaction txn = Transaction.open("testFindByIds");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+
+            List<Long> ids = new ArrayList<Long>();
+            for (long id = 1; id <= 250; id++) {
+                ids.add(id);
+                ids.add(id);
+            }
+            ids.add(null);
+            Map<Long, HostVO> hosts = dao.findByIds(ids);
+            assertEquals(250, hosts.size());
+            assertEquals(3, db._queries.get());
+            assertEquals(42L, hosts.get(42L).getId());
+            assertTrue(db._sql.get(0).contains(" IN "));
+
+            // they are all cached now
+            hosts = dao.findByIds(ids);
+            assertEquals(250, hosts.size());
+            assertEquals(3, db._queries.get());
+            dao.findById(7L);
+            assertEquals(3, db._queries.get());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testEntityLookup() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = EntityCacheTest.createDao("BulkLookupTest-EntityLookup", false);
+        IdDatabase db = new IdDatabase(dao);
+
+        Transaction txn = Transaction.open("testEntityLookup");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+
+            EntityLookup<HostVO, Long> lookup = new EntityLookup<HostVO, Long>(dao, false);
+            for (long id = 1; id <= 20; id++) {
+                lookup.add(id);
+            }
+            for (long id = 1; id <= 20; id++) {
+                assertEquals(id, lookup.find(id).getId());
+            }
+            assertEquals(1, db._queries.get());
+            assertNull(lookup.find(null));
+
+            // ids that weren't added are still found, one at a time
+            assertEquals(21L, lookup.find(21L).getId());
+            assertEquals(2, db._queries.get());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testKeyset() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = EntityCacheTest.createDao("BulkLookupTest-Keyset", false);
+        IdDatabase db = new IdDatabase(dao);
+
+        Transaction txn = Transaction.open("testKeyset");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+
+            Filter filter = new Filter(HostVO.class, "name", true, 500L, 20L);
+            filter.setKeyset(HostVO.class, "id", 1000L);
+            SearchCriteria<HostVO> sc = dao.createSearchCriteria();
+            sc.addAnd("dataCenterId", SearchCriteria.Op.EQ, 1L);
+            List<HostVO> hosts = dao.search(sc, filter);
+
+            String sql = db._sql.get(0);
+            assertTrue(sql, sql.contains(".id > ?"));
+            assertTrue(sql, sql.contains("ORDER BY"));
+            assertTrue(sql, sql.endsWith(" LIMIT 20"));
+            // the data center id and then the id the page starts after
+            assertEquals(2, hosts.size());
+            assertEquals(1000L, hosts.get(1).getId());
+
+            filter = new Filter(HostVO.class, "id", true, 0L, 20L);
+            filter.setKeyset(HostVO.class, "id", null);
+            assertTrue(filter.isKeyset());
+            assertNull(filter.getKeysetClause());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testKeysetListAll() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = EntityCacheTest.createDao("BulkLookupTest-KeysetListAll", false);
+        IdDatabase db = new IdDatabase(dao);
+
+        Transaction txn = Transaction.open("testKeysetListAll");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+
+            Filter filter = new Filter(HostVO.class, "id", true, 0L, 20L);
+            filter.setKeyset(HostVO.class, "id", 1000L);
+            List<HostVO> hosts = dao.listAll(filter);
+            String sql = db._sql.get(0);
+            assertTrue(sql, sql.contains(".id > ?"));
+            assertTrue(sql, sql.contains("removed IS NULL"));
+            assertTrue(sql, sql.endsWith(" LIMIT 20"));
+            assertEquals(1, hosts.size());
+            assertEquals(1000L, hosts.get(0).getId());
+
+            hosts = dao.listAllIncludingRemoved(filter);
+            sql = db._sql.get(1);
+            assertTrue(sql, sql.contains(".id > ?"));
+            assertFalse(sql, sql.contains("removed IS NULL"));
+            assertEquals(1, hosts.size());
+        } finally {
+            txn.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.host.HostVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class EntityCacheTest extends TestCase {
+
+    /**
+     * A database with a host row for every id that counts the queries and
+     * updates it gets.
+     */
+    protected static class FakeDatabase {
+        final List<Pair<String, String>> _columns = new ArrayList<Pair<String, String>>();
+        final List<String> _values = new ArrayList<String>();
+        int _idIndex = -1;
+        final AtomicInteger _queries = new AtomicInteger();
+        final AtomicInteger _updates = new AtomicInteger();
+
+        FakeDatabase(GenericDaoBase<?, ?> dao) {
+            for (Map.Entry<Pair<String, String>, Attribute> entry : dao._allColumns.entrySet()) {
+                Attribute attr = entry.getValue();
+                String value = EntityRowMapperTest.valueFor(attr.field);
+                if (value == null || (dao._removed != null && attr.field == dao._removed.second().field)) {
+                    continue;
+                }
+                if (attr.field == dao._idField) {
+                    _idIndex = _columns.size();
+                }
+                _columns.add(entry.getKey());
+                _values.add(value);
+            }
+        }
+
+        Connection connect() {
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("prepareStatement")) {
+                        return statement();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        PreparedStatement statement() {
+            final Object[] id = new Object[1];
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args.length == 2 && Integer.valueOf(1).equals(args[0])) {
+                        id[0] = args[1];
+                    } else if (name.equals("executeQuery")) {
+                        _queries.incrementAndGet();
+                        List<String> values = new ArrayList<String>(_values);
+                        values.set(_idIndex, id[0].toString());
+                        return EntityRowMapperTest.resultSet(_columns, values);
+                    } else if (name.equals("executeUpdate")) {
+                        _updates.incrementAndGet();
+                        return 1;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    protected static class RecordingListener implements EntityCacheListener {
+        final List<Pair<String, Object[]>> _invalidations = new ArrayList<Pair<String, Object[]>>();
+
+        @Override
+        public synchronized void invalidated(String table, Object[] ids) {
+            _invalidations.add(new Pair<String, Object[]>(table, ids));
+        }
+    }
+
+    protected static GenericDaoBase<HostVO, Long> createDao(String name, boolean cached) throws Exception {
+        GenericDaoBase<HostVO, Long> dao = new GenericDaoBase<HostVO, Long>() {};
+        Map<String, Object> params = new HashMap<String, Object>();
+        if (cached) {
+            params.put("cache.size", "5000");
+            params.put("cache.time.to.live", "-1");
+        }
+        dao.configure(name, params);
+        return dao;
+    }
+
+    public void testCoherence() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = createDao("EntityCacheTest-Coherence", true);
+        FakeDatabase db = new FakeDatabase(dao);
+        RecordingListener listener = new RecordingListener();
+        GenericDaoBase.setEntityCacheListener(listener);
+
+        Transaction txn = Transaction.open("testCoherence");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+
+            HostVO host = dao.findById(1L);
+            assertEquals(1, db._queries.get());
+            HostVO cached = dao.findById(1L);
+            assertEquals(1, db._queries.get());
+            assertNotSame(host, cached);
+            assertEquals(host.getName(), cached.getName());
+            assertEquals(1, dao._cacheHits.get());
+            assertEquals(1, dao._cacheMisses.get());
+
+            // what callers do with their copy stays with them
+            cached.setName("changed");
+            assertEquals(host.getName(), dao.findById(1L).getName());
+            dao.findById(2L);
+            assertEquals(2, db._queries.get());
+
+            // peers only hear about it once the transaction is over
+            txn.start();
+            HostVO update = dao.createForUpdate();
+            update.setClusterId(5L);
+            assertTrue(dao.update(1L, update));
+            assertTrue(listener._invalidations.isEmpty());
+            dao.findById(1L);
+            assertEquals(3, db._queries.get());
+            txn.commit();
+            assertEquals(1, listener._invalidations.size());
+            assertEquals("host", listener._invalidations.get(0).first());
+            assertEquals(1L, listener._invalidations.get(0).second()[0]);
+            txn.transitToUserManagedConnection(db.connect());
+
+            // the row read before the commit may not have been the committed one
+            dao.findById(1L);
+            assertEquals(4, db._queries.get());
+            dao.findById(1L);
+            assertEquals(4, db._queries.get());
+
+            // a peer changed host 2
+            GenericDaoBase.invalidateCached("host", new long[] { 2 });
+            dao.findById(2L);
+            assertEquals(5, db._queries.get());
+            GenericDaoBase.invalidateCached("host", null);
+            dao.findById(1L);
+            dao.findById(2L);
+            assertEquals(7, db._queries.get());
+            assertTrue(dao._cacheInvalidations.get() >= 4);
+        } finally {
+            GenericDaoBase.setEntityCacheListener(null);
+            txn.close();
+        }
+    }
+
+    public void testCopyIsDeep() throws Exception {
+        GenericDaoBase<HostVO, Long> dao = createDao("EntityCacheTest-Copy", true);
+        HostVO host = dao.createForUpdate();
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("guid", "abc");
+        host.setDetails(details);
+        host.setHostTags(new ArrayList<String>());
+
+        HostVO copy = dao.copyOf(host);
+        copy.getDetails().put("guid", "changed");
+        copy.getHostTags().add("tag");
+        assertEquals("abc", host.getDetails().get("guid"));
+        assertTrue(host.getHostTags().isEmpty());
+
+        host.setDetails(Collections.unmodifiableMap(details));
+        try {
+            dao.copyOf(host);
+            fail("a map that can't be copied must keep the entity out of the cache");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+
+    /**
+     * Looks up hosts by id from 8 threads with and without the cache, and
+     * occasionally updates one.
+     */
+    public void testConcurrentFindById() throws Exception {
+        GenericDaoBase<HostVO, Long> uncached = createDao("EntityCacheTest-Uncached", false);
+        GenericDaoBase<HostVO, Long> cached = createDao("EntityCacheTest-Cached", true);
+
+        int without = findByIds(uncached, 8, 500, 100);
+        int with = findByIds(cached, 8, 500, 100);
+
+        // every lookup but the updates goes to the database without the cache
+        assertEquals(8 * (500 - 5), without);
+        assertTrue(with < without);
+        assertTrue(cached._cacheHits.get() > 0);
+        assertEquals(with, cached._cacheMisses.get());
+    }
+
+    /**
+     * @return the number of queries that reached the database.
+     */
+    protected int findByIds(final GenericDaoBase<HostVO, Long> dao, int threads, final int lookups, final int hosts) throws Exception {
+        final FakeDatabase db = new FakeDatabase(dao);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Transaction txn = Transaction.open("run");
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < lookups; i++) {
+                            if (txn.getCurrentConnection() == null) {
+                                txn.transitToUserManagedConnection(db.connect());
+                            }
+                            long id = random.nextInt(hosts) + 1;
+                            if (i % 100 == 99) {
+                                HostVO update = dao.createForUpdate();
+                                update.setClusterId(seed);
+                                dao.update(id, update);
+                            } else {
+                                assertEquals(id, dao.findById(id).getId());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    } finally {
+                        txn.close();
+                    }
+                }
+            };
+        }
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new RuntimeException(failures.get(0));
+        }
+
+        return db._queries.get();
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import com.cloud.host.HostVO;
+import com.cloud.usage.UsageVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.EntityRowMapper.ColumnSetter;
+import com.cloud.utils.net.Ip;
+import com.cloud.vm.VMInstanceVO;
+
+public class EntityRowMapperTest extends TestCase {
+    static final String DATE = "2011-03-04 05:06:07";
+
+    public void testParseDateTime() {
+        TimeZone gmt = TimeZone.getTimeZone("GMT");
+        for (String date : new String[] { DATE, "1999-12-31 23:59:59", "2012-02-29 00:00:00", "2038-01-19 03:14:08" }) {
+            assertEquals(DateUtil.parseDateString(gmt, date).getTime(), EntityRowMapper.parseGmtDateTime(date.getBytes()));
+        }
+        assertEquals(DateUtil.parseDateString(gmt, DATE).getTime(), EntityRowMapper.parseGmtDateTime((DATE + ".0").getBytes()));
+        assertEquals(DateUtil.parseDateString(gmt, "2011-03-04 00:00:00").getTime(), EntityRowMapper.parseGmtDateTime("2011-03-04".getBytes()));
+        assertEquals(Long.MIN_VALUE, EntityRowMapper.parseGmtDateTime("0000-00-00 00:00:00".getBytes()));
+        assertEquals(Long.MIN_VALUE, EntityRowMapper.parseGmtDateTime("2011/03/04 05:06:07".getBytes()));
+    }
+
+    /**
+     * Hydrates rows of VMInstanceVO, HostVO and UsageVO through the row
+     * mapper and through GenericDaoBase.setField(), which looks at the
+     * annotations and metadata of every column of every row, and checks
+     * they come out the same.
+     */
+    public void testHydration() throws Exception {
+        hydrate(new GenericDaoBase<VMInstanceVO, Long>() {});
+        hydrate(new GenericDaoBase<HostVO, Long>() {});
+        hydrate(new GenericDaoBase<UsageVO, Long>() {});
+    }
+
+    protected <T> void hydrate(GenericDaoBase<T, Long> dao) throws Exception {
+        List<Pair<String, String>> columns = new ArrayList<Pair<String, String>>();
+        List<String> values = new ArrayList<String>();
+        for (Map.Entry<Pair<String, String>, Attribute> entry : dao._allColumns.entrySet()) {
+            String value = valueFor(entry.getValue().field);
+            if (value != null) {
+                columns.add(entry.getKey());
+                values.add(value);
+            }
+        }
+        ResultSet rs = resultSet(columns, values);
+
+        T reflected = reflect(dao, rs);
+
+        // the setters bound once are reused for every row of the result set
+        T mapped = null;
+        ColumnSetter[] setters = dao._rowMapper.bind(rs);
+        for (int i = 0; i < 2; i++) {
+            mapped = dao.createForUpdate();
+            dao._rowMapper.map(setters, mapped, rs);
+        }
+
+        for (Attribute attr : dao._allColumns.values()) {
+            Field field = attr.field;
+            if (field != null && !Modifier.isStatic(field.getModifiers())) {
+                Object expected = field.get(reflected);
+                Object actual = field.get(mapped);
+                if (expected instanceof Calendar) {
+                    expected = ((Calendar)expected).getTime();
+                    actual = ((Calendar)actual).getTime();
+                }
+                if (expected instanceof byte[]) {
+                    assertTrue(field.getName(), Arrays.equals((byte[])expected, (byte[])actual));
+                } else {
+                    assertEquals(field.getName(), expected, actual);
+                }
+            }
+        }
+    }
+
+    protected <T> T reflect(GenericDaoBase<T, Long> dao, ResultSet rs) throws Exception {
+        T entity = dao.createForUpdate();
+        ResultSetMetaData meta = rs.getMetaData();
+        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+            dao.setField(entity, rs, meta, index);
+        }
+        return entity;
+    }
+
+    protected static String valueFor(Field field) {
+        if (field == null) {
+            return null;
+        }
+        Class<?> type = field.getType();
+        if (type == String.class) {
+            return "value of " + field.getName();
+        } else if (type == long.class || type == Long.class || type == int.class || type == Integer.class || type == short.class || type == Short.class
+                || type == byte.class || type == Byte.class) {
+            return "42";
+        } else if (type == float.class || type == Float.class || type == double.class || type == Double.class) {
+            return "1.5";
+        } else if (type == boolean.class || type == Boolean.class) {
+            return "1";
+        } else if (type.isEnum()) {
+            return ((Enum<?>)type.getEnumConstants()[type.getEnumConstants().length - 1]).name();
+        } else if (type == Date.class || type == Calendar.class) {
+            return DATE;
+        } else if (type == Ip.class) {
+            return "10.1.1.1";
+        } else if (type == URI.class || type == URL.class) {
+            return "http://localhost/";
+        } else if (type == byte[].class) {
+            return "bytes";
+        }
+        return null;
+    }
+
+    /**
+     * A result set of one row that is never at its end.
+     */
+    protected static ResultSet resultSet(final List<Pair<String, String>> columns, final List<String> values) {
+        final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getColumnCount")) {
+                            return columns.size();
+                        } else if (name.equals("getTableName")) {
+                            return columns.get((Integer)args[0] - 1).first();
+                        } else if (name.equals("getColumnName")) {
+                            return columns.get((Integer)args[0] - 1).second();
+                        }
+                        return null;
+                    }
+                });
+
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getMetaData")) {
+                    return meta;
+                } else if (name.equals("next")) {
+                    return true;
+                } else if (name.equals("wasNull")) {
+                    return false;
+                }
+                String value = values.get((Integer)args[0] - 1);
+                if (name.equals("getString") || name.equals("getObject")) {
+                    return value;
+                } else if (name.equals("getBytes")) {
+                    return value.getBytes();
+                } else if (name.equals("getLong")) {
+                    return Long.parseLong(value);
+                } else if (name.equals("getInt")) {
+                    return Integer.parseInt(value);
+                } else if (name.equals("getShort")) {
+                    return Short.parseShort(value);
+                } else if (name.equals("getByte")) {
+                    return Byte.parseByte(value);
+                } else if (name.equals("getFloat")) {
+                    return Float.parseFloat(value);
+                } else if (name.equals("getDouble")) {
+                    return Double.parseDouble(value);
+                } else if (name.equals("getBoolean")) {
+                    return value.equals("1");
+                } else if (name.equals("getDate")) {
+                    return new java.sql.Date(0);
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
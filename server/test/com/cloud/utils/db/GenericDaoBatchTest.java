@@ -0,0 +1,339 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityExistsException;
+import javax.persistence.TableGenerator;
+
+import junit.framework.TestCase;
+
+import com.cloud.dc.DataCenterVnetVO;
+import com.cloud.network.NetworkVO;
+
+public class GenericDaoBatchTest extends TestCase {
+
+    /**
+     * A database that records the statements it gets, hands out increasing
+     * generated keys and keeps one sequence row.
+     */
+    protected static class FakeDatabase {
+        final List<String> _sqls = new ArrayList<String>();
+        final List<Map<Integer, Object>> _rows = new ArrayList<Map<Integer, Object>>();
+        final List<Integer> _batches = new ArrayList<Integer>();
+        final List<Map<Integer, Object>> _updates = new ArrayList<Map<Integer, Object>>();
+        long _nextKey = 1;
+        Long _sequence = 100L;
+        int _failBatch = -1;
+        int _commits;
+        int _rollbacks;
+
+        Connection connect() {
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement")) {
+                        return statement((String)args[0]);
+                    } else if (name.equals("commit")) {
+                        _commits++;
+                    } else if (name.equals("rollback")) {
+                        _rollbacks++;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        PreparedStatement statement(final String sql) {
+            _sqls.add(sql);
+            final Map<Integer, Object> params = new TreeMap<Integer, Object>();
+            final List<Long> keys = new ArrayList<Long>();
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                int _added;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args.length >= 2 && args[0] instanceof Integer) {
+                        params.put((Integer)args[0], args[1] instanceof byte[] ? new String((byte[])args[1]) : args[1]);
+                    } else if (name.equals("addBatch")) {
+                        _rows.add(new TreeMap<Integer, Object>(params));
+                        params.clear();
+                        _added++;
+                    } else if (name.equals("executeBatch")) {
+                        if (_batches.size() == _failBatch) {
+                            throw new SQLException("Duplicate entry", "23000", 1062);
+                        }
+                        _batches.add(_added);
+                        keys.clear();
+                        int[] counts = new int[_added];
+                        for (int i = 0; i < _added; i++) {
+                            keys.add(_nextKey++);
+                            counts[i] = 1;
+                        }
+                        _added = 0;
+                        return counts;
+                    } else if (name.equals("getGeneratedKeys")) {
+                        return resultSet(new ArrayList<Long>(keys));
+                    } else if (name.equals("executeQuery")) {
+                        List<Long> values = new ArrayList<Long>();
+                        if (_sequence != null) {
+                            values.add(_sequence);
+                        }
+                        return resultSet(values);
+                    } else if (name.equals("executeUpdate")) {
+                        _updates.add(new TreeMap<Integer, Object>(params));
+                        return 1;
+                    } else if (name.equals("toString")) {
+                        return sql;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ResultSet resultSet(final List<Long> values) {
+            return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < values.size();
+                    } else if (name.equals("getLong") || name.equals("getObject")) {
+                        return values.get(_row);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the fetches in a thread whose transaction is on the fake database.
+     */
+    protected static ExecutorService executor(final FakeDatabase db) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                Transaction.open("GenericDaoBatchTest-Sequence").transitToUserManagedConnection(db.connect());
+            }
+        };
+    }
+
+    protected static <T> GenericDaoBase<T, Long> configure(GenericDaoBase<T, Long> dao, String name) throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("batch.size", "2");
+        dao.configure(name, params);
+        return dao;
+    }
+
+    protected static List<DataCenterVnetVO> vnets(int count) {
+        List<DataCenterVnetVO> vnets = new ArrayList<DataCenterVnetVO>();
+        for (int i = 0; i < count; i++) {
+            vnets.add(new DataCenterVnetVO(Integer.toString(100 + i), 1));
+        }
+        return vnets;
+    }
+
+    public void testPersistAll() throws Exception {
+        GenericDaoBase<DataCenterVnetVO, Long> dao = configure(new GenericDaoBase<DataCenterVnetVO, Long>() {}, "GenericDaoBatchTest-Persist");
+        FakeDatabase db = new FakeDatabase();
+        Transaction txn = Transaction.open("testPersistAll");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+            List<DataCenterVnetVO> vnets = dao.persistAll(vnets(5));
+
+            assertEquals(3, db._batches.size());
+            for (String sql : db._sqls) {
+                assertTrue(sql.startsWith("INSERT INTO op_dc_vnet_alloc"));
+            }
+            assertEquals(2, db._batches.get(0).intValue());
+            assertEquals(1, db._batches.get(2).intValue());
+            assertEquals(5, db._rows.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i + 1, vnets.get(i).getId());
+                assertTrue(db._rows.get(i).containsValue(Integer.toString(100 + i)));
+            }
+            assertEquals(1, db._commits);
+            assertEquals(0, db._rollbacks);
+            assertFalse(txn.dbTxnStarted());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testPersistAllRollsBack() throws Exception {
+        GenericDaoBase<DataCenterVnetVO, Long> dao = configure(new GenericDaoBase<DataCenterVnetVO, Long>() {}, "GenericDaoBatchTest-Rollback");
+        FakeDatabase db = new FakeDatabase();
+        db._failBatch = 1;
+        Transaction txn = Transaction.open("testPersistAllRollsBack");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+            try {
+                dao.persistAll(vnets(5));
+                fail("the duplicate wasn't reported");
+            } catch (EntityExistsException e) {
+            }
+            assertEquals(1, db._batches.size());
+            assertEquals(0, db._commits);
+            assertEquals(1, db._rollbacks);
+            assertFalse(txn.dbTxnStarted());
+
+            // a caller's transaction goes with it
+            db._batches.clear();
+            txn.transitToUserManagedConnection(db.connect());
+            txn.start();
+            try {
+                dao.persistAll(vnets(5));
+                fail("the duplicate wasn't reported");
+            } catch (EntityExistsException e) {
+            }
+            txn.rollback();
+            assertEquals(0, db._commits);
+            assertEquals(2, db._rollbacks);
+            assertFalse(txn.dbTxnStarted());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testPersistAllTakesIdsFromSequence() throws Exception {
+        GenericDaoBase<NetworkVO, Long> dao = configure(new GenericDaoBase<NetworkVO, Long>() {}, "GenericDaoBatchTest-Sequence");
+        FakeDatabase db = new FakeDatabase();
+        FakeDatabase sequence = new FakeDatabase();
+        ExecutorService executors = GenericDaoBase.s_seqFetcher._executors;
+        GenericDaoBase.s_seqFetcher._executors = executor(sequence);
+        Transaction txn = Transaction.open("testPersistAllTakesIdsFromSequence");
+        try {
+            txn.transitToUserManagedConnection(db.connect());
+            List<NetworkVO> networks = new ArrayList<NetworkVO>();
+            for (int i = 0; i < 3; i++) {
+                networks.add(new NetworkVO());
+            }
+            dao.persistAll(networks);
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(100 + i, networks.get(i).getId());
+            }
+            assertEquals(1, sequence._updates.size());
+            assertEquals(3, sequence._updates.get(0).get(2));
+            assertEquals(2, db._batches.size());
+            assertEquals(1, db._commits);
+        } finally {
+            txn.close();
+            GenericDaoBase.s_seqFetcher._executors.shutdown();
+            GenericDaoBase.s_seqFetcher._executors = executors;
+        }
+    }
+
+    public void testGetNextSequenceBlock() throws Exception {
+        TableGenerator tg = NetworkVO.class.getDeclaredField("id").getAnnotation(TableGenerator.class);
+        FakeDatabase db = new FakeDatabase();
+        SequenceFetcher fetcher = new SequenceFetcher();
+        fetcher._executors.shutdown();
+        fetcher._executors = executor(db);
+        try {
+            assertEquals(Long.valueOf(100), fetcher.getNextSequenceBlock(Long.class, tg, 5));
+            assertEquals(1, db._updates.size());
+            Map<Integer, Object> update = db._updates.get(0);
+            assertEquals(100L, update.get(1));
+            assertEquals(tg.allocationSize() * 5, update.get(2));
+            assertEquals(tg.pkColumnValue(), update.get(3));
+            assertEquals(1, db._commits);
+
+            db._sequence = null;
+            assertNull("there's no sequence row", fetcher.getNextSequenceBlock(Long.class, tg, 5));
+            assertEquals(1, db._updates.size());
+        } finally {
+            fetcher._executors.shutdown();
+        }
+    }
+
+    public void testUpdateAll() throws Exception {
+        GenericDaoBase<DataCenterVnetVO, Long> dao = configure(new GenericDaoBase<DataCenterVnetVO, Long>() {}, "GenericDaoBatchTest-Update");
+        FakeDatabase db = new FakeDatabase();
+        Transaction txn = Transaction.open("testUpdateAll");
+        try {
+            List<DataCenterVnetVO> vnets = new ArrayList<DataCenterVnetVO>();
+            for (long id = 1; id <= 4; id++) {
+                DataCenterVnetVO vnet = dao.createForUpdate(id);
+                if (id < 4) {
+                    vnet.setAccountId(7L);
+                } else {
+                    vnet.setReservationId("reservation");
+                }
+                vnets.add(vnet);
+            }
+            vnets.add(dao.createForUpdate(5L));
+
+            txn.transitToUserManagedConnection(db.connect());
+            assertEquals(4, dao.updateAll(vnets));
+
+            // the three with the same change share a statement, the unchanged one is skipped
+            assertEquals(2, db._sqls.size());
+            assertEquals(3, db._batches.size());
+            assertEquals(4, db._rows.size());
+            int accounts = 0;
+            for (Map<Integer, Object> row : db._rows) {
+                if (row.containsValue(7L)) {
+                    accounts++;
+                    assertEquals(Long.valueOf(accounts), row.get(2));
+                } else {
+                    assertEquals("reservation", row.get(1));
+                    assertEquals(4L, row.get(2));
+                }
+            }
+            assertEquals(3, accounts);
+            assertEquals(1, db._commits);
+
+            // a failed batch leaves nothing behind
+            db._failBatch = db._batches.size();
+            vnets.get(0).setAccountId(8L);
+            txn.transitToUserManagedConnection(db.connect());
+            try {
+                dao.updateAll(vnets.subList(0, 1));
+                fail("the duplicate wasn't reported");
+            } catch (EntityExistsException e) {
+            }
+            assertEquals(1, db._commits);
+            assertEquals(1, db._rollbacks);
+            assertFalse(txn.dbTxnStarted());
+        } finally {
+            txn.close();
+        }
+    }
+}
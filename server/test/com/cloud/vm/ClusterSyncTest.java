@@ -0,0 +1,198 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.vm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.manager.Commands;
+import com.cloud.ha.HighAvailabilityManager;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.HypervisorGuru;
+import com.cloud.hypervisor.HypervisorGuruManager;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class ClusterSyncTest extends TestCase {
+    static final int HOSTS = 10;
+
+    final Map<Long, VMInstanceVO> _vms = new HashMap<Long, VMInstanceVO>();
+    final Map<String, Integer> _calls = new HashMap<String, Integer>();
+    VirtualMachineManagerImpl _mgr;
+
+    /**
+     * Answers like the database would, counting every call.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T fake(Class<T> clazz) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                Integer count = _calls.get(name);
+                _calls.put(name, count == null ? 1 : count + 1);
+                if (name.equals("getGuru")) {
+                    return fake(HypervisorGuru.class);
+                } else if (name.equals("trackVmHostChange")) {
+                    return false;
+                } else if (name.equals("scheduleRestart")) {
+                    return null;
+                } else if (name.equals("convertToId")) {
+                    String[] tokens = ((String)args[0]).split("-");
+                    return Long.parseLong(tokens[2]);
+                }
+                if (name.equals("listByClusterId")) {
+                    return new ArrayList<VMInstanceVO>(_vms.values());
+                } else if (name.equals("listByInstanceNames")) {
+                    List<VMInstanceVO> found = new ArrayList<VMInstanceVO>();
+                    for (VMInstanceVO vm : _vms.values()) {
+                        if (((Collection<String>)args[0]).contains(vm.getInstanceName())) {
+                            found.add(vm);
+                        }
+                    }
+                    return found;
+                } else if (name.equals("listByGuids")) {
+                    List<HostVO> hosts = new ArrayList<HostVO>();
+                    for (String guid : (Collection<String>)args[0]) {
+                        hosts.add(host(Long.parseLong(guid.substring("host-".length()))));
+                    }
+                    return hosts;
+                } else if (name.equals("findById")) {
+                    return _vms.get(args[0]);
+                } else if (name.equals("updateState")) {
+                    ((VMInstanceVO)args[3]).setHostId(((Pair<Long, Long>)args[4]).second());
+                    return true;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    static HostVO host(final long id) {
+        return new HostVO("host-" + id) {
+            @Override
+            public long getId() {
+                return id;
+            }
+        };
+    }
+
+    static String name(long id) {
+        return "i-2-" + id + "-VM";
+    }
+
+    @Override
+    protected void setUp() {
+        _mgr = new VirtualMachineManagerImpl();
+        _mgr._vmDao = fake(VMInstanceDao.class);
+        _mgr._hostDao = fake(HostDao.class);
+        _mgr._hvGuruMgr = fake(HypervisorGuruManager.class);
+        _mgr._haMgr = fake(HighAvailabilityManager.class);
+        _mgr.registerGuru(VirtualMachine.Type.User, fake(VirtualMachineGuru.class));
+    }
+
+    VMInstanceVO vm(long id, State state) {
+        VMInstanceVO vm = new VMInstanceVO(id, 1, null, name(id), VirtualMachine.Type.User, 1L, HypervisorType.XenServer, 1, 1, 2, false);
+        vm.setState(state);
+        vm.setLastHostId(id % HOSTS + 1);
+        if (state == State.Running) {
+            vm.setHostId(id % HOSTS + 1);
+        }
+        _vms.put(id, vm);
+        return vm;
+    }
+
+    int calls(String method) {
+        Integer count = _calls.get(method);
+        return count == null ? 0 : count;
+    }
+
+    int queries() {
+        int total = 0;
+        for (Map.Entry<String, Integer> entry : _calls.entrySet()) {
+            if (!entry.getKey().equals("trackVmHostChange") && !entry.getKey().equals("getGuru") && !entry.getKey().equals("scheduleRestart")
+                    && !entry.getKey().equals("convertToId")) {
+                total += entry.getValue();
+            }
+        }
+        return total;
+    }
+
+    public void testFullSync() {
+        Map<String, Pair<String, State>> report = new HashMap<String, Pair<String, State>>();
+        for (long id = 1; id <= 5000; id++) {
+            if (id <= 1000) {
+                vm(id, State.Stopped);
+            } else if (id <= 1020) {
+                vm(id, State.Running);
+            } else if (id <= 1025) {
+                vm(id, State.Running);
+                report.put(name(id), new Pair<String, State>("host-" + ((id + 1) % HOSTS + 1), State.Running));
+            } else {
+                report.put(name(vm(id, State.Running).getId()), new Pair<String, State>("host-" + (id % HOSTS + 1), State.Running));
+            }
+        }
+        for (long id = 9001; id <= 9010; id++) {
+            report.put(name(id), new Pair<String, State>("host-1", State.Running));
+        }
+
+        Commands commands = _mgr.fullSync(1, report);
+
+        // 20 vms that went missing and 10 that we know nothing about
+        assertEquals(30, commands.size());
+        assertEquals(20, calls("scheduleRestart"));
+        assertEquals(0, calls("findByName"));
+        assertEquals(1, calls("listByGuids"));
+        assertEquals(1, calls("listByInstanceNames"));
+        // only the 25 vms that diverge are loaded through their guru
+        assertEquals(25, calls("findById"));
+        assertEquals(5, calls("updateState"));
+        for (long id = 1021; id <= 1025; id++) {
+            assertEquals(Long.valueOf((id + 1) % HOSTS + 1), _vms.get(id).getHostId());
+        }
+        // the cluster, the hosts and the unknown names are each one query however many vms there are
+        assertEquals(1 + 1 + 1 + 25 + 5, queries());
+    }
+
+    public void testDeltaSync() {
+        Map<String, Pair<String, State>> report = new HashMap<String, Pair<String, State>>();
+        for (long id = 1; id <= 250; id++) {
+            vm(id, State.Running);
+            report.put(name(id), new Pair<String, State>("host-" + (id % HOSTS + 1), id <= 50 ? State.Stopped : State.Running));
+        }
+
+        Commands commands = _mgr.deltaSync(report);
+
+        assertEquals(50, commands.size());
+        assertEquals(50, calls("scheduleRestart"));
+        assertEquals(1, calls("listByInstanceNames"));
+        assertEquals(1, calls("listByGuids"));
+        assertEquals(50, calls("findById"));
+    }
+}
@@ -21,6 +21,7 @@ import com.cloud.api.commands.ListVMsCmd;
 import com.cloud.api.commands.MoveUserVMCmd;
 import com.cloud.api.commands.RebootVMCmd;
 import com.cloud.api.commands.RecoverVMCmd;
+import com.cloud.api.commands.ReserveVMsCmd;
 import com.cloud.api.commands.ResetVMPasswordCmd;
 import com.cloud.api.commands.StartVMCmd;
 import com.cloud.api.commands.UpdateVMCmd;
@@ -319,6 +320,12 @@ public class MockUserVmManagerImpl implements UserVmManager, UserVmService, Mana
         return null;
     }
 
+    @Override
+    public List<? extends UserVm> reserveVirtualMachines(ReserveVMsCmd cmd) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public HypervisorType getHypervisorTypeOfUserVM(long vmid) {
         // TODO Auto-generated method stub
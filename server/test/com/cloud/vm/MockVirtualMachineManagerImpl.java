@@ -6,6 +6,7 @@ import java.util.Map;
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
+import com.cloud.deploy.BulkDeploymentPlanner.Placement;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.exception.AgentUnavailableException;
@@ -198,4 +199,10 @@ public class MockVirtualMachineManagerImpl implements VirtualMachineManager {
 	    return null;
     }
 
+	@Override
+    public <T extends VMInstanceVO> Map<T, DeployDestination> reserveGroup(List<T> vms, DeploymentPlan plan, Placement placement) throws InsufficientServerCapacityException {
+	    // TODO Auto-generated method stub
+	    return null;
+    }
+
 }
@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records durations in milliseconds into power-of-two
+ * buckets so percentiles can be reported without keeping the samples.
+ * Bucket 0 holds 0ms, bucket i holds [2^(i-1), 2^i) ms.  Percentiles are
+ * reported as the upper bound of the bucket they fall in, capped by the
+ * maximum seen.  Recording is lock free.
+ */
+public class LatencyHistogram {
+    protected static final int BUCKETS = 40;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    protected static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        _buckets.incrementAndGet(bucket(millis));
+        _count.incrementAndGet();
+        _total.addAndGet(millis);
+        long max = _max.get();
+        while (millis > max && !_max.compareAndSet(max, millis)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getAverage() {
+        long count = _count.get();
+        return count == 0 ? 0 : _total.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the duration that percentile of the samples did not exceed.
+     */
+    public long getPercentile(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(count * percentile / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _buckets.get(i);
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upper, _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            _buckets.set(i, 0);
+        }
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("count=").append(getCount()).append(", avg=").append(getAverage()).append("ms, p50=").append(getPercentile(50))
+                .append("ms, p99=").append(getPercentile(99)).append("ms, max=").append(getMax()).append("ms").toString();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import javax.management.StandardMBean;
+
+public class EntityCacheMBeanImpl extends StandardMBean implements EntityCacheMBean {
+    private final GenericDaoBase<?, ?> _dao;
+
+    public EntityCacheMBeanImpl(GenericDaoBase<?, ?> dao) {
+        super(EntityCacheMBean.class, false);
+        _dao = dao;
+    }
+
+    @Override
+    public String getEntityType() {
+        return _dao._entityBeanType.getName();
+    }
+
+    @Override
+    public int getSize() {
+        return _dao._cache.getSize();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _dao._cache.getCacheConfiguration().getMaxElementsInMemory();
+    }
+
+    @Override
+    public long getHits() {
+        return _dao._cacheHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _dao._cacheMisses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _dao.getCacheEvictions();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _dao._cacheInvalidations.get();
+    }
+
+    @Override
+    public void clear() {
+        _dao.evict(null);
+    }
+}
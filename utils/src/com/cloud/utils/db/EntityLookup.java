@@ -0,0 +1,85 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * EntityLookup finds the entities that a page of rows refers to, like the
+ * accounts and zones of a page of volumes.  The ids are added as the rows
+ * are gone through and the first find looks all of them up together, with
+ * one query per batch of ids instead of one query per row.
+ * 
+ * This is not thread safe.  It is meant to live as long as it takes to
+ * build the responses for one page.
+ */
+public class EntityLookup<T, ID extends Serializable> {
+    private final GenericDao<T, ID> _dao;
+    private final boolean _includingRemoved;
+    private final Set<ID> _pending = new HashSet<ID>();
+    private final Map<ID, T> _found = new HashMap<ID, T>();
+
+    /**
+     * @param dao dao to look up the entities with.
+     * @param includingRemoved whether to find entities that have been removed.
+     */
+    public EntityLookup(GenericDao<T, ID> dao, boolean includingRemoved) {
+        _dao = dao;
+        _includingRemoved = includingRemoved;
+    }
+
+    /**
+     * Adds an id to be looked up on the next find.
+     * @param id id of the entity; null is ignored.
+     */
+    public void add(ID id) {
+        if (id != null && !_found.containsKey(id)) {
+            _pending.add(id);
+        }
+    }
+
+    /**
+     * @param id id of the entity.
+     * @return the entity; null if it is not found.
+     */
+    public T find(ID id) {
+        if (id == null) {
+            return null;
+        }
+
+        if (!_pending.isEmpty()) {
+            Map<ID, T> entities = _includingRemoved ? _dao.findByIdsIncludingRemoved(_pending) : _dao.findByIds(_pending);
+            for (ID pending : _pending) {
+                _found.put(pending, entities.get(pending));
+            }
+            _pending.clear();
+        }
+
+        if (_found.containsKey(id)) {
+            return _found.get(id);
+        }
+
+        T entity = _includingRemoved ? _dao.findByIdIncludingRemoved(id) : _dao.findById(id);
+        _found.put(id, entity);
+        return entity;
+    }
+}
@@ -0,0 +1,434 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * EntityRowMapper copies the columns of a row into an entity bean.  The work
+ * GenericDaoBase used to do for every column of every row, looking at the
+ * annotations, the field type and the enum constants, is done once per field
+ * when the dao is created and kept in a ColumnSetter.  The columns of a
+ * result set are bound to their setters once per query, after that a row
+ * is read by position only.
+ * 
+ * Date and Calendar columns are read from the bytes MySQL sends for them
+ * rather than being formatted into a String and parsed back.  They are
+ * stored in GMT, which the connector does not honor through
+ * ResultSet.getTimestamp(int, Calendar) unless useTimezone is set.
+ */
+public class EntityRowMapper {
+    protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private final Map<Pair<String, String>, Attribute> _columns;
+    private final Map<Field, ColumnSetter> _setters = new ConcurrentHashMap<Field, ColumnSetter>();
+
+    public EntityRowMapper(Map<Pair<String, String>, Attribute> columns) {
+        _columns = columns;
+        for (Attribute attr : columns.values()) {
+            if (attr.field != null) {
+                getSetter(attr.field);
+            }
+        }
+    }
+
+    /**
+     * Binds the columns of a result set to the setters of their fields.
+     */
+    public ColumnSetter[] bind(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        ColumnSetter[] setters = new ColumnSetter[meta.getColumnCount()];
+        for (int index = 1; index <= setters.length; index++) {
+            Attribute attr = _columns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
+            assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
+            setters[index - 1] = getSetter(attr.field);
+        }
+        return setters;
+    }
+
+    public void map(ColumnSetter[] setters, Object entity, ResultSet rs) throws SQLException {
+        try {
+            for (int index = 0; index < setters.length; index++) {
+                setters[index].set(entity, rs, index + 1);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    public ColumnSetter getSetter(Field field) {
+        ColumnSetter setter = _setters.get(field);
+        if (setter == null) {
+            setter = createSetter(field);
+            _setters.put(field, setter);
+        }
+        return setter;
+    }
+
+    public static abstract class ColumnSetter {
+        protected final Field _field;
+
+        protected ColumnSetter(Field field) {
+            _field = field;
+        }
+
+        public abstract void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException;
+    }
+
+    protected static ColumnSetter createSetter(final Field field) {
+        final Class<?> type = field.getType();
+        if (type == String.class) {
+            Column column = field.getAnnotation(Column.class);
+            final boolean encryptable = column != null && column.encryptable();
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte[] bytes = rs.getBytes(index);
+                    if (bytes == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    try {
+                        String str = new String(bytes, "UTF-8");
+                        _field.set(entity, encryptable ? DBEncryptionUtil.decrypt(str) : str);
+                    } catch (UnsupportedEncodingException e) {
+                        throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
+                    }
+                }
+            };
+        } else if (type == long.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setLong(entity, rs.getLong(index));
+                }
+            };
+        } else if (type == Long.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    long value = rs.getLong(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type.isEnum()) {
+            Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            final Enum<?>[] constants = (Enum<?>[])type.getEnumConstants();
+            if (enumerated != null && enumerated.value() == EnumType.ORDINAL) {
+                return new ColumnSetter(field) {
+                    @Override
+                    public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                        int ordinal = rs.getInt(index);
+                        if (ordinal >= 0 && ordinal < constants.length) {
+                            _field.set(entity, constants[ordinal]);
+                        }
+                    }
+                };
+            }
+            final Map<String, Enum<?>> byName = new HashMap<String, Enum<?>>(constants.length * 4);
+            for (Enum<?> e : constants) {
+                byName.put(e.name().toUpperCase(), e);
+            }
+            for (Enum<?> e : constants) {
+                byName.put(e.name(), e);
+            }
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String name = rs.getString(index);
+                    if (name == null) {
+                        return;
+                    }
+                    Enum<?> e = byName.get(name);
+                    if (e == null) {
+                        e = byName.get(name.toUpperCase());
+                    }
+                    if (e != null) {
+                        _field.set(entity, e);
+                    }
+                }
+            };
+        } else if (type == int.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setInt(entity, rs.getInt(index));
+                }
+            };
+        } else if (type == Integer.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    int value = rs.getInt(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == Date.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, getDate(rs, index));
+                }
+            };
+        } else if (type == Calendar.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    Date date = getDate(rs, index);
+                    if (date == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    final Calendar cal = Calendar.getInstance();
+                    cal.setTime(date);
+                    _field.set(entity, cal);
+                }
+            };
+        } else if (type == boolean.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setBoolean(entity, rs.getBoolean(index));
+                }
+            };
+        } else if (type == Boolean.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    boolean value = rs.getBoolean(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == URI.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URI(str));
+                    } catch (URISyntaxException e) {
+                        throw new CloudRuntimeException("Invalid URI: " + str, e);
+                    }
+                }
+            };
+        } else if (type == URL.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URL(str));
+                    } catch (MalformedURLException e) {
+                        throw new CloudRuntimeException("Invalid URL: " + str, e);
+                    }
+                }
+            };
+        } else if (type == Ip.class) {
+            Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            if (enumerated != null && enumerated.value() == EnumType.ORDINAL) {
+                return new ColumnSetter(field) {
+                    @Override
+                    public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                        _field.set(entity, new Ip(rs.getLong(index)));
+                    }
+                };
+            }
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    _field.set(entity, str == null ? null : new Ip(NetUtils.ip2Long(str)));
+                }
+            };
+        } else if (type == short.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setShort(entity, rs.getShort(index));
+                }
+            };
+        } else if (type == Short.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    short value = rs.getShort(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == float.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setFloat(entity, rs.getFloat(index));
+                }
+            };
+        } else if (type == Float.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    float value = rs.getFloat(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == double.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setDouble(entity, rs.getDouble(index));
+                }
+            };
+        } else if (type == Double.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    double value = rs.getDouble(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setByte(entity, rs.getByte(index));
+                }
+            };
+        } else if (type == Byte.class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte value = rs.getByte(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte[].class) {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getBytes(index));
+                }
+            };
+        } else {
+            return new ColumnSetter(field) {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getObject(index));
+                }
+            };
+        }
+    }
+
+    protected static Date getDate(ResultSet rs, int index) throws SQLException {
+        byte[] bytes = rs.getBytes(index);
+        if (bytes == null) {
+            return null;
+        }
+        long millis = parseGmtDateTime(bytes);
+        if (millis != Long.MIN_VALUE) {
+            return new Date(millis);
+        }
+
+        // not the text form of a DATETIME, let the driver sort it out
+        if (rs.getDate(index) == null) {
+            return null;
+        }
+        return DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index));
+    }
+
+    /**
+     * Parses "yyyy-MM-dd HH:mm:ss", optionally followed by fractions of a
+     * second that are ignored, or "yyyy-MM-dd" as a GMT time.
+     * 
+     * @return milliseconds since the epoch, Long.MIN_VALUE if bytes is in neither format.
+     */
+    protected static long parseGmtDateTime(byte[] bytes) {
+        if (bytes.length != 10 && bytes.length < 19) {
+            return Long.MIN_VALUE;
+        }
+        if (bytes[4] != '-' || bytes[7] != '-') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(bytes, 0, 4);
+        int month = digits(bytes, 5, 2);
+        int day = digits(bytes, 8, 2);
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        if (bytes.length > 10) {
+            if (bytes[10] != ' ' || bytes[13] != ':' || bytes[16] != ':' || (bytes.length > 19 && bytes[19] != '.')) {
+                return Long.MIN_VALUE;
+            }
+            hour = digits(bytes, 11, 2);
+            minute = digits(bytes, 14, 2);
+            second = digits(bytes, 17, 2);
+        }
+        // zero dates, dates before the Gregorian calendar and the like are left to the driver
+        if (year < 1583 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(byte[] bytes, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return days since 1970-01-01 in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
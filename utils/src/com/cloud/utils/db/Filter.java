@@ -39,6 +39,8 @@ public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    String _keyColumn;
+    Object _keyAfter;
     
     /**
      * @param clazz the VO object type
@@ -71,6 +73,48 @@ public class Filter {
         if (field == null) {
             return;
         }
+        StringBuilder order = new StringBuilder(getColumnName(clazz, field));
+        order.append(ascending ? " ASC " : " DESC ");
+        
+        if (_orderBy == null) {
+            _orderBy = order.insert(0, " ORDER BY ").toString();
+        } else {
+            _orderBy = order.insert(0, _orderBy).toString();
+        }
+    }
+    
+    /**
+     * Pages by a unique field, like id, instead of by offset.  Only the rows
+     * where the field is greater than after are returned, in ascending order
+     * of the field, so the database can seek straight to the page no matter
+     * how far into the list it is.  This replaces any order by and offset.
+     * 
+     * @param clazz the VO object type
+     * @param field name of the field
+     * @param after the value of the field in the last row of the previous page; null to start from the beginning
+     */
+    public void setKeyset(Class<?> clazz, String field, Object after) {
+        _keyColumn = getColumnName(clazz, field);
+        _keyAfter = after;
+        _orderBy = " ORDER BY " + _keyColumn + " ASC ";
+    }
+    
+    public String getKeysetClause() {
+        if (_keyColumn == null || _keyAfter == null) {
+            return null;
+        }
+        return _keyColumn + " > ? ";
+    }
+    
+    public Object getKeysetValue() {
+        return _keyAfter;
+    }
+    
+    public boolean isKeyset() {
+        return _keyColumn != null;
+    }
+    
+    protected static String getColumnName(Class<?> clazz, String field) {
         Field f;
         Pair<Class<?>, Field> pair = ReflectUtil.getAnyField(clazz, field);
         assert(pair != null) : "Can't find field " + field + " in " + clazz.getName();
@@ -80,19 +124,13 @@ public class Filter {
         Column column = f.getAnnotation(Column.class);
         String name = column != null ? column.name() : field;
         
-        StringBuilder order = new StringBuilder();
-        if (column.table() == null || column.table().length() == 0) {
-            order.append(DbUtil.getTableName(clazz));
+        StringBuilder columnName = new StringBuilder();
+        if (column == null || column.table() == null || column.table().length() == 0) {
+            columnName.append(DbUtil.getTableName(clazz));
         } else {
-            order.append(column.table());
-        }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
-        
-        if (_orderBy == null) {
-            _orderBy = order.insert(0, " ORDER BY ").toString();
-        } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+            columnName.append(column.table());
         }
+        return columnName.append(".").append(name).toString();
     }
     
     public String getOrderBy() {
@@ -18,6 +18,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -57,6 +58,16 @@ public interface GenericDao<T, ID extends Serializable> {
     
     T findById(ID id, boolean fresh);
     
+    /**
+     * Looks up a number of entity beans by their database ids, in one query
+     * per batch of ids rather than one per id.
+     * @param ids database unique ids.
+     * @return map of the id to the entity bean; ids not found are not in the map.
+     */
+    Map<ID, T> findByIds(Collection<ID> ids);
+    
+    Map<ID, T> findByIdsIncludingRemoved(Collection<ID> ids);
+    
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
      */
@@ -199,6 +210,24 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
     
+    /**
+     * Persist a number of entity beans using JDBC batches.  The id fields of
+     * the entities are updated with the new ids but, unlike persist, the
+     * entities are not read back.
+     * @param entities the beans to persist.
+     * @return the same entities.
+     */
+    List<T> persistAll(List<T> entities);
+    
+    /**
+     * Update a number of entity beans, each created by createForUpdate(id)
+     * and changed through its setters, using JDBC batches.  Entities with
+     * the same changed fields share a batch.
+     * @param entities the beans to update.
+     * @return rows updated.
+     */
+    int updateAll(List<T> entities);
+    
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
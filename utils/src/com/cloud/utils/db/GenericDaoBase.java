@@ -21,6 +21,8 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -38,11 +40,14 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -69,8 +74,10 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.db.EntityRowMapper.ColumnSetter;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -116,6 +123,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
+    protected final static int ID_BATCH_SIZE = 100;
+
     protected final static Map<Class<?>, GenericDaoBase<?, ? extends Serializable>> s_daoMaps = new ConcurrentHashMap<Class<?>, GenericDaoBase<?, ? extends Serializable>>(71);
 
     protected Class<T> _entityBeanType;
@@ -143,10 +152,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected final Map<String, Attribute> _allAttributes;
     protected final List<Attribute> _ecAttributes;
     protected final Map<Pair<String, String>, Attribute> _allColumns;
+    protected final EntityRowMapper _rowMapper;
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
     protected int _timeoutSeconds;
+    protected int _batchSize;
 
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
 
@@ -216,6 +227,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         _allAttributes = generator.getAllAttributes();
         _allColumns = generator.getAllColumns();
+        _rowMapper = new EntityRowMapper(_allColumns);
+        _batchSize = 500;
 
         _selectByIdSql = buildSelectByIdSql(createPartialSelectSql(null, true));
         _removeSql = generator.buildRemoveSql();
@@ -349,6 +362,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         if (clause != null && clause.length() == 0) {
             clause = null;
         }
+        clause = addKeyset(clause, filter);
 
         final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
         if (clause != null) {
@@ -374,14 +388,20 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String sql = str.toString();
         
+        final long generation = _cacheGeneration;
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
             if (clause != null) {
-                for (final Pair<Attribute, Object> value : sc.getValues()) {
-                    prepareAttribute(++i, pstmt, value.first(), value.second());
+                if (sc != null) {
+                    for (final Pair<Attribute, Object> value : sc.getValues()) {
+                        prepareAttribute(++i, pstmt, value.first(), value.second());
+                    }
+                }
+                if (filter != null && filter.getKeysetClause() != null) {
+                    pstmt.setObject(++i, filter.getKeysetValue());
                 }
             }
 
@@ -399,8 +419,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
+            ColumnSetter[] setters = null;
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                if (setters == null) {
+                    setters = _rowMapper.bind(rs);
+                }
+                T entity = toEntityBean(rs, setters, false);
+                if (cache) {
+                    putInCache(entity, generation);
+                }
+                result.add(entity);
             }
             return result;
         } catch (final SQLException e) {
@@ -416,6 +444,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         if (clause != null && clause.length() == 0) {
             clause = null;
         }
+        clause = addKeyset(clause, filter);
 
         final StringBuilder str = createPartialSelectSql(sc, clause != null);
         if (clause != null) {
@@ -441,8 +470,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
             if (clause != null) {
-                for (final Pair<Attribute, Object> value : sc.getValues()) {
-                    prepareAttribute(++i, pstmt, value.first(), value.second());
+                if (sc != null) {
+                    for (final Pair<Attribute, Object> value : sc.getValues()) {
+                        prepareAttribute(++i, pstmt, value.first(), value.second());
+                    }
+                }
+                if (filter != null && filter.getKeysetClause() != null) {
+                    pstmt.setObject(++i, filter.getKeysetValue());
                 }
             }
 
@@ -460,14 +494,22 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
             List<Field> fields = sc.getSelectFields();
+            ColumnSetter[] setters = null;
             while (rs.next()) {
                 if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
+                    if (setters == null) {
+                        setters = _rowMapper.bind(rs);
+                    }
+                    results.add((M)toEntityBean(rs, setters, false));
                 } else if (st == SelectType.Fields || st == SelectType.Result) {
-                    M m = sc.getResultType().newInstance();
-                    for (int j = 1; j <= fields.size(); j++) {
-                        setField(m, fields.get(j - 1), rs, j);
+                    if (setters == null) {
+                        setters = new ColumnSetter[fields.size()];
+                        for (int j = 0; j < setters.length; j++) {
+                            setters[j] = _rowMapper.getSetter(fields.get(j));
+                        }
                     }
+                    M m = sc.getResultType().newInstance();
+                    _rowMapper.map(setters, m, rs);
                     results.add(m);
                 } else if (st == SelectType.Single) {
                     results.add(getObject(sc.getResultType(), rs, 1));
@@ -747,9 +789,6 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         Transaction txn = Transaction.currentTxn();
@@ -803,6 +842,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             int result = pstmt.executeUpdate();
+            invalidate(sc);
             txn.commit();
             ub.clear();
             return result;
@@ -897,15 +937,67 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return listIncludingRemovedBy(sc, null);
     }
 
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIds(final Collection<ID> ids) {
+        return findByIds(ids, false);
+    }
+
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIdsIncludingRemoved(final Collection<ID> ids) {
+        return findByIds(ids, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Map<ID, T> findByIds(final Collection<ID> ids, final boolean removed) {
+        assert _idField.getAnnotation(EmbeddedId.class) == null : "Can't look up " + _table + " by embedded ids";
+        final Map<ID, T> result = new HashMap<ID, T>(ids.size() * 2);
+        final List<Object> missing = new ArrayList<Object>(ids.size());
+        for (final ID id : new LinkedHashSet<ID>(ids)) {
+            if (id == null) {
+                continue;
+            }
+            if (_cache != null) {
+                final Element element = _cache.get(id);
+                if (element != null) {
+                    _cacheHits.incrementAndGet();
+                    result.put(id, copyOf((T)element.getObjectValue()));
+                    continue;
+                }
+                _cacheMisses.incrementAndGet();
+            }
+            missing.add(id);
+        }
+
+        for (int i = 0; i < missing.size(); i += ID_BATCH_SIZE) {
+            final List<Object> batch = missing.subList(i, Math.min(i + ID_BATCH_SIZE, missing.size()));
+            final SearchCriteria<T> sc = createSearchCriteria();
+            sc.addAnd(_idField.getName(), SearchCriteria.Op.IN, batch.toArray());
+            if (!removed && _removed != null) {
+                sc.addAnd(_removed.second().field.getName(), SearchCriteria.Op.NULL);
+            }
+            for (final T entity : searchIncludingRemoved(sc, null, null, true)) {
+                try {
+                    result.put((ID)_idField.get(entity), entity);
+                } catch (final IllegalAccessException e) {
+                    throw new CloudRuntimeException("Unable to get the id of " + entity, e);
+                }
+            }
+        }
+        return result;
+    }
+
     @Override @DB(txn=false)
     @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
             final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
-        } else {
-            return lockRow(id, null);
+            if (element != null) {
+                _cacheHits.incrementAndGet();
+                return copyOf((T)element.getObjectValue());
+            }
+            _cacheMisses.incrementAndGet();
         }
+        return lockRow(id, null);
     }
 
     @Override @DB(txn=false)
@@ -931,6 +1023,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected T findById(ID id, boolean removed, Boolean lock) {
+        final long generation = _cacheGeneration;
         StringBuilder sql = new StringBuilder(_selectByIdSql);
         if (!removed && _removed != null) {
             sql.append(" AND ").append(_removed.first());
@@ -948,7 +1041,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            if (!rs.next()) {
+                return null;
+            }
+            T entity = toEntityBean(rs, false);
+            if (!removed) {
+                putInCache(entity, generation);
+            }
+            return entity;
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -1018,13 +1118,34 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    @DB(txn=false)
+    protected String addKeyset(String clause, final Filter filter) {
+        String keyset = filter != null ? filter.getKeysetClause() : null;
+        if (keyset == null) {
+            return clause;
+        }
+        return clause == null ? keyset : "(" + clause + ") AND " + keyset;
+    }
+
+    @DB(txn=false)
+    protected Object[] getKeysetParams(final Filter filter) {
+        if (filter == null || filter.getKeysetClause() == null) {
+            return new Object[0];
+        }
+        return new Object[] { filter.getKeysetValue() };
+    }
+
     @DB(txn=false)
     protected void addFilter(final StringBuilder sql, final Filter filter) {
         if (filter != null) {
             if (filter.getOrderBy() != null) {
                 sql.append(filter.getOrderBy());
             }
-            if (filter.getOffset() != null) {
+            if (filter.isKeyset()) {
+                if (filter.getLimit() != null) {
+                    sql.append(" LIMIT ").append(filter.getLimit());
+                }
+            } else if (filter.getOffset() != null) {
                 sql.append(" LIMIT ");
                 sql.append(filter.getOffset());
                 if (filter.getLimit() != null) {
@@ -1036,13 +1157,18 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @Override @DB(txn=false)
     public List<T> listAllIncludingRemoved(final Filter filter) {
-        final StringBuilder sql = createPartialSelectSql(null, false);
+        String clause = addKeyset(null, filter);
+        final StringBuilder sql = createPartialSelectSql(null, clause != null);
+        if (clause != null) {
+            sql.append(clause);
+        }
         addFilter(sql, filter);
 
-        return executeList(sql.toString());
+        return executeList(sql.toString(), getKeysetParams(filter));
     }
 
     protected List<T> executeList(final String sql, final Object... params) {
+        final long generation = _cacheGeneration;
         final Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
@@ -1054,8 +1180,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final ResultSet rs = pstmt.executeQuery();
+            ColumnSetter[] setters = null;
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                if (setters == null) {
+                    setters = _rowMapper.bind(rs);
+                }
+                T entity = toEntityBean(rs, setters, false);
+                putInCache(entity, generation);
+                result.add(entity);
             }
             return result;
         } catch (final SQLException e) {
@@ -1077,10 +1209,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
 
         final StringBuilder sql = createPartialSelectSql(null, true);
-        sql.append(_removed.first());
+        sql.append(addKeyset(_removed.first(), filter));
         addFilter(sql, filter);
 
-        return executeList(sql.toString());
+        return executeList(sql.toString(), getKeysetParams(filter));
     }
 
     @Override
@@ -1102,10 +1234,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.executeUpdate();
             }
 
+            invalidate(new Object[] { id });
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1133,7 +1263,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            invalidate(sc);
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1317,6 +1449,195 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override @SuppressWarnings("unchecked")
+    public List<T> persistAll(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return entities;
+        }
+
+        final TableGenerator tg = _idField != null ? _tgs.get(_idField.getName()) : null;
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        boolean started = false;
+        try {
+            // ids from a table generator are handed out a batch at a time
+            if (tg != null) {
+                List<T> unassigned = new ArrayList<T>();
+                for (T entity : entities) {
+                    if (!hasId(entity)) {
+                        unassigned.add(entity);
+                    }
+                }
+                if (!unassigned.isEmpty()) {
+                    Long first = s_seqFetcher.getNextSequenceBlock(Long.class, tg, unassigned.size());
+                    if (first == null) {
+                        throw new CloudRuntimeException("Unable to get " + unassigned.size() + " ids from " + tg.table() + ":" + tg.pkColumnValue());
+                    }
+                    for (int i = 0; i < unassigned.size(); i++) {
+                        setId(unassigned.get(i), first + i);
+                    }
+                }
+            }
+
+            txn.start();
+            started = true;
+            for (int from = 0; from < entities.size(); from += _batchSize) {
+                final List<T> batch = entities.subList(from, Math.min(from + _batchSize, entities.size()));
+                boolean first = true;
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    for (T entity : batch) {
+                        prepareAttributes(pstmt, entity, pair.second(), 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    // the other tables need the id generated by the first one
+                    if (first && _idField != null) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (int i = 0; rs != null && i < batch.size() && rs.next(); i++) {
+                            if (!hasId(batch.get(i))) {
+                                setId(batch.get(i), rs.getObject(1));
+                            }
+                        }
+                    }
+                    first = false;
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (T entity : entities) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                }
+            }
+            txn.commit();
+            started = false;
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } finally {
+            // none of the batch is kept if any of it fails
+            if (started) {
+                txn.rollback();
+            }
+        }
+
+        return entities;
+    }
+
+    private boolean hasId(T entity) throws IllegalAccessException {
+        Object id = _idField.get(entity);
+        return id != null && !(id instanceof Number && ((Number)id).longValue() == 0);
+    }
+
+    private void setId(T entity, Object id) throws IllegalAccessException {
+        Class<?> type = _idField.getType();
+        if (id instanceof Number && (type == long.class || type == Long.class)) {
+            _idField.set(entity, ((Number)id).longValue());
+        } else if (id instanceof Number && (type == int.class || type == Integer.class)) {
+            _idField.set(entity, ((Number)id).intValue());
+        } else {
+            _idField.set(entity, id);
+        }
+    }
+
+    @Override
+    public int updateAll(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        final Attribute idAttr = _idAttributes.get(_table)[0];
+        // stands in for the id of each entity, a null would be written as IS NULL
+        final Object idMarker = new Object();
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd(idAttr, SearchCriteria.Op.EQ, idMarker);
+        final String where = sc.getWhereClause();
+        final List<Pair<Attribute, Object>> whereValues = sc.getValues();
+
+        // group the entities by the update they need
+        Map<String, List<T>> bySql = new HashMap<String, List<T>>();
+        for (T entity : entities) {
+            assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+            UpdateBuilder ub = getUpdateBuilder(entity);
+            assert ub.getCollectionChanges() == null : "Use update() for element collections";
+            StringBuilder sql = ub.toSql(_tables);
+            if (sql == null) {
+                continue;
+            }
+            String key = sql.append(where).toString();
+            List<T> group = bySql.get(key);
+            if (group == null) {
+                group = new ArrayList<T>();
+                bySql.put(key, group);
+            }
+            group.add(entity);
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        List<Object> ids = new ArrayList<Object>(entities.size());
+        int rows = 0;
+        boolean started = false;
+        try {
+            txn.start();
+            started = true;
+            for (Map.Entry<String, List<T>> entry : bySql.entrySet()) {
+                pstmt = txn.prepareAutoCloseStatement(entry.getKey());
+                List<T> group = entry.getValue();
+                for (int from = 0; from < group.size(); from += _batchSize) {
+                    List<T> batch = group.subList(from, Math.min(from + _batchSize, group.size()));
+                    for (T entity : batch) {
+                        Object id = _idField.get(entity);
+                        ids.add(id);
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : getUpdateBuilder(entity).getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        for (Pair<Attribute, Object> value : whereValues) {
+                            prepareAttribute(i++, pstmt, value.first(), value.second() == idMarker ? id : value.second());
+                        }
+                        pstmt.addBatch();
+                    }
+                    for (int count : pstmt.executeBatch()) {
+                        rows += count > 0 ? count : 0;
+                    }
+                }
+            }
+            invalidate(ids.toArray());
+            txn.commit();
+            started = false;
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        } finally {
+            if (started) {
+                txn.rollback();
+            }
+        }
+
+        for (T entity : entities) {
+            getUpdateBuilder(entity).clear();
+        }
+        return rows;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1487,18 +1808,26 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return j;
     }
 
-    @SuppressWarnings("unchecked") @DB(txn=false)
+    @DB(txn=false)
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
+        return toEntityBean(result, _rowMapper.bind(result), cache);
+    }
+
+    /**
+     * Same as toEntityBean(ResultSet, boolean) with the columns already bound
+     * by the row mapper, bind once and call this for every row of a query.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T toEntityBean(final ResultSet result, final ColumnSetter[] setters, final boolean cache) throws SQLException {
         final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
-        toEntityBean(result, entity);
+        _rowMapper.map(setters, entity, result);
+        for (Attribute attr : _ecAttributes) {
+            loadCollection(entity, attr);
+        }
 
-        if (cache && _cache != null) {
-            try {
-                _cache.put(new Element(_idField.get(entity), entity));
-            } catch (final Exception e) {
-                s_logger.debug("Can't put it in the cache", e);
-            }
+        if (cache) {
+            putInCache(entity, _cacheGeneration);
         }
 
         return entity;
@@ -1506,10 +1835,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @DB(txn=false)
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
-        }
+        _rowMapper.map(_rowMapper.bind(result), entity, result);
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
         }
@@ -1643,10 +1969,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final int result = pstmt.executeUpdate();
+            invalidate(new Object[] { id });
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1667,6 +1991,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected Cache _cache;
+    protected Field[] _cacheFields;
+    protected final Object _cacheLock = new Object();
+    protected volatile long _cacheGeneration = 0;
+    protected final AtomicLong _cacheHits = new AtomicLong();
+    protected final AtomicLong _cacheMisses = new AtomicLong();
+    protected final AtomicLong _cacheInvalidations = new AtomicLong();
+
+    protected final static List<GenericDaoBase<?, ?>> s_cachedDaos = new CopyOnWriteArrayList<GenericDaoBase<?, ?>>();
+    protected final static Map<String, Boolean> s_cachedTables = new ConcurrentHashMap<String, Boolean>();
+    protected static volatile EntityCacheListener s_cacheListener;
+
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1679,17 +2014,251 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
             cm.addCache(_cache);
             s_logger.info("Cache created: " + _cache.toString());
+
+            _cacheFields = getCacheFields(_entityBeanType);
+            for (String table : _idAttributes.keySet()) {
+                s_cachedTables.put(table, Boolean.TRUE);
+            }
+            ((CopyOnWriteArrayList<GenericDaoBase<?, ?>>)s_cachedDaos).addIfAbsent(this);
+            try {
+                JmxUtil.registerMBean("EntityCache", getName() != null ? getName() : _entityBeanType.getSimpleName(), new EntityCacheMBeanImpl(this));
+            } catch (Exception e) {
+                s_logger.debug("Unable to register the cache mbean for " + getName() + ": " + e.getMessage());
+            }
         } else {
             _cache = null;
         }
     }
 
+    protected static Field[] getCacheFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<Field>();
+        for (; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * Cached entities are never handed out, callers get a copy so that
+     * changing what they get back doesn't change the cache.  Dates, arrays,
+     * collections and maps held by the entity are copied too, such as the
+     * details of a HostVO.
+     * 
+     * @throws CloudRuntimeException if the entity holds a collection or map that can't be copied, it is not cached then.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T copyOf(final T entity) {
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (Field field : _cacheFields) {
+                field.set(copy, copyValue(field.get(entity)));
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + _entityBeanType.getName(), e);
+        }
+        return copy;
+    }
+
+    protected static Object copyValue(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            return ((Date)value).clone();
+        }
+        if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        if (value instanceof Collection || value instanceof Map) {
+            if (!(value instanceof Cloneable)) {
+                throw new CloudRuntimeException("Unable to copy " + value.getClass().getName());
+            }
+            try {
+                final Method clone = value.getClass().getMethod("clone");
+                return clone.invoke(value);
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to copy " + value.getClass().getName(), e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Caches an entity that was read while the cache was at the given
+     * generation.  If it has been invalidated since, the entity may be stale
+     * and is left out.
+     */
+    @DB(txn=false)
+    protected void putInCache(final T entity, final long generation) {
+        if (_cache == null) {
+            return;
+        }
+        try {
+            if (_removed != null && _removed.second().field.get(entity) != null) {
+                return;
+            }
+            final Object id = _idField.get(entity);
+            final T copy = copyOf(entity);
+            synchronized (_cacheLock) {
+                if (generation == _cacheGeneration) {
+                    _cache.put(new Element(id, copy));
+                }
+            }
+        } catch (final Exception e) {
+            s_logger.debug("Can't put it in the cache", e);
+        }
+    }
+
+    /**
+     * Drops entities from this cache only.
+     * @param ids ids of the entities, null to drop all of them.
+     */
+    @DB(txn=false)
+    protected void evict(final Object[] ids) {
+        if (_cache == null) {
+            return;
+        }
+        synchronized (_cacheLock) {
+            _cacheGeneration++;
+            if (ids == null) {
+                _cache.removeAll();
+                _cacheInvalidations.incrementAndGet();
+            } else {
+                for (Object id : ids) {
+                    if (_cache.remove(id)) {
+                        _cacheInvalidations.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected long getCacheEvictions() {
+        return _cache.getCacheEventNotificationService().getElementsEvictedCounter() + _cache.getCacheEventNotificationService().getElementsExpiredCounter();
+    }
+
+    /**
+     * Invalidates the rows the search criteria matches.
+     */
+    @DB(txn=false)
+    protected void invalidate(final SearchCriteria<?> sc) {
+        Object[] ids = null;
+        if (sc != null && _idField != null && _idAttributes.get(_table).length > 0) {
+            ids = sc.getRequiredValues(_idAttributes.get(_table)[0]);
+            if (ids != null) {
+                for (Object id : ids) {
+                    if (!(id instanceof Number || id instanceof String)) {
+                        ids = null;
+                        break;
+                    }
+                }
+            }
+        }
+        invalidate(ids);
+    }
+
+    /**
+     * Invalidates rows of this entity in every cache that holds rows of the
+     * same tables.  The local caches are cleared right away and again when
+     * the current transaction is over, which is also when the other
+     * management servers are told about it.
+     *
+     * @param ids ids of the rows, null if any row may have changed.
+     */
+    @DB(txn=false)
+    protected void invalidate(final Object[] ids) {
+        final List<String> tables = new ArrayList<String>(1);
+        for (String table : _idAttributes.keySet()) {
+            if (s_cachedTables.containsKey(table)) {
+                tables.add(table);
+            }
+        }
+        if (tables.isEmpty()) {
+            return;
+        }
+
+        for (String table : tables) {
+            evictCached(table, ids);
+        }
+        Transaction.currentTxn().onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                EntityCacheListener listener = s_cacheListener;
+                for (String table : tables) {
+                    evictCached(table, ids);
+                    if (listener != null) {
+                        listener.invalidated(table, ids);
+                    }
+                }
+            }
+        });
+    }
+
+    protected static void evictCached(String table, Object[] ids) {
+        for (GenericDaoBase<?, ?> dao : s_cachedDaos) {
+            if (dao._idAttributes.containsKey(table)) {
+                dao.evict(ids);
+            }
+        }
+    }
+
+    /**
+     * Drops entities another management server has changed.
+     *
+     * @param table table whose rows changed.
+     * @param ids ids of the rows, null if any row may have changed.
+     */
+    public static void invalidateCached(String table, long[] ids) {
+        for (GenericDaoBase<?, ?> dao : s_cachedDaos) {
+            if (!dao._idAttributes.containsKey(table)) {
+                continue;
+            }
+            Class<?> idType = dao._idField != null ? dao._idField.getType() : null;
+            if (ids == null || (idType != Long.class && idType != long.class)) {
+                dao.evict(null);
+                continue;
+            }
+            Object[] keys = new Object[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                keys[i] = ids[i];
+            }
+            dao.evict(keys);
+        }
+    }
+
+    /**
+     * Drops everything cached, for when invalidations may have been missed.
+     */
+    public static void clearCaches() {
+        for (GenericDaoBase<?, ?> dao : s_cachedDaos) {
+            dao.evict(null);
+        }
+    }
+
+    /**
+     * Sets who to tell about invalidated entities, there is only one per
+     * management server.
+     */
+    public static void setEntityCacheListener(EntityCacheListener listener) {
+        s_cacheListener = listener;
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
 
         final String value = (String)params.get("lock.timeout");
         _timeoutSeconds = NumbersUtil.parseInt(value, 300);
+        _batchSize = NumbersUtil.parseInt((String)params.get("batch.size"), 500);
 
         createCache(params);
         final boolean load = Boolean.parseBoolean((String)params.get("cache.preload"));
@@ -21,23 +21,37 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
-
+/**
+ * Merovingian2 hands out locks that are held across the cluster through rows
+ * in the op_lock table.
+ *
+ * Threads of this management server that wait for the same key queue up in
+ * memory.  Only one of them at a time tries the database, backing off
+ * exponentially while the lock is held by another management server.  When
+ * a local holder releases the lock, the next local waiter is woken up right
+ * away.  A LockReleaseListener can tell the other management servers about
+ * releases so that their waiters don't have to wait out their back off.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
@@ -53,6 +67,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    private static final long MIN_BACKOFF = 50;
+    private static final long MAX_BACKOFF = 5000;
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -61,6 +78,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    protected final Map<String, KeyState> _keys = new HashMap<String, KeyState>();
+    private final Random _random = new Random();
+    private final LatencyHistogram _waits = new LatencyHistogram();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _dbAttempts = new AtomicLong();
+    private volatile LockReleaseListener _releaseListener;
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -76,6 +100,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    protected Merovingian2(long msId, Connection conn) {
+        super(MerovingianMBean.class, false);
+        _msId = msId;
+        _concierge = new ConnectionConcierge("LockMaster", conn, false);
+    }
+
     public static synchronized Merovingian2 createLockMaster(long msId) {
         assert s_instance == null : "No lock can serve two masters.  Either he will hate the one and love the other, or he will be devoted to the one and despise the other.";
         s_instance = new Merovingian2(msId);
@@ -113,6 +143,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
 
+    /**
+     * Sets who to tell when a lock is released, null for no one.
+     */
+    public void setReleaseListener(LockReleaseListener listener) {
+        _releaseListener = listener;
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -121,30 +158,147 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000L;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        KeyState state = reference(key);
+        boolean reentry;
+        synchronized (state) {
+            reentry = state.holder == th;
+        }
+        if (reentry) {
+            dereference(key, state);
+            return increment(key, threadName, threadId);
+        }
+
+        boolean acquired = false;
+        boolean polling = false;
+        try {
+            long backoff = MIN_BACKOFF;
+            synchronized (state) {
+                // wait for our turn to try the database
+                while (state.holder != null || state.polling) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    state.wait(remaining);
+                }
+                state.polling = true;
+                polling = true;
+            }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
+            while (true) {
+                _dbAttempts.incrementAndGet();
+                boolean result = false;
+                try {
+                    result = doAcquire(key, threadName, threadId);
+                } finally {
+                    if (result) {
+                        synchronized (state) {
+                            state.polling = false;
+                            state.holder = th;
+                        }
+                        acquired = true;
+                    }
+                }
+                if (acquired) {
                     return true;
                 }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // held by another management server, a release there can cut the wait short
+                long sleep = Math.min(remaining, backoff / 2 + (long)(_random.nextDouble() * backoff / 2));
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Sleeping " + sleep + "ms while waiting for lck-" + key);
+                }
+                synchronized (state) {
+                    state.wait(sleep);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
             }
-            try {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            long waited = System.currentTimeMillis() - startTime;
+            if (acquired) {
+                _waits.record(waited);
+            } else {
+                _timeouts.incrementAndGet();
+                if (polling) {
+                    // only the poller hands the database over to the next waiter
+                    synchronized (state) {
+                        state.polling = false;
+                        state.notifyAll();
+                    }
+                }
+                dereference(key, state);
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + waited);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
             }
         }
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+    }
+
+    protected KeyState reference(String key) {
+        synchronized (_keys) {
+            KeyState state = _keys.get(key);
+            if (state == null) {
+                state = new KeyState();
+                _keys.put(key, state);
+            }
+            state.references++;
+            return state;
         }
-        return false;
+    }
+
+    protected void dereference(String key, KeyState state) {
+        synchronized (_keys) {
+            if (--state.references == 0) {
+                _keys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Called when the lock has been released by someone else, local waiters
+     * try the database again right away.
+     */
+    public void wakeup(String key) {
+        KeyState state;
+        synchronized (_keys) {
+            state = _keys.get(key);
+        }
+        if (state != null) {
+            synchronized (state) {
+                state.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The lock is no longer held by this thread, let the next one have it.
+     */
+    protected void released(String key, Thread th) {
+        KeyState state;
+        synchronized (_keys) {
+            state = _keys.get(key);
+        }
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.holder != th) {
+                return;
+            }
+            state.holder = null;
+            state.notifyAll();
+        }
+        dereference(key, state);
     }
 
     protected boolean increment(String key, String threadName, int threadId) {
@@ -258,6 +412,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (msId == _msId) {
+                forceReleased(null, null);
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -298,6 +455,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     s_logger.trace("lck-" + key + " removed");
                 }
                 decrCount();
+                if (result == 1) {
+                    released(key, th);
+                    LockReleaseListener listener = _releaseListener;
+                    if (listener != null) {
+                        listener.released(key);
+                    }
+                }
             } else  if (rows < 1) {
                 s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + threadId);
             }
@@ -429,6 +593,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            forceReleased(null, th);
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
@@ -450,12 +615,110 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            forceReleased(key, null);
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
             return false;
         }
     }
+    /**
+     * Forgets about locks whose rows have been removed from under their
+     * local holders.
+     *
+     * @param key key of the lock, null for all of them.
+     * @param th holder of the locks, null for any thread.
+     */
+    protected void forceReleased(String key, Thread th) {
+        List<Map.Entry<String, KeyState>> states = new ArrayList<Map.Entry<String, KeyState>>();
+        synchronized (_keys) {
+            for (Map.Entry<String, KeyState> entry : _keys.entrySet()) {
+                if (key == null || key.equals(entry.getKey())) {
+                    states.add(entry);
+                }
+            }
+        }
+        for (Map.Entry<String, KeyState> entry : states) {
+            KeyState state = entry.getValue();
+            boolean release = false;
+            synchronized (state) {
+                if (state.holder != null && (th == null || state.holder == th)) {
+                    state.holder = null;
+                    state.notifyAll();
+                    release = true;
+                }
+            }
+            if (release) {
+                dereference(entry.getKey(), state);
+            }
+        }
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return _waits.getCount();
+    }
+
+    @Override
+    public long getAverageWaitMillis() {
+        return _waits.getAverage();
+    }
+
+    @Override
+    public long getP50WaitMillis() {
+        return _waits.getPercentile(50);
+    }
+
+    @Override
+    public long getP99WaitMillis() {
+        return _waits.getPercentile(99);
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return _waits.getMax();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    @Override
+    public long getDatabaseAttemptCount() {
+        return _dbAttempts.get();
+    }
+
+    @Override
+    public int getLocalWaiterCount() {
+        int waiters = 0;
+        synchronized (_keys) {
+            for (KeyState state : _keys.values()) {
+                synchronized (state) {
+                    waiters += state.holder != null ? state.references - 1 : state.references;
+                }
+            }
+        }
+        return waiters;
+    }
+
+    @Override
+    public void resetStatistics() {
+        _waits.reset();
+        _timeouts.set(0);
+        _dbAttempts.set(0);
+    }
+
+    /**
+     * What this management server knows about one lock.  references counts
+     * the local threads holding or waiting for it.
+     */
+    protected static class KeyState {
+        int references = 0;
+        Thread holder = null;
+        boolean polling = false;
+    }
+
     protected static class Count {
         public int count = 0;
     }
@@ -30,4 +30,22 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    long getAcquireCount();
+
+    long getAverageWaitMillis();
+
+    long getP50WaitMillis();
+
+    long getP99WaitMillis();
+
+    long getMaxWaitMillis();
+
+    long getTimeoutCount();
+
+    long getDatabaseAttemptCount();
+
+    int getLocalWaiterCount();
+
+    void resetStatistics();
 }
@@ -333,6 +333,38 @@ public class SearchCriteria<K> {
         return sql.toString();
     }
     
+    /**
+     * @return the values that rows matching these criteria must have for the
+     *         attribute, or null if the criteria doesn't restrict it to a list
+     *         of values.
+     */
+    public Object[] getRequiredValues(Attribute attr) {
+        if (_conditions == null) {
+            return null;
+        }
+        List<Condition> conditions = new ArrayList<Condition>(_conditions);
+        conditions.addAll(_additionals);
+
+        Object[] values = null;
+        int i = 0;
+        for (Condition condition : conditions) {
+            Object[] params = _params.get(condition.name);
+            boolean included = condition.op == null || condition.op.params == 0 || params != null;
+            if (!included) {
+                continue;
+            }
+            String cond = condition.cond != null ? condition.cond.toUpperCase() : "";
+            if ((i++ > 0 && (cond.contains("OR") || cond.contains("NOT"))) || condition.op == Op.OR || condition.op == Op.NOT) {
+                return null;
+            }
+            if (values == null && condition.attr != null && condition.attr.table.equals(attr.table) && condition.attr.columnName.equals(attr.columnName)
+                    && (condition.op == Op.EQ || condition.op == Op.IN) && params != null && params.length > 0) {
+                values = params;
+            }
+        }
+        return values;
+    }
+
     public List<Pair<Attribute, Object>> getValues() {
         ArrayList<Pair<Attribute, Object>> params = new ArrayList<Pair<Attribute, Object>>(_params.size());
         for (Condition condition : _conditions) {
@@ -62,7 +62,25 @@ public class SequenceFetcher {
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
-        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom));
+        return getNextSequence(clazz, tg, key, isRandom, 1);
+    }
+
+    /**
+     * Reserves a block of sequence values in one round trip.
+     *
+     * @param count number of values to reserve.
+     * @return the first of count consecutive values, null if none could be reserved.
+     */
+    public <T> T getNextSequenceBlock(Class<T> clazz, TableGenerator tg, int count) {
+        return getNextSequence(clazz, tg, null, false, count);
+    }
+
+    public <T> T getNextSequenceBlock(Class<T> clazz, TableGenerator tg, Object key, int count) {
+        return getNextSequence(clazz, tg, key, false, count);
+    }
+
+    protected <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int count) {
+        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom, count));
         try {
             return future.get();
         } catch (Exception e) {
@@ -85,12 +103,14 @@ public class SequenceFetcher {
         Class<T> _clazz;
         Object _key;
         boolean isRandom = false;
+        int _count;
         
-        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
+        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int count) {
             _tg = tg;
             _clazz = clazz;
             _key = key;
             this.isRandom = isRandom;
+            _count = count;
         }
         
         @Override @SuppressWarnings("unchecked")
@@ -118,7 +138,7 @@ public class SequenceFetcher {
                 if(isRandom){
                 	updateStmt.setInt(2, random.nextInt(10) + 1);
                 } else {
-                	updateStmt.setInt(2, _tg.allocationSize());
+                	updateStmt.setInt(2, _tg.allocationSize() * _count);
                 }
                 if (_key == null) {
                     updateStmt.setString(3, _tg.pkColumnValue());
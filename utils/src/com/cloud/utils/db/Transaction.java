@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -106,6 +107,8 @@ public class Transaction {
     private String _creator;
 
     private Transaction _prev = null;
+    private List<Runnable> _completionTasks = null;
+    private List<Runnable> _commitTasks = null;
 
     public static Transaction currentTxn() {
         Transaction txn = tls.get();
@@ -195,6 +198,67 @@ public class Transaction {
         return _txn;
     }
 
+    /**
+     * Runs the task when the database transaction in progress commits or
+     * rolls back, or right away if there isn't one.
+     */
+    public void onCompletion(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_completionTasks == null) {
+            _completionTasks = new ArrayList<Runnable>();
+        }
+        _completionTasks.add(task);
+    }
+
+    /**
+     * Runs the task after the outermost database transaction in progress
+     * commits, or right away if there isn't one.  The task is dropped if
+     * the transaction rolls back.
+     */
+    public void onCommit(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_commitTasks == null) {
+            _commitTasks = new ArrayList<Runnable>();
+        }
+        _commitTasks.add(task);
+    }
+
+    protected void runCommitTasks() {
+        if (_commitTasks == null) {
+            return;
+        }
+        List<Runnable> tasks = _commitTasks;
+        _commitTasks = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run transaction commit task", e);
+            }
+        }
+    }
+
+    protected void runCompletionTasks() {
+        if (_completionTasks == null) {
+            return;
+        }
+        List<Runnable> tasks = _completionTasks;
+        _completionTasks = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run transaction completion task", e);
+            }
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -592,6 +656,8 @@ public class Transaction {
         _name = null;
 
         closeConnection();
+        _commitTasks = null;
+        runCompletionTasks();
 
         _stack.clear();
         Merovingian2 lockMaster = Merovingian2.getLockMaster();
@@ -688,6 +754,8 @@ public class Transaction {
                 clearLockTimes();
                 closeConnection();
             }
+            runCommitTasks();
+            runCompletionTasks();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -808,6 +876,8 @@ public class Transaction {
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        _commitTasks = null;
+        runCompletionTasks();
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -822,6 +892,8 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            _commitTasks = null;
+            runCompletionTasks();
         }
     }
 
@@ -873,6 +945,8 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runCommitTasks();
+            runCompletionTasks();
         }
     }
 
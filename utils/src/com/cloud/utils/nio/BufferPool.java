@@ -0,0 +1,136 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out reusable direct ByteBuffers to the nio layer so that
+ * framing and SSL wrap/unwrap do not allocate on every packet.  Buffers are
+ * kept in power-of-two size classes; requests larger than the biggest class
+ * are served from the heap and are never retained.
+ */
+public class BufferPool {
+    protected static final int MIN_SHIFT = 12;     // 4k
+    protected static final int MAX_SHIFT = 17;     // 128k
+
+    private static final BufferPool s_default = new BufferPool(256);
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _free;
+    private final AtomicInteger[] _freeCounts;
+    private final int _maxPerClass;
+
+    private final AtomicLong _allocated = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+    private final AtomicLong _oversized = new AtomicLong();
+
+    public static BufferPool getDefault() {
+        return s_default;
+    }
+
+    /**
+     * @param maxPerClass number of idle buffers retained for each size class.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPerClass) {
+        _maxPerClass = maxPerClass;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        _free = new ConcurrentLinkedQueue[classes];
+        _freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    protected static int sizeClass(int size) {
+        int shift = MIN_SHIFT;
+        while (shift <= MAX_SHIFT && (1 << shift) < size) {
+            shift++;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Retrieves a cleared buffer with at least size bytes of capacity.  The
+     * limit is set to the capacity, which may be larger than size.
+     */
+    public ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        if (cls >= _free.length) {
+            _oversized.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _free[cls].poll();
+        if (buffer != null) {
+            _freeCounts[cls].decrementAndGet();
+            _reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        _allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (cls + MIN_SHIFT));
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.  The caller must
+     * not touch the buffer afterwards.  Null and foreign buffers are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int cls = sizeClass(capacity);
+        if (cls >= _free.length || (1 << (cls + MIN_SHIFT)) != capacity) {
+            return;
+        }
+
+        if (_freeCounts[cls].incrementAndGet() > _maxPerClass) {
+            _freeCounts[cls].decrementAndGet();
+            return;
+        }
+        _free[cls].offer(buffer);
+    }
+
+    public long getAllocatedCount() {
+        return _allocated.get();
+    }
+
+    public long getReusedCount() {
+        return _reused.get();
+    }
+
+    public long getOversizedCount() {
+        return _oversized.get();
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (AtomicInteger c : _freeCounts) {
+            count += c.get();
+        }
+        return count;
+    }
+}
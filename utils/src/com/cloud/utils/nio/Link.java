@@ -50,11 +50,14 @@ import com.cloud.utils.PropertiesUtil;
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+    private static final ByteBuffer[] CLOSE_MARKER = new ByteBuffer[0];
    
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
+    private final BufferPool _pool;
+    private final ByteBuffer _headerBuffer;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
     private Object _attach;
@@ -66,7 +69,9 @@ public class Link {
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _pool = connection != null ? connection.getBufferPool() : BufferPool.getDefault();
+        _headerBuffer = ByteBuffer.allocate(4);
+        _readBuffer = null;
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -137,58 +142,66 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
-        SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+    /**
+     * Wraps one message into SSL packets and appends them, each preceded by
+     * its 4 byte header, to the outgoing buffer.  The outgoing buffer is
+     * flushed to the channel whenever it can not hold another packet, so
+     * callers can coalesce several messages into a single channel write.
+     */
+    private static void wrapMessage(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, ByteBuffer outBuf) throws IOException {
+        int packetSize = sslEngine.getSession().getPacketBufferSize() + 40;
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
-        int totalLen = 0;
+        int dataRemaining = 0;
         for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
+            dataRemaining += buffer.remaining();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
+        while (dataRemaining > 0) {
+            if (outBuf.remaining() < packetSize + 4) {
+                flush(ch, outBuf);
+            }
+
+            int headerPos = outBuf.position();
+            outBuf.position(headerPos + 4);
+            engResult = sslEngine.wrap(buffers, outBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
             }
-            
-            processedLen = 0;
+
+            dataRemaining = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                dataRemaining += buffer.remaining();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
+            int header = outBuf.position() - headerPos - 4;
+            if (dataRemaining > 0) {
                 header = header | HEADER_FLAG_FOLLOWING;
             }
-            headBuf.putInt(header);
-            headBuf.flip();
+            outBuf.putInt(headerPos, header);
+        }
+    }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
-                }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
-                }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+    private static void flush(SocketChannel ch, ByteBuffer outBuf) throws IOException {
+        outBuf.flip();
+        while (outBuf.hasRemaining()) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Writing Data " + outBuf.remaining());
             }
+            ch.write(outBuf);
+        }
+        outBuf.clear();
+    }
+
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
+        ByteBuffer outBuf = pool.acquire(WRITE_BUFFER_SIZE);
+        try {
+            wrapMessage(ch, buffers, sslEngine, outBuf);
+            flush(ch, outBuf);
+        } finally {
+            pool.release(outBuf);
         }
     }
     
@@ -203,30 +216,33 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, BufferPool.getDefault());
         } 
     }
     
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int      MAX_SIZE_PER_PACKET = 18000;
     protected static final int      HEADER_FLAG_FOLLOWING = 0x10000;
+    /* Room for several SSL packets so that queued messages go out in one channel write */
+    protected static final int      WRITE_BUFFER_SIZE = 65536;
+    /* Plaintext buffers that grew beyond this are not kept around between messages */
+    protected static final int      MAX_RETAINED_PLAINTEXT = 256 * 1024;
+    /* Largest message, across all its packets, that a link accepts */
+    public static final int         MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
     
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
-            if (_readBuffer.position() == 0) {
-                _readBuffer.limit(4);
-            }
-            
-            if (ch.read(_readBuffer) == -1) {
+            if (ch.read(_headerBuffer) == -1) {
                 throw new IOException("Connection closed with -1 on reading size.");
             }
             
-            if (_readBuffer.hasRemaining()) {
+            if (_headerBuffer.hasRemaining()) {
                 s_logger.trace("Need to read the rest of the packet length");
                 return null;
             }
-            _readBuffer.flip();
-            int header = _readBuffer.getInt();
+            _headerBuffer.flip();
+            int header = _headerBuffer.getInt();
+            _headerBuffer.clear();
             int readSize = (short)header;
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Packet length is " + readSize);
@@ -236,25 +252,16 @@ public class Link {
             	throw new IOException("Wrong packet size: " + readSize);
             }
             
-            if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
-            }
-            
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
                 _gotFollowingPacket = true;
             } else {
                 _gotFollowingPacket = false;
             }
             
-            _readBuffer.clear();
             _readHeader = false;
             
-            if (_readBuffer.capacity() < readSize) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
-                }
-                _readBuffer = ByteBuffer.allocate(readSize);
-            }
+            // Idle links hold no read buffer, one is borrowed per packet.
+            _readBuffer = _pool.acquire(readSize);
             _readBuffer.limit(readSize);
         }
         
@@ -271,39 +278,61 @@ public class Link {
         
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
 
-        appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-        if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                engResult.getStatus() != SSLEngineResult.Status.OK) {
-            throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-        }
+        ByteBuffer appBuf = _pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                    engResult.getStatus() != SSLEngineResult.Status.OK) {
+                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+            }
 
-        appBuf.flip();
-        if (_plaintextBuffer.remaining() < appBuf.limit()) {
-            // We need to expand _plaintextBuffer for more data
-            ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-            _plaintextBuffer.flip();
-            newBuffer.put(_plaintextBuffer);
-            _plaintextBuffer = newBuffer;
-        }
-        _plaintextBuffer.put(appBuf);
-        _readBuffer.clear();
-        _readHeader = true;
-        
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Done with packet: " + appBuf.limit());
+            appBuf.flip();
+            int packetLen = appBuf.limit();
+            _pool.release(_readBuffer);
+            _readBuffer = null;
+            _readHeader = true;
+
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Done with packet: " + packetLen);
+            }
+
+            if (!_gotFollowingPacket && (_plaintextBuffer == null || _plaintextBuffer.position() == 0)) {
+                // The whole message fits in this packet, no need to stage it.
+                byte[] result = new byte[packetLen];
+                appBuf.get(result);
+                return result;
+            }
+
+            if (_plaintextBuffer != null && _plaintextBuffer.position() + packetLen > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message is bigger than " + MAX_MESSAGE_SIZE + " bytes");
+            }
+            if (_plaintextBuffer == null) {
+                _plaintextBuffer = ByteBuffer.allocate(Math.max(2000, packetLen * 2));
+            } else if (_plaintextBuffer.remaining() < packetLen) {
+                // We need to expand _plaintextBuffer for more data
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + packetLen));
+                _plaintextBuffer.flip();
+                newBuffer.put(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            _plaintextBuffer.put(appBuf);
+        } finally {
+            _pool.release(appBuf);
         }
         
         if (!_gotFollowingPacket) {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT) {
+                _plaintextBuffer = null;
+            } else {
+                _plaintextBuffer.clear();
+            }
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -322,24 +351,17 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_MARKER);
         }
         synchronized (this) {
             if (_key == null) {
@@ -359,20 +381,29 @@ public class Link {
         }
     }
     
+    /**
+     * Drains the write queue.  All queued messages are wrapped into one
+     * pooled buffer and go out together, so a burst of small messages costs
+     * a single channel write instead of one per message.
+     */
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
-        while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Closing connection requested");
+        ByteBuffer outBuf = _pool.acquire(WRITE_BUFFER_SIZE);
+        try {
+            while ((data = _writeQueue.poll()) != null) {
+                if (data == CLOSE_MARKER) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Closing connection requested");
+                    }
+                    flush(ch, outBuf);
+                    return true;
                 }
-                return true;
-            }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+                wrapMessage(ch, data, _sslEngine, outBuf);
+            }
+            flush(ch, outBuf);
+        } finally {
+            _pool.release(outBuf);
         }
         return false;
     }
@@ -387,6 +418,10 @@ public class Link {
     
     public synchronized void terminated() {
         _key = null;
+        if (_readBuffer != null) {
+            _pool.release(_readBuffer);
+            _readBuffer = null;
+        }
     }
     
     public synchronized void schedule(Task task) throws ClosedChannelException {
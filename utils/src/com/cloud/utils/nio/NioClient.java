@@ -33,6 +33,7 @@ public class NioClient extends NioConnection {
     
     protected String _host;
     protected String _bindAddress;
+    protected int _connectTimeout;
     
     public NioClient(String name, String host, int port, int workers, HandlerFactory factory) {
         super(name, port, workers, factory);
@@ -43,6 +44,14 @@ public class NioClient extends NioConnection {
     	_bindAddress = ipAddress;
     }
     
+    /**
+     * @param timeout milliseconds to wait for the connection to the server
+     *        before giving up; 0, the default, waits as long as it takes.
+     */
+    public void setConnectTimeout(int timeout) {
+        _connectTimeout = timeout;
+    }
+    
     @Override
     protected void init() throws IOException {
         _selector = Selector.open();
@@ -62,7 +71,11 @@ public class NioClient extends NioConnection {
             }
 
             addr = new InetSocketAddress(_host, _port);
-            sch.connect(addr);
+            if (_connectTimeout > 0) {
+                sch.socket().connect(addr, _connectTimeout);
+            } else {
+                sch.connect(addr);
+            }
         } catch (IOException e) {
         	_selector.close();
         	throw e;
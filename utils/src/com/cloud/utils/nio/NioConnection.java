@@ -60,6 +60,7 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected BufferPool _bufferPool;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -68,6 +69,7 @@ public abstract class NioConnection implements Runnable {
         _selector = null;
         _port = port;
         _factory = factory;
+        _bufferPool = BufferPool.getDefault();
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
@@ -76,9 +78,10 @@ public abstract class NioConnection implements Runnable {
         
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
-        _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done.  The thread is started while holding
+        // the lock so that it can't finish init() before we are waiting.
         synchronized(_thread) {
+            _thread.start();
             try {
                 _thread.wait();
             } catch (InterruptedException e) {
@@ -99,6 +102,18 @@ public abstract class NioConnection implements Runnable {
         return _thread.isAlive();
     }
     
+    /**
+     * @return the pool the links of this connection take their read and
+     *         write buffers from.  By default all connections share one.
+     */
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+    
+    public void setBufferPool(BufferPool pool) {
+        _bufferPool = pool;
+    }
+    
     public boolean isStartup() {
     	return _isStartup;
     }
@@ -166,6 +181,12 @@ public abstract class NioConnection implements Runnable {
                 s_logger.warn("Caught an exception but continuing on.", e);
             }
         }
+        try {
+            // Close the links that were asked to be closed before the stop.
+            processTodos();
+        } catch (Throwable e) {
+            s_logger.warn("Unable to process the remaining changes", e);
+        }
     	synchronized(_thread) {
     	    _isStartup = false;
     	}
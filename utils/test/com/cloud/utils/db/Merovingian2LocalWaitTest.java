@@ -0,0 +1,311 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs Merovingian2 against an op_lock table kept in memory.
+ */
+public class Merovingian2LocalWaitTest extends TestCase {
+
+    protected static class OpLockTable {
+        final Map<String, Object[]> _rows = new HashMap<String, Object[]>();
+        final AtomicInteger _inserts = new AtomicInteger();
+        final Set<String> _inserters = new HashSet<String>();
+        volatile CountDownLatch _insertLatch = new CountDownLatch(0);
+
+        synchronized void lockedBy(String key, long msId) {
+            _rows.put(key, new Object[] { msId, "elsewhere", 0L, 1 });
+        }
+
+        synchronized void unlock(String key) {
+            _rows.remove(key);
+        }
+
+        synchronized int execute(String sql, Object[] params) throws SQLException {
+            String key = (String)params[1];
+            Object[] row = _rows.get(key);
+            boolean owner = row != null && row[0].equals(((Number)params[2]).longValue()) && (params[3] == null || row[1].equals(params[3]))
+                    && (params[4] == null || row[2].equals(((Number)params[4]).longValue()));
+            if (sql.startsWith("INSERT")) {
+                _inserts.incrementAndGet();
+                _inserters.add(Thread.currentThread().getName());
+                _insertLatch.countDown();
+                if (row != null) {
+                    throw new SQLException("Duplicate entry", "23000", 1062);
+                }
+                _rows.put(key, new Object[] { ((Number)params[2]).longValue(), params[3], ((Number)params[4]).longValue(), 1 });
+                return 1;
+            } else if (sql.startsWith("UPDATE op_lock SET waiters=waiters+1")) {
+                if (owner) {
+                    row[3] = (Integer)row[3] + 1;
+                    return 1;
+                }
+            } else if (sql.startsWith("UPDATE op_lock SET waiters=waiters-1")) {
+                if (owner) {
+                    row[3] = (Integer)row[3] - 1;
+                    return 1;
+                }
+            } else if (sql.startsWith("DELETE FROM op_lock WHERE op_lock.key = ? AND")) {
+                if (owner && row[3].equals(0)) {
+                    _rows.remove(key);
+                    return 1;
+                }
+            }
+            return 0;
+        }
+
+        Connection connect() {
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement")) {
+                        return statement((String)args[0]);
+                    } else if (name.equals("getAutoCommit")) {
+                        return true;
+                    } else if (name.equals("getTransactionIsolation")) {
+                        return Connection.TRANSACTION_READ_COMMITTED;
+                    } else if (name.equals("getHoldability")) {
+                        return 1;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        PreparedStatement statement(final String sql) {
+            final Object[] params = new Object[6];
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args.length == 2) {
+                        params[(Integer)args[0]] = args[1];
+                    } else if (name.equals("executeUpdate")) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return execute(sql, params);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    OpLockTable _table;
+    Merovingian2 _lockMaster;
+
+    @Override
+    protected void setUp() {
+        _table = new OpLockTable();
+        _lockMaster = new Merovingian2(1, _table.connect());
+    }
+
+    public void testReentry() {
+        assertTrue(_lockMaster.acquire("reentry", 1));
+        assertTrue(_lockMaster.acquire("reentry", 1));
+        assertEquals(1, _table._inserts.get());
+        assertTrue(_lockMaster.release("reentry"));
+        assertEquals(1, _table._rows.size());
+        assertTrue(_lockMaster.release("reentry"));
+        assertEquals(0, _table._rows.size());
+        assertTrue(_lockMaster._keys.isEmpty());
+    }
+
+    /**
+     * Five threads take turns holding the same lock.  The first one keeps it
+     * until the others are waiting here; each waiter is handed the lock when
+     * it is released and none of them tries the database while another
+     * thread here holds it.
+     */
+    public void testLocalHandoff() throws Exception {
+        final int threads = 5;
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicInteger holding = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread("worker-" + i) {
+                @Override
+                public void run() {
+                    if (_lockMaster.acquire("handoff", 30)) {
+                        acquired.incrementAndGet();
+                        if (holding.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        held.countDown();
+                        try {
+                            waiting.await();
+                        } catch (InterruptedException e) {
+                        }
+                        holding.decrementAndGet();
+                        _lockMaster.release("handoff");
+                    }
+                }
+            };
+        }
+
+        workers[0].start();
+        assertTrue(held.await(30, TimeUnit.SECONDS));
+        for (int i = 1; i < threads; i++) {
+            workers[i].start();
+        }
+        while (_lockMaster.getLocalWaiterCount() < threads - 1) {
+            Thread.yield();
+        }
+        assertEquals(1, _table._inserts.get());
+        waiting.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads, acquired.get());
+        assertEquals(0, overlaps.get());
+        assertEquals(threads, _table._inserts.get());
+        assertEquals(threads, _lockMaster.getAcquireCount());
+        assertEquals(0, _lockMaster.getLocalWaiterCount());
+    }
+
+    /**
+     * Another management server holds the lock.  Only one of the local
+     * waiters polls the database, backing off, and a release on the other
+     * server wakes it up.
+     */
+    public void testRemoteRelease() throws Exception {
+        _table.lockedBy("remote", 2);
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread[] workers = new Thread[3];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("worker-" + i) {
+                @Override
+                public void run() {
+                    if (_lockMaster.acquire("remote", 30)) {
+                        acquired.incrementAndGet();
+                        _lockMaster.release("remote");
+                    }
+                }
+            };
+        }
+
+        _table._insertLatch = new CountDownLatch(4);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        while (_lockMaster.getLocalWaiterCount() < workers.length) {
+            Thread.yield();
+        }
+        assertTrue(_table._insertLatch.await(30, TimeUnit.SECONDS));
+        assertEquals(0, acquired.get());
+        assertEquals(1, _table._inserters.size());
+        assertEquals(3, _lockMaster.getLocalWaiterCount());
+
+        _table.unlock("remote");
+        _lockMaster.wakeup("remote");
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(3, acquired.get());
+        assertEquals(3, _table._inserters.size());
+        assertEquals(0, _lockMaster.getLocalWaiterCount());
+    }
+
+    /**
+     * A local waiter that gives up while another thread polls the database
+     * for the lock leaves that thread the only one polling.
+     */
+    public void testWaiterTimeoutKeepsPoller() throws Exception {
+        _table.lockedBy("poller", 2);
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread[] pollers = new Thread[2];
+        for (int i = 0; i < pollers.length; i++) {
+            pollers[i] = new Thread("poller-" + i) {
+                @Override
+                public void run() {
+                    if (_lockMaster.acquire("poller", 30)) {
+                        acquired.incrementAndGet();
+                        _lockMaster.release("poller");
+                    }
+                }
+            };
+        }
+
+        _table._insertLatch = new CountDownLatch(1);
+        pollers[0].start();
+        assertTrue(_table._insertLatch.await(30, TimeUnit.SECONDS));
+        assertFalse(_lockMaster.acquire("poller", 1));
+
+        _table._insertLatch = new CountDownLatch(2);
+        pollers[1].start();
+        while (_lockMaster.getLocalWaiterCount() < 2) {
+            Thread.yield();
+        }
+        assertTrue(_table._insertLatch.await(30, TimeUnit.SECONDS));
+        assertEquals(1, _table._inserters.size());
+
+        _table.unlock("poller");
+        _lockMaster.wakeup("poller");
+        for (Thread poller : pollers) {
+            poller.join();
+        }
+        assertEquals(2, acquired.get());
+        assertEquals(0, _lockMaster.getLocalWaiterCount());
+    }
+
+    public void testTimeout() {
+        _table.lockedBy("timeout", 2);
+        long begin = System.currentTimeMillis();
+        assertFalse(_lockMaster.acquire("timeout", 1));
+        long elapsed = System.currentTimeMillis() - begin;
+        assertTrue(elapsed >= 1000);
+        assertTrue(_table._inserts.get() > 1);
+        assertEquals(1, _lockMaster.getTimeoutCount());
+        assertEquals(0, _lockMaster.getLocalWaiterCount());
+        assertTrue(_lockMaster._keys.isEmpty());
+    }
+
+    public void testInterrupt() {
+        _table.lockedBy("interrupt", 2);
+        Thread.currentThread().interrupt();
+        assertFalse(_lockMaster.acquire("interrupt", 30));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, _lockMaster.getTimeoutCount());
+        assertEquals(0, _lockMaster.getLocalWaiterCount());
+        assertTrue(_lockMaster._keys.isEmpty());
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import junit.framework.TestCase;
+
+public class LinkTest extends TestCase {
+    private final Random _random = new Random(7);
+    private SSLEngine _clientEngine;
+    private SSLEngine _serverEngine;
+    private SocketChannel _out;
+    private SocketChannel _in;
+
+    @Override
+    protected void setUp() throws Exception {
+        _clientEngine = Link.initSSLContext(true).createSSLEngine();
+        _clientEngine.setUseClientMode(true);
+        _serverEngine = Link.initSSLContext(false).createSSLEngine();
+        _serverEngine.setUseClientMode(false);
+        handshake(_clientEngine, _serverEngine);
+
+        SocketChannel[] pair = connect();
+        _out = pair[0];
+        _in = pair[1];
+        _in.configureBlocking(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _out.close();
+        _in.close();
+    }
+
+    /**
+     * Handshakes the engines with each other in memory.  Both are held to
+     * a protocol that has no messages after the handshake, as the nio
+     * handshake expects.
+     */
+    protected static void handshake(SSLEngine client, SSLEngine server) throws Exception {
+        for (SSLEngine engine : new SSLEngine[] { client, server }) {
+            String protocol = Arrays.asList(engine.getSupportedProtocols()).contains("TLSv1.2") ? "TLSv1.2" : "TLSv1";
+            engine.setEnabledProtocols(new String[] { protocol });
+        }
+        int packetSize = client.getSession().getPacketBufferSize();
+        ByteBuffer toServer = ByteBuffer.allocate(packetSize * 4);
+        ByteBuffer toClient = ByteBuffer.allocate(packetSize * 4);
+        ByteBuffer app = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 1000; i++) {
+            if (client.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && server.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+                return;
+            }
+            step(client, toClient, toServer, app);
+            step(server, toServer, toClient, app);
+        }
+        fail("The engines did not finish their handshake");
+    }
+
+    private static void step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app) throws Exception {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+            engine.wrap(ByteBuffer.allocate(0), out);
+        } else if (engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+            in.flip();
+            app.clear();
+            engine.unwrap(in, app);
+            in.compact();
+        }
+    }
+
+    protected static SocketChannel[] connect() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel out = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.socket().getLocalPort()));
+            return new SocketChannel[] { out, server.accept() };
+        } finally {
+            server.close();
+        }
+    }
+
+    protected byte[] message(int size) {
+        byte[] data = new byte[size];
+        _random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * @return what Link.write() puts on the wire for the messages.
+     */
+    protected byte[] frames(byte[]... messages) throws Exception {
+        SocketChannel[] pair = connect();
+        final SocketChannel in = pair[1];
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                try {
+                    while (in.read(buffer) != -1) {
+                        wire.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        reader.start();
+        try {
+            for (byte[] message : messages) {
+                Link.write(pair[0], new ByteBuffer[] { ByteBuffer.wrap(message) }, _clientEngine);
+            }
+            pair[0].socket().shutdownOutput();
+            reader.join();
+        } finally {
+            pair[0].close();
+            in.close();
+        }
+        return wire.toByteArray();
+    }
+
+    protected void write(byte[] wire, int from, int to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(wire, from, to - from);
+        while (buffer.hasRemaining()) {
+            _out.write(buffer);
+        }
+    }
+
+    /**
+     * Reads until the link has a whole message.  Everything the message needs
+     * has been written already, so this only waits for loopback delivery.
+     */
+    protected byte[] readMessage(Link link) throws IOException, InterruptedException {
+        for (int i = 0; i < 10000; i++) {
+            byte[] data = link.read(_in);
+            if (data != null) {
+                return data;
+            }
+            Thread.sleep(1);
+        }
+        fail("No message was read");
+        return null;
+    }
+
+    protected Link link(BufferPool pool) throws IOException {
+        NioClient connection = new NioClient("LinkTest", "127.0.0.1", 0, 1, null);
+        connection.setBufferPool(pool);
+        Link link = new Link(new InetSocketAddress("127.0.0.1", 0), connection);
+        link.setSSLEngine(_serverEngine);
+        return link;
+    }
+
+    public void testBufferPool() {
+        BufferPool pool = new BufferPool(1);
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(4096, buffer.capacity());
+        assertEquals(4096, buffer.limit());
+        buffer.put((byte)1);
+        pool.release(buffer);
+        assertEquals(1, pool.getIdleCount());
+
+        ByteBuffer reused = pool.acquire(4096);
+        assertSame(buffer, reused);
+        assertEquals("a reused buffer is cleared", 0, reused.position());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(8192, pool.acquire(4097).capacity());
+
+        // only one idle buffer is kept per size class
+        pool.release(reused);
+        pool.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(1, pool.getIdleCount());
+
+        ByteBuffer oversized = pool.acquire((1 << BufferPool.MAX_SHIFT) + 1);
+        assertFalse(oversized.isDirect());
+        assertEquals(1, pool.getOversizedCount());
+        pool.release(oversized);
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(5000));
+        pool.release(null);
+        assertEquals("heap and odd sized buffers are not kept", 1, pool.getIdleCount());
+    }
+
+    public void testSplitFrames() throws Exception {
+        BufferPool pool = new BufferPool(16);
+        Link link = link(pool);
+        byte[] message = message(40000);
+        byte[] wire = frames(message);
+        assertTrue("the message takes several packets", wire.length > Link.MAX_SIZE_PER_PACKET);
+
+        // the header alone, then the rest in pieces that cut across headers and records
+        write(wire, 0, 2);
+        assertNull(link.read(_in));
+        assertNull(link.read(_in));
+        int written = 2;
+        while (written + 1000 < wire.length) {
+            write(wire, written, written + 1000);
+            written += 1000;
+            assertNull(link.read(_in));
+        }
+        write(wire, written, wire.length);
+        assertTrue(Arrays.equals(message, readMessage(link)));
+        assertNull(link.read(_in));
+        assertEquals("every buffer went back to the pool", pool.getAllocatedCount(), pool.getIdleCount());
+    }
+
+    public void testSeveralFramesInOneRead() throws Exception {
+        BufferPool pool = new BufferPool(16);
+        Link link = link(pool);
+        byte[][] messages = new byte[][] { message(10), message(1), message(20000), message(300) };
+        byte[] wire = frames(messages);
+        write(wire, 0, wire.length);
+
+        for (byte[] message : messages) {
+            assertTrue(Arrays.equals(message, readMessage(link)));
+        }
+        assertNull(link.read(_in));
+        assertEquals(pool.getAllocatedCount(), pool.getIdleCount());
+        assertTrue(pool.getReusedCount() > 0);
+    }
+
+    public void testBuffersReturnedOnError() throws Exception {
+        BufferPool pool = new BufferPool(16);
+        Link link = link(pool);
+        byte[] wire = frames(message(1000));
+
+        // a record that doesn't authenticate
+        wire[wire.length - 10] ^= 0xff;
+        write(wire, 0, wire.length);
+        try {
+            readMessage(link);
+            fail("a corrupt record was accepted");
+        } catch (IOException e) {
+        }
+        link.terminated();
+        assertTrue(pool.getAllocatedCount() > 0);
+        assertEquals(pool.getAllocatedCount(), pool.getIdleCount());
+
+        // a packet larger than allowed is refused before a buffer is taken
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(Link.MAX_SIZE_PER_PACKET + 1);
+        link = link(pool);
+        write(header.array(), 0, 4);
+        try {
+            readMessage(link);
+            fail("an oversized packet was accepted");
+        } catch (IOException e) {
+        }
+        assertEquals(pool.getAllocatedCount(), pool.getIdleCount());
+    }
+
+    public void testConnectionReturnsBuffersOnDisconnect() throws Exception {
+        final BlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+        NioClient connection = new NioClient("LinkTest", "127.0.0.1", 0, 1, new HandlerFactory() {
+            @Override
+            public Task create(Task.Type type, Link link, byte[] data) {
+                return new Task(type, link, data) {
+                    @Override
+                    protected void doTask(Task task) {
+                        tasks.add(task);
+                    }
+                };
+            }
+        });
+        BufferPool pool = new BufferPool(16);
+        connection.setBufferPool(pool);
+        Link link = new Link(new InetSocketAddress("127.0.0.1", 0), connection);
+        link.setSSLEngine(_serverEngine);
+        Selector selector = Selector.open();
+        try {
+            SelectionKey key = _in.register(selector, SelectionKey.OP_READ, link);
+            link.setKey(key);
+
+            byte[] message = message(30000);
+            byte[] wire = frames(message);
+            write(wire, 0, wire.length - 100);
+            for (int i = 0; i < 10; i++) {
+                connection.read(key);
+            }
+            // the link goes away in the middle of a packet
+            _out.close();
+            for (int i = 0; i < 10000 && _in.isOpen(); i++) {
+                connection.read(key);
+                Thread.sleep(1);
+            }
+            assertFalse(_in.isOpen());
+            Task task = tasks.poll(10, TimeUnit.SECONDS);
+            assertNotNull(task);
+            assertEquals(Task.Type.DISCONNECT, task.getType());
+            assertTrue(pool.getAllocatedCount() > 0);
+            assertEquals(pool.getAllocatedCount(), pool.getIdleCount());
+            assertNull(tasks.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            selector.close();
+            connection._executor.shutdown();
+        }
+    }
+}
@@ -61,7 +61,7 @@ public class BaseMO {
 	public boolean destroy() throws Exception {
         ManagedObjectReference morTask = _context.getService().destroy_Task(_mor);
         
-        String result = _context.getServiceUtil().waitForTask(morTask);
+        String result = _context.waitForTask(morTask);
         if(result.equals("sucess")) {
             _context.waitForTaskProgressDone(morTask);
             return true;
@@ -78,7 +78,7 @@ public class BaseMO {
 	public boolean rename(String newName) throws Exception {
 	    ManagedObjectReference morTask = _context.getService().rename_Task(_mor, newName);
 	    
-        String result = _context.getServiceUtil().waitForTask(morTask);
+        String result = _context.waitForTask(morTask);
         if(result.equals("sucess")) {
             _context.waitForTaskProgressDone(morTask);
             return true;
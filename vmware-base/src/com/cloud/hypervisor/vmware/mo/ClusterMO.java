@@ -87,7 +87,13 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 	@Override
 	public VirtualMachineMO findVmOnHyperHost(String name) throws Exception {
 		ObjectContent[] ocs = getVmPropertiesOnHyperHost(new String[] { "name" });
-		return HypervisorHostHelper.findVmFromObjectContent(_context, ocs, name);
+		VirtualMachineMO vmMo = HypervisorHostHelper.findVmFromObjectContent(_context, ocs, name);
+		if(vmMo == null) {
+			// the inventory cache may not have caught up with a VM that was just created
+			ocs = retrieveVmPropertiesOnHyperHost(new String[] { "name" });
+			vmMo = HypervisorHostHelper.findVmFromObjectContent(_context, ocs, name);
+		}
+		return vmMo;
 	}
 	
 	@Override
@@ -109,6 +115,14 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 	
 	@Override
 	public ObjectContent[] getVmPropertiesOnHyperHost(String[] propertyPaths) throws Exception {
+		ObjectContent[] ocs = _context.getInventoryCache().getVmProperties(_mor, propertyPaths);
+		if(ocs != null)
+			return ocs;
+		
+		return retrieveVmPropertiesOnHyperHost(propertyPaths);
+	}
+	
+	private ObjectContent[] retrieveVmPropertiesOnHyperHost(String[] propertyPaths) throws Exception {
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("vCenter API trace - retrieveProperties() for VM properties. target MOR: " + _mor.get_value() + ", properties: " + new Gson().toJson(propertyPaths));
 		
@@ -219,7 +233,7 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 		
 	    ManagedObjectReference morTask = _context.getService().createVM_Task(
 	    	dcMo.getVmFolder(), vmSpec, morPool, null);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
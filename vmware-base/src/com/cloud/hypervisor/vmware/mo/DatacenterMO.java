@@ -56,7 +56,7 @@ public class DatacenterMO extends BaseMO {
     		 templateName, true, 
     		 null, morHost);
 		
-		String result = serviceUtil.waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if (!result.equalsIgnoreCase("Sucess")) {
 			throw new Exception("Unable to register template due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 		} else {
@@ -129,7 +129,7 @@ public class DatastoreMO extends BaseMO {
 		ManagedObjectReference morTask = _context.getService().deleteDatastoreFile_Task(morFileManager, 
 			fullPath, morDc);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -159,7 +159,7 @@ public class DatastoreMO extends BaseMO {
 		ManagedObjectReference morTask = _context.getService().copyDatastoreFile_Task(morFileManager, 
 			srcFullPath, morSrcDc, destFullPath, morDestDc, forceOverwrite);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -189,7 +189,7 @@ public class DatastoreMO extends BaseMO {
 		ManagedObjectReference morTask = _context.getService().moveDatastoreFile_Task(morFileManager, 
 			srcFullPath, morSrcDc, destFullPath, morDestDc, forceOverwrite);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
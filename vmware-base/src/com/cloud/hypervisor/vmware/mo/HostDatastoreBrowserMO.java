@@ -54,7 +54,7 @@ public class HostDatastoreBrowserMO extends BaseMO {
 		try {
 			ManagedObjectReference morTask = _context.getService().searchDatastore_Task(_mor, datastorePath, searchSpec);
 			
-			String result = _context.getServiceUtil().waitForTask(morTask);
+			String result = _context.waitForTask(morTask);
 			if(result.equals("sucess")) {
 				_context.waitForTaskProgressDone(morTask);
 				
@@ -85,7 +85,7 @@ public class HostDatastoreBrowserMO extends BaseMO {
 		try {
 			ManagedObjectReference morTask = _context.getService().searchDatastoreSubFolders_Task(_mor, datastorePath, searchSpec);
 			
-			String result = _context.getServiceUtil().waitForTask(morTask);
+			String result = _context.waitForTask(morTask);
 			if(result.equals("sucess")) {
 				_context.waitForTaskProgressDone(morTask);
 				
@@ -454,17 +454,24 @@ public class HostMO extends BaseMO implements VmwareHypervisorHost {
             return vmMo;
         }
         
-        loadVmCache();
-        return _vmCache.get(name);
+        loadVmCache(true);
+        vmMo = _vmCache.get(name);
+        if(vmMo == null) {
+        	// the inventory cache may not have caught up with a VM that was just created
+        	loadVmCache(false);
+        	vmMo = _vmCache.get(name);
+        }
+        return vmMo;
     }
     
-    private void loadVmCache() throws Exception {
+    private void loadVmCache(boolean useInventoryCache) throws Exception {
     	if(s_logger.isDebugEnabled())
     		s_logger.debug("load VM cache on host");
     	
         _vmCache.clear();
         
-        ObjectContent[] ocs = getVmPropertiesOnHyperHost(new String[] { "name" });
+        String[] propertyPaths = new String[] { "name" };
+        ObjectContent[] ocs = useInventoryCache ? getVmPropertiesOnHyperHost(propertyPaths) : retrieveVmPropertiesOnHyperHost(propertyPaths);
         if(ocs != null && ocs.length > 0) {
             for(ObjectContent oc : ocs) {
                 String vmName = oc.getPropSet()[0].getVal().toString();
@@ -500,7 +507,7 @@ public class HostMO extends BaseMO implements VmwareHypervisorHost {
 		
 	    ManagedObjectReference morTask = _context.getService().createVM_Task(
 	    	dcMo.getVmFolder(), vmSpec, morPool, _mor);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
@@ -544,6 +551,14 @@ public class HostMO extends BaseMO implements VmwareHypervisorHost {
 	}
 	
 	public ObjectContent[] getVmPropertiesOnHyperHost(String[] propertyPaths) throws Exception {
+		ObjectContent[] ocs = _context.getInventoryCache().getVmProperties(_mor, propertyPaths);
+		if(ocs != null)
+			return ocs;
+		
+		return retrieveVmPropertiesOnHyperHost(propertyPaths);
+	}
+	
+	private ObjectContent[] retrieveVmPropertiesOnHyperHost(String[] propertyPaths) throws Exception {
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("vCenter API trace - retrieveProperties() for VM properties. target MOR: " + _mor.get_value() + ", properties: " + new Gson().toJson(propertyPaths));
 		
@@ -576,6 +591,14 @@ public class HostMO extends BaseMO implements VmwareHypervisorHost {
 
 	@Override
 	public ObjectContent[] getDatastorePropertiesOnHyperHost(String[] propertyPaths) throws Exception {
+		ObjectContent[] ocs = _context.getInventoryCache().getDatastoreProperties(_mor, propertyPaths);
+		if(ocs != null)
+			return ocs;
+		
+		return retrieveDatastorePropertiesOnHyperHost(propertyPaths);
+	}
+	
+	private ObjectContent[] retrieveDatastorePropertiesOnHyperHost(String[] propertyPaths) throws Exception {
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("vCenter API trace - retrieveProperties() on Datastore properties. target MOR: " + _mor.get_value() + ", properties: " + new Gson().toJson(propertyPaths));
 
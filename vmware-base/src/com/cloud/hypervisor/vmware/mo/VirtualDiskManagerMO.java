@@ -28,7 +28,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     	
     	ManagedObjectReference morTask = _context.getService().copyVirtualDisk_Task(_mor, srcName, morSrcDc, destName, morDestDc, diskSpec, force);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to copy virtual disk " + srcName + " to " + destName 
 				+ " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
@@ -39,7 +39,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void createVirtualDisk(String name, ManagedObjectReference morDc, VirtualDiskSpec diskSpec) throws Exception {
     	ManagedObjectReference morTask = _context.getService().createVirtualDisk_Task(_mor, name, morDc, diskSpec);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to create virtual disk " + name 
 				+ " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
@@ -50,7 +50,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void defragmentVirtualDisk(String name, ManagedObjectReference morDc) throws Exception {
     	ManagedObjectReference morTask = _context.getService().defragmentVirtualDisk_Task(_mor, name, morDc);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to defragment virtual disk " + name + " due to " + result);
 
@@ -60,7 +60,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void deleteVirtualDisk(String name, ManagedObjectReference morDc) throws Exception {
     	ManagedObjectReference morTask = _context.getService().deleteVirtualDisk_Task(_mor, name, morDc);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to delete virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 
@@ -70,7 +70,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void eagerZeroVirtualDisk(String name, ManagedObjectReference morDc) throws Exception {
     	ManagedObjectReference morTask = _context.getService().eagerZeroVirtualDisk_Task(_mor, name, morDc);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to eager zero virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 
@@ -80,7 +80,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void extendVirtualDisk(String name, ManagedObjectReference morDc, long newCapacityKb, boolean eagerZero) throws Exception {
     	ManagedObjectReference morTask = _context.getService().extendVirtualDisk_Task(_mor, name, morDc, newCapacityKb, eagerZero);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to extend virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 
@@ -90,7 +90,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void inflateVirtualDisk(String name, ManagedObjectReference morDc) throws Exception {
     	ManagedObjectReference morTask = _context.getService().inflateVirtualDisk_Task(_mor, name, morDc);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to inflate virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 		_context.waitForTaskProgressDone(morTask);
@@ -99,7 +99,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void shrinkVirtualDisk(String name, ManagedObjectReference morDc, boolean copy) throws Exception {
     	ManagedObjectReference morTask = _context.getService().shrinkVirtualDisk_Task(_mor, name, morDc, copy);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to shrink virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 		_context.waitForTaskProgressDone(morTask);
@@ -108,7 +108,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     public void zeroFillVirtualDisk(String name, ManagedObjectReference morDc) throws Exception {
     	ManagedObjectReference morTask = _context.getService().zeroFillVirtualDisk_Task(_mor, name, morDc);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to zero fill virtual disk " + name + " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 		_context.waitForTaskProgressDone(morTask);
@@ -120,7 +120,7 @@ public class VirtualDiskManagerMO extends BaseMO {
     	ManagedObjectReference morTask = _context.getService().moveVirtualDisk_Task(_mor, srcName, morSrcDc,
     		destName, morDestDc, force);
     	
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(!result.equals("sucess"))
 			throw new Exception("Unable to move virtual disk " + srcName + " to " + destName 
 				+ " due to " + TaskMO.getTaskFailureInfo(_context, morTask));
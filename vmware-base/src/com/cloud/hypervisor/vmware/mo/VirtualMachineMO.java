@@ -163,7 +163,7 @@ public class VirtualMachineMO extends BaseMO {
 		
 		ManagedObjectReference morTask = _context.getService().powerOnVM_Task(_mor, null);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -218,7 +218,7 @@ public class VirtualMachineMO extends BaseMO {
 	private boolean powerOffNoCheck() throws Exception {
 		ManagedObjectReference morTask = _context.getService().powerOffVM_Task(_mor);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			
@@ -253,7 +253,7 @@ public class VirtualMachineMO extends BaseMO {
 	public boolean reset() throws Exception {
 		ManagedObjectReference morTask = _context.getService().resetVM_Task(_mor);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -284,7 +284,7 @@ public class VirtualMachineMO extends BaseMO {
 		ManagedObjectReference morTask = _context.getService().migrateVM_Task(_mor,
 			morRp, morTargetHost, VirtualMachineMovePriority.defaultPriority, null);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -302,7 +302,7 @@ public class VirtualMachineMO extends BaseMO {
         ManagedObjectReference morTask = _context.getService().relocateVM_Task(_mor, 
             relocateSpec, null);
 	    
-        String result = _context.getServiceUtil().waitForTask(morTask);
+        String result = _context.waitForTask(morTask);
         if(result.equals("sucess")) {
             _context.waitForTaskProgressDone(morTask);
             return true;
@@ -323,7 +323,7 @@ public class VirtualMachineMO extends BaseMO {
 		ManagedObjectReference morTask = _context.getService().createSnapshot_Task(_mor, snapshotName, 
 			snapshotDescription, dumpMemory, quiesce);
 		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 
@@ -358,7 +358,7 @@ public class VirtualMachineMO extends BaseMO {
 		}
 		
 		ManagedObjectReference morTask = _context.getService().removeSnapshot_Task(morSnapshot, removeChildren);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -376,7 +376,7 @@ public class VirtualMachineMO extends BaseMO {
 			VirtualMachineSnapshotTree[] tree = snapshotInfo.getRootSnapshotList();
 			for(VirtualMachineSnapshotTree treeNode : tree) {
 				ManagedObjectReference morTask = _context.getService().removeSnapshot_Task(treeNode.getSnapshot(), true);
-				String result = _context.getServiceUtil().waitForTask(morTask);
+				String result = _context.waitForTask(morTask);
 				if(result.equals("sucess")) {
 					_context.waitForTaskProgressDone(morTask);
 				} else {
@@ -501,7 +501,7 @@ public class VirtualMachineMO extends BaseMO {
      	relocSpec.setPool(morResourcePool);
         ManagedObjectReference morTask = _context.getService().cloneVM_Task(_mor, morFolder, cloneName, cloneSpec); 
     		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -547,7 +547,7 @@ public class VirtualMachineMO extends BaseMO {
         
         ManagedObjectReference morTask = _context.getService().cloneVM_Task(_mor, morFolder, cloneName, cloneSpec); 
     		
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -716,7 +716,7 @@ public class VirtualMachineMO extends BaseMO {
 		vmConfigSpec.setExtraConfig(vncOptions);
     	ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, vmConfigSpec);
     	  
-  		String result = _context.getServiceUtil().waitForTask(morTask);
+  		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -729,7 +729,7 @@ public class VirtualMachineMO extends BaseMO {
 	public boolean configureVm(VirtualMachineConfigSpec vmConfigSpec) throws Exception {
     	ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, vmConfigSpec);
   	  
-  		String result = _context.getServiceUtil().waitForTask(morTask);
+  		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -758,7 +758,7 @@ public class VirtualMachineMO extends BaseMO {
 
     	ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, configSpec);
     	  
-  		String result = _context.getServiceUtil().waitForTask(morTask);
+  		String result = _context.waitForTask(morTask);
 		if(result.equals("sucess")) {
 			_context.waitForTaskProgressDone(morTask);
 			return true;
@@ -867,7 +867,7 @@ public class VirtualMachineMO extends BaseMO {
 	    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 		
 	    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(!result.equals("sucess")) {
 			if(s_logger.isTraceEnabled())
@@ -900,7 +900,7 @@ public class VirtualMachineMO extends BaseMO {
 	    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 		
 	    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(!result.equals("sucess")) {
 			if(s_logger.isTraceEnabled())
@@ -946,7 +946,7 @@ public class VirtualMachineMO extends BaseMO {
 	    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 		
 	    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(!result.equals("sucess")) {
 			if(s_logger.isTraceEnabled())
@@ -999,7 +999,7 @@ public class VirtualMachineMO extends BaseMO {
 		    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 			
 		    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-			String result = _context.getServiceUtil().waitForTask(morTask);
+			String result = _context.waitForTask(morTask);
 			
 			if(!result.equals("sucess")) {
 				if(s_logger.isTraceEnabled())
@@ -1062,7 +1062,7 @@ public class VirtualMachineMO extends BaseMO {
 	    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 		
 	    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(!result.equals("sucess")) {
 			if(s_logger.isTraceEnabled())
@@ -1103,7 +1103,7 @@ public class VirtualMachineMO extends BaseMO {
 	    reConfigSpec.setDeviceChange(deviceConfigSpecArray);
 		
 	    ManagedObjectReference morTask = _context.getService().reconfigVM_Task(_mor, reConfigSpec);
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		
 		if(!result.equals("sucess")) {
 			if(s_logger.isTraceEnabled())
@@ -1966,7 +1966,7 @@ public class VirtualMachineMO extends BaseMO {
     		 vmName, false, 
     		 morPool, hostMo.getMor());
 			
-		String result = _context.getServiceUtil().waitForTask(morTask);
+		String result = _context.waitForTask(morTask);
 		if (!result.equalsIgnoreCase("Sucess")) {
 			throw new Exception("Unable to register template due to " + TaskMO.getTaskFailureInfo(_context, morTask));
 		} else {
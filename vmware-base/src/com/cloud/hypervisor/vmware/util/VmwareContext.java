@@ -31,6 +31,7 @@ import org.apache.log4j.Logger;
 import com.cloud.hypervisor.vmware.mo.DatacenterMO;
 import com.cloud.hypervisor.vmware.mo.DatastoreFile;
 import com.cloud.utils.ActionDelegate;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.vmware.apputils.version.ExtendedAppUtil;
 import com.vmware.apputils.vim25.ServiceConnection;
 import com.vmware.apputils.vim25.ServiceUtil;
@@ -42,6 +43,7 @@ import com.vmware.vim25.PropertySpec;
 import com.vmware.vim25.SelectionSpec;
 import com.vmware.vim25.ServiceContent;
 import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.VimPortType;
 
@@ -52,6 +54,7 @@ public class VmwareContext {
 	private String _serverAddress;
 	
 	private Map<String, Object> _stockMap = new HashMap<String, Object>();
+	private VmwareInventoryCache _inventoryCache;
 	private int _CHUNKSIZE = 1*1024*1024;		// 1M 
 	
 	static {
@@ -117,6 +120,21 @@ public class VmwareContext {
 		return getServiceContent().getRootFolder();
 	}
 	
+	public synchronized VmwareInventoryCache getInventoryCache() {
+		if(_inventoryCache == null) {
+			_inventoryCache = new VmwareInventoryCache(getService(), getServiceContent().getPropertyCollector(), getRootFolder());
+			_inventoryCache.start(_serverAddress);
+			
+			try {
+				JmxUtil.registerMBean("VMware " + _serverAddress, "Inventory cache " + System.identityHashCode(this), 
+					new VmwareInventoryCacheMBeanImpl(_inventoryCache));
+			} catch(Exception e) {
+				s_logger.warn("Unable to register inventory cache MBean: " + e.toString());
+			}
+		}
+		return _inventoryCache;
+	}
+	
 	public ManagedObjectReference getHostMorByPath(String inventoryPath) throws Exception {
 		assert(inventoryPath != null);
 		
@@ -249,7 +267,38 @@ public class VmwareContext {
 		return dcMo.findDatastore(tokens[1]);
 	}
 	
+	/**
+	 * Waits for the task to finish. It replaces ServiceUtil.waitForTask, which runs its own
+	 * WaitForUpdates against the session property collector that the inventory cache follows.
+	 * 
+	 * @return "sucess" when the task succeeded, the same as ServiceUtil.waitForTask
+	 */
+	public String waitForTask(ManagedObjectReference morTask) throws Exception {
+		String result = getInventoryCache().waitForTask(morTask);
+		if(result != null)
+			return result;
+		
+		while(true) {
+			TaskInfo tinfo = (TaskInfo)getServiceUtil().getDynamicProperty(morTask, "info");
+			if(TaskInfoState.success.equals(tinfo.getState()))
+				return "sucess";
+			
+			if(TaskInfoState.error.equals(tinfo.getState())) {
+				if(tinfo.getError() != null && tinfo.getError().getLocalizedMessage() != null)
+					return tinfo.getError().getLocalizedMessage();
+				return "Error Occured";
+			}
+			
+			Thread.sleep(1000);
+		}
+	}
+	
 	public void waitForTaskProgressDone(ManagedObjectReference morTask) throws Exception {
+		// a task the cache has seen finish has nothing left to report
+		VmwareInventoryCache cache = _inventoryCache;
+		if(cache != null && cache.isTaskFinished(morTask))
+			return;
+		
 		while(true) {
 			TaskInfo tinfo = (TaskInfo)getServiceUtil().getDynamicProperty(morTask, "info");
 			Integer progress = tinfo.getProgress();
@@ -560,6 +609,18 @@ public class VmwareContext {
 	}
 	
 	public void close() {
+		synchronized(this) {
+			if(_inventoryCache != null) {
+				_inventoryCache.stop();
+				try {
+					JmxUtil.unregisterMBean("VMware " + _serverAddress, "Inventory cache " + System.identityHashCode(this));
+				} catch(Exception e) {
+					s_logger.warn("Unable to unregister inventory cache MBean: " + e.toString());
+				}
+				_inventoryCache = null;
+			}
+		}
+		
 		try {
 			_appUtil.disConnect();
 		} catch(Exception e) {
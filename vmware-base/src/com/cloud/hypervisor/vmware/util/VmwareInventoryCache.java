@@ -0,0 +1,567 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * VmwareInventoryCache follows the property collector of a vCenter session
+ * with WaitForUpdates and keeps the vm, host and datastore properties that
+ * are looked up over and over, so they are answered without a
+ * RetrieveProperties round trip.  It is also the only caller of
+ * WaitForUpdates on the session, tasks are waited on through it and are
+ * signaled when they finish instead of being polled.
+ * 
+ * The inventory filter is only created on the first lookup, a context that
+ * only runs tasks never loads the inventory.
+ */
+public class VmwareInventoryCache implements Runnable {
+	private static final Logger s_logger = Logger.getLogger(VmwareInventoryCache.class);
+
+	public static final String[] VM_PROPERTIES = { "name", "runtime.powerState", "config.template" };
+	public static final String[] HOST_PROPERTIES = { "name", "parent", "vm", "datastore" };
+	public static final String[] DATASTORE_PROPERTIES = { "name", "summary" };
+	private static final String[] TASK_PROPERTIES = { "info.state", "info.error" };
+
+	private static final Set<String> s_vmProperties = new HashSet<String>(Arrays.asList(VM_PROPERTIES));
+	private static final Set<String> s_datastoreProperties = new HashSet<String>(Arrays.asList(DATASTORE_PROPERTIES));
+	private static final int MAX_FINISHED_TASKS = 256;
+
+	private final VimPortType _service;
+	private final ManagedObjectReference _propertyCollector;
+	private final ManagedObjectReference _rootFolder;
+
+	// guarded by this
+	private final Map<String, Map<String, Object>> _objects = new HashMap<String, Map<String, Object>>();
+	private final Map<String, TaskWaiter> _tasks = new HashMap<String, TaskWaiter>();
+	private final Map<String, Boolean> _finishedTasks = new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_FINISHED_TASKS;
+		}
+	};
+
+	private final Object _filterLock = new Object();
+	private ManagedObjectReference _inventoryFilter;
+	private String _version = "";
+	private volatile boolean _synced = false;
+	private volatile boolean _stopped = false;
+	private Thread _thread;
+	private long _retryInterval = 10000;		// in ms
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _updates = new AtomicLong();
+	private final AtomicLong _signaledTasks = new AtomicLong();
+	private final AtomicLong _polledTasks = new AtomicLong();
+
+	public VmwareInventoryCache(VimPortType service, ManagedObjectReference propertyCollector, ManagedObjectReference rootFolder) {
+		_service = service;
+		_propertyCollector = propertyCollector;
+		_rootFolder = rootFolder;
+	}
+
+	public void setRetryInterval(long retryInterval) {
+		_retryInterval = retryInterval;
+	}
+
+	public synchronized void start(String name) {
+		if(_thread != null)
+			return;
+
+		_thread = new Thread(this, "VmwareInventory-" + name);
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public void stop() {
+		_stopped = true;
+		try {
+			_service.cancelWaitForUpdates(_propertyCollector);
+		} catch(Exception e) {
+			s_logger.debug("Unable to cancel WaitForUpdates: " + e.toString());
+		}
+		reset();
+
+		if(s_logger.isDebugEnabled())
+			s_logger.debug("Inventory cache stopped. hits: " + _hits.get() + ", misses: " + _misses.get() + ", updates: " + _updates.get()
+				+ ", signaled tasks: " + _signaledTasks.get() + ", polled tasks: " + _polledTasks.get());
+	}
+
+	@Override
+	public void run() {
+		int failures = 0;
+		while(!_stopped) {
+			try {
+				UpdateSet updateSet = _service.waitForUpdates(_propertyCollector, _version);
+				if(updateSet != null) {
+					apply(updateSet);
+					_version = updateSet.getVersion();
+				}
+				failures = 0;
+			} catch(Exception e) {
+				if(_stopped)
+					break;
+
+				// an idle wait may time out on the client side while the filters are still valid on the server
+				if(++failures == 1) {
+					s_logger.debug("WaitForUpdates failed, retrying with version " + _version + ". " + e.toString());
+					continue;
+				}
+
+				s_logger.warn("Lost the update stream of the property collector, will retry. " + e.toString());
+				reset();
+				try {
+					Thread.sleep(_retryInterval);
+				} catch(InterruptedException ex) {
+				}
+			}
+		}
+	}
+
+	private void reset() {
+		ManagedObjectReference inventoryFilter;
+		List<TaskWaiter> waiters;
+		synchronized(_filterLock) {
+			inventoryFilter = _inventoryFilter;
+			_inventoryFilter = null;
+			_synced = false;
+			_version = "";
+
+			synchronized(this) {
+				_objects.clear();
+				waiters = new ArrayList<TaskWaiter>(_tasks.values());
+				_tasks.clear();
+			}
+		}
+
+		destroyFilter(inventoryFilter);
+		for(TaskWaiter waiter : waiters) {
+			destroyFilter(waiter._filter);
+			waiter._done.countDown();
+		}
+	}
+
+	private void destroyFilter(ManagedObjectReference filter) {
+		if(filter == null)
+			return;
+		try {
+			_service.destroyPropertyFilter(filter);
+		} catch(Exception e) {
+			s_logger.debug("Unable to destroy property filter: " + e.toString());
+		}
+	}
+
+	private void apply(UpdateSet updateSet) {
+		PropertyFilterUpdate[] filterUpdates = updateSet.getFilterSet();
+		if(filterUpdates == null)
+			return;
+
+		// tasks are signaled last, so the changes a task made are in the cache when its waiter wakes up
+		List<ObjectUpdate> taskUpdates = new ArrayList<ObjectUpdate>();
+		boolean inventoryLoaded = false;
+		for(PropertyFilterUpdate filterUpdate : filterUpdates) {
+			if(!_synced && isInventoryFilter(filterUpdate.getFilter()))
+				inventoryLoaded = true;
+
+			ObjectUpdate[] objectUpdates = filterUpdate.getObjectSet();
+			if(objectUpdates == null)
+				continue;
+
+			for(ObjectUpdate objectUpdate : objectUpdates) {
+				_updates.incrementAndGet();
+				if(objectUpdate.getObj().getType().equals("Task"))
+					taskUpdates.add(objectUpdate);
+				else
+					applyObject(objectUpdate);
+			}
+		}
+
+		// the first update of a new filter carries everything it selects
+		if(inventoryLoaded)
+			_synced = true;
+
+		for(ObjectUpdate objectUpdate : taskUpdates)
+			applyTask(objectUpdate);
+	}
+
+	private boolean isInventoryFilter(ManagedObjectReference morFilter) {
+		synchronized(_filterLock) {
+			return _inventoryFilter != null && morFilter != null && _inventoryFilter.get_value().equals(morFilter.get_value());
+		}
+	}
+
+	private synchronized void applyObject(ObjectUpdate objectUpdate) {
+		String key = getKey(objectUpdate.getObj());
+		if(ObjectUpdateKind.leave.equals(objectUpdate.getKind())) {
+			_objects.remove(key);
+			return;
+		}
+
+		Map<String, Object> props = _objects.get(key);
+		if(props == null) {
+			props = new HashMap<String, Object>();
+			_objects.put(key, props);
+		}
+
+		PropertyChange[] changes = objectUpdate.getChangeSet();
+		if(changes != null) {
+			for(PropertyChange change : changes) {
+				if(PropertyChangeOp.remove.equals(change.getOp()) || change.getVal() == null)
+					props.remove(change.getName());
+				else
+					props.put(change.getName(), change.getVal());
+			}
+		}
+	}
+
+	private void applyTask(ObjectUpdate objectUpdate) {
+		TaskWaiter waiter;
+		synchronized(this) {
+			waiter = _tasks.get(objectUpdate.getObj().get_value());
+		}
+		if(waiter == null)
+			return;
+
+		PropertyChange[] changes = objectUpdate.getChangeSet();
+		if(changes != null) {
+			for(PropertyChange change : changes) {
+				if(change.getName().equals("info.state"))
+					waiter._state = (TaskInfoState)change.getVal();
+				else if(change.getName().equals("info.error"))
+					waiter._error = (LocalizedMethodFault)change.getVal();
+			}
+		}
+
+		if(TaskInfoState.success.equals(waiter._state) || TaskInfoState.error.equals(waiter._state)) {
+			synchronized(this) {
+				_tasks.remove(waiter._key);
+				_finishedTasks.put(waiter._key, Boolean.TRUE);
+			}
+			destroyFilter(waiter._filter);
+			_signaledTasks.incrementAndGet();
+			waiter._done.countDown();
+		}
+	}
+
+	/**
+	 * Waits for the task to finish by following its state, the same way
+	 * ServiceUtil.waitForTask reports it.
+	 * 
+	 * @return "sucess" when the task succeeded, the error otherwise, or null
+	 * 		if the cache lost the update stream and the caller has to poll.
+	 */
+	public String waitForTask(ManagedObjectReference morTask) throws Exception {
+		TaskWaiter waiter = new TaskWaiter(morTask.get_value());
+		synchronized(_filterLock) {
+			if(_stopped || _thread == null) {
+				_polledTasks.incrementAndGet();
+				return null;
+			}
+
+			synchronized(this) {
+				_tasks.put(waiter._key, waiter);
+			}
+
+			PropertySpec pSpec = new PropertySpec();
+			pSpec.setType("Task");
+			pSpec.setPathSet(TASK_PROPERTIES);
+
+			ObjectSpec oSpec = new ObjectSpec();
+			oSpec.setObj(morTask);
+			oSpec.setSkip(Boolean.FALSE);
+
+			PropertyFilterSpec pfSpec = new PropertyFilterSpec();
+			pfSpec.setPropSet(new PropertySpec[] { pSpec });
+			pfSpec.setObjectSet(new ObjectSpec[] { oSpec });
+
+			try {
+				waiter._filter = _service.createFilter(_propertyCollector, pfSpec, true);
+			} catch(Exception e) {
+				synchronized(this) {
+					_tasks.remove(waiter._key);
+				}
+				s_logger.warn("Unable to follow task " + waiter._key + ", polling it instead. " + e.toString());
+				_polledTasks.incrementAndGet();
+				return null;
+			}
+		}
+
+		while(!waiter._done.await(1, TimeUnit.MINUTES)) {
+			if(_stopped)
+				break;
+		}
+
+		if(TaskInfoState.success.equals(waiter._state))
+			return "sucess";
+
+		if(TaskInfoState.error.equals(waiter._state)) {
+			if(waiter._error != null && waiter._error.getLocalizedMessage() != null)
+				return waiter._error.getLocalizedMessage();
+			return "Error Occured";
+		}
+
+		_polledTasks.incrementAndGet();
+		return null;
+	}
+
+	public synchronized boolean isTaskFinished(ManagedObjectReference morTask) {
+		return _finishedTasks.containsKey(morTask.get_value());
+	}
+
+	/**
+	 * @return the properties of the vms on the host, or on the hosts of the
+	 * 		cluster, in the form RetrieveProperties returns them, or null if
+	 * 		they are not cached and have to be retrieved.
+	 */
+	public ObjectContent[] getVmProperties(ManagedObjectReference morHyperHost, String[] propertyPaths) {
+		return getHostChildProperties(morHyperHost, "vm", s_vmProperties, propertyPaths);
+	}
+
+	/**
+	 * @return the properties of the datastores mounted on the host, or null
+	 * 		if they are not cached and have to be retrieved.
+	 */
+	public ObjectContent[] getDatastoreProperties(ManagedObjectReference morHost, String[] propertyPaths) {
+		return getHostChildProperties(morHost, "datastore", s_datastoreProperties, propertyPaths);
+	}
+
+	private ObjectContent[] getHostChildProperties(ManagedObjectReference morHyperHost, String childPath,
+		Set<String> cachedProperties, String[] propertyPaths) {
+
+		if(!cachedProperties.containsAll(Arrays.asList(propertyPaths))) {
+			_misses.incrementAndGet();
+			return null;
+		}
+
+		if(!_synced) {
+			loadInventory();
+			_misses.incrementAndGet();
+			return null;
+		}
+
+		List<ObjectContent> ocs = new ArrayList<ObjectContent>();
+		synchronized(this) {
+			List<Map<String, Object>> hosts = new ArrayList<Map<String, Object>>();
+			if(morHyperHost.getType().equals("HostSystem")) {
+				Map<String, Object> host = _objects.get(getKey(morHyperHost));
+				if(host != null)
+					hosts.add(host);
+			} else {
+				for(Map.Entry<String, Map<String, Object>> entry : _objects.entrySet()) {
+					if(entry.getKey().startsWith("HostSystem:") && isSameMor(entry.getValue().get("parent"), morHyperHost))
+						hosts.add(entry.getValue());
+				}
+			}
+
+			if(hosts.isEmpty()) {
+				_misses.incrementAndGet();
+				return null;
+			}
+
+			for(Map<String, Object> host : hosts) {
+				for(ManagedObjectReference mor : toMorArray(host.get(childPath))) {
+					Map<String, Object> props = _objects.get(getKey(mor));
+					if(props != null)
+						ocs.add(toObjectContent(mor, props, propertyPaths));
+				}
+			}
+		}
+
+		_hits.incrementAndGet();
+		return ocs.toArray(new ObjectContent[ocs.size()]);
+	}
+
+	private void loadInventory() {
+		synchronized(_filterLock) {
+			if(_inventoryFilter != null || _stopped || _thread == null)
+				return;
+
+			try {
+				_inventoryFilter = _service.createFilter(_propertyCollector, buildInventoryFilterSpec(), true);
+			} catch(Exception e) {
+				s_logger.warn("Unable to create the inventory filter. " + e.toString());
+			}
+		}
+	}
+
+	private PropertyFilterSpec buildInventoryFilterSpec() {
+		SelectionSpec visitFolders = new SelectionSpec();
+		visitFolders.setName("visitFolders");
+
+		TraversalSpec dcToHostFolder = new TraversalSpec();
+		dcToHostFolder.setName("dcToHostFolder");
+		dcToHostFolder.setType("Datacenter");
+		dcToHostFolder.setPath("hostFolder");
+		dcToHostFolder.setSkip(Boolean.FALSE);
+		dcToHostFolder.setSelectSet(new SelectionSpec[] { visitFolders });
+
+		TraversalSpec dcToVmFolder = new TraversalSpec();
+		dcToVmFolder.setName("dcToVmFolder");
+		dcToVmFolder.setType("Datacenter");
+		dcToVmFolder.setPath("vmFolder");
+		dcToVmFolder.setSkip(Boolean.FALSE);
+		dcToVmFolder.setSelectSet(new SelectionSpec[] { visitFolders });
+
+		TraversalSpec dcToDatastore = new TraversalSpec();
+		dcToDatastore.setName("dcToDatastore");
+		dcToDatastore.setType("Datacenter");
+		dcToDatastore.setPath("datastore");
+		dcToDatastore.setSkip(Boolean.FALSE);
+
+		TraversalSpec crToHost = new TraversalSpec();
+		crToHost.setName("crToHost");
+		crToHost.setType("ComputeResource");
+		crToHost.setPath("host");
+		crToHost.setSkip(Boolean.FALSE);
+
+		TraversalSpec hostToVm = new TraversalSpec();
+		hostToVm.setName("hostToVm");
+		hostToVm.setType("HostSystem");
+		hostToVm.setPath("vm");
+		hostToVm.setSkip(Boolean.FALSE);
+
+		TraversalSpec folderTraversal = new TraversalSpec();
+		folderTraversal.setName("visitFolders");
+		folderTraversal.setType("Folder");
+		folderTraversal.setPath("childEntity");
+		folderTraversal.setSkip(Boolean.FALSE);
+		folderTraversal.setSelectSet(new SelectionSpec[] { visitFolders, dcToHostFolder, dcToVmFolder, dcToDatastore, crToHost, hostToVm });
+
+		PropertySpec vmSpec = new PropertySpec();
+		vmSpec.setType("VirtualMachine");
+		vmSpec.setPathSet(VM_PROPERTIES);
+
+		PropertySpec hostSpec = new PropertySpec();
+		hostSpec.setType("HostSystem");
+		hostSpec.setPathSet(HOST_PROPERTIES);
+
+		PropertySpec datastoreSpec = new PropertySpec();
+		datastoreSpec.setType("Datastore");
+		datastoreSpec.setPathSet(DATASTORE_PROPERTIES);
+
+		ObjectSpec oSpec = new ObjectSpec();
+		oSpec.setObj(_rootFolder);
+		oSpec.setSkip(Boolean.TRUE);
+		oSpec.setSelectSet(new SelectionSpec[] { folderTraversal });
+
+		PropertyFilterSpec pfSpec = new PropertyFilterSpec();
+		pfSpec.setPropSet(new PropertySpec[] { vmSpec, hostSpec, datastoreSpec });
+		pfSpec.setObjectSet(new ObjectSpec[] { oSpec });
+		return pfSpec;
+	}
+
+	private static ObjectContent toObjectContent(ManagedObjectReference mor, Map<String, Object> props, String[] propertyPaths) {
+		List<DynamicProperty> propSet = new ArrayList<DynamicProperty>();
+		for(String path : propertyPaths) {
+			Object val = props.get(path);
+			if(val != null) {
+				DynamicProperty prop = new DynamicProperty();
+				prop.setName(path);
+				prop.setVal(val);
+				propSet.add(prop);
+			}
+		}
+
+		ObjectContent oc = new ObjectContent();
+		oc.setObj(mor);
+		oc.setPropSet(propSet.toArray(new DynamicProperty[propSet.size()]));
+		return oc;
+	}
+
+	private static ManagedObjectReference[] toMorArray(Object val) {
+		if(val instanceof ArrayOfManagedObjectReference) {
+			ManagedObjectReference[] mors = ((ArrayOfManagedObjectReference)val).getManagedObjectReference();
+			if(mors != null)
+				return mors;
+		} else if(val instanceof ManagedObjectReference[]) {
+			return (ManagedObjectReference[])val;
+		}
+		return new ManagedObjectReference[0];
+	}
+
+	private static boolean isSameMor(Object val, ManagedObjectReference mor) {
+		if(!(val instanceof ManagedObjectReference))
+			return false;
+		return getKey((ManagedObjectReference)val).equals(getKey(mor));
+	}
+
+	private static String getKey(ManagedObjectReference mor) {
+		return mor.getType() + ":" + mor.get_value();
+	}
+
+	public boolean isSynced() {
+		return _synced;
+	}
+
+	public synchronized int getObjectCount() {
+		return _objects.size();
+	}
+
+	public long getHitCount() {
+		return _hits.get();
+	}
+
+	public long getMissCount() {
+		return _misses.get();
+	}
+
+	public long getUpdateCount() {
+		return _updates.get();
+	}
+
+	public long getSignaledTaskCount() {
+		return _signaledTasks.get();
+	}
+
+	public long getPolledTaskCount() {
+		return _polledTasks.get();
+	}
+
+	private static class TaskWaiter {
+		final String _key;
+		final CountDownLatch _done = new CountDownLatch(1);
+		ManagedObjectReference _filter;
+		volatile TaskInfoState _state;
+		volatile LocalizedMethodFault _error;
+
+		public TaskWaiter(String key) {
+			_key = key;
+		}
+	}
+}
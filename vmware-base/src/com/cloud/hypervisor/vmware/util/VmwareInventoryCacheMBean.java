@@ -0,0 +1,15 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.util;
+
+public interface VmwareInventoryCacheMBean {
+	public boolean isSynced();
+	public int getObjectCount();
+	public long getHitCount();
+	public long getMissCount();
+	public long getUpdateCount();
+	public long getSignaledTaskCount();
+	public long getPolledTaskCount();
+}
@@ -0,0 +1,45 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.util;
+
+import javax.management.StandardMBean;
+
+public class VmwareInventoryCacheMBeanImpl extends StandardMBean implements VmwareInventoryCacheMBean {
+	private VmwareInventoryCache _cache;
+
+	public VmwareInventoryCacheMBeanImpl(VmwareInventoryCache cache) {
+		super(VmwareInventoryCacheMBean.class, false);
+
+		_cache = cache;
+	}
+
+	public boolean isSynced() {
+		return _cache.isSynced();
+	}
+
+	public int getObjectCount() {
+		return _cache.getObjectCount();
+	}
+
+	public long getHitCount() {
+		return _cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return _cache.getMissCount();
+	}
+
+	public long getUpdateCount() {
+		return _cache.getUpdateCount();
+	}
+
+	public long getSignaledTaskCount() {
+		return _cache.getSignaledTaskCount();
+	}
+
+	public long getPolledTaskCount() {
+		return _cache.getPolledTaskCount();
+	}
+}